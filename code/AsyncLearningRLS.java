@@ -0,0 +1,341 @@
+/*************************************************************************
+ *  Compilation:  javac AsyncLearningRLS.java
+ *  Author:  Phillip B. Schafer
+ *
+ *  RLS readout learning on its own thread, pipelined with the simulation.
+ *
+ *  Dependencies:
+ *   JBlas library
+ *   StdOut, Stopwatch (Algs-4)
+ *************************************************************************/
+import org.jblas.DoubleMatrix;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *  Runs the RLS updates of a <nn>ReadoutLearningRLS</nn> on a dedicated
+ *  thread, so that the O(N^2) update overlaps with the simulation.
+ *  <p>
+ *  At each learning step the simulation thread copies r and the target
+ *  into a bounded single-producer, single-consumer ring of samples
+ *  (lock-free; the producer waits only if the ring is full).  The learner
+ *  thread applies the samples in order to a shadow copy of wOut and P,
+ *  exactly as the synchronous learner would, and after each update
+ *  publishes the shadow wOut through a lock-free triple buffer.  The
+ *  simulation installs the newest published weights in the readout at
+ *  step boundaries (<tt>learn</tt> and <tt>sync</tt>), so the network's
+ *  feedback and readout use weights that may lack the most recent updates.
+ *  <p>
+ *  Staleness is the number of submitted samples whose updates are not yet
+ *  in the weights the network uses.  It is bounded: after submitting a
+ *  sample, <tt>learn</tt> waits until the staleness is at most
+ *  <tt>maxStaleness</tt>.  With a bound of 0 the weights, and so the whole
+ *  simulation, are identical to synchronous learning; larger bounds let
+ *  the simulation run ahead by up to that many updates.  The staleness
+ *  actually incurred and the time spent waiting are reported.
+ *  <p>
+ *  The readout must not be trained by other means while the learner is
+ *  open.  <tt>close</tt> applies the remaining samples and leaves the
+ *  final wOut and P in the readout.
+ */
+public class AsyncLearningRLS {
+    private final ReadoutLearningRLS readout;   // used by the simulation
+    private final ReadoutLearningRLS shadow;    // trained by the learner thread
+    private final int maxStaleness;
+
+    // sample ring: the producer writes slot (head & mask), then advances head
+    private final DoubleMatrix[] rSlot, tgSlot;
+    private final double[] tSlot;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();   // samples submitted
+    private final AtomicLong tail = new AtomicLong();   // samples applied
+
+    // triple buffer of published weights; MIDDLE holds an index and a flag
+    private static final int FRESH = 4;
+    private final DoubleMatrix[] wBuf = new DoubleMatrix[3];
+    private final long[] wTag = new long[3];            // updates included
+    private final AtomicInteger middle = new AtomicInteger(1);
+    private int back = 0;             // learner thread's buffer
+    private int front = 2;            // simulation thread's buffer
+    private long installed = 0;       // updates in the readout's weights
+
+    private final Thread thread;
+    private volatile boolean closed = false;
+    private volatile Thread waiter;   // simulation thread, while waiting
+    private volatile Throwable failure;
+
+    // statistics (simulation thread)
+    private long nLearn = 0, stalenessSum = 0, nWaits = 0;
+    private int stalenessMax = 0;
+    private long waitNanos = 0;
+
+    /**
+     * Start a learner for a readout.
+     * @param readout the readout to train (its current wOut and P are the
+     *   starting point)
+     * @param capacity the number of samples the ring holds (rounded up to a
+     *   power of 2)
+     * @param maxStaleness the maximum number of updates the network's
+     *   weights may lag behind the submitted samples
+     * @throws IllegalArgumentException if <tt>capacity</tt> is less than
+     *   one or <tt>maxStaleness</tt> is negative
+     */
+    public AsyncLearningRLS(ReadoutLearningRLS readout, int capacity, int maxStaleness) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be at least 1");
+        if (maxStaleness < 0)
+            throw new IllegalArgumentException("maxStaleness must be nonnegative");
+        this.readout      = readout;
+        this.shadow       = readout.fork();     // copies wOut and P on first update
+        this.maxStaleness = maxStaleness;
+        int cap = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mask   = cap - 1;
+        rSlot  = new DoubleMatrix[cap];
+        tgSlot = new DoubleMatrix[cap];
+        tSlot  = new double[cap];
+        for (int k = 0; k < cap; k++) {
+            rSlot[k]  = new DoubleMatrix(readout.fb_size());
+            tgSlot[k] = new DoubleMatrix(readout.size());
+        }
+        DoubleMatrix w0 = readout.getWOut(new DoubleMatrix(readout.size(), readout.fb_size()));
+        for (int k = 0; k < 3; k++)
+            wBuf[k] = w0.dup();
+        thread = new Thread(new Runnable() {
+            public void run() { learnLoop(); }
+        }, "AsyncLearningRLS");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**********************************************************************
+     *  Simulation thread
+     **********************************************************************/
+    /**
+     * Submit the current rates and target of the network for an update,
+     * and install newer weights, waiting if the staleness bound requires.
+     * Call at a step boundary, where <tt>ReadoutLearningRLS.learn</tt> would
+     * be called.
+     * @param res the network
+     * @throws IllegalStateException if the learner has been closed or failed
+     */
+    public void learn(Reservoir res) {
+        checkOpen();
+        long h = head.get();
+        if (h - tail.get() > mask)                       // ring full
+            await(h - mask);
+        int k = (int) (h & mask);
+        rSlot[k].copy(res.rates());
+        readout.getTargetReadout(res.t(), tgSlot[k]);
+        tSlot[k] = res.t();
+        head.lazySet(h + 1);
+        LockSupport.unpark(thread);
+
+        sync();
+        if (h + 1 - installed > maxStaleness) {          // too stale
+            await(h + 1 - maxStaleness);
+            sync();
+        }
+        int staleness = (int) (h + 1 - installed);
+        nLearn++;
+        stalenessSum += staleness;
+        stalenessMax = Math.max(stalenessMax, staleness);
+    }
+
+    /**
+     * Install the newest published weights in the readout, if newer than
+     * the installed ones.  Cheap if there are none; may be called every step.
+     * @return whether new weights were installed
+     */
+    public boolean sync() {
+        if ((middle.get() & FRESH) == 0) return false;
+        front = middle.getAndSet(front) & ~FRESH;
+        readout.setWOut(wBuf[front]);
+        installed = wTag[front];
+        return true;
+    }
+
+    // wait until at least n updates have been applied and published
+    private void await(long n) {
+        long t0 = System.nanoTime();
+        nWaits++;
+        waiter = Thread.currentThread();
+        while (tail.get() < n) {
+            checkOpen();
+            LockSupport.parkNanos(this, 100000L);
+        }
+        waiter = null;
+        waitNanos += System.nanoTime() - t0;
+    }
+
+    private void checkOpen() {
+        if (failure != null)
+            throw new IllegalStateException("learner thread failed", failure);
+        if (closed)
+            throw new IllegalStateException("learner is closed");
+    }
+
+    /**
+     * Apply the remaining samples, stop the learner thread, and leave the
+     * final weights and correlation estimate in the readout.
+     * @throws IllegalStateException if the learner thread failed
+     */
+    public void close() {
+        if (closed) return;
+        await(head.get());
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null)
+            throw new IllegalStateException("learner thread failed", failure);
+        readout.setWOut(shadow.wOut);
+        readout.takeP(shadow);
+        installed = tail.get();
+    }
+
+    /**********************************************************************
+     *  Learner thread
+     **********************************************************************/
+    private void learnLoop() {
+        try {
+            while (true) {
+                long t = tail.get();
+                if (t == head.get()) {
+                    if (closed) return;
+                    LockSupport.parkNanos(this, 100000L);
+                    continue;
+                }
+                int k = (int) (t & mask);
+                shadow.learn(rSlot[k], tSlot[k], tgSlot[k]);
+                // publish: fill the back buffer, then swap it into the middle
+                wBuf[back].copy(shadow.wOut);
+                wTag[back] = t + 1;
+                back = middle.getAndSet(back | FRESH) & ~FRESH;
+                tail.lazySet(t + 1);
+                Thread w = waiter;
+                if (w != null) LockSupport.unpark(w);
+            }
+        } catch (Throwable e) {
+            failure = e;
+            Thread w = waiter;
+            if (w != null) LockSupport.unpark(w);
+        }
+    }
+
+    /**********************************************************************
+     *  Statistics
+     **********************************************************************/
+    /** @return the staleness bound */
+    public int maxStaleness() {
+        return maxStaleness;
+    }
+
+    /** @return the number of samples submitted */
+    public long nSubmitted() {
+        return head.get();
+    }
+
+    /** @return the number of updates applied by the learner thread */
+    public long nApplied() {
+        return tail.get();
+    }
+
+    /** @return the mean staleness after each <tt>learn</tt> call */
+    public double meanStaleness() {
+        return nLearn == 0 ? 0.0 : stalenessSum/(double) nLearn;
+    }
+
+    /** @return the largest staleness after a <tt>learn</tt> call */
+    public int maxObservedStaleness() {
+        return stalenessMax;
+    }
+
+    /** @return the number of times the simulation waited for the learner */
+    public long nWaits() {
+        return nWaits;
+    }
+
+    /** @return the total time the simulation waited for the learner, in seconds */
+    public double waitTime() {
+        return 1e-9*waitNanos;
+    }
+
+    /**********************************************************************
+     *  Unit testing
+     **********************************************************************/
+    public static void main(String[] args) {
+        int N = 500, learnInt = 2, nTrain = 6000, nTest = 1000;
+        Streams.InputStream wave = new Streams.TriangleWave(0.5);
+        Reservoir start = new Reservoir(N, 0.1, 1.5);
+        ReadoutLearningRLS ro0 = new ReadoutLearningRLS(wave, N, 1.0);
+
+        StdOut.println("Testing that a staleness bound of 0 reproduces synchronous learning...");
+        Reservoir a = start.fork(), b = start.fork();
+        ReadoutLearningRLS roA = ro0.fork(), roB = ro0.fork();
+        a.setFeedback(roA);
+        b.setFeedback(roB);
+        AsyncLearningRLS async = new AsyncLearningRLS(roB, 8, 0);
+        for (int i = 0; i < 400; i++) {
+            a.step();
+            b.step();
+            if (i % learnInt == 0) {
+                roA.learn(a);
+                async.learn(b);
+            }
+        }
+        async.close();
+        StdOut.println("max difference in x: " + a.x.sub(b.x).normmax()
+                       + ", in wOut: " + roA.wOut.sub(roB.wOut).normmax());
+        assert(a.x.equals(b.x) && roA.wOut.equals(roB.wOut) && roA.P.equals(roB.P));
+        assert(async.maxObservedStaleness() == 0);
+
+        StdOut.println("Convergence vs the synchronous learner (rms error over the last "
+                       + nTest + " of " + nTrain + " training steps, then " + nTest + " test steps):");
+        StdOut.println("  bound   train    test     mean/max staleness   waits   wait time   total time");
+        for (int bound : new int[] {-1, 0, 1, 4, 16}) {
+            Reservoir res = start.fork();
+            ReadoutLearningRLS ro = ro0.fork();
+            res.setFeedback(ro);
+            AsyncLearningRLS learner = bound < 0 ? null : new AsyncLearningRLS(ro, 32, bound);
+            double trainErr = 0.0, testErr = 0.0;
+            Stopwatch sw = new Stopwatch();
+            for (int i = 0; i < nTrain; i++) {
+                res.step();
+                if (i % learnInt != 0) {
+                    if (learner != null) learner.sync();
+                } else if (learner == null)
+                    ro.learn(res);
+                else
+                    learner.learn(res);
+                if (i >= nTrain - nTest) trainErr += squaredError(ro, res);
+            }
+            if (learner != null) learner.close();
+            double time = sw.elapsedTime();
+            for (int i = 0; i < nTest; i++) {
+                res.step();
+                testErr += squaredError(ro, res);
+            }
+            trainErr = Math.sqrt(trainErr/nTest);
+            testErr  = Math.sqrt(testErr/nTest);
+            if (learner == null)
+                StdOut.printf("  sync    %.4f   %.4f   %47.2f s%n", trainErr, testErr, time);
+            else
+                StdOut.printf("  %-5d   %.4f   %.4f   %5.2f / %-5d        %5d   %7.2f s   %7.2f s%n",
+                              bound, trainErr, testErr, learner.meanStaleness(),
+                              learner.maxObservedStaleness(), learner.nWaits(), learner.waitTime(), time);
+            assert(trainErr < 0.05) : "did not converge with bound " + bound;
+            if (learner != null)
+                assert(learner.maxObservedStaleness() <= bound);
+        }
+    }
+
+    private static double squaredError(ReadoutLearningRLS ro, Reservoir res) {
+        double e = ro.getReadoutArray(res)[0] - ro.getTargetReadoutArray(res.t())[0];
+        return e*e;
+    }
+}
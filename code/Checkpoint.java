@@ -0,0 +1,602 @@
+/*************************************************************************
+ *  Compilation:  javac Checkpoint.java
+ *  Author:  Phillip B. Schafer
+ *
+ *  Binary checkpointing of simulation state with NIO buffers.
+ *
+ *  Dependencies:
+ *   JBlas library
+ *   StdOut (Algs-4)
+ *************************************************************************/
+import org.jblas.DoubleMatrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ *  Saves and restores the state of a simulation to a binary file.
+ *  Each stateful object (<tt>Reservoir</tt>, the readouts, the learning
+ *  modules, recorded <tt>TimeSeries</tt> and stream positions) implements
+ *  <nn>Checkpointable</nn> and writes its fields through a <nn>Writer</nn>.
+ *  Matrices are copied in bulk through NIO buffers; Java serialization is
+ *  not used.
+ *  <p>
+ *  A checkpoint holds state only, not the wiring of the simulation.
+ *  To restore, build the same objects as in the original run (same
+ *  sizes, same calls to <tt>setFeedback</tt> etc.) and pass them to
+ *  <tt>restore</tt> in the same order as to <tt>save</tt>.  Stepping then
+ *  continues bit-identically.
+ *  <p>
+ *  <nn>AsyncWriter</nn> takes a snapshot of the state on the calling thread
+ *  (a memory copy) and writes it to disk on a background thread, so that
+ *  periodic checkpoints do not stall the step loop on I/O.
+ */
+public class Checkpoint {
+
+    private static final int MAGIC   = 0x45534e43;  // "ESNC"
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int CHUNK = 1 << 30;       // bytes per buffer
+
+    /**
+     * Interface for objects whose state can be checkpointed.
+     */
+    public interface Checkpointable {
+        /**
+         * Write the state of the object.
+         * @param out the checkpoint writer
+         */
+        void writeState(Writer out);
+        /**
+         * Overwrite the state of the object with a previously written one.
+         * @param in the checkpoint reader
+         * @throws IllegalStateException if the stored state does not fit
+         *   this object (e.g. wrong size)
+         */
+        void readState(Reader in);
+    }
+
+    /**********************************************************************
+     *  Synchronous save/restore
+     **********************************************************************/
+    /**
+     * Write a checkpoint of the given objects.  The file is written to a
+     * temporary file first and then moved into place, so an existing
+     * checkpoint is never left half-written.
+     * @param file the checkpoint file
+     * @param parts the objects to save, in order
+     * @throws IOException if the file cannot be written
+     */
+    public static void save(File file, Checkpointable... parts) throws IOException {
+        write(file, snapshot(new Writer(), parts));
+    }
+
+    /**
+     * Restore the given objects from a checkpoint.
+     * @param file the checkpoint file
+     * @param parts the objects to restore, in the order they were saved
+     * @throws IOException if the file cannot be read
+     * @throws IllegalStateException if the file is not a checkpoint of
+     *   objects of these types and sizes
+     */
+    public static void restore(File file, Checkpointable... parts) throws IOException {
+        FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = ch.size();
+            MappedByteBuffer[] bufs = new MappedByteBuffer[(int) ((size + CHUNK - 1)/CHUNK)];
+            for (int k = 0; k < bufs.length; k++)        // a mapping is at most 2GB
+                bufs[k] = ch.map(FileChannel.MapMode.READ_ONLY, (long) k*CHUNK,
+                                 Math.min(CHUNK, size - (long) k*CHUNK));
+            Reader in = new Reader(bufs);
+            if (in.getInt() != MAGIC)
+                throw new IllegalStateException("not a checkpoint file: " + file);
+            if (in.getInt() != VERSION)
+                throw new IllegalStateException("unsupported checkpoint version");
+            if (in.getInt() != parts.length)
+                throw new IllegalStateException("checkpoint holds a different number of objects");
+            for (Checkpointable part : parts) {
+                String name = in.getString();
+                if (!name.equals(part.getClass().getName()))
+                    throw new IllegalStateException("expected " + part.getClass().getName() + " but found " + name);
+                part.readState(in);
+            }
+        }
+        finally {
+            ch.close();
+        }
+    }
+
+    // serialize all parts into the writer's buffers
+    private static ByteBuffer[] snapshot(Writer out, Checkpointable... parts) {
+        out.clear();
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(parts.length);
+        for (Checkpointable part : parts) {
+            out.putString(part.getClass().getName());
+            part.writeState(out);
+        }
+        return out.flip();
+    }
+
+    // write the buffers to a temporary file, then move it into place
+    private static void write(File file, ByteBuffer[] bufs) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                                          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            for (ByteBuffer buf : bufs)
+                while (buf.hasRemaining())
+                    ch.write(buf);
+            ch.force(true);
+        }
+        finally {
+            ch.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**********************************************************************
+     *  Asynchronous periodic checkpoints
+     **********************************************************************/
+    /**
+     * Writes checkpoints on a background thread.  The snapshot buffer is
+     * reused from one checkpoint to the next; if the previous write has not
+     * finished by the time the next checkpoint is requested, the request
+     * is skipped rather than blocking the caller.
+     */
+    public static class AsyncWriter {
+        private final File file;
+        private final Checkpointable[] parts;
+        private final Writer buffer = new Writer();
+        private final ExecutorService executor;
+        private Future<?> pending;
+        private int nWritten = 0;
+        private int nSkipped = 0;
+        private volatile IOException failure;
+
+        /**
+         * @param file the checkpoint file (overwritten by each checkpoint)
+         * @param parts the objects to save, in order
+         */
+        public AsyncWriter(File file, Checkpointable... parts) {
+            this.file  = file;
+            this.parts = parts.clone();
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread th = new Thread(r, "checkpoint-writer");
+                    th.setDaemon(true);
+                    return th;
+                }
+            });
+        }
+
+        /**
+         * Take a snapshot of the state now and write it in the background.
+         * Must be called from the simulation thread, between steps.
+         * @return <tt>true</tt> if the checkpoint was scheduled,
+         *   <tt>false</tt> if it was skipped because the previous one is
+         *   still being written
+         * @throws IllegalStateException if a previous background write failed
+         */
+        public boolean checkpoint() {
+            if (failure != null)
+                throw new IllegalStateException("checkpoint write failed", failure);
+            if (pending != null && !pending.isDone()) {
+                nSkipped++;
+                return false;
+            }
+            final ByteBuffer[] bufs = snapshot(buffer, parts);
+            pending = executor.submit(new Runnable() {
+                public void run() {
+                    try {
+                        write(file, bufs);
+                    }
+                    catch (IOException e) {
+                        failure = e;
+                    }
+                }
+            });
+            nWritten++;
+            return true;
+        }
+
+        /** @return the number of checkpoints scheduled */
+        public int nWritten() {
+            return nWritten;
+        }
+
+        /** @return the number of checkpoints skipped */
+        public int nSkipped() {
+            return nSkipped;
+        }
+
+        /**
+         * Wait for the last checkpoint to be written and stop the
+         * background thread.
+         * @throws IOException if a background write failed
+         */
+        public void close() throws IOException {
+            executor.shutdown();
+            try {
+                while (!executor.isTerminated())
+                    executor.awaitTermination(1, java.util.concurrent.TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) throw failure;
+        }
+    }
+
+    /**********************************************************************
+     *  Writer and reader
+     **********************************************************************/
+    /**
+     * Appends primitive values and matrices to growable direct buffers.
+     * A buffer holds at most 1GB, so checkpoints may be larger than the
+     * 2GB limit of a single buffer; arrays are split across buffers.
+     */
+    public static class Writer {
+        private final int chunk;                 // capacity of a full buffer
+        private final ArrayList<ByteBuffer> bufs = new ArrayList<ByteBuffer>();
+        private ByteBuffer buf;                  // the current buffer
+        private int current;                     // its index
+
+        public Writer() {
+            this(CHUNK);
+        }
+
+        // buffers of at most chunk bytes (small for testing)
+        Writer(int chunk) {
+            this.chunk = chunk;
+            buf = allocate(Math.min(1 << 16, chunk));
+            bufs.add(buf);
+        }
+
+        private static ByteBuffer allocate(int capacity) {
+            return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+        }
+
+        // room for a value of nBytes in the current buffer: grow it up to
+        // the chunk size, else go on to the next buffer
+        private void ensure(int nBytes) {
+            if (buf.remaining() >= nBytes) return;
+            long needed = (long) buf.position() + nBytes;
+            if (needed <= chunk) {
+                ByteBuffer bigger = allocate((int) Math.min(chunk, Math.max(needed, 2L*buf.capacity())));
+                buf.flip();
+                bigger.put(buf);
+                bufs.set(current, bigger);
+                buf = bigger;
+            } else {
+                buf.flip();                      // limit = end of the data
+                if (++current == bufs.size())
+                    bufs.add(allocate(Math.max(chunk, nBytes)));
+                else if (bufs.get(current).capacity() < nBytes)
+                    bufs.set(current, allocate(nBytes));
+                buf = bufs.get(current);
+                buf.clear();
+            }
+        }
+
+        // bytes to make room for, of the nBytes left of an array: what
+        // fits in a full buffer, but at least one element
+        private int room(long nBytes, int unit) {
+            int fit = (chunk - buf.position())/unit*unit;
+            return (int) Math.max(unit, Math.min(nBytes, fit));
+        }
+
+        void clear() {
+            current = 0;
+            buf = bufs.get(0);
+            buf.clear();
+        }
+
+        ByteBuffer[] flip() {
+            buf.flip();
+            ByteBuffer[] out = new ByteBuffer[current + 1];
+            for (int k = 0; k <= current; k++)
+                out[k] = bufs.get(k).duplicate().order(ByteOrder.nativeOrder());
+            return out;
+        }
+
+        public void putInt(int v) {
+            ensure(4);
+            buf.putInt(v);
+        }
+
+        public void putLong(long v) {
+            ensure(8);
+            buf.putLong(v);
+        }
+
+        public void putDouble(double v) {
+            ensure(8);
+            buf.putDouble(v);
+        }
+
+        public void putBoolean(boolean v) {
+            putInt(v ? 1 : 0);
+        }
+
+        public void putString(String s) {
+            byte[] b = s.getBytes(UTF8);
+            putInt(b.length);
+            ensure(b.length);
+            buf.put(b);
+        }
+
+        /**
+         * Write an array of doubles, preceded by its length.
+         * @param a the array
+         * @param n the number of leading elements to write
+         */
+        public void putArray(double[] a, int n) {
+            putInt(n);
+            for (int off = 0; off < n; ) {
+                ensure(room(8L*(n - off), 8));
+                int k = Math.min(n - off, buf.remaining()/8);
+                buf.asDoubleBuffer().put(a, off, k);
+                buf.position(buf.position() + 8*k);
+                off += k;
+            }
+        }
+
+        /**
+         * Write an array of ints, preceded by its length.
+         * @param a the array
+         * @param n the number of leading elements to write
+         */
+        public void putIntArray(int[] a, int n) {
+            putInt(n);
+            for (int off = 0; off < n; ) {
+                ensure(room(4L*(n - off), 4));
+                int k = Math.min(n - off, buf.remaining()/4);
+                buf.asIntBuffer().put(a, off, k);
+                buf.position(buf.position() + 4*k);
+                off += k;
+            }
+        }
+
+        /**
+         * Write a matrix (dimensions and data).
+         * @param m the matrix
+         */
+        public void putMatrix(DoubleMatrix m) {
+            putInt(m.rows);
+            putInt(m.columns);
+            putArray(m.data, m.length);
+        }
+    }
+
+    /**
+     * Reads values in the order they were written by a <nn>Writer</nn>,
+     * from one or more buffers (values may straddle two buffers).
+     */
+    public static class Reader {
+        private final ByteBuffer[] bufs;
+        private final ByteBuffer scratch = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+        private ByteBuffer buf;                  // the current buffer
+        private int current;                     // its index
+
+        Reader(ByteBuffer... bufs) {
+            this.bufs = bufs.clone();
+            for (int k = 0; k < bufs.length; k++)
+                this.bufs[k] = bufs[k].order(ByteOrder.nativeOrder());
+            buf = this.bufs[0];
+        }
+
+        // a buffer holding the next nBytes (up to 8): the current buffer,
+        // or the scratch buffer for a value that straddles two
+        private ByteBuffer next(int nBytes) {
+            while (!buf.hasRemaining() && current + 1 < bufs.length)
+                buf = bufs[++current];
+            if (buf.remaining() >= nBytes) return buf;
+            scratch.clear();
+            while (scratch.position() < nBytes) {
+                while (!buf.hasRemaining())
+                    buf = bufs[++current];
+                scratch.put(buf.get());
+            }
+            scratch.flip();
+            return scratch;
+        }
+
+        public int getInt() {
+            return next(4).getInt();
+        }
+
+        public long getLong() {
+            return next(8).getLong();
+        }
+
+        public double getDouble() {
+            return next(8).getDouble();
+        }
+
+        public boolean getBoolean() {
+            return getInt() != 0;
+        }
+
+        public String getString() {
+            byte[] b = new byte[getInt()];
+            for (int off = 0; off < b.length; ) {
+                ByteBuffer in = next(1);
+                int k = Math.min(b.length - off, in.remaining());
+                in.get(b, off, k);
+                off += k;
+            }
+            return new String(b, UTF8);
+        }
+
+        // read n doubles into a[0 .. n-1]
+        private void getDoubles(double[] a, int n) {
+            for (int off = 0; off < n; ) {
+                ByteBuffer in = next(8);
+                int k = Math.min(n - off, in.remaining()/8);
+                in.asDoubleBuffer().get(a, off, k);
+                in.position(in.position() + 8*k);
+                off += k;
+            }
+        }
+
+        /**
+         * Read an array written by <tt>putArray</tt> into <tt>a</tt>.
+         * @param a the destination, at least as long as the stored array
+         * @return the number of elements read
+         * @throws IllegalStateException if the stored array does not fit
+         */
+        public int getArray(double[] a) {
+            int n = getInt();
+            if (n > a.length)
+                throw new IllegalStateException("stored array is too long");
+            getDoubles(a, n);
+            return n;
+        }
+
+        /**
+         * Read a stored array into a new array.
+         * @return the array
+         */
+        public double[] getArray() {
+            double[] a = new double[getInt()];
+            getDoubles(a, a.length);
+            return a;
+        }
+
+        /**
+         * Read a stored int array into a new array.
+         * @return the array
+         */
+        public int[] getIntArray() {
+            int[] a = new int[getInt()];
+            for (int off = 0; off < a.length; ) {
+                ByteBuffer in = next(4);
+                int k = Math.min(a.length - off, in.remaining()/4);
+                in.asIntBuffer().get(a, off, k);
+                in.position(in.position() + 4*k);
+                off += k;
+            }
+            return a;
+        }
+
+        /**
+         * Read a stored matrix into <tt>m</tt>, which must be the same size.
+         * @param m the destination
+         * @return m, for convenience only
+         * @throws IllegalStateException if the sizes differ
+         */
+        public DoubleMatrix getMatrix(DoubleMatrix m) {
+            int rows = getInt();
+            int columns = getInt();
+            if (rows != m.rows || columns != m.columns)
+                throw new IllegalStateException("stored matrix is " + rows + "x" + columns
+                                                + ", expected " + m.rows + "x" + m.columns);
+            getArray(m.data);
+            return m;
+        }
+    }
+
+    /**********************************************************************
+     *  Unit testing
+     **********************************************************************/
+    public static void main(String[] args) throws IOException {
+        File file = File.createTempFile("esn", ".ckpt");
+        file.deleteOnExit();
+
+        StdOut.println("Testing bit-identical restore of a FORCE run...");
+        int N = 200;
+        Streams.InputStream target = new Streams.SineWave(0.1);
+        Reservoir          res = new Reservoir(N);
+        ReadoutLearningRLS ro  = new ReadoutLearningRLS(target, N, 1.0);
+        res.setFeedback(ro);
+        for (int i = 0; i < 100; i++) {
+            res.step();
+            if (i % 10 == 0) ro.learn(res);
+        }
+        save(file, res, ro);
+
+        // continue the original
+        for (int i = 0; i < 100; i++) {
+            res.step();
+            if (i % 10 == 0) ro.learn(res);
+        }
+
+        // rebuild the same wiring, restore and continue
+        Reservoir          res2 = new Reservoir(N);
+        ReadoutLearningRLS ro2  = new ReadoutLearningRLS(target, N, 1.0);
+        res2.setFeedback(ro2);
+        restore(file, res2, ro2);
+        for (int i = 0; i < 100; i++) {
+            res2.step();
+            if (i % 10 == 0) ro2.learn(res2);
+        }
+        DoubleMatrix r1 = res.getR(new DoubleMatrix(N));
+        DoubleMatrix r2 = res2.getR(new DoubleMatrix(N));
+        boolean same = res.t() == res2.t();
+        for (int i = 0; i < N; i++)
+            same &= Double.doubleToLongBits(r1.get(i)) == Double.doubleToLongBits(r2.get(i));
+        StdOut.println("identical: " + same);
+        assert same;
+
+        StdOut.println("Testing values split across buffers...");
+        Writer w = new Writer(64);                      // 64-byte buffers
+        double[] a = new double[1001];
+        int[] b = new int[777];
+        for (int i = 0; i < a.length; i++) a[i] = i + 0.5;
+        for (int i = 0; i < b.length; i++) b[i] = -i;
+        w.putInt(7);
+        w.putArray(a, a.length);
+        w.putString("a string longer than the sixty-four bytes of a buffer, and then some");
+        w.putIntArray(b, b.length);
+        w.putLong(Long.MIN_VALUE);
+        w.putDouble(Math.PI);
+        ByteBuffer[] bufs = w.flip();
+        assert(bufs.length > 1);
+        ByteBuffer all = ByteBuffer.allocate(1 << 16);
+        for (ByteBuffer buf : bufs) all.put(buf);
+        int size = all.position();
+        ByteBuffer[] pieces = new ByteBuffer[(size + 12)/13];   // 13 bytes: values straddle
+        for (int k = 0; k < pieces.length; k++) {
+            all.limit(Math.min(size, 13*(k + 1))).position(13*k);
+            pieces[k] = all.slice();
+        }
+        Reader in = new Reader(pieces);
+        assert(in.getInt() == 7);
+        assert(java.util.Arrays.equals(in.getArray(), a));
+        assert(in.getString().startsWith("a string longer"));
+        assert(java.util.Arrays.equals(in.getIntArray(), b));
+        assert(in.getLong() == Long.MIN_VALUE && in.getDouble() == Math.PI);
+        write(file, snapshot(new Writer(64), res, ro));
+        restore(file, res2, ro2);
+        assert(res2.x.equals(res.x) && ro2.P.equals(ro.P));
+
+        StdOut.println("Testing asynchronous checkpoints...");
+        AsyncWriter writer = new AsyncWriter(file, res, ro);
+        Stopwatch sw = new Stopwatch();
+        for (int i = 0; i < 500; i++) {
+            res.step();
+            if (i % 10 == 0) ro.learn(res);
+            if (i % 100 == 0) writer.checkpoint();
+        }
+        writer.close();
+        StdOut.println("time: " + sw.elapsedTime() + " s, written: " + writer.nWritten()
+                       + ", skipped: " + writer.nSkipped());
+    }
+
+}
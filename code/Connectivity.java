@@ -0,0 +1,1508 @@
+/*************************************************************************
+ *  Compilation:  javac Connectivity.java
+ *  Author:  Phillip B. Schafer
+ *
+ *  Storage backends for connection matrices.
+ *
+ *  Dependencies:
+ *   JBlas library
+ *   Kernels
+ *   StdOut, StdRandom, Stopwatch (Algs-4)
+ *************************************************************************/
+import org.jblas.DoubleMatrix;
+import org.jblas.SimpleBlas;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ *  Storage backends for connection matrices.
+ *  The interface <nn>WeightMatrix</nn> is what the network dynamics need
+ *  from a connection matrix: products with a vector or a block of vectors.
+ *  <nn>Dense</nn> wraps a jBlas matrix (BLAS products); <nn>Sparse</nn>
+ *  stores the nonzeros in compressed sparse row (CSR) format, so products
+ *  cost O(nnz) rather than O(N^2).  <nn>DenseStorage</nn> is a dense
+ *  matrix that can also be read and written by column and updated by
+ *  rank-1 corrections, as the correlation estimate P of RLS; besides
+ *  <nn>Dense</nn>, <nn>OffHeapMatrix</nn> implements it outside the heap.
+ *  <nn>Procedural</nn> stores nothing: it regenerates a random sparse
+ *  matrix from a seed inside each product.  <nn>Permuted</nn> renumbers
+ *  the neurons inside another backend, e.g. for locality
+ *  (<tt>reverseCuthillMcKee</tt>); <nn>Blocked</nn> cuts a sparse matrix
+ *  into blocks of columns, for products that keep x in cache.
+ */
+public class Connectivity {
+
+    /************************************************************************
+     *  Interface
+     ************************************************************************/
+    /**
+     * A connection matrix that can be multiplied by vectors.
+     */
+    public interface WeightMatrix extends Checkpoint.Checkpointable {
+        /** @return the number of rows (postsynaptic units) */
+        int rows();
+        /** @return the number of columns (presynaptic units) */
+        int columns();
+        /**
+         * Multiply by a vector or by a block of column vectors.
+         * @param v the vector(s), <tt>columns()</tt> x k
+         * @param out the product, <tt>rows()</tt> x k (overwritten)
+         * @return out, for convenience only
+         */
+        DoubleMatrix mmuli(DoubleMatrix v, DoubleMatrix out);
+        /**
+         * Multiply by a vector and add a low-rank term, in one pass over
+         * the output: out = W*v + U*z.
+         * @param v the vector, <tt>columns()</tt> x 1
+         * @param U the dense factor, <tt>rows()</tt> x M
+         * @param z the coefficients, M x 1
+         * @param out the result, <tt>rows()</tt> x 1 (overwritten)
+         * @return out, for convenience only
+         */
+        DoubleMatrix mmuliLowRank(DoubleMatrix v, DoubleMatrix U, DoubleMatrix z, DoubleMatrix out);
+        /**
+         * Write the matrix in dense form.
+         * @param out the dense matrix (resized if necessary)
+         * @return out, for convenience only
+         */
+        DoubleMatrix toDense(DoubleMatrix out);
+        /**
+         * Multiply all entries by a constant, in place.
+         * @param a the factor
+         */
+        void scalei(double a);
+        /**
+         * @return an independent copy of the matrix
+         */
+        WeightMatrix copy();
+        /**
+         * Get the columns of the stored (nonzero) entries of a row.
+         * @param i the row
+         * @return the column indices, increasing
+         */
+        int[] rowSupport(int i);
+        /**
+         * Add a multiple of a vector to some entries of a row, in place:
+         * W(i, cols[m]) += a*x[m].  Different rows may be updated
+         * concurrently.
+         * @param i the row
+         * @param cols the columns, increasing
+         * @param a the factor
+         * @param x the values, one per column
+         * @throws IllegalArgumentException if a column is not stored
+         */
+        void rowAxpy(int i, int[] cols, double a, double[] x);
+    }
+
+    /**
+     * A dense matrix with column access and rank-1 updates.
+     */
+    public interface DenseStorage extends WeightMatrix {
+        /**
+         * @param j the column
+         * @param out the column's entries (length at least <tt>rows()</tt>)
+         */
+        void getColumn(int j, double[] out);
+        /**
+         * @param j the column
+         * @param v the new entries (length at least <tt>rows()</tt>)
+         */
+        void putColumn(int j, double[] v);
+        /**
+         * Rank-1 update A += alpha*x*y'.
+         * @param alpha the factor
+         * @param x the column vector (length <tt>rows()</tt>)
+         * @param y the row vector (length <tt>columns()</tt>)
+         */
+        void ger(double alpha, double[] x, double[] y);
+        DenseStorage copy();
+    }
+
+    /************************************************************************
+     *  Dense storage
+     ************************************************************************/
+    /**
+     * A dense matrix; products go through jBlas (BLAS).
+     */
+    public static class Dense implements DenseStorage {
+        final DoubleMatrix W;
+        /** @param W the matrix, wrapped (not copied) */
+        public Dense(DoubleMatrix W) {
+            this.W = W;
+        }
+        public int rows()    { return W.rows; }
+        public int columns() { return W.columns; }
+        public DoubleMatrix mmuli(DoubleMatrix v, DoubleMatrix out) {
+            if (v.columns != 1 || !Kernels.vectorized() || v == out)
+                return W.mmuli(v, out);
+            if (v.rows != W.columns)
+                throw new IllegalArgumentException("Number of columns of matrix must equal number of rows of vector");
+            if (out.rows != W.rows || out.columns != 1)
+                out.resize(W.rows, 1);
+            Kernels.gemv(W.rows, W.columns, W.data, v.data, out.data);
+            return out;
+        }
+        public DoubleMatrix mmuliLowRank(DoubleMatrix v, DoubleMatrix U, DoubleMatrix z, DoubleMatrix out) {
+            W.mmuli(v, out);
+            return SimpleBlas.gemv(1.0, U, z, 1.0, out);   // out += U*z
+        }
+        public DoubleMatrix toDense(DoubleMatrix out) {
+            return out.copy(W);
+        }
+        public void scalei(double a) {
+            W.muli(a);
+        }
+        public Dense copy() {
+            return new Dense(W.dup());
+        }
+        public int[] rowSupport(int i) {
+            int n = 0, rows = W.rows;
+            for (int j = 0; j < W.columns; j++)
+                if (W.data[i + j*rows] != 0.0) n++;
+            int[] cols = new int[n];
+            n = 0;
+            for (int j = 0; j < W.columns; j++)
+                if (W.data[i + j*rows] != 0.0) cols[n++] = j;
+            return cols;
+        }
+        public void rowAxpy(int i, int[] cols, double a, double[] x) {
+            double[] w = W.data;
+            int rows = W.rows;
+            for (int m = 0; m < cols.length; m++)
+                w[i + cols[m]*rows] += a*x[m];
+        }
+        public void getColumn(int j, double[] out) {
+            System.arraycopy(W.data, W.rows*j, out, 0, W.rows);
+        }
+        public void putColumn(int j, double[] v) {
+            System.arraycopy(v, 0, W.data, W.rows*j, W.rows);
+        }
+        public void ger(double alpha, double[] x, double[] y) {
+            if (x == y && W.rows == W.columns && Kernels.vectorized())
+                Kernels.syr(W.rows, alpha, x, W.data);
+            else {
+                double[] w = W.data;
+                for (int j = 0, rows = W.rows; j < W.columns; j++) {
+                    double c = alpha*y[j];
+                    for (int i = 0, o = rows*j; i < rows; i++)
+                        w[o + i] += x[i]*c;
+                }
+            }
+        }
+        public void writeState(Checkpoint.Writer out) {
+            out.putMatrix(W);
+        }
+        public void readState(Checkpoint.Reader in) {
+            in.getMatrix(W);
+        }
+    }
+
+    /************************************************************************
+     *  Compressed sparse row storage
+     ************************************************************************/
+    /**
+     * A sparse matrix in compressed sparse row (CSR) format.  The nonzeros
+     * of row i are <tt>val[rowPtr[i] .. rowPtr[i+1]-1]</tt>, in columns
+     * <tt>colIdx[...]</tt> (increasing).
+     */
+    public static class Sparse implements WeightMatrix {
+        int rows, columns;
+        int[] rowPtr;
+        int[] colIdx;
+        double[] val;
+
+        Sparse(int rows, int columns, int[] rowPtr, int[] colIdx, double[] val) {
+            this.rows    = rows;
+            this.columns = columns;
+            this.rowPtr  = rowPtr;
+            this.colIdx  = colIdx;
+            this.val     = val;
+        }
+
+        /**
+         * Convert a dense matrix, keeping its nonzero entries.
+         * @param W the dense matrix
+         * @return the sparse matrix
+         */
+        public static Sparse fromDense(DoubleMatrix W) {
+            int nnz = 0;
+            for (int i = 0; i < W.length; i++)
+                if (W.data[i] != 0.0) nnz++;
+            int[] rowPtr = new int[W.rows + 1];
+            int[] colIdx = new int[nnz];
+            double[] val = new double[nnz];
+            int k = 0;
+            for (int i = 0; i < W.rows; i++) {
+                rowPtr[i] = k;
+                for (int j = 0; j < W.columns; j++) {
+                    double w = W.get(i, j);
+                    if (w != 0.0) {
+                        colIdx[k] = j;
+                        val[k++]  = w;
+                    }
+                }
+            }
+            rowPtr[W.rows] = k;
+            return new Sparse(W.rows, W.columns, rowPtr, colIdx, val);
+        }
+
+        /**
+         * Draw a random N x N matrix with connection probability p and
+         * Gaussian weights scaled by g/sqrt(N*p), as in the <tt>Reservoir</tt>
+         * constructor, without ever forming the dense matrix.
+         * @param N the number of neurons
+         * @param p the probability of a pairwise connection
+         * @param g weighting factor for connectivity
+         * @return the sparse matrix
+         */
+        public static Sparse random(int N, double p, double g) {
+            double scale = g/Math.sqrt(N*p);
+            int[] rowPtr = new int[N + 1];
+            int[] colIdx = new int[Math.max(16, (int) Math.min(Integer.MAX_VALUE - 8, 1.1*N*(double) N*p))];
+            double[] val = new double[colIdx.length];
+            int k = 0;
+            for (int i = 0; i < N; i++) {
+                rowPtr[i] = k;
+                for (int j = 0; j < N; j++) {
+                    if (StdRandom.uniform(0.0, 1.0) > p) continue;
+                    if (k == colIdx.length) {
+                        colIdx = Arrays.copyOf(colIdx, 2*k);
+                        val    = Arrays.copyOf(val, 2*k);
+                    }
+                    colIdx[k] = j;
+                    val[k++]  = scale*StdRandom.gaussian();
+                }
+            }
+            rowPtr[N] = k;
+            return new Sparse(N, N, rowPtr, Arrays.copyOf(colIdx, k), Arrays.copyOf(val, k));
+        }
+
+        public int rows()    { return rows; }
+        public int columns() { return columns; }
+
+        /** @return the number of stored nonzeros */
+        public int nnz() {
+            return rowPtr[rows];
+        }
+
+        public DoubleMatrix mmuli(DoubleMatrix v, DoubleMatrix out) {
+            if (v.rows != columns)
+                throw new IllegalArgumentException("Number of columns of matrix must equal number of rows of vector");
+            if (out.rows != rows || out.columns != v.columns)
+                out.resize(rows, v.columns);
+            double[] vd = v.data, od = out.data;
+            int k = v.columns;
+            if (k == 1) {
+                Kernels.spmv(rows, rowPtr, colIdx, val, vd, od);
+                return out;
+            }
+            // block of vectors: each nonzero is loaded once for all k columns
+            Arrays.fill(od, 0, out.length, 0.0);
+            for (int i = 0; i < rows; i++) {
+                for (int p = rowPtr[i]; p < rowPtr[i+1]; p++) {
+                    double w = val[p];
+                    int j = colIdx[p];
+                    for (int c = 0; c < k; c++)
+                        od[i + rows*c] += w*vd[j + columns*c];
+                }
+            }
+            return out;
+        }
+
+        public DoubleMatrix mmuliLowRank(DoubleMatrix v, DoubleMatrix U, DoubleMatrix z, DoubleMatrix out) {
+            if (v.rows != columns || U.rows != rows || U.columns != z.length)
+                throw new IllegalArgumentException("Matrix dimensions do not match");
+            if (out.rows != rows || out.columns != 1)
+                out.resize(rows, 1);
+            Kernels.spmvLowRank(rows, rowPtr, colIdx, val, v.data, U.data, z.length, z.data, out.data);
+            return out;
+        }
+
+        public DoubleMatrix toDense(DoubleMatrix out) {
+            if (out.rows != rows || out.columns != columns)
+                out.resize(rows, columns);
+            out.fill(0.0);
+            for (int i = 0; i < rows; i++)
+                for (int p = rowPtr[i]; p < rowPtr[i+1]; p++)
+                    out.put(i, colIdx[p], val[p]);
+            return out;
+        }
+
+        public void scalei(double a) {
+            for (int p = 0; p < val.length; p++)
+                val[p] *= a;
+        }
+
+        public Sparse copy() {
+            return new Sparse(rows, columns, rowPtr.clone(), colIdx.clone(), val.clone());
+        }
+
+        /**
+         * Transpose (counting sort by column, O(nnz)).  Row j of the result
+         * holds column j of this matrix, e.g. the outgoing synapses of
+         * neuron j, with increasing row indices.
+         * @return the transpose, in CSR format
+         */
+        public Sparse transpose() {
+            int nnz = nnz();
+            int[] tPtr = new int[columns + 1];
+            int[] tIdx = new int[nnz];
+            double[] tVal = new double[nnz];
+            for (int p = 0; p < nnz; p++)
+                tPtr[colIdx[p] + 1]++;
+            for (int j = 0; j < columns; j++)
+                tPtr[j + 1] += tPtr[j];
+            int[] next = Arrays.copyOf(tPtr, columns);
+            for (int i = 0; i < rows; i++)
+                for (int p = rowPtr[i]; p < rowPtr[i+1]; p++) {
+                    int q = next[colIdx[p]]++;
+                    tIdx[q] = i;
+                    tVal[q] = val[p];
+                }
+            return new Sparse(columns, rows, tPtr, tIdx, tVal);
+        }
+
+        /**
+         * Renumber the rows and columns of a square matrix: entry (k, l) of
+         * the result is entry (perm[k], perm[l]) of this matrix, so the
+         * result is P W P^T for the permutation matrix P with P(k, perm[k]) = 1.
+         * @param perm the permutation
+         * @return the renumbered matrix, in CSR format
+         * @throws IllegalArgumentException if the matrix is not square or
+         *   <tt>perm</tt> has the wrong length
+         */
+        public Sparse permute(int[] perm) {
+            if (rows != columns || perm.length != rows)
+                throw new IllegalArgumentException("permutation does not fit the matrix");
+            int[] inv = new int[rows];
+            for (int k = 0; k < rows; k++)
+                inv[perm[k]] = k;
+            int[] ptr = new int[rows + 1];
+            for (int k = 0; k < rows; k++)
+                ptr[k + 1] = ptr[k] + rowPtr[perm[k]+1] - rowPtr[perm[k]];
+            int[] cols = new int[nnz()];
+            double[] vals = new double[nnz()];
+            long[] row = new long[16];
+            for (int k = 0; k < rows; k++) {
+                int i = perm[k], n = rowPtr[i+1] - rowPtr[i];
+                if (row.length < n) row = new long[n];
+                for (int q = 0; q < n; q++)                  // (new column, position)
+                    row[q] = ((long) inv[colIdx[rowPtr[i] + q]] << 32) | q;
+                Arrays.sort(row, 0, n);
+                for (int q = 0; q < n; q++) {
+                    cols[ptr[k] + q] = (int) (row[q] >>> 32);
+                    vals[ptr[k] + q] = val[rowPtr[i] + (int) row[q]];
+                }
+            }
+            return new Sparse(rows, columns, ptr, cols, vals);
+        }
+
+        public int[] rowSupport(int i) {
+            return Arrays.copyOfRange(colIdx, rowPtr[i], rowPtr[i+1]);
+        }
+
+        public void rowAxpy(int i, int[] cols, double a, double[] x) {
+            // merge the (increasing) columns with the row's pattern
+            int p = rowPtr[i], end = rowPtr[i+1];
+            for (int m = 0; m < cols.length; m++) {
+                while (p < end && colIdx[p] < cols[m]) p++;
+                if (p == end || colIdx[p] != cols[m])
+                    throw new IllegalArgumentException("W(" + i + ", " + cols[m] + ") is not stored");
+                val[p] += a*x[m];
+            }
+        }
+
+        public void writeState(Checkpoint.Writer out) {
+            out.putInt(rows);
+            out.putInt(columns);
+            out.putIntArray(rowPtr, rowPtr.length);
+            out.putIntArray(colIdx, colIdx.length);
+            out.putArray(val, val.length);
+        }
+
+        public void readState(Checkpoint.Reader in) {
+            if (in.getInt() != rows || in.getInt() != columns)
+                throw new IllegalStateException("stored matrix is a different size");
+            rowPtr = in.getIntArray();
+            colIdx = in.getIntArray();
+            val    = in.getArray();
+        }
+    }
+
+    /************************************************************************
+     *  Procedural (matrix-free) connectivity
+     ************************************************************************/
+    /**
+     * A random N x N connection matrix that is never stored: its entries
+     * are regenerated from a seed whenever they are needed.  The
+     * distribution is that of <tt>Sparse.random</tt>: each entry is nonzero
+     * with probability p, with a Gaussian weight of variance g^2/(N*p).
+     * <p>
+     * The generator is counter-based, so any row can be produced on its
+     * own.  The nonzero columns of row i are found by geometric skips
+     * (gap - 1 ~ Geometric(p)), the k-th skip drawn from a hash of
+     * (seed, i, k).  The weight W(i, j) is the inverse normal CDF (Acklam's
+     * rational approximation, relative error 1.2e-9) of a hash of
+     * (~seed, i, j).  Products generate each row inside the row loop, so the
+     * memory is O(1) while each product costs a few hash and log
+     * evaluations per nonzero.  Rows are split among the threads of a
+     * fork/join pool; the result does not depend on the number of threads.
+     * <p>
+     * The matrix can be scaled (<tt>scalei</tt>) but not otherwise
+     * modified, so <tt>rowAxpy</tt> (learning of recurrent weights) is
+     * unsupported.  <tt>toSparse</tt> materializes it, e.g. for checking.
+     */
+    public static class Procedural implements WeightMatrix {
+        private final int N;
+        private final double p, g;
+        private final long seed;
+        private final double logQ;            // log(1 - p), for the skips
+        private double scale;                 // g/sqrt(N*p), times scalei
+        private ForkJoinPool pool = ForkJoinPool.commonPool();
+        private static final int GRAIN = 64;  // rows per task, at least
+        private static final HashMap<Integer, ForkJoinPool> POOLS   // by number of threads
+            = new HashMap<Integer, ForkJoinPool>();
+
+        /**
+         * @param N the number of neurons
+         * @param p the probability of a pairwise connection
+         * @param g weighting factor for connectivity
+         * @param seed the seed
+         * @throws IllegalArgumentException if <tt>N</tt> is less than one or
+         *   <tt>p</tt> is not in (0, 1]
+         */
+        public Procedural(int N, double p, double g, long seed) {
+            if (N < 1)
+                throw new IllegalArgumentException("N must be greater than 0");
+            if (!(p > 0 && p <= 1))
+                throw new IllegalArgumentException("p must be in (0,1]");
+            this.N     = N;
+            this.p     = p;
+            this.g     = g;
+            this.seed  = seed;
+            this.logQ  = Math.log1p(-p);
+            this.scale = g/Math.sqrt(N*p);
+        }
+
+        /**
+         * Use a given number of threads for products (the common fork/join
+         * pool by default).  Matrices using the same number of threads
+         * share one pool, created on first use and kept for the life of
+         * the program (its idle threads exit on their own).
+         * @param threads the number of threads
+         * @throws IllegalArgumentException if <tt>threads</tt> is less than one
+         */
+        public void setThreads(int threads) {
+            if (threads < 1)
+                throw new IllegalArgumentException("threads must be at least 1");
+            pool = pool(threads);
+        }
+
+        private static synchronized ForkJoinPool pool(int threads) {
+            ForkJoinPool fj = POOLS.get(threads);
+            if (fj == null) {
+                fj = new ForkJoinPool(threads);
+                POOLS.put(threads, fj);
+            }
+            return fj;
+        }
+
+        public int rows()    { return N; }
+        public int columns() { return N; }
+
+        /**********************************************************************
+         *  Generator
+         **********************************************************************/
+        // keys of row i for the skips and the weights
+        private long skipKey(int i)   { return mix(seed + 0x9E3779B97F4A7C15L*(i + 1)); }
+        private long weightKey(int i) { return mix(~seed + 0x9E3779B97F4A7C15L*(i + 1)); }
+
+        // the column after column j (or j < 0 for the first) in the row
+        // with the given skip key, given the index k of the skip; N or more
+        // if there is none
+        private long next(long key, long j, int k) {
+            if (p == 1.0) return j + 1;
+            double u = uniform(mix(key + 0xD1B54A32D192ED03L*(k + 1)));  // in (0, 1)
+            double skip = Math.floor(Math.log(u)/logQ);
+            return skip < N ? j + 1 + (long) skip : N;
+        }
+
+        // the weight of entry j of the row with the given weight key, before
+        // scaling
+        private static double weight(long key, long j) {
+            return normal(uniform(mix(key + 0xD1B54A32D192ED03L*(j + 1))));
+        }
+
+        // SplitMix64 finalizer
+
+        private static long mix(long z) {
+            z = (z ^ (z >>> 30))*0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27))*0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+
+        // 52 bits to the midpoints of (0, 1), open at both ends: the inverse
+        // normal CDF is infinite at 0 and 1 (with 53 bits, the largest
+        // midpoint would round to 1)
+        private static double uniform(long h) {
+            return ((h >>> 12) + 0.5)*0x1.0p-52;
+        }
+
+        // inverse normal CDF (P. J. Acklam's algorithm)
+        private static final double[] A = {-3.969683028665376e+01,  2.209460984245205e+02,
+            -2.759285104469687e+02,  1.383577518672690e+02, -3.066479806614716e+01,  2.506628277459239e+00};
+        private static final double[] B = {-5.447609879822406e+01,  1.615858368580409e+02,
+            -1.556989798598866e+02,  6.680131188771972e+01, -1.328068155288572e+01};
+        private static final double[] C = {-7.784894002430293e-03, -3.223964580411365e-01,
+            -2.400758277161838e+00, -2.549732539343734e+00,  4.374664141464968e+00,  2.938163982698783e+00};
+        private static final double[] D = { 7.784695709041462e-03,  3.224671290700398e-01,
+             2.445134137142996e+00,  3.754408661907416e+00};
+
+        private static double normal(double u) {
+            if (u < 0.02425) {
+                double q = Math.sqrt(-2*Math.log(u));
+                return (((((C[0]*q + C[1])*q + C[2])*q + C[3])*q + C[4])*q + C[5])
+                        /((((D[0]*q + D[1])*q + D[2])*q + D[3])*q + 1);
+            }
+            if (u > 1 - 0.02425) {
+                double q = Math.sqrt(-2*Math.log1p(-u));
+                return -(((((C[0]*q + C[1])*q + C[2])*q + C[3])*q + C[4])*q + C[5])
+                        /((((D[0]*q + D[1])*q + D[2])*q + D[3])*q + 1);
+            }
+            double q = u - 0.5, r = q*q;
+            return (((((A[0]*r + A[1])*r + A[2])*r + A[3])*r + A[4])*r + A[5])*q
+                    /(((((B[0]*r + B[1])*r + B[2])*r + B[3])*r + B[4])*r + 1);
+        }
+
+        /**********************************************************************
+         *  Products
+         **********************************************************************/
+        public DoubleMatrix mmuli(DoubleMatrix v, DoubleMatrix out) {
+            return product(v, null, null, out);
+        }
+
+        public DoubleMatrix mmuliLowRank(DoubleMatrix v, DoubleMatrix U, DoubleMatrix z, DoubleMatrix out) {
+            if (U.rows != N || U.columns != z.length || v.columns != 1)
+                throw new IllegalArgumentException("Matrix dimensions do not match");
+            return product(v, U, z, out);
+        }
+
+        private DoubleMatrix product(DoubleMatrix v, DoubleMatrix U, DoubleMatrix z, DoubleMatrix out) {
+            if (v.rows != N)
+                throw new IllegalArgumentException("Number of columns of matrix must equal number of rows of vector");
+            if (v == out)
+                throw new IllegalArgumentException("product cannot be computed in place");
+            if (out.rows != N || out.columns != v.columns)
+                out.resize(N, v.columns);
+            if (N <= GRAIN || pool.getParallelism() == 1)
+                rowProducts(0, N, v, U, z, out);
+            else
+                pool.invoke(new Rows(0, N, v, U, z, out));
+            return out;
+        }
+
+        // out(i, :) = W(i, :)*v (+ U(i, :)*z) for lo <= i < hi
+        private void rowProducts(int lo, int hi, DoubleMatrix v, DoubleMatrix U, DoubleMatrix z,
+                                 DoubleMatrix out) {
+            double[] vd = v.data, od = out.data;
+            int nv = v.columns;
+            double[] s = new double[nv];
+            for (int i = lo; i < hi; i++) {
+                Arrays.fill(s, 0.0);
+                long ks = skipKey(i), kw = weightKey(i);
+                int k = 0;
+                for (long j = next(ks, -1, k++); j < N; j = next(ks, j, k++)) {
+                    double w = scale*weight(kw, j);
+                    for (int c = 0; c < nv; c++)
+                        s[c] += w*vd[(int) j + N*c];
+                }
+                if (U != null)
+                    for (int m = 0; m < z.length; m++)
+                        s[0] += U.data[i + N*m]*z.data[m];
+                for (int c = 0; c < nv; c++)
+                    od[i + N*c] = s[c];
+            }
+        }
+
+        private class Rows extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            private final int lo, hi;
+            private final DoubleMatrix v, U, z, out;
+            Rows(int lo, int hi, DoubleMatrix v, DoubleMatrix U, DoubleMatrix z, DoubleMatrix out) {
+                this.lo = lo; this.hi = hi;
+                this.v = v; this.U = U; this.z = z; this.out = out;
+            }
+            protected void compute() {
+                if (hi - lo <= Math.max(GRAIN, N/(8*pool.getParallelism())))
+                    rowProducts(lo, hi, v, U, z, out);
+                else {
+                    int mid = (lo + hi) >>> 1;
+                    invokeAll(new Rows(lo, mid, v, U, z, out), new Rows(mid, hi, v, U, z, out));
+                }
+            }
+        }
+
+        /**********************************************************************
+         *  Materialization and other operations
+         **********************************************************************/
+        /**
+         * Generate the stored matrix.
+         * @return the matrix in CSR format
+         * @throws IllegalStateException if it has 2^31 or more nonzeros
+         */
+        public Sparse toSparse() {
+            int[] rowPtr = new int[N + 1];
+            int[] colIdx = new int[Math.max(16, (int) Math.min(Integer.MAX_VALUE - 8, 1.1*N*(double) N*p))];
+            double[] val = new double[colIdx.length];
+            int n = 0;
+            for (int i = 0; i < N; i++) {
+                rowPtr[i] = n;
+                long ks = skipKey(i), kw = weightKey(i);
+                int k = 0;
+                for (long j = next(ks, -1, k++); j < N; j = next(ks, j, k++)) {
+                    if (n == colIdx.length) {
+                        if (n >= Integer.MAX_VALUE - 8)
+                            throw new IllegalStateException("too many nonzeros");
+                        int cap = (int) Math.min(Integer.MAX_VALUE - 8, 2L*n);
+                        colIdx = Arrays.copyOf(colIdx, cap);
+                        val    = Arrays.copyOf(val, cap);
+                    }
+                    colIdx[n] = (int) j;
+                    val[n++]  = scale*weight(kw, j);
+                }
+            }
+            rowPtr[N] = n;
+            return new Sparse(N, N, rowPtr, Arrays.copyOf(colIdx, n), Arrays.copyOf(val, n));
+        }
+
+        public DoubleMatrix toDense(DoubleMatrix out) {
+            return toSparse().toDense(out);
+        }
+
+        public void scalei(double a) {
+            scale *= a;
+        }
+
+        public Procedural copy() {
+            Procedural c = new Procedural(N, p, g, seed);
+            c.scale = scale;
+            c.pool  = pool;
+            return c;
+        }
+
+        public int[] rowSupport(int i) {
+            int[] cols = new int[16];
+            int n = 0, k = 0;
+            long ks = skipKey(i);
+            for (long j = next(ks, -1, k++); j < N; j = next(ks, j, k++)) {
+                if (n == cols.length) cols = Arrays.copyOf(cols, 2*n);
+                cols[n++] = (int) j;
+            }
+            return Arrays.copyOf(cols, n);
+        }
+
+        /**
+         * @throws UnsupportedOperationException always: procedural weights
+         *   cannot be modified
+         */
+        public void rowAxpy(int i, int[] cols, double a, double[] x) {
+            throw new UnsupportedOperationException("procedural weights cannot be modified");
+        }
+
+        /** Writes the parameters, the seed and the scale (not the weights). */
+        public void writeState(Checkpoint.Writer out) {
+            out.putInt(N);
+            out.putDouble(p);
+            out.putDouble(g);
+            out.putLong(seed);
+            out.putDouble(scale);
+        }
+
+        public void readState(Checkpoint.Reader in) {
+            if (in.getInt() != N || in.getDouble() != p || in.getDouble() != g || in.getLong() != seed)
+                throw new IllegalStateException("stored matrix has different parameters");
+            scale = in.getDouble();
+        }
+    }
+
+    /************************************************************************
+     *  Locality ordering and cache-blocked storage
+     ************************************************************************/
+    /**
+     * Reverse Cuthill-McKee ordering of the neurons of a square matrix, on
+     * the symmetrized pattern W + W^T: a breadth-first numbering from a
+     * pseudo-peripheral neuron of each connected component, neighbors in
+     * order of increasing degree, reversed.  Connected neurons get nearby
+     * numbers, so the columns of each row (the inputs read by a product)
+     * are close together, as far as the graph allows: a network with local
+     * or modular structure under arbitrary labels gets its structure back,
+     * while a uniformly random one has none to find.
+     * @param W the matrix
+     * @return the permutation: new position k holds neuron <tt>perm[k]</tt>
+     * @throws IllegalArgumentException if <tt>W</tt> is not square
+     */
+    public static int[] reverseCuthillMcKee(Sparse W) {
+        if (W.rows != W.columns)
+            throw new IllegalArgumentException("W must be square");
+        int n = W.rows;
+
+        // symmetric adjacency without the diagonal (merging sorted rows)
+        Sparse T = W.transpose();
+        int[] ptr = new int[n + 1];
+        int[] adj = new int[2*W.nnz()];
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            ptr[i] = m;
+            int a = W.rowPtr[i], aEnd = W.rowPtr[i+1], b = T.rowPtr[i], bEnd = T.rowPtr[i+1];
+            while (a < aEnd || b < bEnd) {
+                int j;
+                if (b == bEnd || (a < aEnd && W.colIdx[a] < T.colIdx[b])) j = W.colIdx[a++];
+                else if (a == aEnd || T.colIdx[b] < W.colIdx[a])          j = T.colIdx[b++];
+                else { j = W.colIdx[a++]; b++; }
+                if (j != i) adj[m++] = j;
+            }
+        }
+        ptr[n] = m;
+
+        // start components from neurons of low degree
+        long[] byDegree = new long[n];
+        for (int i = 0; i < n; i++)
+            byDegree[i] = ((long) (ptr[i+1] - ptr[i]) << 32) | i;
+        Arrays.sort(byDegree);
+
+        int[] order = new int[n], level = new int[n];
+        boolean[] seen = new boolean[n];
+        int tail = 0;
+        for (long key : byDegree) {
+            int start = (int) key;
+            if (seen[start]) continue;
+            start = peripheral(start, ptr, adj, level);
+            seen[start] = true;
+            order[tail++] = start;
+            for (int head = tail - 1; head < tail; head++) {
+                int u = order[head], first = tail;
+                for (int q = ptr[u]; q < ptr[u+1]; q++)
+                    if (!seen[adj[q]]) {
+                        seen[adj[q]] = true;
+                        order[tail++] = adj[q];
+                    }
+                sortByDegree(order, first, tail, ptr);
+            }
+        }
+        for (int i = 0, j = n - 1; i < j; i++, j--) {
+            int t = order[i]; order[i] = order[j]; order[j] = t;
+        }
+        return order;
+    }
+
+    // a pseudo-peripheral neuron in the component of start (George & Liu):
+    // repeatedly move to a neuron of least degree in the last level of a
+    // breadth-first search while the number of levels grows
+    private static int peripheral(int start, int[] ptr, int[] adj, int[] level) {
+        int[] queue = new int[16];
+        int depth = -1;
+        for (;;) {
+            // breadth-first levels, marked in level[] (reset afterwards)
+            int tail = 0;
+            queue[tail++] = start;
+            level[start] = 1;
+            for (int head = 0; head < tail; head++) {
+                int u = queue[head];
+                for (int q = ptr[u]; q < ptr[u+1]; q++)
+                    if (level[adj[q]] == 0) {
+                        level[adj[q]] = level[u] + 1;
+                        if (tail == queue.length) queue = Arrays.copyOf(queue, 2*tail);
+                        queue[tail++] = adj[q];
+                    }
+            }
+            int last = level[queue[tail - 1]], best = queue[tail - 1];
+            for (int k = tail - 1; k >= 0 && level[queue[k]] == last; k--)
+                if (ptr[queue[k]+1] - ptr[queue[k]] < ptr[best+1] - ptr[best]) best = queue[k];
+            for (int k = 0; k < tail; k++)
+                level[queue[k]] = 0;
+            if (last <= depth) return start;
+            depth = last;
+            start = best;
+        }
+    }
+
+    // insertion sort of a[lo .. hi-1] by degree (the runs are short)
+    private static void sortByDegree(int[] a, int lo, int hi, int[] ptr) {
+        for (int i = lo + 1; i < hi; i++) {
+            int v = a[i], d = ptr[v+1] - ptr[v], j = i - 1;
+            while (j >= lo && ptr[a[j]+1] - ptr[a[j]] > d) {
+                a[j + 1] = a[j];
+                j--;
+            }
+            a[j + 1] = v;
+        }
+    }
+
+    /**
+     * A sparse matrix with its columns split into blocks, so that a product
+     * reads x one block (a slice that can stay in cache) at a time.  Within
+     * a block, only the rows with entries are stored (with their row
+     * numbers), and the columns are 16-bit offsets into the block, 10 bytes
+     * per nonzero instead of 12.  Summation is in block order, so products
+     * differ from <nn>Sparse</nn> products in the last bits.
+     * <p>
+     * Blocking pays only when x is much larger than the cache and rows
+     * have several nonzeros per block; with a handful of nonzeros per row
+     * and block, the per-row overhead of the blocks outweighs the saved
+     * misses, and plain CSR is faster.  It can be combined with a
+     * renumbering of the neurons (<tt>Permuted.reorder(W, width)</tt>).
+     */
+    public static class Blocked implements WeightMatrix {
+        /** A default block width: 4096 columns, 32 kB of x (within L1). */
+        public static final int DEFAULT_WIDTH = 1 << 12;
+
+        private static final int MAX_WIDTH = 1 << 16;        // char offsets
+
+        private final int rows, columns, width;
+        private int[][] rowIdx, rowPtr;      // per block: nonempty rows
+        private char[][] colOff;             //   column offsets in the block
+        private double[][] val;              //   values
+
+        private Blocked(int rows, int columns, int width) {
+            this.rows    = rows;
+            this.columns = columns;
+            this.width   = width;
+            int nBlocks = (columns + width - 1)/width;
+            rowIdx = new int[nBlocks][];
+            rowPtr = new int[nBlocks][];
+            colOff = new char[nBlocks][];
+            val    = new double[nBlocks][];
+        }
+
+        /**
+         * Store a matrix in blocks of columns.
+         * @param W the matrix
+         * @param width the number of columns per block, at most 2^16
+         * @return the blocked matrix
+         * @throws IllegalArgumentException if <tt>width</tt> is not in
+         *   [1, 2^16]
+         */
+        public static Blocked of(Sparse W, int width) {
+            if (width < 1 || width > MAX_WIDTH)
+                throw new IllegalArgumentException("width must be in [1, 65536]");
+            Blocked B = new Blocked(W.rows, W.columns, width);
+            int nBlocks = B.val.length;
+            int[] rowsB = new int[nBlocks], nnzB = new int[nBlocks], last = new int[nBlocks];
+            Arrays.fill(last, -1);
+            for (int i = 0; i < W.rows; i++)
+                for (int p = W.rowPtr[i]; p < W.rowPtr[i+1]; p++) {
+                    int b = W.colIdx[p]/width;
+                    nnzB[b]++;
+                    if (last[b] != i) {
+                        last[b] = i;
+                        rowsB[b]++;
+                    }
+                }
+            for (int b = 0; b < nBlocks; b++) {
+                B.rowIdx[b] = new int[rowsB[b]];
+                B.rowPtr[b] = new int[rowsB[b] + 1];
+                B.colOff[b] = new char[nnzB[b]];
+                B.val[b]    = new double[nnzB[b]];
+            }
+            int[] r = new int[nBlocks], nz = new int[nBlocks];
+            for (int i = 0; i < W.rows; i++)
+                for (int p = W.rowPtr[i]; p < W.rowPtr[i+1]; p++) {
+                    int b = W.colIdx[p]/width;
+                    if (p == W.rowPtr[i] || W.colIdx[p-1]/width != b) {   // new row in block b
+                        B.rowIdx[b][r[b]] = i;
+                        B.rowPtr[b][r[b]++] = nz[b];
+                    }
+                    B.colOff[b][nz[b]] = (char) (W.colIdx[p] - b*width);
+                    B.val[b][nz[b]++]  = W.val[p];
+                }
+            for (int b = 0; b < nBlocks; b++)
+                B.rowPtr[b][r[b]] = nz[b];
+            return B;
+        }
+
+        public int rows()    { return rows; }
+        public int columns() { return columns; }
+
+        /** @return the number of stored nonzeros */
+        public int nnz() {
+            int n = 0;
+            for (double[] v : val) n += v.length;
+            return n;
+        }
+
+        public DoubleMatrix mmuli(DoubleMatrix v, DoubleMatrix out) {
+            if (v.rows != columns)
+                throw new IllegalArgumentException("Number of columns of matrix must equal number of rows of vector");
+            if (v == out)
+                throw new IllegalArgumentException("product cannot be computed in place");
+            if (out.rows != rows || out.columns != v.columns)
+                out.resize(rows, v.columns);
+            for (int c = 0; c < v.columns; c++)
+                product(v.data, columns*c, out.data, rows*c);
+            return out;
+        }
+
+        // y[yo ..] = W x[xo ..]
+        private void product(double[] x, int xo, double[] y, int yo) {
+            Arrays.fill(y, yo, yo + rows, 0.0);
+            for (int b = 0; b < val.length; b++) {
+                int[] ri = rowIdx[b], rp = rowPtr[b];
+                char[] co = colOff[b];
+                double[] vb = val[b];
+                int base = xo + b*width;
+                for (int r = 0; r < ri.length; r++) {
+                    double s = 0.0;
+                    for (int p = rp[r]; p < rp[r+1]; p++)
+                        s += vb[p]*x[base + co[p]];
+                    y[yo + ri[r]] += s;
+                }
+            }
+        }
+
+        public DoubleMatrix mmuliLowRank(DoubleMatrix v, DoubleMatrix U, DoubleMatrix z, DoubleMatrix out) {
+            if (U.rows != rows || U.columns != z.length || v.columns != 1)
+                throw new IllegalArgumentException("Matrix dimensions do not match");
+            mmuli(v, out);
+            return SimpleBlas.gemv(1.0, U, z, 1.0, out);   // out += U*z
+        }
+
+        /** @return the matrix in CSR format */
+        public Sparse toSparse() {
+            int[] ptr = new int[rows + 1];
+            for (int b = 0; b < val.length; b++)
+                for (int r = 0; r < rowIdx[b].length; r++)
+                    ptr[rowIdx[b][r] + 1] += rowPtr[b][r+1] - rowPtr[b][r];
+            for (int i = 0; i < rows; i++)
+                ptr[i + 1] += ptr[i];
+            int[] next = Arrays.copyOf(ptr, rows);
+            int[] cols = new int[ptr[rows]];
+            double[] vals = new double[ptr[rows]];
+            for (int b = 0; b < val.length; b++)          // blocks in order: sorted rows
+                for (int r = 0; r < rowIdx[b].length; r++) {
+                    int i = rowIdx[b][r];
+                    for (int p = rowPtr[b][r]; p < rowPtr[b][r+1]; p++) {
+                        cols[next[i]]   = b*width + colOff[b][p];
+                        vals[next[i]++] = val[b][p];
+                    }
+                }
+            return new Sparse(rows, columns, ptr, cols, vals);
+        }
+
+        public DoubleMatrix toDense(DoubleMatrix out) {
+            return toSparse().toDense(out);
+        }
+
+        public void scalei(double a) {
+            for (double[] v : val)
+                for (int p = 0; p < v.length; p++)
+                    v[p] *= a;
+        }
+
+        public Blocked copy() {
+            Blocked c = new Blocked(rows, columns, width);
+            for (int b = 0; b < val.length; b++) {
+                c.rowIdx[b] = rowIdx[b].clone();
+                c.rowPtr[b] = rowPtr[b].clone();
+                c.colOff[b] = colOff[b].clone();
+                c.val[b]    = val[b].clone();
+            }
+            return c;
+        }
+
+        public int[] rowSupport(int i) {
+            int n = 0;
+            int[] cols = new int[16];
+            for (int b = 0; b < val.length; b++) {
+                int r = Arrays.binarySearch(rowIdx[b], i);
+                if (r < 0) continue;
+                for (int p = rowPtr[b][r]; p < rowPtr[b][r+1]; p++) {
+                    if (n == cols.length) cols = Arrays.copyOf(cols, 2*n);
+                    cols[n++] = b*width + colOff[b][p];
+                }
+            }
+            return Arrays.copyOf(cols, n);
+        }
+
+        public void rowAxpy(int i, int[] cols, double a, double[] x) {
+            for (int m = 0; m < cols.length; m++) {
+                int b = cols[m]/width, r = Arrays.binarySearch(rowIdx[b], i), p = -1;
+                if (r >= 0)
+                    for (int q = rowPtr[b][r]; q < rowPtr[b][r+1]; q++)
+                        if (colOff[b][q] == cols[m] - b*width) p = q;
+                if (p < 0)
+                    throw new IllegalArgumentException("W(" + i + ", " + cols[m] + ") is not stored");
+                val[b][p] += a*x[m];
+            }
+        }
+
+        /** Writes the size, the block width and the blocks. */
+        public void writeState(Checkpoint.Writer out) {
+            out.putInt(rows);
+            out.putInt(columns);
+            out.putInt(width);
+            for (int b = 0; b < val.length; b++) {
+                int[] co = new int[colOff[b].length];
+                for (int p = 0; p < co.length; p++) co[p] = colOff[b][p];
+                out.putIntArray(rowIdx[b], rowIdx[b].length);
+                out.putIntArray(rowPtr[b], rowPtr[b].length);
+                out.putIntArray(co, co.length);
+                out.putArray(val[b], val[b].length);
+            }
+        }
+
+        public void readState(Checkpoint.Reader in) {
+            if (in.getInt() != rows || in.getInt() != columns || in.getInt() != width)
+                throw new IllegalStateException("stored matrix is a different size");
+            for (int b = 0; b < val.length; b++) {
+                rowIdx[b] = in.getIntArray();
+                rowPtr[b] = in.getIntArray();
+                int[] co = in.getIntArray();
+                colOff[b] = new char[co.length];
+                for (int p = 0; p < co.length; p++) colOff[b][p] = (char) co[p];
+                val[b] = in.getArray();
+            }
+        }
+    }
+
+    /**
+     * A square matrix with its neurons renumbered (e.g. for locality, by
+     * <tt>reverseCuthillMcKee</tt>) inside another backend, which stores
+     * P W P^T.  The renumbering is internal: the matrix behaves exactly as
+     * the original one, with rows, columns and all vectors in the original
+     * order.  A product gathers v into the internal order, multiplies, and
+     * scatters the result back, O(N) extra work next to O(nnz), through
+     * buffers kept per thread (a matrix may be shared by forks stepped on
+     * different threads).
+     */
+    public static class Permuted implements WeightMatrix {
+        private final int N;
+        private final int[] perm, inv;       // internal -> original, and back
+        private final WeightMatrix inner;    // P W P^T
+        private final ThreadLocal<DoubleMatrix[]> buffers;
+
+        private Permuted(int[] perm, int[] inv, WeightMatrix inner) {
+            this.N     = perm.length;
+            this.perm  = perm;
+            this.inv   = inv;
+            this.inner = inner;
+            buffers = new ThreadLocal<DoubleMatrix[]>() {
+                protected DoubleMatrix[] initialValue() {
+                    return new DoubleMatrix[] {new DoubleMatrix(N), new DoubleMatrix(N)};
+                }
+            };
+        }
+
+        private static int[] inverse(int[] perm) {
+            int[] inv = new int[perm.length];
+            for (int k = 0; k < perm.length; k++)
+                inv[perm[k]] = k;
+            return inv;
+        }
+
+        /**
+         * Renumber the neurons by <tt>reverseCuthillMcKee</tt>, keeping CSR
+         * storage.
+         * @param W the (square) matrix
+         * @return the renumbered matrix
+         * @throws IllegalArgumentException if <tt>W</tt> is not square
+         */
+        public static Permuted reorder(Sparse W) {
+            int[] perm = reverseCuthillMcKee(W);
+            return new Permuted(perm, inverse(perm), W.permute(perm));
+        }
+
+        /**
+         * Renumber the neurons by <tt>reverseCuthillMcKee</tt> and store the
+         * result in blocks of columns (<nn>Blocked</nn>).
+         * @param W the (square) matrix
+         * @param width the number of columns per block, at most 2^16
+         * @return the renumbered matrix
+         * @throws IllegalArgumentException if <tt>W</tt> is not square or
+         *   <tt>width</tt> is not in [1, 2^16]
+         */
+        public static Permuted reorder(Sparse W, int width) {
+            int[] perm = reverseCuthillMcKee(W);
+            return new Permuted(perm, inverse(perm), Blocked.of(W.permute(perm), width));
+        }
+
+        public int rows()    { return N; }
+        public int columns() { return N; }
+
+        /**
+         * @return the internal order: position k holds neuron
+         *   <tt>permutation()[k]</tt> (a copy)
+         */
+        public int[] permutation() {
+            return perm.clone();
+        }
+
+        /** @return the renumbered matrix P W P^T (shared, not copied) */
+        public WeightMatrix inner() {
+            return inner;
+        }
+
+        public DoubleMatrix mmuli(DoubleMatrix v, DoubleMatrix out) {
+            if (v.rows != N)
+                throw new IllegalArgumentException("Number of columns of matrix must equal number of rows of vector");
+            if (v == out)
+                throw new IllegalArgumentException("product cannot be computed in place");
+            if (out.rows != N || out.columns != v.columns)
+                out.resize(N, v.columns);
+            DoubleMatrix[] buf = buffers.get();
+            DoubleMatrix x = buf[0], y = buf[1];
+            if (x.columns != v.columns) {
+                x.resize(N, v.columns);
+                y.resize(N, v.columns);
+            }
+            for (int c = 0, o = 0; c < v.columns; c++, o += N)
+                for (int k = 0; k < N; k++)
+                    x.data[o + k] = v.data[o + perm[k]];
+            inner.mmuli(x, y);
+            for (int c = 0, o = 0; c < v.columns; c++, o += N)
+                for (int k = 0; k < N; k++)
+                    out.data[o + perm[k]] = y.data[o + k];
+            return out;
+        }
+
+        public DoubleMatrix mmuliLowRank(DoubleMatrix v, DoubleMatrix U, DoubleMatrix z, DoubleMatrix out) {
+            if (U.rows != N || U.columns != z.length || v.columns != 1)
+                throw new IllegalArgumentException("Matrix dimensions do not match");
+            mmuli(v, out);
+            return SimpleBlas.gemv(1.0, U, z, 1.0, out);   // out += U*z
+        }
+
+        /** @return the matrix in CSR format, in the original order */
+        public Sparse toSparse() {
+            return Connectivity.toSparse(inner).permute(inv);
+        }
+
+        public DoubleMatrix toDense(DoubleMatrix out) {
+            return toSparse().toDense(out);
+        }
+
+        public void scalei(double a) {
+            inner.scalei(a);
+        }
+
+        public Permuted copy() {
+            return new Permuted(perm, inv, inner.copy());
+        }
+
+        public int[] rowSupport(int i) {
+            int[] cols = inner.rowSupport(inv[i]);
+            for (int m = 0; m < cols.length; m++)
+                cols[m] = perm[cols[m]];
+            Arrays.sort(cols);
+            return cols;
+        }
+
+        public void rowAxpy(int i, int[] cols, double a, double[] x) {
+            // the columns in the internal order, increasing
+            long[] keys = new long[cols.length];
+            for (int m = 0; m < cols.length; m++)
+                keys[m] = ((long) inv[cols[m]] << 32) | m;
+            Arrays.sort(keys);
+            int[] c = new int[cols.length];
+            double[] y = new double[cols.length];
+            for (int m = 0; m < cols.length; m++) {
+                c[m] = (int) (keys[m] >>> 32);
+                y[m] = x[(int) keys[m]];
+            }
+            try {
+                inner.rowAxpy(inv[i], c, a, y);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("W(" + i + ", ...) is not stored in all given columns");
+            }
+        }
+
+        /** Writes the order, the backend of P W P^T, and P W P^T. */
+        public void writeState(Checkpoint.Writer out) {
+            out.putIntArray(perm, N);
+            out.putString(inner.getClass().getName());
+            inner.writeState(out);
+        }
+
+        public void readState(Checkpoint.Reader in) {
+            if (!Arrays.equals(in.getIntArray(), perm))
+                throw new IllegalStateException("stored matrix has a different order");
+            String backend = in.getString();
+            if (!backend.equals(inner.getClass().getName()))
+                throw new IllegalStateException("stored matrix uses backend " + backend);
+            inner.readState(in);
+        }
+    }
+
+    /**
+     * A connection matrix in CSR format: the matrix itself if it is
+     * <nn>Sparse</nn>, and otherwise a new copy of its nonzeros.
+     * @param W the matrix
+     * @return the matrix in CSR format
+     */
+    public static Sparse toSparse(WeightMatrix W) {
+        if (W instanceof Sparse)     return (Sparse) W;
+        if (W instanceof Procedural) return ((Procedural) W).toSparse();
+        if (W instanceof Blocked)    return ((Blocked) W).toSparse();
+        if (W instanceof Permuted)   return ((Permuted) W).toSparse();
+        return Sparse.fromDense(W.toDense(new DoubleMatrix()));
+    }
+
+    /************************************************************************
+     *  Unit testing
+     ************************************************************************/
+    public static void main(String[] args) {
+        StdOut.println("Testing sparse product against dense...");
+        int N = 200;
+        Reservoir res = new Reservoir(N, 0.1);
+        DoubleMatrix W = res.getW(new DoubleMatrix());
+        Dense  dense  = new Dense(W);
+        Sparse sparse = Sparse.fromDense(W);
+        StdOut.println("nnz = " + sparse.nnz() + " (expected about " + (int) (0.1*N*N) + ")");
+
+        DoubleMatrix v  = DoubleMatrix.randn(N, 3);
+        DoubleMatrix d  = dense.mmuli(v, new DoubleMatrix(N, 3));
+        DoubleMatrix s  = sparse.mmuli(v, new DoubleMatrix(N, 3));
+        StdOut.println("max difference (block): " + d.sub(s).norm2());
+        assert(d.sub(s).norm2() < 1e-10);
+        d = dense.mmuli(v.getColumn(0), new DoubleMatrix(N));
+        s = sparse.mmuli(v.getColumn(0), new DoubleMatrix(N));
+        assert(d.sub(s).norm2() < 1e-10);
+        assert(sparse.toDense(new DoubleMatrix()).equals(W));
+        assert(sparse.transpose().toDense(new DoubleMatrix()).equals(W.transpose()));
+
+        StdOut.println("Testing fused low-rank product against W*v + U*z...");
+        DoubleMatrix U = DoubleMatrix.randn(N, 2), z = DoubleMatrix.randn(2);
+        DoubleMatrix v0 = v.getColumn(0), expected = W.mmul(v0).add(U.mmul(z));
+        assert(dense.mmuliLowRank(v0, U, z, new DoubleMatrix(N)).distance2(expected) < 1e-10);
+        assert(sparse.mmuliLowRank(v0, U, z, new DoubleMatrix(N)).distance2(expected) < 1e-10);
+
+        StdOut.println("Testing random sparse matrix...");
+        Sparse rnd = Sparse.random(N, 0.1, 1.5);
+        DoubleMatrix R = rnd.toDense(new DoubleMatrix());
+        StdOut.println("variance: " + R.mul(R).sum()/(N*N*0.1) + " (expected " + 1.5*1.5/(N*0.1) + ")");
+
+        StdOut.println("Testing procedural matrix against its materialized CSR...");
+        N = 500;
+        Procedural proc = new Procedural(N, 0.1, 1.5, 42L);
+        Sparse csr = proc.toSparse();
+        R = csr.toDense(new DoubleMatrix());
+        StdOut.println("nnz = " + csr.nnz() + " (expected about " + (int) (0.1*N*N) + "), variance: "
+                       + R.mul(R).sum()/csr.nnz() + " (expected " + 1.5*1.5/(N*0.1) + ")");
+        v  = DoubleMatrix.randn(N, 3);
+        d  = csr.mmuli(v, new DoubleMatrix(N, 3));
+        s  = proc.mmuli(v, new DoubleMatrix(N, 3));
+        StdOut.println("max difference (block): " + d.sub(s).normmax());
+        assert(d.sub(s).normmax() < 1e-12);
+        U = DoubleMatrix.randn(N, 2);
+        v0 = v.getColumn(0);
+        expected = csr.mmuliLowRank(v0, U, z, new DoubleMatrix(N));
+        assert(proc.mmuliLowRank(v0, U, z, new DoubleMatrix(N)).distance2(expected) < 1e-12);
+        assert(Arrays.equals(proc.rowSupport(7), csr.rowSupport(7)));
+        assert(new Procedural(N, 0.1, 1.5, 43L).toSparse().nnz() != csr.nnz()
+               || !new Procedural(N, 0.1, 1.5, 43L).toDense(new DoubleMatrix()).equals(R));
+        assert(new Procedural(50, 1.0, 1.0, 1L).toSparse().nnz() == 2500);
+        Procedural scaled = proc.copy();
+        scaled.scalei(2.0);
+        assert(scaled.mmuli(v, new DoubleMatrix(N, 3)).equals(s.mul(2.0)));
+        for (long h : new long[] {0L, -1L}) {                 // extreme hashes: finite weights
+            assert(Procedural.uniform(h) > 0.0 && Procedural.uniform(h) < 1.0);
+            assert(!Double.isInfinite(Procedural.normal(Procedural.uniform(h))));
+        }
+
+        StdOut.println("Testing independence of the number of threads...");
+        DoubleMatrix one = null;
+        for (int threads = 1; threads <= 4; threads++) {
+            Procedural pt = new Procedural(N, 0.1, 1.5, 42L);
+            pt.setThreads(threads);
+            DoubleMatrix o = pt.mmuli(v, new DoubleMatrix(N, 3));
+            if (one == null) one = o;
+            assert(o.equals(one));
+        }
+        Procedural p2 = new Procedural(N, 0.1, 1.5, 42L), p3 = p2.copy();
+        p2.setThreads(2);
+        p3.setThreads(2);
+        assert(p2.pool == p3.pool);                      // one pool per size
+
+        StdOut.println("Testing reservoir on procedural connectivity...");
+        Reservoir pres = new Reservoir(proc, 0.01, 0.001);
+        Reservoir cres = new Reservoir(csr, 0.01, 0.001);
+        cres.setX(pres.x);
+        for (int i = 0; i < 200; i++) {
+            pres.step();
+            cres.step();
+        }
+        StdOut.println("state difference after 200 steps: " + pres.x.distance2(cres.x));
+        assert(pres.x.distance2(cres.x) < 1e-9);
+
+        N = 50000;
+        StdOut.println("Time per product, N = " + N + ", p = 0.01 ("
+                       + Runtime.getRuntime().availableProcessors() + " processors):");
+        proc = new Procedural(N, 0.01, 1.5, 1L);
+        v0 = DoubleMatrix.randn(N);
+        DoubleMatrix out = new DoubleMatrix(N);
+        proc.mmuli(v0, out);
+        Stopwatch sw = new Stopwatch();
+        proc.mmuli(v0, out);
+        double tProc = sw.elapsedTime();
+        csr = proc.toSparse();
+        StdOut.printf("procedural: %.1f ms (O(N) memory); CSR: ", 1000*tProc);
+        DoubleMatrix out2 = new DoubleMatrix(N);
+        csr.mmuli(v0, out2);
+        sw = new Stopwatch();
+        csr.mmuli(v0, out2);
+        StdOut.printf("%.1f ms (%d MB)%n", 1000*sw.elapsedTime(), 12L*csr.nnz() >> 20);
+        assert(out.distance2(out2) < 1e-9);
+
+        StdOut.println("Testing blocked and renumbered storage against CSR...");
+        N = 500;
+        sparse = Sparse.random(N, 0.1, 1.5);
+        W = sparse.toDense(new DoubleMatrix());
+        v = DoubleMatrix.randn(N, 3);
+        int[] sorted = Permuted.reorder(sparse).permutation();
+        Arrays.sort(sorted);
+        for (int k = 0; k < N; k++) assert(sorted[k] == k);
+        assert(sparse.permute(sorted).toDense(new DoubleMatrix()).equals(W));
+        for (WeightMatrix m : new WeightMatrix[] {Blocked.of(sparse, 64), Blocked.of(sparse, Blocked.DEFAULT_WIDTH),
+                                                  Permuted.reorder(sparse), Permuted.reorder(sparse, 64)}) {
+            assert(toSparse(m).nnz() == sparse.nnz());
+            assert(m.toDense(new DoubleMatrix()).equals(W));
+            assert(m.mmuli(v, new DoubleMatrix()).distance2(W.mmul(v)) < 1e-10);
+            v0 = v.getColumn(0);
+            assert(m.mmuli(v0, new DoubleMatrix()).distance2(W.mmul(v0)) < 1e-10);
+            U = DoubleMatrix.randn(N, 2);
+            expected = W.mmul(v0).add(U.mmul(z));
+            assert(m.mmuliLowRank(v0, U, z, new DoubleMatrix(N)).distance2(expected) < 1e-10);
+            assert(Arrays.equals(m.rowSupport(11), sparse.rowSupport(11)));
+            WeightMatrix m2 = m.copy();
+            Sparse s2 = sparse.copy();
+            int[] cols = sparse.rowSupport(11);
+            double[] x = new double[cols.length];
+            for (int q = 0; q < x.length; q++) x[q] = q;
+            m2.rowAxpy(11, cols, 0.5, x);
+            s2.rowAxpy(11, cols, 0.5, x);
+            m2.scalei(2.0);
+            s2.scalei(2.0);
+            assert(m2.toDense(new DoubleMatrix()).equals(s2.toDense(new DoubleMatrix())));
+            assert(m.toDense(new DoubleMatrix()).equals(W));
+            Checkpoint.Writer w = new Checkpoint.Writer();
+            m2.writeState(w);
+            m.readState(new Checkpoint.Reader(w.flip()));
+            assert(m.toDense(new DoubleMatrix()).equals(s2.toDense(new DoubleMatrix())));
+        }
+
+        StdOut.println("Testing a renumbered matrix shared between threads...");
+        final Permuted shared = Permuted.reorder(sparse, 64);
+        final DoubleMatrix[] in = {DoubleMatrix.randn(N), DoubleMatrix.randn(N)};
+        final boolean[] ok = {true, true};
+        Thread[] threads = new Thread[2];
+        for (int t = 0; t < 2; t++) {
+            final int k = t;
+            final DoubleMatrix want = W.mmul(in[k]);
+            threads[t] = new Thread() {
+                public void run() {
+                    DoubleMatrix got = new DoubleMatrix(in[k].length);
+                    for (int i = 0; i < 500; i++)
+                        ok[k] &= shared.mmuli(in[k], got).distance2(want) < 1e-10;
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        assert(ok[0] && ok[1]);
+
+        StdOut.println("Testing reverse Cuthill-McKee on a shuffled local network...");
+        N = 2000;
+        Sparse local = localRandom(N, 20, 50, false);
+        Sparse shuffled = localRandom(N, 20, 50, true);
+        int[] perm = reverseCuthillMcKee(shuffled);
+        StdOut.printf("mean |i - j| of the nonzeros: %.1f local, %.1f shuffled, %.1f reordered%n",
+                      meanSpan(local, null), meanSpan(shuffled, null), meanSpan(shuffled, perm));
+        assert(meanSpan(shuffled, perm) < 2*meanSpan(local, null));
+
+        StdOut.println("Testing reservoir on blocked, renumbered connectivity...");
+        sparse = Sparse.random(500, 0.1, 1.5);
+        Reservoir plain = new Reservoir(sparse, 0.01, 0.001);
+        Reservoir bres  = new Reservoir(Permuted.reorder(sparse, 64), 0.01, 0.001);
+        bres.setX(plain.x);
+        for (int i = 0; i < 200; i++) {
+            plain.step();
+            bres.step();
+        }
+        StdOut.println("state difference after 200 steps: " + plain.x.distance2(bres.x));
+        assert(plain.x.distance2(bres.x) < 1e-9);
+        assert(plain.getR(new DoubleMatrix()).distance2(bres.getR(new DoubleMatrix())) < 1e-9);
+
+        N = 500000;
+        StdOut.println("Time per product, N = " + N + ", 20 connections per neuron:");
+        StdOut.printf("%-16s%12s%12s%12s%12s%n", "", "CSR", "CSR+RCM", "blocked", "blocked+RCM");
+        for (boolean isLocal : new boolean[] {false, true}) {
+            sparse = isLocal ? localRandom(N, 20, 500, true) : new Procedural(N, 20.0/N, 1.5, 7L).toSparse();
+            StdOut.printf("%-16s", isLocal ? "shuffled local" : "random");
+            v0 = DoubleMatrix.randn(N);
+            out = new DoubleMatrix(N);
+            expected = sparse.mmuli(v0, new DoubleMatrix(N));
+            for (WeightMatrix m : new WeightMatrix[] {sparse, Permuted.reorder(sparse),
+                                                      Blocked.of(sparse, Blocked.DEFAULT_WIDTH),
+                                                      Permuted.reorder(sparse, Blocked.DEFAULT_WIDTH)}) {
+                for (int i = 0; i < 5; i++) m.mmuli(v0, out);
+                sw = new Stopwatch();
+                for (int i = 0; i < 10; i++) m.mmuli(v0, out);
+                StdOut.printf("  %7.2f ms", 100*sw.elapsedTime());
+                assert(out.distance2(expected) < 1e-9);
+            }
+            StdOut.println();
+        }
+    }
+
+    // N x N matrix with k connections per row to neurons at most radius
+    // away on a ring, optionally under randomly shuffled labels
+    private static Sparse localRandom(int N, int k, int radius, boolean shuffle) {
+        int[] label = new int[N], unlabel = new int[N];
+        for (int i = 0; i < N; i++) label[i] = i;
+        if (shuffle) StdRandom.shuffle(label);
+        for (int i = 0; i < N; i++) unlabel[label[i]] = i;
+        int[] rowPtr = new int[N + 1], colIdx = new int[N*k];
+        double[] val = new double[N*k];
+        int[] row = new int[k];
+        for (int r = 0; r < N; r++) {
+            int i = unlabel[r];
+            rowPtr[r] = r*k;
+            for (int m = 0; m < k; m++) {            // k distinct neighbors
+                int j;
+                boolean dup;
+                do {
+                    j = label[Math.floorMod(i + StdRandom.uniform(-radius, radius + 1), N)];
+                    dup = false;
+                    for (int q = 0; q < m; q++) dup |= row[q] == j;
+                } while (dup);
+                row[m] = j;
+            }
+            Arrays.sort(row);
+            for (int m = 0; m < k; m++) {
+                colIdx[r*k + m] = row[m];
+                val[r*k + m] = StdRandom.gaussian()*1.5/Math.sqrt(k);
+            }
+        }
+        rowPtr[N] = N*k;
+        return new Sparse(N, N, rowPtr, colIdx, val);
+    }
+
+    // mean distance |i - j| of the nonzeros, after renumbering by perm
+    private static double meanSpan(Sparse S, int[] perm) {
+        int[] inv = new int[S.rows];
+        for (int k = 0; k < S.rows; k++) inv[perm == null ? k : perm[k]] = k;
+        double sum = 0.0;
+        for (int i = 0; i < S.rows; i++)
+            for (int p = S.rowPtr[i]; p < S.rowPtr[i+1]; p++)
+                sum += Math.abs(inv[i] - inv[S.colIdx[p]]);
+        return sum/S.nnz();
+    }
+}
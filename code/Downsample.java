@@ -0,0 +1,177 @@
+/*************************************************************************
+ *  Compilation:  javac Downsample.java
+ *  Author:  Phillip B. Schafer
+ *
+ *  Downsampling of long time series for display.
+ *
+ *  Dependencies:
+ *   StdOut, StdRandom, Stopwatch (Algs-4)
+ *************************************************************************/
+import java.util.Arrays;
+
+/**
+ *  Reduces a uniformly sampled time series to a few points per pixel
+ *  column before it is handed to a chart, so that the cost of plotting
+ *  depends on the size of the image rather than the length of the run.
+ *  <p>
+ *  Both methods return the indices of the samples to keep, in increasing
+ *  order and always including the first and last sample:
+ *  <ul>
+ *  <li> <tt>lttb</tt>: Largest-Triangle-Three-Buckets (Steinarsson 2013),
+ *       which keeps the visual shape of the curve with one point per bucket.
+ *  <li> <tt>minMax</tt>: the minimum and maximum of each bucket, which keeps
+ *       the exact envelope of the curve (spikes are never lost) with up to
+ *       two points per bucket.
+ *  </ul>
+ */
+public class Downsample {
+
+    /**
+     * The downsampling method.
+     */
+    public enum Method { NONE, LTTB, MINMAX }
+
+    /**
+     * Downsample with the given method.
+     * @param method the method
+     * @param y the samples
+     * @param n the number of samples used (a prefix of <tt>y</tt>)
+     * @param nPoints the target number of points (number of buckets for MINMAX)
+     * @return the indices of the samples to keep
+     */
+    public static int[] apply(Method method, double[] y, int n, int nPoints) {
+        switch (method) {
+        case LTTB:   return lttb(y, n, nPoints);
+        case MINMAX: return minMax(y, n, nPoints);
+        default:     return all(n);
+        }
+    }
+
+    /**
+     * Largest-Triangle-Three-Buckets downsampling.  The first and last
+     * samples are kept; the rest are divided into <tt>threshold - 2</tt>
+     * buckets, and from each bucket the sample is kept that forms the
+     * largest triangle with the previously kept sample and the average of
+     * the next bucket.
+     * @param y the samples
+     * @param n the number of samples used (a prefix of <tt>y</tt>)
+     * @param threshold the number of points to keep
+     * @return the indices of the samples to keep (all of them if
+     *   <tt>threshold &gt;= n</tt> or <tt>threshold &lt; 3</tt>)
+     */
+    public static int[] lttb(double[] y, int n, int threshold) {
+        if (threshold >= n || threshold < 3) return all(n);
+        int[] idx = new int[threshold];
+        double every = (double) (n - 2)/(threshold - 2);
+        int a = 0;
+        idx[0] = 0;
+        for (int i = 0; i < threshold - 2; i++) {
+            // average of the next bucket (the last point, for the last bucket)
+            int nextStart = (int) ((i + 1)*every) + 1;
+            int nextEnd   = Math.min((int) ((i + 2)*every) + 1, n);
+            double avgX = 0.0, avgY = 0.0;
+            for (int j = nextStart; j < nextEnd; j++) {
+                avgX += j;
+                avgY += y[j];
+            }
+            int len = nextEnd - nextStart;
+            avgX /= len;
+            avgY /= len;
+
+            // point of this bucket with the largest triangle
+            int start = (int) (i*every) + 1;
+            int end   = (int) ((i + 1)*every) + 1;
+            double ay = y[a];
+            double maxArea = -1.0;
+            int maxIdx = start;
+            for (int j = start; j < end; j++) {
+                double area = Math.abs((a - avgX)*(y[j] - ay) - (a - j)*(avgY - ay));
+                if (area > maxArea) {
+                    maxArea = area;
+                    maxIdx  = j;
+                }
+            }
+            idx[i + 1] = maxIdx;
+            a = maxIdx;
+        }
+        idx[threshold - 1] = n - 1;
+        return idx;
+    }
+
+    /**
+     * Min/max downsampling.  The samples are divided into
+     * <tt>nBuckets</tt> buckets (about one per pixel column) and the
+     * minimum and maximum of each are kept, in time order.
+     * @param y the samples
+     * @param n the number of samples used (a prefix of <tt>y</tt>)
+     * @param nBuckets the number of buckets
+     * @return the indices of the samples to keep (all of them if
+     *   <tt>2*nBuckets + 2 &gt;= n</tt>)
+     */
+    public static int[] minMax(double[] y, int n, int nBuckets) {
+        if (nBuckets < 1 || 2*nBuckets + 2 >= n) return all(n);
+        int[] idx = new int[2*nBuckets + 2];
+        int m = 0;
+        idx[m++] = 0;
+        double every = (double) (n - 2)/nBuckets;
+        for (int b = 0; b < nBuckets; b++) {
+            int start = (int) (b*every) + 1;
+            int end   = Math.min((int) ((b + 1)*every) + 1, n - 1);
+            if (start >= end) continue;
+            int iMin = start, iMax = start;
+            for (int j = start + 1; j < end; j++) {
+                if (y[j] < y[iMin]) iMin = j;
+                if (y[j] > y[iMax]) iMax = j;
+            }
+            if (iMin == iMax) {
+                idx[m++] = iMin;
+            } else {
+                idx[m++] = Math.min(iMin, iMax);
+                idx[m++] = Math.max(iMin, iMax);
+            }
+        }
+        idx[m++] = n - 1;
+        return m == idx.length ? idx : Arrays.copyOf(idx, m);
+    }
+
+    private static int[] all(int n) {
+        int[] idx = new int[n];
+        for (int i = 0; i < n; i++) idx[i] = i;
+        return idx;
+    }
+
+    /**********************************************************************
+     *  Unit testing
+     **********************************************************************/
+    public static void main(String[] args) {
+        int n = 1000000;
+        double[] y = new double[n];
+        for (int i = 0; i < n; i++)
+            y[i] = Math.sin(2*Math.PI*i/20000.0) + 0.1*StdRandom.gaussian();
+        y[123457] = 5.0;   // a single spike
+
+        StdOut.println("Testing LTTB on " + n + " samples...");
+        Stopwatch sw = new Stopwatch();
+        int[] idx = lttb(y, n, 1600);
+        StdOut.println("kept " + idx.length + " points in " + sw.elapsedTime() + " s");
+        assert(idx[0] == 0 && idx[idx.length - 1] == n - 1);
+        for (int i = 1; i < idx.length; i++)
+            assert(idx[i] > idx[i - 1]);
+
+        StdOut.println("Testing min/max on " + n + " samples...");
+        sw = new Stopwatch();
+        idx = minMax(y, n, 800);
+        StdOut.println("kept " + idx.length + " points in " + sw.elapsedTime() + " s");
+        boolean spike = false;
+        for (int i = 1; i < idx.length; i++) {
+            assert(idx[i] > idx[i - 1]);
+            if (idx[i] == 123457) spike = true;
+        }
+        StdOut.println("spike kept: " + spike);
+        assert(spike);
+
+        StdOut.println("Testing short series (no downsampling)...");
+        assert(lttb(y, 10, 100).length == 10);
+        assert(minMax(y, 10, 100).length == 10);
+    }
+}
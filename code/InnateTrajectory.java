@@ -0,0 +1,320 @@
+/*************************************************************************
+ *  Compilation:  javac InnateTrajectory.java
+ *  Author:  Phillip B. Schafer
+ *
+ *  Capture and replay of innate trajectories as learning targets.
+ *
+ *  Dependencies:
+ *   JBlas library
+ *   StdOut, Stopwatch (Algs-4)
+ *************************************************************************/
+import org.jblas.DoubleMatrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ *  Stores the "innate" trajectories of selected neurons (the rates the
+ *  untrained network produces from a given initial state) for several
+ *  trials, and replays them as time-indexed targets for
+ *  <nn>RecurrentLearningRLS</nn> or a readout (Laje and Buonomano 2013).
+ *  <p>
+ *  Each trial holds nSteps x nNeurons rates, stored contiguously in
+ *  time-major order either on the heap or in a memory-mapped file (one
+ *  mapping per trial, so the total can exceed 2 GB and a file can be
+ *  reopened in a later run, but a single mapping, and so a mapped trial,
+ *  is limited to 2 GB: 2^28 - 1 values).  Recording and replay copy directly
+ *  between the network's rate vector, the storage and the target vector,
+ *  and do not allocate.
+ *  <p>
+ *  Step s of a trial is the state at time t0 + s*dt, where t0 is the time
+ *  of the first recorded step.  A <nn>Replay</nn> stream returns step
+ *  round((t - t0)/dt) of its current trial.
+ */
+public class InnateTrajectory {
+    private static final int MAGIC   = 0x494e4e54;  // "INNT"
+    private static final int VERSION = 1;
+
+    private final int[] neurons;
+    private final int nSteps;
+    private final double dt;
+    private final DoubleBuffer[] trials;
+
+    private InnateTrajectory(int[] neurons, int nSteps, double dt, DoubleBuffer[] trials) {
+        this.neurons = neurons;
+        this.nSteps  = nSteps;
+        this.dt      = dt;
+        this.trials  = trials;
+    }
+
+    /**
+     * Create heap storage.
+     * @param neurons the neurons to capture
+     * @param nSteps the number of steps per trial
+     * @param nTrials the number of trials
+     * @param dt the time between steps
+     * @return the (empty) trajectories
+     * @throws IllegalArgumentException if a size is not positive or a
+     *   trial would exceed 2^31 - 9 values (the largest array)
+     */
+    public static InnateTrajectory inMemory(int[] neurons, int nSteps, int nTrials, double dt) {
+        checkSizes(neurons, nSteps, nTrials, Integer.MAX_VALUE - 8, "2^31 - 9 values");
+        DoubleBuffer[] trials = new DoubleBuffer[nTrials];
+        for (int k = 0; k < nTrials; k++)
+            trials[k] = DoubleBuffer.wrap(new double[nSteps*neurons.length]);
+        return new InnateTrajectory(neurons.clone(), nSteps, dt, trials);
+    }
+
+    /**
+     * Create storage in a memory-mapped file (overwritten).
+     * @param file the file
+     * @param neurons the neurons to capture
+     * @param nSteps the number of steps per trial
+     * @param nTrials the number of trials
+     * @param dt the time between steps
+     * @return the (empty) trajectories
+     * @throws IOException if the file cannot be created
+     * @throws IllegalArgumentException if a size is not positive or a
+     *   trial would exceed 2 GB (2^28 - 1 values), the largest mapping
+     */
+    public static InnateTrajectory mapped(File file, int[] neurons, int nSteps, int nTrials, double dt)
+        throws IOException {
+        checkSizes(neurons, nSteps, nTrials, Integer.MAX_VALUE/8, "2 GB (2^28 - 1 values)");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel ch = raf.getChannel();
+            long header = headerSize(neurons.length);
+            long trialBytes = 8L*nSteps*neurons.length;
+            raf.setLength(header + nTrials*trialBytes);
+            ByteBuffer h = ch.map(FileChannel.MapMode.READ_WRITE, 0, header)
+                             .order(ByteOrder.nativeOrder());
+            h.putInt(MAGIC).putInt(VERSION).putInt(neurons.length).putInt(nSteps)
+             .putInt(nTrials).putInt(0).putDouble(dt);
+            for (int i : neurons) h.putInt(i);
+            return new InnateTrajectory(neurons.clone(), nSteps, dt,
+                                        mapTrials(ch, FileChannel.MapMode.READ_WRITE,
+                                                  header, trialBytes, nTrials));
+        } finally {
+            raf.close();     // the mappings stay valid
+        }
+    }
+
+    /**
+     * Open trajectories stored by <tt>mapped</tt> in an earlier run.
+     * @param file the file
+     * @return the trajectories (read-only)
+     * @throws IOException if the file cannot be read
+     * @throws IllegalStateException if the file is not a trajectory file
+     */
+    public static InnateTrajectory open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel ch = raf.getChannel();
+            ByteBuffer h = ch.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(ch.size(), 32))
+                             .order(ByteOrder.nativeOrder());
+            if (ch.size() < 32 || h.getInt() != MAGIC || h.getInt() != VERSION)
+                throw new IllegalStateException(file + " is not an innate trajectory file");
+            int nNeurons = h.getInt(), nSteps = h.getInt(), nTrials = h.getInt();
+            h.getInt();
+            double dt = h.getDouble();
+            long header = headerSize(nNeurons);
+            ByteBuffer idx = ch.map(FileChannel.MapMode.READ_ONLY, 32, 4L*nNeurons)
+                               .order(ByteOrder.nativeOrder());
+            int[] neurons = new int[nNeurons];
+            for (int i = 0; i < nNeurons; i++) neurons[i] = idx.getInt();
+            return new InnateTrajectory(neurons, nSteps, dt,
+                                        mapTrials(ch, FileChannel.MapMode.READ_ONLY, header,
+                                                  8L*nSteps*nNeurons, nTrials));
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static DoubleBuffer[] mapTrials(FileChannel ch, FileChannel.MapMode mode, long header,
+                                            long trialBytes, int nTrials) throws IOException {
+        DoubleBuffer[] trials = new DoubleBuffer[nTrials];
+        for (int k = 0; k < nTrials; k++)
+            trials[k] = ch.map(mode, header + k*trialBytes, trialBytes)
+                          .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        return trials;
+    }
+
+    // magic, version, nNeurons, nSteps, nTrials, pad, dt, neurons; 8-aligned
+    private static long headerSize(int nNeurons) {
+        return (32 + 4L*nNeurons + 7) & ~7L;
+    }
+
+    // checked before anything is allocated or the file is grown
+    private static void checkSizes(int[] neurons, int nSteps, int nTrials, long maxValues, String limit) {
+        if (neurons.length < 1 || nSteps < 1 || nTrials < 1)
+            throw new IllegalArgumentException("sizes must be positive");
+        if ((long) nSteps*neurons.length > maxValues)
+            throw new IllegalArgumentException("a trial is limited to " + limit);
+    }
+
+    /** @return the captured neurons */
+    public int[] neurons() {
+        return neurons.clone();
+    }
+
+    /** @return the number of captured neurons */
+    public int nNeurons() {
+        return neurons.length;
+    }
+
+    /** @return the number of steps per trial */
+    public int nSteps() {
+        return nSteps;
+    }
+
+    /** @return the number of trials */
+    public int nTrials() {
+        return trials.length;
+    }
+
+    /**********************************************************************
+     *  Capture
+     **********************************************************************/
+    /**
+     * Capture the rates of the selected neurons as one step of a trial.
+     * @param res the network
+     * @param trial the trial
+     * @param step the step
+     */
+    public void record(Reservoir res, int trial, int step) {
+        double[] r = res.rates().data;
+        DoubleBuffer b = trials[trial];
+        int off = offset(step);
+        for (int i = 0; i < neurons.length; i++)
+            b.put(off + i, r[neurons[i]]);
+    }
+
+    /**
+     * Get one stored rate.
+     * @param trial the trial
+     * @param step the step
+     * @param k the position of the neuron in <tt>neurons()</tt>
+     * @return the rate
+     */
+    public double get(int trial, int step, int k) {
+        return trials[trial].get(offset(step) + k);
+    }
+
+    private int offset(int step) {
+        if (step < 0 || step >= nSteps)
+            throw new IndexOutOfBoundsException("step " + step + " is not in [0, " + nSteps + ")");
+        return step*neurons.length;
+    }
+
+    /**********************************************************************
+     *  Replay
+     **********************************************************************/
+    /**
+     * Create a stream that replays the trajectories as targets.
+     * @return the stream, positioned at trial 0 starting at t = 0
+     */
+    public Replay replay() {
+        return new Replay();
+    }
+
+    /**
+     * A target stream replaying one trial at a time; its size is the
+     * number of captured neurons.
+     */
+    public class Replay implements Streams.InputStream {
+        private int trial = 0;
+        private double t0 = 0.0;
+
+        /**
+         * Replay a trial, with step 0 at time t0.
+         * @param trial the trial
+         * @param t0 the time of step 0
+         */
+        public void start(int trial, double t0) {
+            if (trial < 0 || trial >= trials.length)
+                throw new IndexOutOfBoundsException("no trial " + trial);
+            this.trial = trial;
+            this.t0    = t0;
+        }
+
+        public int size() {
+            return neurons.length;
+        }
+
+        public DoubleMatrix getInput(double t, DoubleMatrix input) {
+            int step = (int) Math.round((t - t0)/dt);
+            int off = offset(step);
+            DoubleBuffer b = trials[trial];
+            for (int i = 0; i < neurons.length; i++)
+                input.data[i] = b.get(off + i);
+            return input;
+        }
+    }
+
+    /**********************************************************************
+     *  Unit testing
+     **********************************************************************/
+    public static void main(String[] args) throws IOException {
+        int N = 200, nSteps = 300, nTrials = 3;
+        int[] neurons = {0, 3, 10, 50, 199};
+        Reservoir res = new Reservoir(N, 0.1, 1.5);
+        Reservoir.Snapshot[] starts = new Reservoir.Snapshot[nTrials];
+        File file = File.createTempFile("innate", ".bin");
+        file.deleteOnExit();
+
+        StdOut.println("Capturing " + nTrials + " trials to heap and mapped storage...");
+        InnateTrajectory heap = inMemory(neurons, nSteps, nTrials, res.dt());
+        InnateTrajectory map  = mapped(file, neurons, nSteps, nTrials, res.dt());
+        for (int k = 0; k < nTrials; k++) {
+            res.setX(DoubleMatrix.randn(N).muli(0.5));  // a different initial state
+            starts[k] = res.snapshot();
+            for (int s = 0; s < nSteps; s++) {
+                res.step();
+                heap.record(res, k, s);
+                map.record(res, k, s);
+            }
+        }
+
+        StdOut.println("Replaying trial 1 against a rerun from its initial state...");
+        InnateTrajectory reopened = open(file);
+        assert(reopened.nTrials() == nTrials && reopened.nSteps() == nSteps);
+        Reservoir rerun = new Reservoir(starts[1]);
+        Replay replay = reopened.replay();
+        DoubleMatrix target = new DoubleMatrix(neurons.length);
+        double maxDiff = 0.0;
+        for (int s = 0; s < nSteps; s++) {
+            rerun.step();
+            if (s == 0) replay.start(1, rerun.t());
+            replay.getInput(rerun.t(), target);
+            double[] r = rerun.getRArray();
+            for (int i = 0; i < neurons.length; i++) {
+                maxDiff = Math.max(maxDiff, Math.abs(target.get(i) - r[neurons[i]]));
+                assert(heap.get(1, s, i) == target.get(i));
+            }
+        }
+        StdOut.println("max difference: " + maxDiff);
+        assert(maxDiff == 0.0);
+
+        StdOut.println("Testing that a mapped trial over 2 GB is refused before the file grows...");
+        File big = File.createTempFile("innate", ".bin");
+        big.deleteOnExit();
+        boolean refused = false;
+        try { mapped(big, new int[4], 1 << 26, 1, res.dt()); }   // 2^28 values
+        catch (IllegalArgumentException e) { refused = true; }
+        assert(refused && big.length() == 0);
+
+        StdOut.println("Replay cost (5 neurons, mapped):");
+        Stopwatch sw = new Stopwatch();
+        double t0 = 0.0;
+        replay.start(0, t0);
+        for (int rep = 0; rep < 10000; rep++)
+            for (int s = 0; s < nSteps; s++)
+                replay.getInput(t0 + s*res.dt(), target);
+        StdOut.printf("%.1f ns per step%n", 1e9*sw.elapsedTime()/(10000.0*nSteps));
+    }
+}
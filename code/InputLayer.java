@@ -0,0 +1,314 @@
+/*************************************************************************
+ *  Compilation:  javac InputLayer.java
+ *  Author:  Phillip B. Schafer
+ *
+ *  Input weights projecting a low-dimensional input onto a Reservoir.
+ *
+ *  Dependencies:
+ *   JBlas library
+ *   StdOut, StdRandom, Stopwatch (Algs-4)
+ *************************************************************************/
+import org.jblas.DoubleMatrix;
+
+import java.util.Arrays;
+
+/**
+ *  An input layer: an N x M input weight matrix Win that projects an
+ *  M-dimensional input u(t) onto the N neurons of a network
+ *  (<tt>Reservoir.setInputLayer</tt>).  The input is the sum of
+ *  <ul>
+ *  <li> an optional continuous <nn>Streams.InputStream</nn> of size M, and
+ *  <li> pulses: u_j(t) = a for onset &lt;= t &lt; offset, e.g. the trigger
+ *       inputs that start a trial (Laje and Buonomano 2013).
+ *  </ul>
+ *  Win is stored by column (as the CSR transpose), so each nonzero input
+ *  component costs one pass over its column's stored entries, and an
+ *  input that is zero costs nothing: the network's input term is skipped
+ *  entirely.  Pulses are kept sorted by onset; finding the active ones
+ *  costs O(log(#pulses)) plus the pulses that started within one maximal
+ *  pulse duration.  The layer holds no state that changes with time, so
+ *  it may be shared between forks of a network.
+ *  <p>
+ *  The layer is also an N-dimensional <nn>Streams.InputStream</nn>
+ *  (Win*u(t)), for recording or for <tt>Reservoir.setInput</tt>.
+ */
+public class InputLayer implements Streams.InputStream {
+    private final int N, M;
+    private final Connectivity.Sparse byInput;  // row j = column j of Win
+    private Streams.InputStream stream;
+
+    // pulses, sorted by onset
+    private int nPulses = 0;
+    private int[] channel = new int[4];
+    private double[] onset = new double[4], offset = new double[4], amp = new double[4];
+    private double maxDuration = 0.0;
+
+    /**
+     * @param Win the N x M input weights (copied into column storage)
+     */
+    public InputLayer(Connectivity.WeightMatrix Win) {
+        N = Win.rows();
+        M = Win.columns();
+        Connectivity.Sparse s = (Win instanceof Connectivity.Sparse)
+            ? (Connectivity.Sparse) Win
+            : Connectivity.Sparse.fromDense(Win.toDense(new DoubleMatrix()));
+        byInput = s.transpose();
+    }
+
+    /**
+     * @param Win the N x M input weights (copied)
+     */
+    public InputLayer(DoubleMatrix Win) {
+        this(new Connectivity.Dense(Win));
+    }
+
+    /**
+     * Draw random input weights: each neuron receives each input with
+     * probability p, with a weight uniform in [-g, g] (as the feedback
+     * weights of <nn>Readout</nn>).
+     * @param N the number of neurons
+     * @param M the number of inputs
+     * @param p the probability of an input connection
+     * @param g the weight range
+     * @return the input layer
+     * @throws IllegalArgumentException if <tt>p</tt> is not between 0 and 1
+     */
+    public static InputLayer random(int N, int M, double p, double g) {
+        if (!(p >= 0 && p <= 1))
+            throw new IllegalArgumentException("p must be in [0,1]");
+        DoubleMatrix Win = new DoubleMatrix(N, M);
+        for (int j = 0; j < M; j++)
+            for (int i = 0; i < N; i++)
+                if (StdRandom.uniform(0.0, 1.0) < p)
+                    Win.put(i, j, StdRandom.uniform(-g, g));
+        return new InputLayer(Connectivity.Sparse.fromDense(Win));
+    }
+
+    /** @return the number of neurons, N */
+    public int size() {
+        return N;
+    }
+
+    /** @return the number of inputs, M */
+    public int nInputs() {
+        return M;
+    }
+
+    /**
+     * Set the continuous input (<tt>null</tt> for none).
+     * @param in the input stream, of size M
+     * @throws IllegalArgumentException if the stream is the wrong size
+     */
+    public void setStream(Streams.InputStream in) {
+        if (in != null && in.size() != M)
+            throw new IllegalArgumentException("size of input stream must = " + M);
+        stream = in;
+    }
+
+    /**
+     * Add a pulse: input <tt>channel</tt> is <tt>amplitude</tt> for
+     * onset &lt;= t &lt; offset (in addition to any other input).
+     * @param channel the input component
+     * @param onset the start time
+     * @param offset the end time
+     * @param amplitude the value of the input during the pulse
+     * @throws IllegalArgumentException if the channel does not exist or
+     *   the pulse does not end after it starts
+     */
+    public void addPulse(int channel, double onset, double offset, double amplitude) {
+        if (channel < 0 || channel >= M)
+            throw new IllegalArgumentException("no input " + channel);
+        if (!(offset > onset))
+            throw new IllegalArgumentException("offset must be after onset");
+        if (nPulses == this.onset.length) {
+            int n = 2*nPulses;
+            this.channel = Arrays.copyOf(this.channel, n);
+            this.onset   = Arrays.copyOf(this.onset, n);
+            this.offset  = Arrays.copyOf(this.offset, n);
+            this.amp     = Arrays.copyOf(this.amp, n);
+        }
+        int k = nPulses++;
+        while (k > 0 && this.onset[k-1] > onset) {     // keep sorted by onset
+            this.channel[k] = this.channel[k-1];
+            this.onset[k]   = this.onset[k-1];
+            this.offset[k]  = this.offset[k-1];
+            this.amp[k]     = this.amp[k-1];
+            k--;
+        }
+        this.channel[k] = channel;
+        this.onset[k]   = onset;
+        this.offset[k]  = offset;
+        this.amp[k]     = amplitude;
+        maxDuration = Math.max(maxDuration, offset - onset);
+    }
+
+    /**
+     * Remove all pulses.
+     */
+    public void clearPulses() {
+        nPulses = 0;
+        maxDuration = 0.0;
+    }
+
+    /** @return the number of pulses */
+    public int nPulses() {
+        return nPulses;
+    }
+
+    /**********************************************************************
+     *  Projection
+     **********************************************************************/
+    /**
+     * Add Win*u(t) to a vector, touching only the columns of Win whose
+     * input is nonzero.  The stream's input is read into a new M-vector;
+     * a network stepping every stage passes its own scratch instead.
+     * @param t the time
+     * @param out the N-vector to add to
+     * @return whether anything was added (false if the input is zero)
+     */
+    public boolean addTo(double t, double[] out) {
+        return addTo(t, out, null);
+    }
+
+    /**
+     * Add Win*u(t) to a vector, reading the stream's input into the
+     * caller's scratch vector.  The layer itself holds no scratch, so
+     * forks sharing it may step concurrently, each with its own buffer.
+     * @param t the time
+     * @param out the N-vector to add to
+     * @param uBuf an M-vector for the stream's input (or <tt>null</tt>
+     *   to allocate one)
+     * @return whether anything was added (false if the input is zero)
+     */
+    public boolean addTo(double t, double[] out, DoubleMatrix uBuf) {
+        boolean any = false;
+        if (stream != null) {
+            if (uBuf == null) uBuf = new DoubleMatrix(M);
+            double[] u = stream.getInput(t, uBuf).data;
+            for (int j = 0; j < M; j++)
+                if (u[j] != 0.0) {
+                    addColumn(j, u[j], out);
+                    any = true;
+                }
+        }
+        if (nPulses > 0) {
+            // last pulse with onset <= t; earlier ones that began more than
+            // maxDuration ago have ended
+            int k = Arrays.binarySearch(onset, 0, nPulses, t);
+            if (k < 0) k = -k - 2;
+            else while (k + 1 < nPulses && onset[k+1] == t) k++;
+            for (; k >= 0 && onset[k] + maxDuration > t; k--)
+                if (t < offset[k] && amp[k] != 0.0) {
+                    addColumn(channel[k], amp[k], out);
+                    any = true;
+                }
+        }
+        return any;
+    }
+
+    // out += a * column j of Win
+    private void addColumn(int j, double a, double[] out) {
+        int[] idx = byInput.colIdx;
+        double[] val = byInput.val;
+        for (int p = byInput.rowPtr[j]; p < byInput.rowPtr[j+1]; p++)
+            out[idx[p]] += a*val[p];
+    }
+
+    public DoubleMatrix getInput(double t, DoubleMatrix input) {
+        input.fill(0.0);
+        addTo(t, input.data);
+        return input;
+    }
+
+    /**********************************************************************
+     *  Unit testing
+     **********************************************************************/
+    public static void main(String[] args) {
+        int N = 500, M = 3;
+        InputLayer layer = random(N, M, 0.5, 1.0);
+        DoubleMatrix Win = layer.byInput.transpose().toDense(new DoubleMatrix());
+
+        StdOut.println("Testing projection of a stream against Win*u...");
+        Streams.InputStream u = new Streams.InputStream() {
+            public int size() { return 3; }
+            public DoubleMatrix getInput(double t, DoubleMatrix input) {
+                input.put(0, Math.sin(t));
+                input.put(1, 0.0);
+                input.put(2, t > 1 ? 1.0 : 0.0);
+                return input;
+            }
+        };
+        layer.setStream(u);
+        for (double t : new double[] {0.0, 0.5, 2.0}) {
+            DoubleMatrix expected = Win.mmul(u.getInput(t, new DoubleMatrix(M)));
+            assert(layer.getInput(t, new DoubleMatrix(N)).distance2(expected) < 1e-12);
+        }
+        assert(!layer.addTo(0.0, new double[N]));      // zero input adds nothing
+
+        StdOut.println("Testing pulses...");
+        layer.setStream(null);
+        layer.addPulse(2, 1.0, 1.2, 5.0);
+        layer.addPulse(0, 0.5, 0.55, -1.0);
+        layer.addPulse(1, 1.1, 1.15, 2.0);
+        double[] probe = {0.0, 0.5, 0.54, 0.55, 1.0, 1.1, 1.15, 1.19, 1.2, 3.0};
+        for (double t : probe) {
+            DoubleMatrix uu = new DoubleMatrix(M);
+            if (t >= 1.0 && t < 1.2)   uu.put(2, 5.0);
+            if (t >= 0.5 && t < 0.55)  uu.put(0, -1.0);
+            if (t >= 1.1 && t < 1.15)  uu.put(1, 2.0);
+            DoubleMatrix got = layer.getInput(t, new DoubleMatrix(N));
+            assert(got.distance2(Win.mmul(uu)) < 1e-12) : "t = " + t;
+        }
+
+        StdOut.println("Testing that setInputLayer and setInput follow the same trajectory...");
+        layer.setStream(u);
+        Reservoir a = new Reservoir(N, 0.1, 1.5);
+        a.useSparseW();
+        Reservoir b = a.fork();
+        a.setInputLayer(layer);
+        b.setInput(layer);
+        a.step(300);
+        b.step(300);
+        StdOut.println("max difference: " + a.x.sub(b.x).normmax());
+        assert(a.x.sub(b.x).normmax() < 1e-12);
+
+        StdOut.println("Testing forks sharing the layer on separate threads...");
+        final Reservoir[] forks = { a.fork(), a.fork() };
+        forks[1].step(7);                              // out of phase
+        final Reservoir[] serial = { forks[0].fork(), forks[1].fork() };
+        Thread[] threads = new Thread[2];
+        for (int k = 0; k < 2; k++) {
+            final Reservoir f = forks[k];
+            threads[k] = new Thread(new Runnable() {
+                public void run() { f.step(2000); }
+            });
+            threads[k].start();
+        }
+        for (int k = 0; k < 2; k++) {
+            try { threads[k].join(); }
+            catch (InterruptedException e) { throw new RuntimeException(e); }
+            serial[k].step(2000);
+            assert(forks[k].x.sub(serial[k].x).normmax() < 1e-12);
+        }
+
+        StdOut.println("Step time, N = 2000, p = 0.01 (sparse):");
+        Reservoir res = new Reservoir(Connectivity.Sparse.random(2000, 0.01, 1.5), 0.01, 0.001);
+        InputLayer trigger = random(2000, 1, 1.0, 1.0);
+        trigger.addPulse(0, 0.0, 0.05, 5.0);
+        final DoubleMatrix zeros = new DoubleMatrix(2000);
+        Streams.InputStream full = new Streams.InputStream() {  // N-dimensional, zero
+            public int size() { return 2000; }
+            public DoubleMatrix getInput(double t, DoubleMatrix input) { return input.copy(zeros); }
+        };
+        String[] names = { "no input", "N-dim stream", "idle trigger layer" };
+        for (int c = 0; c < 3; c++) {
+            Reservoir net = res.fork();
+            net.setInput(c == 1 ? full : null);
+            net.setInputLayer(c == 2 ? trigger : null);
+            net.step(500);                    // past the pulse, then warm
+            Stopwatch sw = new Stopwatch();
+            net.step(2000);
+            StdOut.printf("  %-20s %.3f ms/step%n", names[c], sw.elapsedTime()/2.0);
+        }
+    }
+}
@@ -0,0 +1,473 @@
+/*************************************************************************
+ *  Compilation:  javac Kernels.java
+ *  Author:  Phillip B. Schafer
+ *
+ *  Vector kernels for the simulation and learning hot paths.
+ *
+ *  Dependencies:
+ *   JBlas library (benchmarks only)
+ *   StdOut, StdRandom, Stopwatch (Algs-4)
+ *   VectorKernels (optional; needs --add-modules jdk.incubator.vector)
+ *************************************************************************/
+import org.jblas.DoubleMatrix;
+import org.jblas.MatrixFunctions;
+import org.jblas.SimpleBlas;
+
+/**
+ *  Element-wise and matrix-vector kernels on primitive arrays, used by
+ *  <nn>Nonlinearity</nn>, <nn>Reservoir</nn>, <nn>VectorODESolver</nn>,
+ *  <nn>Connectivity</nn> and <nn>ReadoutLearningRLS</nn>:
+ *  <ul>
+ *  <li> <tt>tanh</tt> and <tt>tanhApprox</tt> (the rational approximation
+ *       of <nn>Nonlinearity.RationalTanh</nn>),
+ *  <li> <tt>axpy</tt>, <tt>axpby</tt> and <tt>waxpy</tt> (leak terms and
+ *       Runge-Kutta stage combinations),
+ *  <li> <tt>gemv</tt> (dense, column-major), <tt>spmv</tt> (CSR),
+ *       <tt>spmvLowRank</tt> (CSR plus readout feedback, in one pass) and
+ *       <tt>syr</tt> (symmetric rank-1 update, for RLS),
+ *  <li> <tt>dotInt8</tt>, <tt>dotHalf</tt>, <tt>int8ToDouble</tt> and
+ *       <tt>halfToDouble</tt> (the quantized weights of
+ *       <nn>QuantizedMatrix</nn>).
+ *  </ul>
+ *  Two implementations exist.  The scalar one is plain Java loops.  The
+ *  SIMD one, <nn>VectorKernels</nn>, uses the incubating Vector API
+ *  (<tt>jdk.incubator.vector</tt>) and is used if it is compiled and the
+ *  JVM is started with <tt>--add-modules jdk.incubator.vector</tt>;
+ *  otherwise, or with <tt>-Dkernels.scalar=true</tt>, the scalar one is.
+ *  It is also refused on AVX-512 machines under JVMs that miscompile its
+ *  gathers (see <nn>VectorKernels</nn>).  See <tt>backend</tt>.
+ *  <p>
+ *  The two agree exactly except for <tt>tanh</tt>, which the SIMD
+ *  implementation computes to within 4 ulp of <tt>Math.tanh</tt>, and
+ *  <tt>spmv</tt>, <tt>spmvLowRank</tt>, <tt>dotInt8</tt> and
+ *  <tt>dotHalf</tt>, whose sums it accumulates in a different order.
+ *  The large dense products (<tt>gemv</tt>, <tt>syr</tt>) are only worth
+ *  taking from here when vectorized; otherwise callers keep using jBlas
+ *  (see <tt>vectorized</tt>).  The same holds for the quantized kernels,
+ *  whose callers otherwise decode through lookup tables.  The axpy family always runs the scalar
+ *  loops, which the JIT compiler vectorizes itself: at network sizes the
+ *  Vector API versions were no faster, 0.5 to 1.4 times the scalar speed
+ *  from run to run (see <tt>main</tt>).
+ */
+public class Kernels {
+
+    /**
+     * A kernel implementation.  All arrays are dense, starting at index 0.
+     */
+    interface Impl {
+        /** r[i] = tanh(x[i]) for i &lt; n (x may be r) */
+        void tanh(double[] x, double[] r, int n);
+        /** r[i] = rational tanh(x[i]) for i &lt; n (x may be r) */
+        void tanhApprox(double[] x, double[] r, int n);
+        /** y += a*x */
+        void axpy(int n, double a, double[] x, double[] y);
+        /** y = a*x + b*y */
+        void axpby(int n, double a, double[] x, double b, double[] y);
+        /** w = a*x + y (w may be x or y) */
+        void waxpy(int n, double a, double[] x, double[] y, double[] w);
+        /** y = A*x, for A rows x cols in column-major order */
+        void gemv(int rows, int cols, double[] A, double[] x, double[] y);
+        /** y = A*x, for A in CSR format */
+        void spmv(int rows, int[] rowPtr, int[] colIdx, double[] val, double[] x, double[] y);
+        /** y = A*x + U*z, for A in CSR format and U rows x m, column-major */
+        void spmvLowRank(int rows, int[] rowPtr, int[] colIdx, double[] val, double[] x,
+                         double[] U, int m, double[] z, double[] y);
+        /** sum of q[p]*x[colIdx[p]] (x[p - o] if colIdx is null), lo &lt;= p &lt; hi */
+        double dotInt8(byte[] q, int[] colIdx, int lo, int hi, double[] x, int o);
+        /** as dotInt8, for IEEE half-precision q */
+        double dotHalf(short[] q, int[] colIdx, int lo, int hi, double[] x, int o);
+        /** w[k] = q[p + k] for k &lt; n */
+        void int8ToDouble(byte[] q, int p, int n, double[] w);
+        /** w[k] = the half-precision value q[p + k] for k &lt; n */
+        void halfToDouble(short[] q, int p, int n, double[] w);
+        /** A += alpha*x*x', for A n x n (both triangles updated) */
+        void syr(int n, double alpha, double[] x, double[] A);
+    }
+
+    private static final Impl IMPL = load();
+    private static final Impl SCALAR = IMPL instanceof Scalar ? IMPL : new Scalar();
+
+    private static Impl load() {
+        if (Boolean.getBoolean("kernels.scalar")) return new Scalar();
+        try {
+            return (Impl) Class.forName("VectorKernels").getDeclaredConstructor().newInstance();
+        } catch (Throwable e) {    // not compiled, or the module is not present
+            return new Scalar();
+        }
+    }
+
+    /** @return the name of the implementation in use */
+    public static String backend() {
+        return IMPL.toString();
+    }
+
+    /** @return whether the SIMD implementation is in use */
+    public static boolean vectorized() {
+        return !(IMPL instanceof Scalar);
+    }
+
+    /**********************************************************************
+     *  Kernels
+     **********************************************************************/
+    /**
+     * Exact tanh (to 4 ulp when vectorized): r[i] = tanh(x[i]), i &lt; n.
+     * @param x the inputs
+     * @param r the outputs (may be x)
+     * @param n the number of elements
+     */
+    public static void tanh(double[] x, double[] r, int n) {
+        IMPL.tanh(x, r, n);
+    }
+
+    /**
+     * The rational approximation of tanh of <nn>Nonlinearity.RationalTanh</nn>
+     * (identical results): r[i] = phi(x[i]), i &lt; n.
+     * @param x the inputs
+     * @param r the outputs (may be x)
+     * @param n the number of elements
+     */
+    public static void tanhApprox(double[] x, double[] r, int n) {
+        IMPL.tanhApprox(x, r, n);
+    }
+
+    /**
+     * y += a*x (first n elements).  Always scalar (see above).
+     */
+    public static void axpy(int n, double a, double[] x, double[] y) {
+        SCALAR.axpy(n, a, x, y);
+    }
+
+    /**
+     * y = a*x + b*y (first n elements).  Always scalar.
+     */
+    public static void axpby(int n, double a, double[] x, double b, double[] y) {
+        SCALAR.axpby(n, a, x, b, y);
+    }
+
+    /**
+     * w = a*x + y (first n elements; w may be x or y).  Always scalar.
+     */
+    public static void waxpy(int n, double a, double[] x, double[] y, double[] w) {
+        SCALAR.waxpy(n, a, x, y, w);
+    }
+
+    /**
+     * Dense matrix-vector product y = A*x.
+     * @param rows the number of rows of A
+     * @param cols the number of columns of A
+     * @param A the matrix, column-major (as <tt>DoubleMatrix.data</tt>)
+     * @param x the vector (cols)
+     * @param y the product (rows; overwritten, must not be x)
+     */
+    public static void gemv(int rows, int cols, double[] A, double[] x, double[] y) {
+        IMPL.gemv(rows, cols, A, x, y);
+    }
+
+    /**
+     * Sparse matrix-vector product y = A*x, for A in CSR format (as
+     * <nn>Connectivity.Sparse</nn>).
+     * @param rows the number of rows of A
+     * @param rowPtr the row pointers (rows + 1)
+     * @param colIdx the columns of the stored entries
+     * @param val the stored entries
+     * @param x the vector
+     * @param y the product (rows; overwritten, must not be x)
+     */
+    public static void spmv(int rows, int[] rowPtr, int[] colIdx, double[] val, double[] x, double[] y) {
+        IMPL.spmv(rows, rowPtr, colIdx, val, x, y);
+    }
+
+    /**
+     * Sparse matrix-vector product plus a low-rank term, y = A*x + U*z,
+     * in one pass over the rows: the feedback of a readout
+     * (<nn>Streams.LowRankFeedback</nn>) added to the recurrent input.
+     * @param rows the number of rows of A and U
+     * @param rowPtr the row pointers (rows + 1)
+     * @param colIdx the columns of the stored entries
+     * @param val the stored entries
+     * @param x the vector
+     * @param U the low-rank factor, rows x m, column-major
+     * @param m the rank (columns of U, length of z)
+     * @param z the coefficients
+     * @param y the result (rows; overwritten, must not be x)
+     */
+    public static void spmvLowRank(int rows, int[] rowPtr, int[] colIdx, double[] val, double[] x,
+                                   double[] U, int m, double[] z, double[] y) {
+        IMPL.spmvLowRank(rows, rowPtr, colIdx, val, x, U, m, z, y);
+    }
+
+    /**
+     * Dot product of int8 weights with a vector, gathered through column
+     * indices (CSR) or contiguous (a dense row): the sum of
+     * q[p]*x[colIdx[p]], or of q[p]*x[p - o] if <tt>colIdx</tt> is
+     * <tt>null</tt>, over lo &lt;= p &lt; hi.  The caller applies the
+     * row's scale.
+     * @param q the weights
+     * @param colIdx the columns of the weights, or <tt>null</tt>
+     * @param lo the first weight
+     * @param hi the last weight + 1
+     * @param x the vector
+     * @param o the index of the weight that multiplies x[0], if dense
+     * @return the sum
+     */
+    public static double dotInt8(byte[] q, int[] colIdx, int lo, int hi, double[] x, int o) {
+        return IMPL.dotInt8(q, colIdx, lo, hi, x, o);
+    }
+
+    /**
+     * <tt>dotInt8</tt> for IEEE half-precision weights (as
+     * <tt>QuantizedMatrix.fromHalf</tt>).
+     */
+    public static double dotHalf(short[] q, int[] colIdx, int lo, int hi, double[] x, int o) {
+        return IMPL.dotHalf(q, colIdx, lo, hi, x, o);
+    }
+
+    /**
+     * Decode n int8 weights: w[k] = q[p + k].
+     */
+    public static void int8ToDouble(byte[] q, int p, int n, double[] w) {
+        IMPL.int8ToDouble(q, p, n, w);
+    }
+
+    /**
+     * Decode n half-precision weights: w[k] = the value of q[p + k].
+     */
+    public static void halfToDouble(short[] q, int p, int n, double[] w) {
+        IMPL.halfToDouble(q, p, n, w);
+    }
+
+    /**
+     * Symmetric rank-1 update A += alpha*x*x' of a full n x n matrix.
+     * Both triangles are updated, although one would halve the memory
+     * traffic: the RLS estimate P, the only caller, is also read in full
+     * by <tt>gemv</tt>, by the jBlas path, by <tt>getColumn</tt>, forks and
+     * checkpoints, all of which would then need a symmetric product or a
+     * mirroring pass, and the two kernel paths would no longer hold
+     * identical matrices.
+     */
+    public static void syr(int n, double alpha, double[] x, double[] A) {
+        IMPL.syr(n, alpha, x, A);
+    }
+
+    /**********************************************************************
+     *  Scalar implementation
+     **********************************************************************/
+    static final class Scalar implements Impl {
+        public void tanh(double[] x, double[] r, int n) {
+            for (int i = 0; i < n; i++)
+                r[i] = Math.tanh(x[i]);
+        }
+        public void tanhApprox(double[] x, double[] r, int n) {
+            for (int i = 0; i < n; i++)
+                r[i] = rationalTanh(x[i]);
+        }
+        public void axpy(int n, double a, double[] x, double[] y) {
+            for (int i = 0; i < n; i++)
+                y[i] += a*x[i];
+        }
+        public void axpby(int n, double a, double[] x, double b, double[] y) {
+            for (int i = 0; i < n; i++)
+                y[i] = a*x[i] + b*y[i];
+        }
+        public void waxpy(int n, double a, double[] x, double[] y, double[] w) {
+            for (int i = 0; i < n; i++)
+                w[i] = a*x[i] + y[i];
+        }
+        public void gemv(int rows, int cols, double[] A, double[] x, double[] y) {
+            java.util.Arrays.fill(y, 0, rows, 0.0);
+            for (int j = 0; j < cols; j++) {
+                double b = x[j];
+                for (int i = 0, o = rows*j; i < rows; i++)
+                    y[i] += A[o + i]*b;
+            }
+        }
+        public void spmv(int rows, int[] rowPtr, int[] colIdx, double[] val, double[] x, double[] y) {
+            for (int i = 0; i < rows; i++) {
+                double s = 0.0;
+                for (int p = rowPtr[i]; p < rowPtr[i+1]; p++)
+                    s += val[p]*x[colIdx[p]];
+                y[i] = s;
+            }
+        }
+        public void spmvLowRank(int rows, int[] rowPtr, int[] colIdx, double[] val, double[] x,
+                                double[] U, int m, double[] z, double[] y) {
+            for (int i = 0; i < rows; i++) {
+                double s = 0.0;
+                for (int p = rowPtr[i]; p < rowPtr[i+1]; p++)
+                    s += val[p]*x[colIdx[p]];
+                for (int k = 0; k < m; k++)
+                    s += U[i + rows*k]*z[k];
+                y[i] = s;
+            }
+        }
+        public double dotInt8(byte[] q, int[] colIdx, int lo, int hi, double[] x, int o) {
+            double s = 0.0;
+            for (int p = lo; p < hi; p++)
+                s += q[p]*x[colIdx == null ? p - o : colIdx[p]];
+            return s;
+        }
+        public double dotHalf(short[] q, int[] colIdx, int lo, int hi, double[] x, int o) {
+            double s = 0.0;
+            for (int p = lo; p < hi; p++)
+                s += QuantizedMatrix.fromHalf(q[p])*x[colIdx == null ? p - o : colIdx[p]];
+            return s;
+        }
+        public void int8ToDouble(byte[] q, int p, int n, double[] w) {
+            for (int k = 0; k < n; k++)
+                w[k] = q[p + k];
+        }
+        public void halfToDouble(short[] q, int p, int n, double[] w) {
+            for (int k = 0; k < n; k++)
+                w[k] = QuantizedMatrix.fromHalf(q[p + k]);
+        }
+        public void syr(int n, double alpha, double[] x, double[] A) {
+            for (int j = 0; j < n; j++) {
+                double b = alpha*x[j];
+                for (int i = 0, o = n*j; i < n; i++)
+                    A[o + i] += x[i]*b;
+            }
+        }
+        public String toString() { return "scalar"; }
+    }
+
+    // Nonlinearity.RationalTanh (which calls this), in the operation order
+    // VectorKernels uses
+    static final double CLAMP = 4.971787;
+    static double rationalTanh(double x) {
+        if (x >= CLAMP)  return 1.0;
+        if (x <= -CLAMP) return -1.0;
+        double x2 = x*x;
+        return x*(135135 + x2*(17325 + x2*(378 + x2)))
+                /(135135 + x2*(62370 + x2*(3150 + 28*x2)));
+    }
+
+    /**********************************************************************
+     *  Unit testing and benchmarks
+     **********************************************************************/
+    public static void main(String[] args) {
+        int N = 1000;
+        double p = 0.1;
+        double[] x = new double[N], y = new double[N], a = new double[N], b = new double[N];
+        for (int i = 0; i < N; i++) {
+            x[i] = 2*StdRandom.gaussian();
+            y[i] = StdRandom.gaussian();
+        }
+        double[] A = new double[N*N];
+        for (int i = 0; i < N*N; i++)
+            A[i] = StdRandom.gaussian();
+        Connectivity.Sparse S = Connectivity.Sparse.random(N, p, 1.5);
+
+        StdOut.println("Kernel backend: " + backend());
+        StdOut.println("Testing against the scalar kernels...");
+        IMPL.tanh(x, a, N);
+        SCALAR.tanh(x, b, N);
+        for (int i = 0; i < N; i++)
+            assert(Math.abs(a[i] - b[i]) <= 4*Math.ulp(b[i]));
+        IMPL.tanhApprox(x, a, N);
+        for (int i = 0; i < N; i++)
+            assert(a[i] == new Nonlinearity.RationalTanh().apply(x[i]));
+        System.arraycopy(y, 0, a, 0, N);
+        System.arraycopy(y, 0, b, 0, N);
+        IMPL.axpby(N, 0.3, x, -1.7, a);
+        SCALAR.axpby(N, 0.3, x, -1.7, b);
+        assert(java.util.Arrays.equals(a, b));
+        IMPL.waxpy(N, 0.3, x, y, a);
+        SCALAR.waxpy(N, 0.3, x, y, b);
+        assert(java.util.Arrays.equals(a, b));
+        IMPL.gemv(N, N, A, x, a);
+        SCALAR.gemv(N, N, A, x, b);
+        assert(java.util.Arrays.equals(a, b));
+        IMPL.spmv(N, S.rowPtr, S.colIdx, S.val, x, a);
+        SCALAR.spmv(N, S.rowPtr, S.colIdx, S.val, x, b);
+        for (int i = 0; i < N; i++)
+            assert(Math.abs(a[i] - b[i]) < 1e-12);
+        IMPL.spmvLowRank(N, S.rowPtr, S.colIdx, S.val, x, y, 1, Z, a);
+        SCALAR.spmv(N, S.rowPtr, S.colIdx, S.val, x, b);
+        SCALAR.axpy(N, Z[0], y, b);
+        for (int i = 0; i < N; i++)
+            assert(Math.abs(a[i] - b[i]) < 1e-12);
+        byte[] q8 = new byte[N];
+        short[] q16 = new short[N];
+        for (int i = 0; i < N; i++) {
+            q8[i]  = (byte) StdRandom.uniform(-127, 128);
+            q16[i] = QuantizedMatrix.toHalf(StdRandom.uniform(-1.0, 1.0));
+        }
+        int[] cols = java.util.Arrays.copyOf(S.colIdx, N);
+        IMPL.int8ToDouble(q8, 3, N - 3, a);
+        SCALAR.int8ToDouble(q8, 3, N - 3, b);
+        assert(java.util.Arrays.equals(a, 0, N - 3, b, 0, N - 3));
+        IMPL.halfToDouble(q16, 3, N - 3, a);
+        SCALAR.halfToDouble(q16, 3, N - 3, b);
+        assert(java.util.Arrays.equals(a, 0, N - 3, b, 0, N - 3));
+        assert(Math.abs(IMPL.dotInt8(q8, cols, 5, N, x, 0) - SCALAR.dotInt8(q8, cols, 5, N, x, 0)) < 1e-9);
+        assert(Math.abs(IMPL.dotInt8(q8, null, 5, N, x, 2) - SCALAR.dotInt8(q8, null, 5, N, x, 2)) < 1e-9);
+        assert(Math.abs(IMPL.dotHalf(q16, cols, 5, N, x, 0) - SCALAR.dotHalf(q16, cols, 5, N, x, 0)) < 1e-12);
+        assert(Math.abs(IMPL.dotHalf(q16, null, 5, N, x, 2) - SCALAR.dotHalf(q16, null, 5, N, x, 2)) < 1e-12);
+        double[] A2 = A.clone();
+        IMPL.syr(N, -0.01, x, A);
+        SCALAR.syr(N, -0.01, x, A2);
+        assert(java.util.Arrays.equals(A, A2));
+
+        StdOut.println("Time per call, N = " + N + ", p = " + p + " (scalar, "
+                       + (vectorized() ? backend() + ", " : "") + "jBlas):");
+        Impl[] impls = vectorized() ? new Impl[] {SCALAR, IMPL} : new Impl[] {SCALAR};
+        String[] names = {"tanh", "tanhApprox", "axpy", "axpby", "waxpy", "gemv", "spmv",
+                          "spmvLowRank", "spmv+axpy", "syr"};
+        for (int k = 0; k < names.length; k++) {
+            int reps = k < 5 ? 200000 : 1000;
+            StdOut.printf("  %-12s", names[k]);
+            double[] t = new double[impls.length + 1];
+            for (int m = 0; m <= impls.length; m++) {
+                if (m == impls.length && !jblas(k, N, x, y, a, A)) {
+                    StdOut.printf(" %12s", "-");
+                    continue;
+                }
+                for (int warm = 0; warm < 2; warm++) {   // the first pass warms up
+                    Stopwatch sw = new Stopwatch();
+                    for (int rep = 0; rep < reps; rep++)
+                        if (m < impls.length) run(impls[m], k, N, x, y, a, A, S);
+                        else                  jblas(k, N, x, y, a, A);
+                    t[m] = 1e6*sw.elapsedTime()/reps;
+                }
+                StdOut.printf(" %9.3f us", t[m]);
+            }
+            if (impls.length == 2)
+                StdOut.printf("  (SIMD x%.1f)", t[0]/t[1]);
+            StdOut.println();
+        }
+    }
+
+    private static final double[] Z = { 0.5 };   // rank-1 feedback coefficient
+
+    // the jBlas counterpart of kernel k, as used where the kernels are
+    // not; false if there is none
+    private static boolean jblas(int k, int N, double[] x, double[] y, double[] a, double[] A) {
+        DoubleMatrix dx = new DoubleMatrix(x), dy = new DoubleMatrix(y), da = new DoubleMatrix(a);
+        switch (k) {
+            case 0: MatrixFunctions.tanhi(da.copy(dx)); return true;
+            case 2: SimpleBlas.axpy(1e-9, dx, da); return true;
+            case 3: SimpleBlas.axpy(1e-9, dx, SimpleBlas.scal(1.0, da)); return true;
+            case 4: SimpleBlas.axpy(0.5, dx, SimpleBlas.copy(dy, da)); return true;
+            case 5: SimpleBlas.gemv(1.0, new DoubleMatrix(N, N, A), dx, 0.0, da); return true;
+            case 9: SimpleBlas.ger(1e-12, dy, dy, new DoubleMatrix(N, N, A)); return true;
+            default: return false;
+        }
+    }
+
+    private static void run(Impl impl, int k, int N, double[] x, double[] y, double[] a,
+                            double[] A, Connectivity.Sparse S) {
+        switch (k) {
+            case 0: impl.tanh(x, a, N); break;
+            case 1: impl.tanhApprox(x, a, N); break;
+            case 2: impl.axpy(N, 1e-9, x, a); break;
+            case 3: impl.axpby(N, 1e-9, x, 1.0, a); break;
+            case 4: impl.waxpy(N, 0.5, x, y, a); break;
+            case 5: impl.gemv(N, N, A, x, a); break;
+            case 6: impl.spmv(N, S.rowPtr, S.colIdx, S.val, x, a); break;
+            case 7: impl.spmvLowRank(N, S.rowPtr, S.colIdx, S.val, x, y, 1, Z, a); break;
+            case 8: impl.spmv(N, S.rowPtr, S.colIdx, S.val, x, a);     // the unfused
+                    impl.axpy(N, Z[0], y, a); break;                   // equivalent
+            default: impl.syr(N, 1e-12, y, A); break;
+        }
+    }
+}
@@ -3,7 +3,7 @@ import org.jblas.Solve;
 import java.util.ArrayList;
 
 // Stores the data for learning
-public class LearningModule {
+public class LearningModule implements Checkpoint.Checkpointable {
         
     private int N;
     private int M;
@@ -72,6 +72,19 @@ public class LearningModule {
         storedTarget  = new TimeSeries(M); 
     }
     
+    /*********************************************************************
+     * Checkpointing
+     *********************************************************************/
+    public void writeState(Checkpoint.Writer out) {
+        storedR.writeState(out);
+        storedTarget.writeState(out);
+    }
+    
+    public void readState(Checkpoint.Reader in) {
+        storedR.readState(in);
+        storedTarget.readState(in);
+    }
+    
     /*********************************************************************
      * helper methods
      *********************************************************************/
@@ -0,0 +1,380 @@
+/*************************************************************************
+ *  Compilation:  javac LiveMonitor.java
+ *  Author:  Phillip B. Schafer
+ *
+ *  Live plot of a running simulation.
+ *
+ *  Dependencies:
+ *   jFreeChart library
+ *   StdOut, Stopwatch (Algs-4)
+ *************************************************************************/
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.swing.SwingUtilities;
+
+import org.jfree.chart.*;
+import org.jfree.chart.plot.*;
+import org.jfree.data.xy.*;
+import org.jfree.ui.*;
+
+/**
+ *  Plots a few signals (e.g. readout, target and error) while a
+ *  simulation runs.
+ *  <p>
+ *  The simulation thread calls <tt>record</tt> once per step.  Samples are
+ *  passed to the rendering thread through a lock-free single-producer,
+ *  single-consumer <nn>RingBuffer</nn>: recording is a few array stores
+ *  and never blocks or allocates, and if the renderer falls behind the
+ *  sample is dropped rather than the simulation being slowed down.  An
+ *  optional decimation factor records only every k-th step.
+ *  <p>
+ *  The rendering thread wakes at a fixed frame rate, drains the ring into
+ *  a bounded history window (the most recent <tt>window</tt> samples),
+ *  reduces the window to min/max pairs per pixel column
+ *  (<nn>Downsample</nn>) and redraws the chart.  On a machine without a
+ *  display the frame is written to a PNG file instead.
+ */
+public class LiveMonitor {
+
+    /************************************************************************
+     *  Ring buffer
+     ************************************************************************/
+    /**
+     * A bounded lock-free queue of fixed-size frames (a time and nSeries
+     * values) for one producer thread and one consumer thread.  The
+     * producer publishes a frame by advancing <tt>head</tt> with an ordered
+     * store after writing it; the consumer frees slots the same way with
+     * <tt>tail</tt>.  Each side caches the other's counter, so in the
+     * common case no shared cache line is read.
+     */
+    public static class RingBuffer {
+        private final int stride;         // doubles per frame
+        private final int mask;           // capacity - 1
+        private final double[] data;
+        private final AtomicLong head = new AtomicLong();   // frames written
+        private final AtomicLong tail = new AtomicLong();   // frames read
+        private long tailCache = 0;       // producer's view of tail
+        private long headCache = 0;       // consumer's view of head
+        private volatile long dropped = 0;
+
+        /**
+         * @param nSeries the number of values per frame
+         * @param capacity the number of frames (rounded up to a power of 2)
+         */
+        public RingBuffer(int nSeries, int capacity) {
+            if (nSeries < 1 || capacity < 1)
+                throw new IllegalArgumentException("sizes must be positive");
+            int cap = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+            this.stride = nSeries + 1;
+            this.mask   = cap - 1;
+            this.data   = new double[cap*stride];
+        }
+
+        /** @return the number of frames the buffer holds */
+        public int capacity() {
+            return mask + 1;
+        }
+
+        /** @return the number of frames dropped because the buffer was full */
+        public long nDropped() {
+            return dropped;
+        }
+
+        /**
+         * Add a frame (producer thread only).  Never blocks.
+         * @param t the time
+         * @param x the values (at least nSeries)
+         * @return false if the buffer was full and the frame was dropped
+         */
+        public boolean offer(double t, double[] x) {
+            long h = head.get();
+            if (h - tailCache > mask) {
+                tailCache = tail.get();
+                if (h - tailCache > mask) {
+                    dropped++;
+                    return false;
+                }
+            }
+            int off = (int) (h & mask)*stride;
+            data[off] = t;
+            System.arraycopy(x, 0, data, off + 1, stride - 1);
+            head.lazySet(h + 1);
+            return true;
+        }
+
+        /**
+         * Remove up to maxFrames frames (consumer thread only).
+         * @param out the frames, copied contiguously as {t, x_0, ..., x_n-1}
+         * @param maxFrames the maximum number of frames to remove
+         * @return the number of frames removed
+         */
+        public int drain(double[] out, int maxFrames) {
+            long t = tail.get();
+            if (headCache - t < maxFrames) headCache = head.get();
+            int n = (int) Math.min(headCache - t, maxFrames);
+            for (int i = 0; i < n; i++) {
+                int off = (int) ((t + i) & mask)*stride;
+                System.arraycopy(data, off, out, i*stride, stride);
+            }
+            tail.lazySet(t + n);
+            return n;
+        }
+    }
+
+    /************************************************************************
+     *  Monitor
+     ************************************************************************/
+    private final int nSeries;
+    private final String title;
+    private final int window;       // history length (samples)
+    private final int fps;          // frames per second
+    private int decimation = 1;     // record every k-th sample
+    private long nOffered = 0;
+    private File outputFile = null; // PNG written each frame if set
+    private int width  = PlottingHeadless.WIDTH;
+
+    private final RingBuffer ring;
+
+    // rendering thread state
+    private final double[] drainBuf;
+    private final double[] histT;        // history window (circular)
+    private final double[][] hist;
+    private int histPos = 0, histCount = 0;
+    private final double[] lineT;        // window in time order
+    private final double[][] lineY;
+    private ScheduledExecutorService renderer;
+    private JFreeChart chart;
+    private ApplicationFrame frame;
+    private volatile IOException renderError;
+
+    /**
+     * @param nSeries the number of signals
+     * @param title the plot title
+     * @param window the number of most recent samples shown
+     * @param fps the frame rate of the display, at most 1000
+     * @throws IllegalArgumentException if a size or rate is not positive,
+     *   or the rate is above 1000 frames per second
+     */
+    public LiveMonitor(int nSeries, String title, int window, int fps) {
+        if (nSeries < 1 || window < 2 || fps < 1)
+            throw new IllegalArgumentException("sizes and frame rate must be positive");
+        if (fps > 1000)
+            throw new IllegalArgumentException("frame rate must be at most 1000");
+        this.nSeries = nSeries;
+        this.title   = title;
+        this.window  = window;
+        this.fps     = fps;
+        ring     = new RingBuffer(nSeries, Math.max(1024, Math.min(window, 1 << 16)));
+        drainBuf = new double[ring.capacity()*(nSeries + 1)];
+        histT = new double[window];
+        hist  = new double[nSeries][window];
+        lineT = new double[window];
+        lineY = new double[nSeries][window];
+    }
+
+    /**
+     * Record only every k-th sample passed to <tt>record</tt>.
+     * @param k the decimation factor (1 = every sample)
+     */
+    public void setDecimation(int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("decimation must be at least 1");
+        decimation = k;
+    }
+
+    /**
+     * Write each frame to a PNG file (required without a display).
+     * @param file the output file, overwritten every frame
+     */
+    public void setOutputFile(File file) {
+        outputFile = file;
+    }
+
+    /**
+     * Record one sample (simulation thread).  Never blocks.
+     * @param t the time
+     * @param x the values of the signals (at least nSeries)
+     */
+    public void record(double t, double[] x) {
+        if (nOffered++ % decimation != 0) return;
+        ring.offer(t, x);
+    }
+
+    /** @return the number of samples dropped because the renderer fell behind */
+    public long nDropped() {
+        return ring.nDropped();
+    }
+
+    /**
+     * Open the plot window (or, without a display, start writing the
+     * output file) and start redrawing at the frame rate.
+     * @throws IllegalStateException if there is no display and no output file
+     */
+    public void start() {
+        boolean headless = GraphicsEnvironment.isHeadless();
+        if (headless && outputFile == null)
+            throw new IllegalStateException("no display: set an output file first");
+        chart = PlottingHeadless.createChart(new DefaultXYDataset(), title);
+        if (!headless) {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    ChartPanel panel = new ChartPanel(chart);
+                    panel.setPreferredSize(new java.awt.Dimension(width, 300));
+                    frame = new ApplicationFrame(title);
+                    frame.setContentPane(panel);
+                    frame.pack();
+                    RefineryUtilities.centerFrameOnScreen(frame);
+                    frame.setVisible(true);
+                }
+            });
+        }
+        renderer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread th = new Thread(r, "LiveMonitor renderer");
+                th.setDaemon(true);
+                return th;
+            }
+        });
+        renderer.scheduleAtFixedRate(new Runnable() {
+            public void run() { renderFrame(); }
+        }, 0, 1000000/fps, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Stop redrawing, after drawing a final frame.  The window stays open.
+     * @throws IOException if writing the output file failed
+     */
+    public void stop() throws IOException {
+        if (renderer == null) return;
+        renderer.shutdown();
+        try {
+            renderer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        renderer = null;
+        renderFrame();
+        if (renderError != null) throw renderError;
+    }
+
+    // drain the ring into the history window and redraw (rendering thread)
+    private void renderFrame() {
+        int stride = nSeries + 1;
+        int n;
+        while ((n = ring.drain(drainBuf, ring.capacity())) > 0) {
+            for (int f = 0; f < n; f++) {
+                int off = f*stride;
+                histT[histPos] = drainBuf[off];
+                for (int i = 0; i < nSeries; i++)
+                    hist[i][histPos] = drainBuf[off + 1 + i];
+                histPos = (histPos + 1) % window;
+                if (histCount < window) histCount++;
+            }
+        }
+        if (histCount == 0) return;
+
+        // unroll the window into time order, then reduce to min/max pairs
+        int start = (histPos - histCount + window) % window;
+        int first = Math.min(histCount, window - start);
+        System.arraycopy(histT, start, lineT, 0, first);
+        System.arraycopy(histT, 0, lineT, first, histCount - first);
+        final DefaultXYDataset dataset = new DefaultXYDataset();
+        for (int i = 0; i < nSeries; i++) {
+            System.arraycopy(hist[i], start, lineY[i], 0, first);
+            System.arraycopy(hist[i], 0, lineY[i], first, histCount - first);
+            int[] idx = Downsample.minMax(lineY[i], histCount, width);
+            double[][] xy = new double[2][idx.length];
+            for (int j = 0; j < idx.length; j++) {
+                xy[0][j] = lineT[idx[j]];
+                xy[1][j] = lineY[i][idx[j]];
+            }
+            dataset.addSeries(Integer.toString(i), xy);
+        }
+
+        if (outputFile != null) {
+            XYPlot plot = (XYPlot) chart.getPlot();
+            plot.setDataset(dataset);
+            try {
+                ChartUtilities.saveChartAsPNG(outputFile, chart, width, 300);
+            } catch (IOException e) {
+                renderError = e;
+            }
+        } else {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() { ((XYPlot) chart.getPlot()).setDataset(dataset); }
+            });
+        }
+    }
+
+    /**********************************************************************
+     *  Unit testing
+     **********************************************************************/
+    public static void main(String[] args) throws Exception {
+        StdOut.println("Testing ring buffer with concurrent producer and consumer...");
+        final RingBuffer ring = new RingBuffer(3, 1024);
+        final int total = 5000000;
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                double[] x = new double[3];
+                for (int t = 0; t < total; t++) {
+                    x[0] = t; x[1] = 2*t; x[2] = 3*t;
+                    ring.offer(t, x);
+                }
+            }
+        });
+        producer.start();
+        double[] buf = new double[1024*4];
+        long received = 0;
+        double last = -1;
+        boolean ordered = true;
+        while (producer.isAlive() || received + ring.nDropped() < total) {
+            int n = ring.drain(buf, 1024);
+            for (int f = 0; f < n; f++) {
+                double t = buf[4*f];
+                ordered &= t > last && buf[4*f + 1] == t && buf[4*f + 2] == 2*t
+                           && buf[4*f + 3] == 3*t;
+                last = t;
+            }
+            received += n;
+        }
+        StdOut.println("received " + received + ", dropped " + ring.nDropped()
+                       + ", consistent and ordered: " + ordered);
+        assert(ordered && received + ring.nDropped() == total);
+
+        StdOut.println("Testing that frame rates above 1000 are rejected...");
+        boolean rejected = false;
+        try { new LiveMonitor(1, "too fast", 100, 1001); }
+        catch (IllegalArgumentException e) { rejected = true; }
+        assert(rejected);
+
+        StdOut.println("Monitoring FORCE learning...");
+        Reservoir reservoir = new Reservoir(300, 0.1, 1.5);
+        ReadoutLearningRLS readout
+            = new ReadoutLearningRLS(new Streams.TriangleWave(0.5), reservoir.size(), 1.0);
+        reservoir.setFeedback(readout);
+        LiveMonitor monitor = new LiveMonitor(3, "Readout, target and error", 2000, 20);
+        if (GraphicsEnvironment.isHeadless())
+            monitor.setOutputFile(new File(System.getProperty("java.io.tmpdir"), "live.png"));
+        monitor.start();
+        double[] sample = new double[3];
+        Stopwatch sw = new Stopwatch();
+        for (int iStep = 0; iStep < 3000; iStep++) {
+            reservoir.step();
+            if (iStep % 10 == 0 && iStep < 2000)
+                readout.learn(reservoir);
+            sample[0] = readout.getReadoutArray(reservoir)[0];
+            sample[1] = readout.getTargetReadoutArray(reservoir.t())[0];
+            sample[2] = sample[0] - sample[1];
+            monitor.record(reservoir.t(), sample);
+        }
+        monitor.stop();
+        StdOut.println("simulation time: " + sw.elapsedTime() + " s, dropped: "
+                       + monitor.nDropped());
+    }
+}
@@ -0,0 +1,270 @@
+/*************************************************************************
+ *  Compilation:  javac LyapunovSpectrum.java
+ *  Author:  Phillip B. Schafer
+ *
+ *  Estimates the leading Lyapunov exponents of a Reservoir.
+ *
+ *  Dependencies:
+ *   JBlas library
+ *   StdOut, Stopwatch (Algs-4)
+ *************************************************************************/
+import org.jblas.DoubleMatrix;
+
+/**
+ *  Estimates the k largest Lyapunov exponents of a <tt>Reservoir</tt>
+ *  by integrating the tangent-space dynamics alongside the network.
+ *  <p>
+ *  For x' = (-x + W*phi(x) + input)/tau, a tangent vector v evolves as
+ *  v' = J(x)v = (-v + W*(phi'(x) .* v))/tau, with phi' supplied by the
+ *  network's <nn>Nonlinearity.Function</nn>.
+ *  The Jacobian is never formed: the k tangent vectors are kept as the
+ *  columns of an N x k matrix Q, scaled row-wise by phi'(x), and multiplied
+ *  by W in a single matrix-matrix product per Runge-Kutta stage.  The
+ *  product goes through the network's <nn>Connectivity.WeightMatrix</nn>,
+ *  so dense and sparse W are both supported.
+ *  <p>
+ *  The network and its tangent vectors are stepped together with the same
+ *  4th-order Runge-Kutta scheme as <nn>VectorODESolver.RKIntegrator</nn>,
+ *  so the network follows exactly the trajectory it would follow under
+ *  <tt>Reservoir.step()</tt>.  Every <tt>orthoInterval</tt> steps Q is
+ *  re-orthonormalized (Gram-Schmidt QR); the exponents are the time
+ *  averages of log|R_ii|.
+ *  <p>
+ *  Feedback, if the network has any, is treated as an external signal
+ *  (as with clamped feedback): its dependence on x is not linearized.
+ */
+public class LyapunovSpectrum {
+    private final Reservoir res;
+    private final int N;
+    private final int k;
+    private final int orthoInterval;
+
+    private DoubleMatrix Q;       // tangent vectors (N x k)
+    private double[] logSums;     // accumulated log stretching factors
+    private double elapsed;       // time over which logSums were accumulated
+    private int stepsSinceQR;
+
+    // pre-allocated buffers
+    private final DoubleMatrix kx, xEst, dx;  // network RK stages
+    private final DoubleMatrix kQ, qEst, dQ;  // tangent RK stages
+    private final DoubleMatrix scaled;        // phi'(x) .* Q
+    private final DoubleMatrix dphi;          // phi'(x)
+
+    /**
+     * Estimate the k largest exponents, re-orthonormalizing every 10 steps.
+     * @param res the network (stepped by this object)
+     * @param k the number of exponents
+     */
+    public LyapunovSpectrum(Reservoir res, int k) {
+        this(res, k, 10);
+    }
+
+    /**
+     * Estimate the k largest exponents.
+     * @param res the network (stepped by this object)
+     * @param k the number of exponents
+     * @param orthoInterval the number of steps between re-orthonormalizations
+     * @throws IllegalArgumentException if <tt>k</tt> is not in [1, N]
+     *   or <tt>orthoInterval</tt> is less than one
+     */
+    public LyapunovSpectrum(Reservoir res, int k, int orthoInterval) {
+        if (k < 1 || k > res.size())
+            throw new IllegalArgumentException("k must be in [1, N]");
+        if (orthoInterval < 1)
+            throw new IllegalArgumentException("orthoInterval must be at least 1");
+        this.res = res;
+        this.N   = res.size();
+        this.k   = k;
+        this.orthoInterval = orthoInterval;
+
+        kx   = new DoubleMatrix(N);
+        xEst = new DoubleMatrix(N);
+        dx   = new DoubleMatrix(N);
+        kQ     = new DoubleMatrix(N, k);
+        qEst   = new DoubleMatrix(N, k);
+        dQ     = new DoubleMatrix(N, k);
+        scaled = new DoubleMatrix(N, k);
+        dphi   = new DoubleMatrix(N);
+
+        Q = DoubleMatrix.randn(N, k);
+        orthonormalize(false);
+        reset();
+    }
+
+    /**********************************************************************
+     *  Results
+     **********************************************************************/
+    /**
+     * Discard the accumulated averages (e.g. after an initial transient),
+     * keeping the current tangent vectors.
+     */
+    public void reset() {
+        if (stepsSinceQR > 0) orthonormalize(false);
+        logSums = new double[k];
+        elapsed = 0.0;
+    }
+
+    /**
+     * Get the current estimates of the exponents in units of 1/time,
+     * decreasing up to estimation error.  Only completed
+     * re-orthonormalization intervals are counted.
+     * @return the k exponents (NaN before the first interval completes)
+     */
+    public double[] exponents() {
+        double[] lambda = new double[k];
+        for (int i = 0; i < k; i++)
+            lambda[i] = logSums[i]/elapsed;
+        return lambda;
+    }
+
+    /**
+     * Get the current estimate of the largest exponent.
+     * @return the largest exponent
+     */
+    public double largest() {
+        return logSums[0]/elapsed;
+    }
+
+    /**
+     * Get the time over which the current estimates were averaged.
+     * @return the averaging time
+     */
+    public double elapsed() {
+        return elapsed;
+    }
+
+    /**********************************************************************
+     *  Stepping
+     **********************************************************************/
+    /**
+     * Step the network and its tangent vectors by one time step.
+     */
+    public void step() {
+        double t  = res.t;
+        double dt = res.dt;
+        DoubleMatrix x = res.x;
+
+        derivs(x, Q, t, kx, kQ);                    // k1
+        dx.copy(kx);
+        dQ.copy(kQ);
+
+        x.addi(kx.muli(0.5*dt), xEst);
+        Q.addi(kQ.muli(0.5*dt), qEst);
+        derivs(xEst, qEst, t + 0.5*dt, kx, kQ);     // k2
+        dx.addi(kx).addi(kx);
+        dQ.addi(kQ).addi(kQ);
+
+        x.addi(kx.muli(0.5*dt), xEst);
+        Q.addi(kQ.muli(0.5*dt), qEst);
+        derivs(xEst, qEst, t + 0.5*dt, kx, kQ);     // k3
+        dx.addi(kx).addi(kx);
+        dQ.addi(kQ).addi(kQ);
+
+        x.addi(kx.muli(dt), xEst);
+        Q.addi(kQ.muli(dt), qEst);
+        derivs(xEst, qEst, t + dt, kx, kQ);         // k4
+        dx.addi(kx);
+        dQ.addi(kQ);
+
+        x.addi(dx.muli(dt/6.0));
+        Q.addi(dQ.muli(dt/6.0));
+        res.rIsSet = false;
+        res.t += dt;
+
+        if (++stepsSinceQR >= orthoInterval)
+            orthonormalize(true);
+    }
+
+    /**
+     * Perform several steps.
+     * @param nSteps the number of steps
+     */
+    public void step(int nSteps) {
+        for (int i = 0; i < nSteps; i++)
+            step();
+    }
+
+    // network derivative and tangent derivative J(xs)*Qs at one RK stage
+    private void derivs(DoubleMatrix xs, DoubleMatrix Qs, double ts,
+                        DoubleMatrix xDeriv, DoubleMatrix qDeriv) {
+        res.dynEq.timeDeriv(xs, ts, xDeriv);
+
+        // phi'(x), applied as a row scaling of Qs
+        res.phi.deriv(xs.data, dphi.data, N);
+        for (int c = 0; c < k; c++) {
+            int off = c*N;
+            for (int i = 0; i < N; i++)
+                scaled.data[off + i] = dphi.data[i]*Qs.data[off + i];
+        }
+        res.wMat.mmuli(scaled, qDeriv);            // W * (phi' .* Q)
+        qDeriv.subi(Qs).divi(res.tau);             // (-Q + W*(phi' .* Q))/tau
+    }
+
+    // modified Gram-Schmidt on the columns of Q, optionally accumulating
+    // the logs of the diagonal of R
+    private void orthonormalize(boolean accumulate) {
+        double[] q = Q.data;
+        for (int c = 0; c < k; c++) {
+            int oc = c*N;
+            for (int j = 0; j < c; j++) {
+                int oj = j*N;
+                double dot = 0.0;
+                for (int i = 0; i < N; i++)
+                    dot += q[oj + i]*q[oc + i];
+                for (int i = 0; i < N; i++)
+                    q[oc + i] -= dot*q[oj + i];
+            }
+            double norm = 0.0;
+            for (int i = 0; i < N; i++)
+                norm += q[oc + i]*q[oc + i];
+            norm = Math.sqrt(norm);
+            if (accumulate) logSums[c] += Math.log(norm);
+            for (int i = 0; i < N; i++)
+                q[oc + i] /= norm;
+        }
+        if (accumulate) elapsed += stepsSinceQR*res.dt;
+        stepsSinceQR = 0;
+    }
+
+    /**********************************************************************
+     *  Unit testing
+     **********************************************************************/
+    public static void main(String[] args) {
+        int N = 300;
+        double p = 0.1;
+
+        StdOut.println("Testing that the network trajectory is unchanged...");
+        Reservoir a = new Reservoir(N, p, 1.5);
+        Reservoir b = a.fork();
+        LyapunovSpectrum ly = new LyapunovSpectrum(b, 3);
+        a.step(20);
+        ly.step(20);
+        assert(a.x.equals(b.x));
+
+        StdOut.println("Largest exponents vs g (should cross zero near g = 1):");
+        for (double g : new double[] {0.5, 1.0, 1.5, 2.0}) {
+            Reservoir res = new Reservoir(N, p, g);
+            Reservoir sparse = res.fork();
+            sparse.useSparseW();
+
+            Stopwatch sw = new Stopwatch();
+            LyapunovSpectrum dense = new LyapunovSpectrum(res, 3);
+            dense.step(500);          // transient
+            dense.reset();
+            dense.step(2000);
+            double tDense = sw.elapsedTime();
+
+            sw = new Stopwatch();
+            LyapunovSpectrum sp = new LyapunovSpectrum(sparse, 3);
+            sp.step(500);
+            sp.reset();
+            sp.step(2000);
+            double tSparse = sw.elapsedTime();
+
+            double[] ld = dense.exponents();
+            double[] ls = sp.exponents();
+            StdOut.printf("g = %.1f  dense: %8.3f %8.3f %8.3f (%.2f s)   sparse: %8.3f %8.3f %8.3f (%.2f s)%n",
+                          g, ld[0], ld[1], ld[2], tDense, ls[0], ls[1], ls[2], tSparse);
+        }
+    }
+}
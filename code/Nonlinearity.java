@@ -0,0 +1,321 @@
+/*************************************************************************
+ *  Compilation:  javac Nonlinearity.java
+ *  Author:  Phillip B. Schafer
+ *
+ *  Activation functions for rate neurons.
+ *
+ *  Dependencies:
+ *   Kernels
+ *   StdOut, StdRandom, Stopwatch (Algs-4)
+ *************************************************************************/
+
+/**
+ *  Activation functions r = phi(x) for rate neurons, with their
+ *  derivatives phi'(x) (for Jacobians and Lyapunov exponents).
+ *  Functions are applied element-wise to primitive arrays, in place if
+ *  the input and output arrays are the same, without allocation.
+ *  <p>
+ *  <nn>Tanh</nn> is exact (<tt>Math.tanh</tt>; on arrays, the SIMD
+ *  <tt>Kernels.tanh</tt> to 4 ulp when that is available).
+ *  <nn>RationalTanh</nn> and <nn>TableTanh</nn> are faster approximations
+ *  of tanh whose errors are bounded (see <tt>main</tt> for measured bounds and speeds):
+ *  <ul>
+ *  <li> <nn>RationalTanh</nn>: Lambert's continued fraction truncated to a
+ *       degree 7/6 rational function, clamped to +-1 where it reaches 1
+ *       (|x| &gt; 4.9718); max error about 1e-4, near the clamp point
+ *       (2e-4 in the derivative).
+ *  <li> <nn>TableTanh</nn>: linear interpolation in a table with step h on
+ *       [-8, 8], saturating outside; max error about 0.1*h^2 (1.5e-6 for
+ *       the default h = 1/256; 0.25*h^2 in the derivative).
+ *  </ul>
+ *  <nn>ReLU</nn> and <nn>ThresholdLinear</nn> are piecewise linear.
+ */
+public class Nonlinearity {
+
+    /************************************************************************
+     *  Interface
+     ************************************************************************/
+    /**
+     * An activation function and its derivative.
+     */
+    public interface Function {
+        /**
+         * @param x the input
+         * @return phi(x)
+         */
+        double apply(double x);
+        /**
+         * @param x the input
+         * @return phi'(x)
+         */
+        double deriv(double x);
+        /**
+         * Apply element-wise: r[i] = phi(x[i]) for i &lt; n (x may be r).
+         * @param x the inputs
+         * @param r the outputs
+         * @param n the number of elements
+         */
+        void apply(double[] x, double[] r, int n);
+        /**
+         * Differentiate element-wise: d[i] = phi'(x[i]) for i &lt; n
+         * (x may be d).
+         * @param x the inputs
+         * @param d the derivatives
+         * @param n the number of elements
+         */
+        void deriv(double[] x, double[] d, int n);
+    }
+
+    /** Exact tanh (the default). */
+    public static final Function TANH = new Tanh();
+
+    /************************************************************************
+     *  tanh
+     ************************************************************************/
+    /**
+     * Exact hyperbolic tangent.
+     */
+    public static class Tanh implements Function {
+        public double apply(double x) {
+            return Math.tanh(x);
+        }
+        public double deriv(double x) {
+            double t = Math.tanh(x);
+            return 1.0 - t*t;
+        }
+        public void apply(double[] x, double[] r, int n) {
+            Kernels.tanh(x, r, n);
+        }
+        public void deriv(double[] x, double[] d, int n) {
+            for (int i = 0; i < n; i++) {
+                double t = Math.tanh(x[i]);
+                d[i] = 1.0 - t*t;
+            }
+        }
+        public String toString() { return "tanh"; }
+    }
+
+    /**
+     * Rational (Pade-type) approximation of tanh:
+     * x(135135 + 17325x^2 + 378x^4 + x^6)/(135135 + 62370x^2 + 3150x^4 + 28x^6),
+     * clamped to +-1 beyond the point where it reaches 1.  The derivative
+     * is 1 - phi(x)^2.
+     */
+    public static class RationalTanh implements Function {
+        public double apply(double x) {
+            return Kernels.rationalTanh(x);    // shared with the array kernels
+        }
+        public double deriv(double x) {
+            double y = apply(x);
+            return 1.0 - y*y;
+        }
+        public void apply(double[] x, double[] r, int n) {
+            Kernels.tanhApprox(x, r, n);
+        }
+        public void deriv(double[] x, double[] d, int n) {
+            for (int i = 0; i < n; i++) {
+                double y = apply(x[i]);
+                d[i] = 1.0 - y*y;
+            }
+        }
+        public String toString() { return "rational tanh"; }
+    }
+
+    /**
+     * Table approximation of tanh: linear interpolation between exact
+     * values at x = -8 + k*h, and +-1 outside [-8, 8].  The derivative is
+     * interpolated from a table of exact derivatives.
+     */
+    public static class TableTanh implements Function {
+        private static final double RANGE = 8.0;
+        private final int perUnit;
+        private final double invH;
+        private final double[] value, slope;     // value and per-cell slope
+        private final double[] dValue, dSlope;   // same for the derivative
+        private final int last;                  // index of the last cell
+
+        /** Table with step 1/256 (4097 entries). */
+        public TableTanh() {
+            this(256);
+        }
+
+        /**
+         * @param perUnit the number of table entries per unit of x
+         * @throws IllegalArgumentException if <tt>perUnit</tt> is less than one
+         */
+        public TableTanh(int perUnit) {
+            if (perUnit < 1)
+                throw new IllegalArgumentException("perUnit must be at least 1");
+            int n = (int) (2*RANGE*perUnit) + 1;
+            double h = 1.0/perUnit;
+            this.perUnit = perUnit;
+            invH   = perUnit;
+            last   = n - 2;
+            value  = new double[n];
+            dValue = new double[n];
+            slope  = new double[n];
+            dSlope = new double[n];
+            for (int k = 0; k < n; k++) {
+                double t = Math.tanh(-RANGE + k*h);
+                value[k]  = t;
+                dValue[k] = 1.0 - t*t;
+            }
+            for (int k = 0; k < n - 1; k++) {
+                slope[k]  = value[k+1] - value[k];
+                dSlope[k] = dValue[k+1] - dValue[k];
+            }
+        }
+        public double apply(double x) {
+            double u = (x + RANGE)*invH;
+            if (!(u > 0.0)) return x != x ? x : -1.0;   // keeps NaN
+            int k = (int) u;
+            if (k > last) return 1.0;
+            return value[k] + (u - k)*slope[k];
+        }
+        public double deriv(double x) {
+            double u = (x + RANGE)*invH;
+            if (!(u > 0.0)) return x != x ? x : 0.0;
+            int k = (int) u;
+            if (k > last) return 0.0;
+            return dValue[k] + (u - k)*dSlope[k];
+        }
+        public void apply(double[] x, double[] r, int n) {
+            for (int i = 0; i < n; i++)
+                r[i] = apply(x[i]);
+        }
+        public void deriv(double[] x, double[] d, int n) {
+            for (int i = 0; i < n; i++)
+                d[i] = deriv(x[i]);
+        }
+        public String toString() { return "table tanh, h = 1/" + perUnit; }
+    }
+
+    /************************************************************************
+     *  Piecewise linear
+     ************************************************************************/
+    /**
+     * Rectified linear: max(0, x).
+     */
+    public static class ReLU implements Function {
+        public double apply(double x) {
+            return x > 0.0 ? x : 0.0;
+        }
+        public double deriv(double x) {
+            return x > 0.0 ? 1.0 : 0.0;
+        }
+        public void apply(double[] x, double[] r, int n) {
+            for (int i = 0; i < n; i++)
+                r[i] = x[i] > 0.0 ? x[i] : 0.0;
+        }
+        public void deriv(double[] x, double[] d, int n) {
+            for (int i = 0; i < n; i++)
+                d[i] = x[i] > 0.0 ? 1.0 : 0.0;
+        }
+        public String toString() { return "ReLU"; }
+    }
+
+    /**
+     * Threshold-linear with saturation: min(max(x - theta, 0), rMax).
+     */
+    public static class ThresholdLinear implements Function {
+        private final double theta, rMax;
+        /**
+         * @param theta the threshold
+         * @param rMax the saturation rate (may be infinite)
+         * @throws IllegalArgumentException if <tt>rMax</tt> is not positive
+         */
+        public ThresholdLinear(double theta, double rMax) {
+            if (!(rMax > 0))
+                throw new IllegalArgumentException("rMax must be positive");
+            this.theta = theta;
+            this.rMax  = rMax;
+        }
+        public double apply(double x) {
+            double y = x - theta;
+            return y <= 0.0 ? 0.0 : (y >= rMax ? rMax : y);
+        }
+        public double deriv(double x) {
+            double y = x - theta;
+            return (y > 0.0 && y < rMax) ? 1.0 : 0.0;
+        }
+        public void apply(double[] x, double[] r, int n) {
+            for (int i = 0; i < n; i++)
+                r[i] = apply(x[i]);
+        }
+        public void deriv(double[] x, double[] d, int n) {
+            for (int i = 0; i < n; i++)
+                d[i] = deriv(x[i]);
+        }
+        public String toString() { return "threshold-linear"; }
+    }
+
+    /**********************************************************************
+     *  Unit testing: error bounds and speed
+     **********************************************************************/
+    public static void main(String[] args) {
+        Function[] fs = { new Tanh(), new RationalTanh(), new TableTanh(), new TableTanh(64),
+                          new ReLU(), new ThresholdLinear(0.5, 2.0) };
+
+        StdOut.println("Max error against tanh on [-12, 12] (step 1e-5):");
+        // the documented bounds, of the value and of the derivative
+        double[] bound  = { 0.0, 1e-4, 0.1/(256*256),  0.1/(64*64) };
+        double[] dBound = { 0.0, 2e-4, 0.25/(256*256), 0.25/(64*64) };
+        for (int f = 0; f < 4; f++) {
+            double maxErr = 0.0, maxDErr = 0.0;
+            for (double x = -12; x <= 12; x += 1e-5) {
+                double t = Math.tanh(x);
+                maxErr  = Math.max(maxErr, Math.abs(fs[f].apply(x) - t));
+                maxDErr = Math.max(maxDErr, Math.abs(fs[f].deriv(x) - (1 - t*t)));
+            }
+            StdOut.printf("  %-22s value %.2e   derivative %.2e%n", fs[f], maxErr, maxDErr);
+            assert(maxErr <= bound[f] && maxDErr <= dBound[f]) : fs[f].toString();
+        }
+
+        StdOut.println("Testing array forms against scalar forms...");
+        int n = 1000;
+        double[] x = new double[n], r = new double[n], d = new double[n];
+        for (int i = 0; i < n; i++) x[i] = 6*StdRandom.gaussian();
+        for (Function f : fs) {
+            f.apply(x, r, n);
+            f.deriv(x, d, n);
+            for (int i = 0; i < n; i++)
+                assert((f instanceof Tanh ? Math.abs(r[i] - f.apply(x[i])) <= 4*Math.ulp(r[i])
+                                          : r[i] == f.apply(x[i])) && d[i] == f.deriv(x[i]));
+            // derivative by central differences, away from kinks
+            for (int i = 0; i < n; i++) {
+                double h = 1e-6, fd = (f.apply(x[i] + h) - f.apply(x[i] - h))/(2*h);
+                if (Math.abs(fd - d[i]) > 1e-3 && !(f instanceof ReLU || f instanceof ThresholdLinear
+                                                    || f instanceof TableTanh))
+                    throw new AssertionError(f + ": derivative mismatch at " + x[i]);
+            }
+        }
+
+        StdOut.println("Speed (ns per element, 1e6 elements, x ~ N(0, 1)):");
+        n = 1000000;
+        x = new double[n];
+        r = new double[n];
+        for (int i = 0; i < n; i++) x[i] = StdRandom.gaussian();
+        for (Function f : fs) {
+            for (int rep = 0; rep < 5; rep++) f.apply(x, r, n);      // warm up
+            Stopwatch sw = new Stopwatch();
+            for (int rep = 0; rep < 20; rep++) f.apply(x, r, n);
+            double tApply = sw.elapsedTime();
+            sw = new Stopwatch();
+            for (int rep = 0; rep < 20; rep++) f.deriv(x, r, n);
+            double tDeriv = sw.elapsedTime();
+            StdOut.printf("  %-22s apply %5.2f   deriv %5.2f%n", f,
+                          1e9*tApply/(20.0*n), 1e9*tDeriv/(20.0*n));
+        }
+
+        StdOut.println("Reservoir step time, N = 5000, p = 0.01 (sparse):");
+        Connectivity.Sparse W = Connectivity.Sparse.random(5000, 0.01, 1.5);
+        for (int f = 0; f < 3; f++) {
+            Reservoir res = new Reservoir(W, 0.01, 0.001);
+            res.setNonlinearity(fs[f]);
+            res.step(200);
+            Stopwatch sw = new Stopwatch();
+            res.step(1000);
+            StdOut.printf("  %-22s %.3f ms/step%n", fs[f], sw.elapsedTime());
+        }
+    }
+}
@@ -0,0 +1,534 @@
+/*************************************************************************
+ *  Compilation:  javac --add-modules jdk.incubator.foreign OffHeapMatrix.java
+ *  Execution:    java --add-modules jdk.incubator.foreign ...
+ *  Author:  Phillip B. Schafer
+ *
+ *  Dense matrices stored outside the Java heap, optionally in a file.
+ *
+ *  Dependencies:
+ *   JBlas library
+ *   jdk.incubator.foreign (JDK 17)
+ *   StdOut, StdRandom, Stopwatch (Algs-4)
+ *************************************************************************/
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+import org.jblas.DoubleMatrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.Cleaner;
+import java.nio.channels.FileChannel;
+
+/**
+ *  A dense matrix in native memory (a <tt>MemorySegment</tt> of the
+ *  foreign memory API), for connection matrices and RLS correlation
+ *  estimates too large for a jBlas <nn>DoubleMatrix</nn>, whose
+ *  <tt>int</tt> indexing limits it to 2^31 - 1 entries (N = 46340 for a
+ *  square matrix).  Entries are indexed by <tt>long</tt>; only the
+ *  dimensions must be <tt>int</tt>s.  The layout is column-major, as in
+ *  jBlas, and the products and updates work on the segment directly, one
+ *  column at a time.
+ *  <p>
+ *  As a <nn>Connectivity.DenseStorage</nn>, the matrix can be the
+ *  connection matrix of a <nn>Reservoir</nn> (<tt>new Reservoir(W, tau,
+ *  dt)</tt>) or hold the P of a <nn>ReadoutLearningRLS</nn>
+ *  (<tt>setPStorage</tt>).  The readout weights wOut and wBack are M x N
+ *  and stay in jBlas matrices.
+ *  <p>
+ *  Memory is freed when the matrix's <tt>ResourceScope</tt> is closed,
+ *  not by the garbage collector, so large weights add neither to the heap
+ *  nor to GC pauses.  Matrices made without a scope own one, closed by
+ *  <tt>close</tt>; matrices made in a caller's scope live until the caller
+ *  closes it (the scope must be shared to use the matrix from several
+ *  threads, e.g. with <nn>AsyncLearningRLS</nn>).  A matrix may be backed
+ *  by a file (<tt>map</tt>): the file holds the entries in native byte
+ *  order, is read lazily by the operating system, persists after the
+ *  matrix is closed, and may be larger than physical memory.
+ */
+public final class OffHeapMatrix implements Connectivity.DenseStorage, AutoCloseable {
+    private final int rows, columns;
+    private final MemorySegment seg;
+    private final ResourceScope scope;
+    private final boolean ownsScope;
+    private final File file;                     // the backing file, or null
+
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final int BY_FILE = -1, BY_COLUMN = -2;   // checkpoint formats
+
+    private OffHeapMatrix(int rows, int columns, MemorySegment seg, ResourceScope scope, boolean ownsScope,
+                          File file) {
+        this.rows      = rows;
+        this.columns   = columns;
+        this.seg       = seg;
+        this.scope     = scope;
+        this.ownsScope = ownsScope;
+        this.file      = file;
+    }
+
+    /**
+     * A zero matrix in native memory, freed when the scope is closed.
+     * @param rows the number of rows
+     * @param columns the number of columns
+     * @param scope the scope (arena) of the memory
+     * @return the matrix
+     * @throws IllegalArgumentException if a dimension is less than one
+     */
+    public static OffHeapMatrix allocate(int rows, int columns, ResourceScope scope) {
+        return new OffHeapMatrix(rows, columns, allocateSegment(rows, columns, scope), scope, false, null);
+    }
+
+    /**
+     * A zero matrix in native memory, freed by <tt>close</tt>.
+     * @param rows the number of rows
+     * @param columns the number of columns
+     * @return the matrix
+     * @throws IllegalArgumentException if a dimension is less than one
+     */
+    public static OffHeapMatrix allocate(int rows, int columns) {
+        ResourceScope scope = ResourceScope.newSharedScope();
+        return new OffHeapMatrix(rows, columns, allocateSegment(rows, columns, scope), scope, true, null);
+    }
+
+    private static MemorySegment allocateSegment(int rows, int columns, ResourceScope scope) {
+        checkSize(rows, columns);
+        return MemorySegment.allocateNative(8L*rows*columns, 64, scope);   // zeroed
+    }
+
+    private static void checkSize(int rows, int columns) {
+        if (rows < 1 || columns < 1)
+            throw new IllegalArgumentException("dimensions must be at least 1");
+    }
+
+    /**
+     * A matrix backed by a file, which is created (zero) if it does not
+     * exist or is empty, and otherwise holds the matrix.
+     * @param file the file
+     * @param rows the number of rows
+     * @param columns the number of columns
+     * @param scope the scope of the mapping
+     * @return the matrix
+     * @throws IllegalArgumentException if the file is not empty and is not
+     *   the size of the matrix
+     * @throws IOException if the file cannot be created or mapped
+     */
+    public static OffHeapMatrix map(File file, int rows, int columns, ResourceScope scope) throws IOException {
+        return new OffHeapMatrix(rows, columns, mapSegment(file, rows, columns, scope), scope, false, file);
+    }
+
+    /**
+     * A matrix backed by a file (see <tt>map(File, int, int,
+     * ResourceScope)</tt>), unmapped by <tt>close</tt>.
+     */
+    public static OffHeapMatrix map(File file, int rows, int columns) throws IOException {
+        ResourceScope scope = ResourceScope.newSharedScope();
+        try {
+            return new OffHeapMatrix(rows, columns, mapSegment(file, rows, columns, scope), scope, true, file);
+        } catch (IOException | RuntimeException e) {
+            scope.close();
+            throw e;
+        }
+    }
+
+    private static MemorySegment mapSegment(File file, int rows, int columns, ResourceScope scope) throws IOException {
+        checkSize(rows, columns);
+        long bytes = 8L*rows*columns;
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            if (f.length() == 0)
+                f.setLength(bytes);
+            else if (f.length() != bytes)
+                throw new IllegalArgumentException("file holds " + f.length() + " bytes, expected " + bytes);
+        }
+        return MemorySegment.mapFile(file.toPath(), 0, bytes, FileChannel.MapMode.READ_WRITE, scope);
+    }
+
+    /**
+     * Copy a jBlas matrix into native memory (freed by <tt>close</tt>).
+     * @param A the matrix
+     * @return the copy
+     */
+    public static OffHeapMatrix copyOf(DoubleMatrix A) {
+        OffHeapMatrix m = allocate(A.rows, A.columns);
+        m.seg.copyFrom(MemorySegment.ofArray(A.data).asSlice(0, 8L*A.length));
+        return m;
+    }
+
+    /**
+     * Random connectivity as <nn>Reservoir</nn>'s: each entry is nonzero
+     * with probability p, gaussian with variance g^2/(N*p).
+     * @param N the number of neurons
+     * @param p the probability of a connection
+     * @param g the gain
+     * @return the N x N matrix (freed by <tt>close</tt>)
+     * @throws IllegalArgumentException if <tt>p</tt> is not in (0, 1]
+     */
+    public static OffHeapMatrix random(int N, double p, double g) {
+        if (!(p > 0 && p <= 1))
+            throw new IllegalArgumentException("p must be in (0,1]");
+        OffHeapMatrix m = allocate(N, N);
+        double scale = g/Math.sqrt(N*p);
+        for (long k = 0, n = m.size(); k < n; k++)
+            if (StdRandom.uniform(0.0, 1.0) < p)
+                MemoryAccess.setDoubleAtIndex(m.seg, k, scale*StdRandom.gaussian());
+        return m;
+    }
+
+    /**********************************************************************
+     *  Access
+     **********************************************************************/
+    public int rows()    { return rows; }
+    public int columns() { return columns; }
+
+    /** @return the number of entries, rows*columns */
+    public long size() {
+        return (long) rows*columns;
+    }
+
+    /** @return the entry (i, j) */
+    public double get(int i, int j) {
+        return MemoryAccess.getDoubleAtIndex(seg, i + (long) rows*j);
+    }
+
+    /** Set the entry (i, j). */
+    public void put(int i, int j, double v) {
+        MemoryAccess.setDoubleAtIndex(seg, i + (long) rows*j, v);
+    }
+
+    /** @return the scope of the memory */
+    public ResourceScope scope() {
+        return scope;
+    }
+
+    /** @return whether the matrix is backed by a file */
+    public boolean isMapped() {
+        return seg.isMapped();
+    }
+
+    /**
+     * Write changes of a file-backed matrix to the file (nothing if the
+     * matrix is not file-backed).
+     */
+    public void force() {
+        if (seg.isMapped()) seg.force();
+    }
+
+    /**
+     * Free the memory (or unmap the file) if the matrix owns its scope;
+     * a caller's scope is left to the caller.  The matrix may not be used
+     * afterwards.
+     */
+    public void close() {
+        if (ownsScope && scope.isAlive()) scope.close();
+    }
+
+    private MemorySegment column(int j) {
+        return seg.asSlice(8L*rows*j, 8L*rows);
+    }
+
+    public void getColumn(int j, double[] out) {
+        MemorySegment.ofArray(out).asSlice(0, 8L*rows).copyFrom(column(j));
+    }
+
+    public void putColumn(int j, double[] v) {
+        column(j).copyFrom(MemorySegment.ofArray(v).asSlice(0, 8L*rows));
+    }
+
+    /**********************************************************************
+     *  Products and updates
+     **********************************************************************/
+    public DoubleMatrix mmuli(DoubleMatrix v, DoubleMatrix out) {
+        if (v.rows != columns)
+            throw new IllegalArgumentException("Number of columns of matrix must equal number of rows of vector");
+        if (out.rows != rows || out.columns != v.columns)
+            out.resize(rows, v.columns);
+        double[] vd = v.data, od = out.data;
+        int k = v.columns;
+        java.util.Arrays.fill(od, 0, out.length, 0.0);
+        for (int j = 0; j < columns; j++) {      // each column read once for all k
+            MemorySegment col = column(j);
+            for (int c = 0; c < k; c++) {
+                double b = vd[j + columns*c];
+                if (b == 0.0) continue;
+                for (int i = 0, o = rows*c; i < rows; i++)
+                    od[o + i] += MemoryAccess.getDoubleAtIndex(col, i)*b;
+            }
+        }
+        return out;
+    }
+
+    public DoubleMatrix mmuliLowRank(DoubleMatrix v, DoubleMatrix U, DoubleMatrix z, DoubleMatrix out) {
+        if (U.rows != rows || U.columns != z.length)
+            throw new IllegalArgumentException("Matrix dimensions do not match");
+        mmuli(v, out);
+        double[] ud = U.data, od = out.data;
+        for (int m = 0; m < z.length; m++) {
+            double b = z.data[m];
+            for (int i = 0, o = rows*m; i < rows; i++)
+                od[i] += ud[o + i]*b;
+        }
+        return out;
+    }
+
+    public void ger(double alpha, double[] x, double[] y) {
+        for (int j = 0; j < columns; j++) {
+            double c = alpha*y[j];
+            if (c == 0.0) continue;
+            MemorySegment col = column(j);
+            for (int i = 0; i < rows; i++)
+                MemoryAccess.setDoubleAtIndex(col, i, MemoryAccess.getDoubleAtIndex(col, i) + x[i]*c);
+        }
+    }
+
+    public void scalei(double a) {
+        for (int j = 0; j < columns; j++) {
+            MemorySegment col = column(j);
+            for (int i = 0; i < rows; i++)
+                MemoryAccess.setDoubleAtIndex(col, i, a*MemoryAccess.getDoubleAtIndex(col, i));
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if the matrix has more than 2^31 - 1
+     *   entries
+     */
+    public DoubleMatrix toDense(DoubleMatrix out) {
+        if (size() > Integer.MAX_VALUE)
+            throw new IllegalStateException("too large for a DoubleMatrix: " + rows + "x" + columns);
+        if (out.rows != rows || out.columns != columns)
+            out.resize(rows, columns);
+        MemorySegment.ofArray(out.data).asSlice(0, 8L*out.length).copyFrom(seg);
+        return out;
+    }
+
+    /**
+     * A copy in native memory: in the same scope if the scope is the
+     * caller's, otherwise owning a new one, freed by <tt>close</tt> or,
+     * failing that, when the copy becomes unreachable (copies are made
+     * implicitly, e.g. by the copy-on-write of RLS forks).  The copy of a
+     * file-backed matrix is not file-backed.
+     */
+    public OffHeapMatrix copy() {
+        OffHeapMatrix m;
+        if (ownsScope) {
+            ResourceScope s = ResourceScope.newSharedScope(CLEANER);
+            m = new OffHeapMatrix(rows, columns, allocateSegment(rows, columns, s), s, true, null);
+        }
+        else m = allocate(rows, columns, scope);
+        m.seg.copyFrom(seg);
+        return m;
+    }
+
+    public int[] rowSupport(int i) {
+        int n = 0;
+        for (int j = 0; j < columns; j++)
+            if (get(i, j) != 0.0) n++;
+        int[] cols = new int[n];
+        n = 0;
+        for (int j = 0; j < columns; j++)
+            if (get(i, j) != 0.0) cols[n++] = j;
+        return cols;
+    }
+
+    public void rowAxpy(int i, int[] cols, double a, double[] x) {
+        for (int m = 0; m < cols.length; m++)
+            put(i, cols[m], get(i, cols[m]) + a*x[m]);
+    }
+
+    /**********************************************************************
+     *  Checkpointing (in the format of Checkpoint.Writer.putMatrix)
+     **********************************************************************/
+    /**
+     * Matrices of up to 2^31 - 1 entries are written as by
+     * <tt>putMatrix</tt>.  Larger ones are written column by column, or,
+     * if file-backed, flushed to the file, of which only the name is
+     * written: such a checkpoint holds the matrix only as long as the file
+     * is not modified.
+     */
+    public void writeState(Checkpoint.Writer out) {
+        writeState(out, Integer.MAX_VALUE);
+    }
+
+    // write inline if at most maxInline entries
+    private void writeState(Checkpoint.Writer out, long maxInline) {
+        out.putInt(rows);
+        out.putInt(columns);
+        if (size() <= maxInline) {
+            out.putInt((int) size());
+            for (long k = 0, n = size(); k < n; k++)
+                out.putDouble(MemoryAccess.getDoubleAtIndex(seg, k));
+        }
+        else if (file != null) {
+            force();
+            out.putInt(BY_FILE);
+            out.putString(file.getAbsolutePath());
+        }
+        else {
+            out.putInt(BY_COLUMN);
+            double[] col = new double[rows];
+            for (int j = 0; j < columns; j++) {
+                getColumn(j, col);
+                out.putArray(col, rows);
+            }
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if the stored matrix is a different
+     *   size, or its file cannot be read
+     */
+    public void readState(Checkpoint.Reader in) {
+        int r = in.getInt(), c = in.getInt();
+        if (r != rows || c != columns)
+            throw new IllegalStateException("stored matrix is " + r + "x" + c
+                                            + ", expected " + rows + "x" + columns);
+        int n = in.getInt();
+        if (n == BY_FILE) {
+            File src = new File(in.getString());
+            if (file != null && src.equals(file.getAbsoluteFile())) return;   // already there
+            if (!src.isFile())
+                throw new IllegalStateException("stored matrix " + src + " is missing");
+            try (ResourceScope s = ResourceScope.newConfinedScope()) {
+                seg.copyFrom(mapSegment(src, rows, columns, s));
+            } catch (IOException e) {
+                throw new IllegalStateException("cannot read stored matrix " + src, e);
+            }
+        }
+        else if (n == BY_COLUMN) {
+            double[] col = new double[rows];
+            for (int j = 0; j < columns; j++) {
+                in.getArray(col);
+                putColumn(j, col);
+            }
+        }
+        else if (n != size())
+            throw new IllegalStateException("stored matrix has the wrong number of entries");
+        else
+            for (long k = 0; k < n; k++)
+                MemoryAccess.setDoubleAtIndex(seg, k, in.getDouble());
+    }
+
+    /**********************************************************************
+     *  Unit testing
+     **********************************************************************/
+    public static void main(String[] args) throws IOException {
+        int N = 300;
+
+        StdOut.println("Testing products and updates against jBlas...");
+        DoubleMatrix A = DoubleMatrix.randn(N, N);
+        try (OffHeapMatrix m = copyOf(A)) {
+            DoubleMatrix v = DoubleMatrix.randn(N, 3);
+            assert(m.mmuli(v, new DoubleMatrix()).distance2(A.mmul(v)) < 1e-10);
+            DoubleMatrix U = DoubleMatrix.randn(N, 2), z = DoubleMatrix.randn(2), v0 = v.getColumn(0);
+            assert(m.mmuliLowRank(v0, U, z, new DoubleMatrix(N))
+                   .distance2(A.mmul(v0).addi(U.mmul(z))) < 1e-10);
+            m.ger(-0.5, v0.data, v0.data);
+            A.subi(v0.mmul(v0.transpose()).muli(0.5));
+            assert(m.toDense(new DoubleMatrix()).distance2(A) < 1e-10);
+            assert(m.get(3, 7) == A.get(3, 7));
+        }
+
+        StdOut.println("Testing a network and an RLS readout with off-heap W and P...");
+        Reservoir heap = new Reservoir(N, 0.2, 1.5);
+        ReadoutLearningRLS roHeap = new ReadoutLearningRLS(new Streams.TriangleWave(0.5), N, 1.0);
+        heap.setFeedback(roHeap);
+        Reservoir off = new Reservoir(copyOf(heap.getW(new DoubleMatrix())), 0.01, heap.dt());
+        off.setX(heap.x);
+        ReadoutLearningRLS roOff = roHeap.fork();
+        roOff.setPStorage(allocate(N, N));
+        off.setFeedback(roOff);
+        roHeap.setBlockSize(5);
+        roOff.setBlockSize(5);
+        for (int i = 0; i < 300; i++) {
+            heap.step();
+            off.step();
+            if (i % 3 == 0) {
+                roHeap.learn(heap);
+                roOff.learn(off);
+            }
+            roHeap.addSample(heap);
+            roOff.addSample(off);
+        }
+        DoubleMatrix pOff = roOff.getPStorage().toDense(new DoubleMatrix());
+        StdOut.println("max difference in x: " + heap.x.sub(off.x).normmax()
+                       + ", in P: " + roHeap.P.sub(pOff).normmax());
+        assert(heap.x.sub(off.x).normmax() < 1e-8 && roHeap.P.sub(pOff).normmax() < 1e-8);
+
+        StdOut.println("Testing file backing...");
+        File file = File.createTempFile("offheap", ".bin");
+        file.deleteOnExit();
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            OffHeapMatrix m = map(file, 40, 30, scope);
+            m.put(39, 29, 2.5);
+            m.force();
+        }
+        try (OffHeapMatrix m = map(file, 40, 30)) {
+            assert(m.isMapped() && m.get(39, 29) == 2.5 && m.get(0, 0) == 0.0);
+        }
+
+        StdOut.println("Testing that copies of P made by learning forks are freed...");
+        ReadoutLearningRLS ro = new ReadoutLearningRLS(new Streams.TriangleWave(0.5), 50, 1.0);
+        try (OffHeapMatrix store = allocate(50, 50); OffHeapMatrix other = allocate(50, 50)) {
+            ro.setPStorage(store);
+            ReadoutLearningRLS f = ro.fork();
+            f.learn(new Reservoir(50, 0.2, 1.5));          // copy on write
+            OffHeapMatrix copy = (OffHeapMatrix) f.getPStorage();
+            assert(copy != store && copy.scope().isAlive());
+            f.setPStorage(other);
+            assert(!copy.scope().isAlive() && store.scope().isAlive());
+        }
+
+        StdOut.println("Testing checkpoints of large matrices, by column and by file...");
+        DoubleMatrix C = DoubleMatrix.randn(40, 30);
+        File f1 = File.createTempFile("offheap", ".bin"), f2 = File.createTempFile("offheap", ".bin");
+        f1.deleteOnExit();
+        f2.deleteOnExit();
+        try (OffHeapMatrix heapless = copyOf(C); OffHeapMatrix m1 = map(f1, 40, 30);
+             OffHeapMatrix m2 = map(f2, 40, 30); OffHeapMatrix m3 = allocate(40, 30)) {
+            for (int j = 0; j < 30; j++)
+                for (int i = 0; i < 40; i++)
+                    m1.put(i, j, C.get(i, j));
+            Checkpoint.Writer w = new Checkpoint.Writer();
+            heapless.writeState(w, 0);                     // as if too large to inline
+            m1.writeState(w, 0);
+            m1.writeState(w, 0);
+            w.putInt(99);
+            Checkpoint.Reader in = new Checkpoint.Reader(w.flip());
+            m3.readState(in);
+            m2.readState(in);                              // copied from f1
+            m1.readState(in);                              // its own file: nothing to do
+            assert(in.getInt() == 99);
+            assert(m3.toDense(new DoubleMatrix()).equals(C) && m2.toDense(new DoubleMatrix()).equals(C));
+        }
+
+        StdOut.println("Testing a matrix of more than 2^31 entries (sparse file)...");
+        File big = File.createTempFile("offheap", ".bin");
+        big.deleteOnExit();
+        try (OffHeapMatrix m = map(big, 50000, 50000)) {
+            StdOut.println("entries: " + m.size() + " (" + (8*m.size() >> 30) + " GB)");
+            m.put(49999, 49999, 1.0);
+            m.rowAxpy(49999, new int[] {0, 49999}, 2.0, new double[] {1.0, 1.0});
+            assert(m.get(49999, 49999) == 3.0 && m.get(49999, 0) == 2.0);
+        } catch (IOException e) {
+            StdOut.println("  skipped (" + e.getMessage() + ")");
+        }
+        big.delete();
+
+        StdOut.println("Time per product, N = 4000 (jBlas on heap, off heap):");
+        DoubleMatrix B = DoubleMatrix.randn(4000, 4000), x = DoubleMatrix.randn(4000);
+        try (OffHeapMatrix m = copyOf(B)) {
+            DoubleMatrix y = new DoubleMatrix(4000);
+            Connectivity.Dense d = new Connectivity.Dense(B);
+            for (int rep = 0; rep < 2; rep++) {         // the first pass warms up
+                Stopwatch sw = new Stopwatch();
+                for (int k = 0; k < 20; k++) d.mmuli(x, y);
+                double tHeap = sw.elapsedTime();
+                sw = new Stopwatch();
+                for (int k = 0; k < 20; k++) m.mmuli(x, y);
+                double tOff = sw.elapsedTime();
+                if (rep == 1)
+                    StdOut.printf("  %.2f ms, %.2f ms%n", 1000*tHeap/20, 1000*tOff/20);
+            }
+        }
+    }
+}
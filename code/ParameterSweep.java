@@ -0,0 +1,539 @@
+/*************************************************************************
+ *  Compilation:  javac ParameterSweep.java
+ *  Author:  Phillip B. Schafer
+ *
+ *  In-process parameter sweep over (N, p, g, tau, alpha) for FORCE
+ *  learning with ReadoutLearningRLS.
+ *
+ *  Dependencies:
+ *   JBlas library
+ *   StdOut, Stopwatch (Algs-4)
+ *************************************************************************/
+import org.jblas.DoubleMatrix;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ *  Runs a grid of FORCE training simulations in a single JVM.
+ *  Each point of the grid is a (N, p, g, tau, alpha, trial) combination;
+ *  a run consists of an acclimation, an RLS training and a test segment,
+ *  as in <tt>SIM_LearningRLS</tt>, and is summarized by its mean squared
+ *  readout error during training and testing.
+ *  <p>
+ *  Runs are scheduled on a work-stealing <tt>ForkJoinPool</tt>.
+ *  All points that differ only in alpha share a single connection
+ *  matrix <tt>W</tt>, initial state and initial readout, drawn from a
+ *  seed derived from (N, p, g, tau, trial), so results do not depend on
+ *  scheduling and a resumed sweep uses the same networks.  The number of
+ *  N^2-sized objects alive at once (<tt>W</tt> and the RLS matrix
+ *  <tt>P</tt>) is capped by a memory budget.
+ *  <p>
+ *  Every finished run is appended as one tab-separated line to the results
+ *  file and flushed.  When a sweep is restarted on the same file, points
+ *  that already have a line are skipped, so a crashed sweep resumes where
+ *  it stopped.
+ */
+public class ParameterSweep {
+
+    private static final String HEADER = "#N\tp\tg\ttau\talpha\ttrial\ttrainMSE\ttestMSE\tseconds";
+
+    private final File resultsFile;
+    private final MemoryBudget budget;
+    private final ForkJoinPool pool;
+
+    private Streams.InputStream target = new Streams.TriangleWave(0.5);
+    private double dt       = 0.001;
+    private int nAcclimate  = 500;   // steps before learning
+    private int nTrain      = 2000;  // steps with RLS learning
+    private int nTest       = 1000;  // steps after learning
+    private int learnInt    = 10;    // steps between learning updates
+
+    private BufferedWriter out;
+
+    /**
+     * Create a sweep that writes to the given results file, using all
+     * available processors.
+     * @param resultsFile the results file (appended to, never truncated)
+     * @param memoryBytes the maximum number of bytes to be held by
+     *   N^2-sized objects at any one time
+     * @throws IllegalArgumentException if <tt>memoryBytes</tt> is nonpositive
+     */
+    public ParameterSweep(File resultsFile, long memoryBytes) {
+        this(resultsFile, memoryBytes, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a sweep that writes to the given results file.
+     * @param resultsFile the results file (appended to, never truncated)
+     * @param memoryBytes the maximum number of bytes to be held by
+     *   N^2-sized objects at any one time
+     * @param nThreads the number of worker threads
+     * @throws IllegalArgumentException if <tt>memoryBytes</tt> or
+     *   <tt>nThreads</tt> is nonpositive
+     */
+    public ParameterSweep(File resultsFile, long memoryBytes, int nThreads) {
+        if (memoryBytes <= 0)
+            throw new IllegalArgumentException("memory budget must be positive");
+        if (nThreads <= 0)
+            throw new IllegalArgumentException("number of threads must be positive");
+        this.resultsFile = resultsFile;
+        this.budget      = new MemoryBudget(memoryBytes);
+        this.pool        = new ForkJoinPool(nThreads);
+    }
+
+    /**********************************************************************
+     *  Set/Get
+     **********************************************************************/
+    /**
+     * Set the target readout.  The stream is shared by all runs and so
+     * must be stateless (e.g. one of the periodic waves in <tt>Streams</tt>).
+     * @param target the target stream
+     */
+    public void setTarget(Streams.InputStream target) {
+        this.target = target;
+    }
+
+    /**
+     * Set the integration step size used for all runs.
+     * @param dt the step size
+     */
+    public void set_dt(double dt) {
+        this.dt = dt;
+    }
+
+    /**
+     * Set the length of each segment of a run.
+     * @param nAcclimate number of steps before learning
+     * @param nTrain number of steps with RLS learning
+     * @param nTest number of steps after learning
+     * @param learnInt number of steps between learning updates
+     * @throws IllegalArgumentException if any length is negative or
+     *   <tt>learnInt</tt> is less than one
+     */
+    public void setSteps(int nAcclimate, int nTrain, int nTest, int learnInt) {
+        if (nAcclimate < 0 || nTrain < 0 || nTest < 0 || learnInt < 1)
+            throw new IllegalArgumentException("invalid number of steps");
+        this.nAcclimate = nAcclimate;
+        this.nTrain     = nTrain;
+        this.nTest      = nTest;
+        this.learnInt   = learnInt;
+    }
+
+    /**********************************************************************
+     *  Running the sweep
+     **********************************************************************/
+    /**
+     * Run every combination of the given parameters, skipping points that
+     * already appear in the results file.  Blocks until all runs are done.
+     * @param Ns network sizes
+     * @param ps connection probabilities
+     * @param gs connection gains
+     * @param taus neural time constants
+     * @param alphas RLS learning rates
+     * @param nTrials number of independent networks per (N, p, g, tau)
+     * @return the number of runs performed (excluding skipped points)
+     * @throws IOException if the results file cannot be read or written
+     * @throws IllegalArgumentException if a single run does not fit in
+     *   the memory budget
+     */
+    public int run(int[] Ns, double[] ps, double[] gs, double[] taus,
+                   double[] alphas, int nTrials) throws IOException {
+        Set<String> done = readCompleted();
+
+        // group points that can share a connection matrix
+        Map<String, NetworkTask> tasks = new LinkedHashMap<String, NetworkTask>();
+        int nRuns = 0;
+        for (int N : Ns)
+            for (double p : ps)
+                for (double g : gs)
+                    for (double tau : taus)
+                        for (int trial = 0; trial < nTrials; trial++)
+                            for (double alpha : alphas) {
+                                Point pt = new Point(N, p, g, tau, alpha, trial);
+                                if (done.contains(pt.key())) continue;
+                                if (2*matrixBytes(N) > budget.capacity())
+                                    throw new IllegalArgumentException("memory budget too small for N = " + N);
+                                String netKey = pt.networkKey();
+                                NetworkTask task = tasks.get(netKey);
+                                if (task == null) {
+                                    task = new NetworkTask(N, p, g, tau, pt.seed());
+                                    tasks.put(netKey, task);
+                                }
+                                task.points.add(pt);
+                                nRuns++;
+                            }
+        if (nRuns == 0) return 0;
+
+        out = openResults();
+        try {
+            pool.invoke(new SweepTask(new ArrayList<NetworkTask>(tasks.values())));
+        }
+        finally {
+            out.close();
+            out = null;
+        }
+        return nRuns;
+    }
+
+    /**
+     * Shut down the worker threads.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    // bytes for one N x N double matrix
+    private static long matrixBytes(int N) {
+        return 8L*N*N;
+    }
+
+    /**********************************************************************
+     *  A single run
+     **********************************************************************/
+    // train and test one readout on a network sharing the given weights
+    private Result simulate(Point pt, DoubleMatrix W) {
+        Stopwatch sw = new Stopwatch();
+        Reservoir          reservoir = new Reservoir(W, pt.tau, dt);
+        ReadoutLearningRLS readout   = new ReadoutLearningRLS(target, pt.N, pt.alpha);
+        reservoir.setFeedback(readout);
+        initialize(reservoir, readout, pt);
+
+        int M = readout.size();
+        DoubleMatrix r   = new DoubleMatrix(pt.N);
+        DoubleMatrix ro  = new DoubleMatrix(M);
+        DoubleMatrix tg  = new DoubleMatrix(M);
+
+        for (int iStep = 0; iStep < nAcclimate; iStep++)
+            reservoir.step();
+
+        double trainErr = 0.0;
+        for (int iStep = 0; iStep < nTrain; iStep++) {
+            reservoir.step();
+            trainErr += sqError(readout, reservoir, r, ro, tg);
+            if (iStep % learnInt == 0)
+                readout.learn(reservoir);
+        }
+
+        double testErr = 0.0;
+        for (int iStep = 0; iStep < nTest; iStep++) {
+            reservoir.step();
+            testErr += sqError(readout, reservoir, r, ro, tg);
+        }
+
+        return new Result(pt, trainErr/Math.max(1, nTrain*M),
+                          testErr/Math.max(1, nTest*M), sw.elapsedTime());
+    }
+
+    // draw the initial state and the readout and feedback weights, with
+    // the default distributions of Reservoir and Readout, from the seed
+    // of the network, so that they are the same in all its runs
+    private static void initialize(Reservoir reservoir, ReadoutLearningRLS readout, Point pt) {
+        Random rnd = new Random(pt.seed());
+        DoubleMatrix x = new DoubleMatrix(pt.N);
+        for (int i = 0; i < x.length; i++)
+            x.data[i] = 0.1*rnd.nextGaussian();
+        reservoir.setX(x);
+        DoubleMatrix wOut = new DoubleMatrix(readout.size(), pt.N);
+        for (int k = 0; k < wOut.length; k++)
+            wOut.data[k] = rnd.nextGaussian()/Math.sqrt(pt.N);
+        readout.setWOut(wOut);
+        double[] wBack = readout.wBack.data;       // this readout's own
+        for (int k = 0; k < wBack.length; k++)
+            wBack[k] = 2.0*rnd.nextDouble() - 1.0;
+    }
+
+    // summed squared readout error at the current time, using buffers
+    private static double sqError(ReadoutLearningRLS readout, Reservoir res,
+                                  DoubleMatrix r, DoubleMatrix ro, DoubleMatrix tg) {
+        readout.getReadout(res.getR(r), res.t(), ro);
+        readout.getTargetReadout(res.t(), tg);
+        return ro.subi(tg).dot(ro);
+    }
+
+    /**********************************************************************
+     *  Fork-join tasks
+     **********************************************************************/
+    // runs all network groups
+    private class SweepTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<NetworkTask> groups;
+        SweepTask(List<NetworkTask> groups) { this.groups = groups; }
+        protected void compute() {
+            invokeAll(groups);
+        }
+    }
+
+    // builds one connection matrix and runs every alpha on it.
+    // The task reserves W plus one P, so it can always make progress by
+    // running its points in-line; further points are forked only while
+    // the budget allows.
+    private class NetworkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int N;
+        private final double p, g, tau;
+        private final long seed;
+        private final List<Point> points = new ArrayList<Point>();
+
+        NetworkTask(int N, double p, double g, double tau, long seed) {
+            this.N = N; this.p = p; this.g = g; this.tau = tau; this.seed = seed;
+        }
+
+        protected void compute() {
+            long bytes = matrixBytes(N);
+            budget.acquire(2*bytes);
+            try {
+                DoubleMatrix W = new Connectivity.Procedural(N, p, g, seed).toDense(new DoubleMatrix());
+                List<RunTask> forked = new ArrayList<RunTask>();
+                for (Point pt : points) {
+                    if (budget.tryAcquire(bytes)) {
+                        RunTask rt = new RunTask(pt, W, bytes);
+                        rt.fork();
+                        forked.add(rt);
+                    }
+                    else
+                        record(simulate(pt, W));
+                }
+                for (RunTask rt : forked)
+                    rt.join();
+            }
+            finally {
+                budget.release(2*bytes);
+            }
+        }
+    }
+
+    // one run whose P has already been paid for
+    private class RunTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Point pt;
+        private final DoubleMatrix W;
+        private final long bytes;
+        RunTask(Point pt, DoubleMatrix W, long bytes) {
+            this.pt = pt; this.W = W; this.bytes = bytes;
+        }
+        protected void compute() {
+            try {
+                record(simulate(pt, W));
+            }
+            finally {
+                budget.release(bytes);
+            }
+        }
+    }
+
+    /**********************************************************************
+     *  Memory budget
+     **********************************************************************/
+    // A counting budget of bytes.  Blocking acquisition is done through
+    // ForkJoinPool.managedBlock so the pool can compensate for the waiting
+    // worker.
+    private static class MemoryBudget {
+        private final long capacity;
+        private long available;
+
+        MemoryBudget(long capacity) {
+            this.capacity  = capacity;
+            this.available = capacity;
+        }
+
+        long capacity() {
+            return capacity;
+        }
+
+        synchronized boolean tryAcquire(long bytes) {
+            if (bytes > available) return false;
+            available -= bytes;
+            return true;
+        }
+
+        synchronized void release(long bytes) {
+            available += bytes;
+            notifyAll();
+        }
+
+        void acquire(final long bytes) {
+            try {
+                ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                    private boolean acquired = false;
+                    public boolean block() throws InterruptedException {
+                        synchronized (MemoryBudget.this) {
+                            while (bytes > available)
+                                MemoryBudget.this.wait();
+                            available -= bytes;
+                            acquired = true;
+                        }
+                        return true;
+                    }
+                    public boolean isReleasable() {
+                        if (!acquired) acquired = tryAcquire(bytes);
+                        return acquired;
+                    }
+                });
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while waiting for memory", e);
+            }
+        }
+    }
+
+    /**********************************************************************
+     *  Results file
+     **********************************************************************/
+    // keys of the points already in the results file.  Lines that do not
+    // parse (e.g. truncated by a crash) are ignored and rerun.
+    private Set<String> readCompleted() throws IOException {
+        Set<String> done = new HashSet<String>();
+        if (!resultsFile.exists()) return done;
+        BufferedReader in = new BufferedReader(new FileReader(resultsFile));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("#")) continue;
+                String[] f = line.split("\t");
+                if (f.length != 9) continue;
+                try {
+                    Point pt = new Point(Integer.parseInt(f[0]), Double.parseDouble(f[1]),
+                                         Double.parseDouble(f[2]), Double.parseDouble(f[3]),
+                                         Double.parseDouble(f[4]), Integer.parseInt(f[5]));
+                    Double.parseDouble(f[8]);
+                    done.add(pt.key());
+                }
+                catch (NumberFormatException e) { }
+            }
+        }
+        finally {
+            in.close();
+        }
+        return done;
+    }
+
+    private BufferedWriter openResults() throws IOException {
+        boolean isNew = !resultsFile.exists() || resultsFile.length() == 0;
+        BufferedWriter w = new BufferedWriter(new FileWriter(resultsFile, true));
+        if (isNew) {
+            w.write(HEADER);
+            w.newLine();
+            w.flush();
+        }
+        return w;
+    }
+
+    // append one run to the results file; flushed so that a crash loses
+    // at most the runs in progress
+    private synchronized void record(Result res) {
+        try {
+            out.write(res.toString());
+            out.newLine();
+            out.flush();
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("could not write results", e);
+        }
+    }
+
+    /**********************************************************************
+     *  Points and results
+     **********************************************************************/
+    /** One point of the parameter grid. */
+    public static class Point {
+        public final int N;
+        public final double p, g, tau, alpha;
+        public final int trial;
+        public Point(int N, double p, double g, double tau, double alpha, int trial) {
+            this.N = N; this.p = p; this.g = g; this.tau = tau;
+            this.alpha = alpha; this.trial = trial;
+        }
+        // points sharing this key share a connection matrix
+        String networkKey() {
+            return N + "\t" + p + "\t" + g + "\t" + tau + "\t" + trial;
+        }
+        String key() {
+            return N + "\t" + p + "\t" + g + "\t" + tau + "\t" + alpha + "\t" + trial;
+        }
+        // seed of the network's weights and initial state, so that the
+        // network is the same in every run and every resumed sweep
+        long seed() {
+            long h = 0;
+            for (long v : new long[] {N, Double.doubleToLongBits(p), Double.doubleToLongBits(g),
+                                      Double.doubleToLongBits(tau), trial})
+                h = Long.rotateLeft(h ^ v, 27)*0x9E3779B97F4A7C15L;
+            return h;
+        }
+    }
+
+    /** Summary of one run. */
+    public static class Result {
+        public final Point point;
+        public final double trainError;  // mean squared error while learning
+        public final double testError;   // mean squared error after learning
+        public final double seconds;     // wall-clock time of the run
+        public Result(Point point, double trainError, double testError, double seconds) {
+            this.point = point; this.trainError = trainError;
+            this.testError = testError; this.seconds = seconds;
+        }
+        public String toString() {
+            return point.key() + "\t" + trainError + "\t" + testError + "\t" + seconds;
+        }
+    }
+
+    /**********************************************************************
+     *  Example sweep
+     **********************************************************************/
+    /**
+     * Run a small sweep.  Usage: <tt>java ParameterSweep [resultsFile]</tt>.
+     * Rerunning with the same file resumes (or skips) the sweep.
+     */
+    public static void main(String[] args) throws IOException {
+        StdOut.println("Testing that a sweep is reproducible...");
+        List<String> errors = new ArrayList<String>();
+        for (int rep = 0; rep < 2; rep++) {
+            File tmp = File.createTempFile("sweep", ".tsv");
+            tmp.deleteOnExit();
+            tmp.delete();
+            ParameterSweep small = new ParameterSweep(tmp, 64L << 20, 2);
+            small.setSteps(50, 200, 100, 10);
+            small.run(new int[] {100}, new double[] {0.1}, new double[] {1.5},
+                      new double[] {0.01}, new double[] {1.0, 10.0}, 2);
+            small.shutdown();
+            List<String> lines = new ArrayList<String>();
+            BufferedReader in = new BufferedReader(new FileReader(tmp));
+            for (String line; (line = in.readLine()) != null; )
+                if (!line.startsWith("#"))                    // drop the run time
+                    lines.add(line.substring(0, line.lastIndexOf('\t')));
+            in.close();
+            java.util.Collections.sort(lines);
+            errors.add(lines.toString());
+        }
+        assert(errors.get(0).equals(errors.get(1)));
+
+        File file = new File(args.length > 0 ? args[0] : "sweep.tsv");
+        ParameterSweep sweep = new ParameterSweep(file, 256L << 20);  // 256 MB
+        sweep.setSteps(200, 1000, 500, 10);
+
+        Stopwatch sw = new Stopwatch();
+        int nRuns = sweep.run(new int[]    {200, 400},
+                              new double[] {0.1},
+                              new double[] {1.2, 1.5, 1.8},
+                              new double[] {0.01},
+                              new double[] {0.1, 1.0, 10.0},
+                              2);
+        sweep.shutdown();
+        StdOut.println(nRuns + " runs in " + sw.elapsedTime() + " s; results in " + file);
+    }
+
+}
@@ -9,6 +9,7 @@ import org.jfree.chart.*;
 import org.jfree.chart.plot.*;
 import org.jfree.chart.axis.*;
 import org.jfree.data.xy.*;
+import org.jfree.data.DomainOrder;
 import java.io.IOException;
 import java.io.File; 
 
@@ -39,7 +40,49 @@ public class Plotting {
                 series.add(j*dt, timeSeries.get(i).get(j)); // add points
             }
         }
+        display(dataset, title);
+    }
+    
+    /**
+     * Make a plot containing several time series stored as primitive 
+     * arrays.  The arrays are plotted in place through a 
+     * <nn>PrimitiveDataset</nn>; nothing is copied or boxed.  
+     * @param series nSeries arrays, of which the first nT entries are used
+     * @param nT the number of time points
+     * @param dt the time step
+     * @param title the window title
+     */
+    public static void PlotTimeSeries(double[][] series, int nT, double dt, String title) {
+        if (series.length == 0) return;
+        display(new PrimitiveDataset(series, nT, dt), title);
+    }
+    
+    /**
+     * A read-only view of primitive arrays as a jFreeChart dataset.  
+     * Series i has the points (j*dt, series[i][j]) for j &lt; nT.  
+     */
+    public static class PrimitiveDataset extends AbstractXYDataset {
+        private final double[][] series;
+        private final int nT;
+        private final double dt;
         
+        public PrimitiveDataset(double[][] series, int nT, double dt) {
+            this.series = series;
+            this.nT     = nT;
+            this.dt     = dt;
+        }
+        public int getSeriesCount()              { return series.length; }
+        public Comparable<?> getSeriesKey(int s) { return Integer.toString(s); }
+        public int getItemCount(int s)           { return nT; }
+        public double getXValue(int s, int i)    { return i*dt; }
+        public double getYValue(int s, int i)    { return series[s][i]; }
+        public Number getX(int s, int i)         { return getXValue(s, i); }
+        public Number getY(int s, int i)         { return getYValue(s, i); }
+        public DomainOrder getDomainOrder()      { return DomainOrder.ASCENDING; }
+    }
+    
+    // display a dataset in a new window
+    private static void display(XYDataset dataset, String title) {
         // create a chart and set its properties --------------------------
         JFreeChart chart = ChartFactory.createXYLineChart(
             "",                     // Title
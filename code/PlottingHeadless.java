@@ -0,0 +1,310 @@
+/*************************************************************************
+ *  Compilation:  javac PlottingHeadless.java
+ *  Author:  Phillip B. Schafer
+ *
+ *  Plotting to PNG and SVG files, without a display.
+ *
+ *  Dependencies:
+ *   jFreeChart library (PNG only)
+ *   StdOut, Stopwatch (Algs-4)
+ *************************************************************************/
+import java.util.ArrayList;
+import java.util.Locale;
+import java.awt.Color;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.jfree.chart.*;
+import org.jfree.chart.plot.*;
+import org.jfree.data.xy.*;
+import org.jfree.ui.*;
+
+/**
+ *  Writes plots of time series to image files, for runs on machines
+ *  without a display.  Unlike <tt>Plotting</tt> and <tt>Plotting2</tt>, no
+ *  window is opened and AWT runs in headless mode.
+ *  <p>
+ *  Long series are downsampled (<nn>Downsample</nn>) to about one point
+ *  per pixel column before they reach the chart, and the points are
+ *  passed as primitive arrays (<tt>DefaultXYDataset</tt>) rather than as
+ *  <tt>XYSeries</tt> items, so the cost of a plot depends on the size of
+ *  the image and not the length of the run.
+ *  <p>
+ *  PNG files are rendered by jFreeChart with the same appearance as
+ *  <tt>Plotting2</tt>; SVG files are written directly.
+ */
+public class PlottingHeadless {
+
+    public static final int WIDTH  = 800;    // default image size (pixels)
+    public static final int HEIGHT = 400;
+
+    // jFreeChart's default series colors
+    private static final Color[] COLORS = {
+        new Color(0xFF, 0x55, 0x55), new Color(0x55, 0x55, 0xFF),
+        new Color(0x55, 0xFF, 0x55), new Color(0xFF, 0xFF, 0x55),
+        new Color(0xFF, 0x55, 0xFF), new Color(0x55, 0xFF, 0xFF),
+        Color.pink, Color.gray, new Color(0xC0, 0x00, 0x00),
+        new Color(0x00, 0x00, 0xC0), new Color(0x00, 0xC0, 0x00),
+        new Color(0xC0, 0xC0, 0x00)
+    };
+
+    static {
+        if (System.getProperty("java.awt.headless") == null)
+            System.setProperty("java.awt.headless", "true");
+    }
+
+    /**********************************************************************
+     *  Plotting a TimeSeries
+     **********************************************************************/
+    /**
+     * Plot a time series to a file, with the default size and LTTB
+     * downsampling.  The format is SVG if the file name ends in ".svg" and
+     * PNG otherwise.
+     * @param ts the time series
+     * @param dt the time step
+     * @param title the plot title
+     * @param file the output file
+     * @throws IOException if the file cannot be written
+     */
+    public static void save(TimeSeries ts, double dt, String title, File file)
+        throws IOException {
+        double[][] series = bySeries(ts.timeSeries, ts.nSeries(), ts.nT());
+        if (file.getName().toLowerCase().endsWith(".svg"))
+            saveSVG(series, dt, title, file, WIDTH, HEIGHT, Downsample.Method.LTTB);
+        else
+            savePNG(series, dt, title, file, WIDTH, HEIGHT, Downsample.Method.LTTB);
+    }
+
+    /**
+     * Rearrange time-major data (one array per time point, as stored by
+     * <tt>TimeSeries</tt>) into one array per series.
+     * @param timeSeries the time points
+     * @param nSeries the number of series
+     * @param nT the number of time points
+     * @return an nSeries x nT array
+     */
+    public static double[][] bySeries(ArrayList<double[]> timeSeries, int nSeries, int nT) {
+        double[][] series = new double[nSeries][nT];
+        for (int t = 0; t < nT; t++) {
+            double[] x = timeSeries.get(t);
+            for (int i = 0; i < nSeries; i++)
+                series[i][t] = x[i];
+        }
+        return series;
+    }
+
+    /**********************************************************************
+     *  PNG
+     **********************************************************************/
+    /**
+     * Plot several series to a PNG file.
+     * @param series the series, one array of samples each (lengths may differ)
+     * @param dt the time step
+     * @param title the plot title
+     * @param file the output file
+     * @param width the image width (pixels)
+     * @param height the image height (pixels)
+     * @param method the downsampling method
+     * @throws IOException if the file cannot be written
+     */
+    public static void savePNG(double[][] series, double dt, String title, File file,
+                               int width, int height, Downsample.Method method)
+        throws IOException {
+        DefaultXYDataset dataset = new DefaultXYDataset();
+        for (int i = 0; i < series.length; i++)
+            dataset.addSeries(Integer.toString(i),
+                              points(series[i], series[i].length, dt, width, method));
+        ChartUtilities.saveChartAsPNG(file, createChart(dataset, title), width, height);
+    }
+
+    /**
+     * Create a line chart with the same appearance as <tt>Plotting2</tt>.
+     * @param dataset the data
+     * @param title the chart title
+     * @return the chart
+     */
+    static JFreeChart createChart(XYDataset dataset, String title) {
+        JFreeChart chart = ChartFactory.createXYLineChart(
+            title,                  // Title
+            "time (s)",             // x-axis Label
+            "firing rate (a.u.)",   // y-axis Label
+            dataset,                // Dataset
+            PlotOrientation.VERTICAL, // Plot Orientation
+            false,                  // Show Legend
+            false,                  // Use tooltips
+            false                   // Configure chart to generate URLs?
+            );
+        chart.setBackgroundPaint(Color.white);
+        XYPlot plot = (XYPlot) chart.getPlot();
+        plot.setBackgroundPaint(Color.white);
+        plot.setAxisOffset(new RectangleInsets(0.0, 0.0, 0.0, 0.0));
+        return chart;
+    }
+
+    /**
+     * Downsample one series for a plot of the given width.
+     * @param y the samples
+     * @param n the number of samples used (a prefix of <tt>y</tt>)
+     * @param dt the time step
+     * @param width the plot width (pixels)
+     * @param method the downsampling method
+     * @return the points, as {t-values, y-values}
+     */
+    static double[][] points(double[] y, int n, double dt, int width, Downsample.Method method) {
+        int[] idx = Downsample.apply(method, y, n, width);
+        double[][] xy = new double[2][idx.length];
+        for (int j = 0; j < idx.length; j++) {
+            xy[0][j] = idx[j]*dt;
+            xy[1][j] = y[idx[j]];
+        }
+        return xy;
+    }
+
+    /**********************************************************************
+     *  SVG
+     **********************************************************************/
+    /**
+     * Plot several series to an SVG file.
+     * @param series the series, one array of samples each (lengths may differ)
+     * @param dt the time step
+     * @param title the plot title
+     * @param file the output file
+     * @param width the image width (pixels)
+     * @param height the image height (pixels)
+     * @param method the downsampling method
+     * @throws IOException if the file cannot be written
+     */
+    public static void saveSVG(double[][] series, double dt, String title, File file,
+                               int width, int height, Downsample.Method method)
+        throws IOException {
+        int left = 70, right = 15, top = title.isEmpty() ? 15 : 35, bottom = 45;
+        int plotW = width - left - right, plotH = height - top - bottom;
+
+        // downsample, and find the data range
+        double[][][] pts = new double[series.length][][];
+        double xMax = 0.0, yMin = Double.POSITIVE_INFINITY, yMax = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < series.length; i++) {
+            pts[i] = points(series[i], series[i].length, dt, plotW, method);
+            for (double v : pts[i][1]) {
+                if (v < yMin) yMin = v;
+                if (v > yMax) yMax = v;
+            }
+            xMax = Math.max(xMax, (series[i].length - 1)*dt);
+        }
+        if (yMin > yMax) { yMin = 0.0; yMax = 1.0; }
+        if (yMin == yMax) { yMin -= 0.5; yMax += 0.5; }
+        if (xMax == 0.0) xMax = dt;
+        double yStep = niceStep((yMax - yMin)/5);
+        double xStep = niceStep(xMax/8);
+        yMin = Math.floor(yMin/yStep)*yStep;
+        yMax = Math.ceil(yMax/yStep)*yStep;
+
+        BufferedWriter out = new BufferedWriter(new FileWriter(file));
+        try {
+            out.write(String.format(Locale.ROOT,
+                "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"%d\" height=\"%d\" "
+                + "font-family=\"sans-serif\" font-size=\"11\">%n", width, height));
+            out.write(String.format(Locale.ROOT,
+                "<rect width=\"%d\" height=\"%d\" fill=\"white\"/>%n", width, height));
+            if (!title.isEmpty())
+                out.write(String.format(Locale.ROOT,
+                    "<text x=\"%d\" y=\"22\" text-anchor=\"middle\" font-size=\"14\" "
+                    + "font-weight=\"bold\">%s</text>%n", width/2, escape(title)));
+
+            // axes, ticks and labels
+            out.write(String.format(Locale.ROOT,
+                "<rect x=\"%d\" y=\"%d\" width=\"%d\" height=\"%d\" fill=\"none\" stroke=\"gray\"/>%n",
+                left, top, plotW, plotH));
+            for (double v = yMin; v <= yMax + 0.5*yStep; v += yStep) {
+                double py = top + plotH*(yMax - v)/(yMax - yMin);
+                out.write(String.format(Locale.ROOT,
+                    "<line x1=\"%d\" y1=\"%.1f\" x2=\"%d\" y2=\"%.1f\" stroke=\"gray\"/>"
+                    + "<text x=\"%d\" y=\"%.1f\" text-anchor=\"end\">%s</text>%n",
+                    left - 4, py, left, py, left - 6, py + 4, label(v, yStep)));
+            }
+            for (double v = 0.0; v <= xMax + 1e-9*xStep; v += xStep) {
+                double px = left + plotW*v/xMax;
+                out.write(String.format(Locale.ROOT,
+                    "<line x1=\"%.1f\" y1=\"%d\" x2=\"%.1f\" y2=\"%d\" stroke=\"gray\"/>"
+                    + "<text x=\"%.1f\" y=\"%d\" text-anchor=\"middle\">%s</text>%n",
+                    px, top + plotH, px, top + plotH + 4, px, top + plotH + 16, label(v, xStep)));
+            }
+            out.write(String.format(Locale.ROOT,
+                "<text x=\"%d\" y=\"%d\" text-anchor=\"middle\">time (s)</text>%n",
+                left + plotW/2, height - 8));
+            out.write(String.format(Locale.ROOT,
+                "<text transform=\"translate(16,%d) rotate(-90)\" text-anchor=\"middle\">"
+                + "firing rate (a.u.)</text>%n", top + plotH/2));
+
+            // one polyline per series
+            for (int i = 0; i < pts.length; i++) {
+                Color c = COLORS[i % COLORS.length];
+                out.write(String.format(Locale.ROOT,
+                    "<polyline fill=\"none\" stroke=\"#%02x%02x%02x\" points=\"",
+                    c.getRed(), c.getGreen(), c.getBlue()));
+                StringBuilder sb = new StringBuilder();
+                for (int j = 0; j < pts[i][0].length; j++) {
+                    double px = left + plotW*pts[i][0][j]/xMax;
+                    double py = top + plotH*(yMax - pts[i][1][j])/(yMax - yMin);
+                    sb.append(String.format(Locale.ROOT, "%.1f,%.1f ", px, py));
+                }
+                out.write(sb.toString());
+                out.write("\"/>\n");
+            }
+            out.write("</svg>\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    // 1, 2 or 5 times a power of ten, at least x
+    private static double niceStep(double x) {
+        double p = Math.pow(10, Math.floor(Math.log10(x)));
+        double f = x/p;
+        return (f <= 1 ? 1 : f <= 2 ? 2 : f <= 5 ? 5 : 10)*p;
+    }
+
+    private static String label(double v, double step) {
+        int digits = Math.max(0, (int) -Math.floor(Math.log10(step)));
+        if (Math.abs(v) < 1e-9*step) v = 0.0;
+        return String.format(Locale.ROOT, "%." + digits + "f", v);
+    }
+
+    private static String escape(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    /**********************************************************************
+     *  Unit testing
+     **********************************************************************/
+    public static void main(String[] args) throws IOException {
+        int nT = 1000000, nSeries = 5;
+        double dt = 0.001;
+        StdOut.println("Simulating " + nSeries + " series of " + nT + " steps...");
+        Reservoir res = new Reservoir(100, 0.1, 1.5);
+        double[][] series = new double[nSeries][nT];
+        for (int t = 0; t < nT; t++) {
+            if (t % 10 == 0) res.step();
+            double[] r = res.getRArray();
+            for (int i = 0; i < nSeries; i++)
+                series[i][t] = r[i];
+        }
+
+        File dir = new File(System.getProperty("java.io.tmpdir"));
+        for (Downsample.Method m : new Downsample.Method[] {Downsample.Method.LTTB,
+                                                            Downsample.Method.MINMAX}) {
+            File svg = new File(dir, "headless_" + m + ".svg");
+            File png = new File(dir, "headless_" + m + ".png");
+            Stopwatch sw = new Stopwatch();
+            saveSVG(series, dt, "Selected neurons (" + m + ")", svg, WIDTH, HEIGHT, m);
+            double tSvg = sw.elapsedTime();
+            sw = new Stopwatch();
+            savePNG(series, dt, "Selected neurons (" + m + ")", png, WIDTH, HEIGHT, m);
+            double tPng = sw.elapsedTime();
+            StdOut.printf("%-6s SVG: %.3f s (%d bytes)   PNG: %.3f s   -> %s%n",
+                          m, tSvg, svg.length(), tPng, dir);
+        }
+    }
+}
@@ -0,0 +1,574 @@
+/*************************************************************************
+ *  Compilation:  javac QuantizedMatrix.java
+ *  Execution:    java QuantizedMatrix
+ *  Author:  Phillip B. Schafer
+ *
+ *  Connection matrices with int8 or fp16 weights and per-row scales.
+ *
+ *  Dependencies:
+ *   JBlas library
+ *   Connectivity, Checkpoint, Reservoir
+ *   StdOut, Stopwatch (Algs-4)
+ *************************************************************************/
+import org.jblas.DoubleMatrix;
+
+import java.util.Arrays;
+
+/**
+ *  A connection matrix whose weights are stored in 8-bit integers or
+ *  16-bit (IEEE half precision) floats, with one double scale factor per
+ *  row, and dequantized inside the products.  The recurrent product of a
+ *  large network streams the whole matrix from memory at every
+ *  evaluation, so it runs at the memory bandwidth; shrinking the weights
+ *  from 8 bytes to 1 or 2 (5 or 6 bytes per nonzero in CSR, with the
+ *  column index) cuts the traffic accordingly.
+ *  <p>
+ *  The saving in time depends on decoding the weights as fast as they
+ *  stream in.  With the SIMD <nn>Kernels</nn>, eight weights at a time are
+ *  widened to doubles in registers and multiplied by x gathered as in
+ *  <tt>Kernels.spmv</tt>.  At p = 0.1 (see <tt>main</tt>) an int8 CSR
+ *  product then takes about half the time of a double one at N = 10000
+ *  and fp16 about three quarters; at N = 4000, where the double matrix
+ *  still fits in cache, they are about even.  With the scalar kernels the
+ *  weights are decoded through lookup tables, and the quantized products
+ *  may be no faster than double ones: quantization then mainly saves
+ *  memory.
+ *  <p>
+ *  Each row is scaled by its largest magnitude a: in <tt>INT8</tt> a
+ *  weight w is stored as round(127 w/a), with an error of at most
+ *  a/254; in <tt>FP16</tt> w/a is rounded to half precision, a relative
+ *  error of at most 2^-11 (down to 2^-14 a, below which the spacing is
+ *  fixed at 2^-24 a).  The Gaussian weights of a reservoir have
+ *  a of about 3 to 4 standard deviations, so int8 keeps about 5 bits of
+ *  a typical weight.
+ *  <p>
+ *  A matrix quantized from a sparse (or procedural) matrix keeps its CSR
+ *  pattern; one quantized from any other backend is stored densely, by
+ *  rows.  <tt>rowAxpy</tt> requantizes the row it changes, so learning
+ *  the recurrent weights in place works, but each update is rounded to the
+ *  precision of the format.
+ */
+public final class QuantizedMatrix implements Connectivity.WeightMatrix {
+    /** The storage format of the weights. */
+    public enum Format {
+        /** signed 8-bit integers, -127 to 127 */
+        INT8,
+        /** IEEE 754 half-precision floats, in [-1, 1] */
+        FP16
+    }
+
+    private final int rows, columns;
+    private final Format format;
+    private final int[] rowPtr, colIdx;   // CSR pattern, or null if dense
+    private final byte[] q8;              // INT8 values
+    private final short[] q16;            // FP16 values
+    private final double[] scale;         // per row
+
+    private QuantizedMatrix(int rows, int columns, Format format, int[] rowPtr, int[] colIdx,
+                            byte[] q8, short[] q16, double[] scale) {
+        this.rows    = rows;
+        this.columns = columns;
+        this.format  = format;
+        this.rowPtr  = rowPtr;
+        this.colIdx  = colIdx;
+        this.q8      = q8;
+        this.q16     = q16;
+        this.scale   = scale;
+    }
+
+    // an unset matrix with the given pattern (dense if rowPtr is null)
+    private QuantizedMatrix(int rows, int columns, Format format, int[] rowPtr, int[] colIdx) {
+        this(rows, columns, format, rowPtr, colIdx,
+             format == Format.INT8 ? new byte[size(rows, columns, colIdx)] : null,
+             format == Format.FP16 ? new short[size(rows, columns, colIdx)] : null,
+             new double[rows]);
+    }
+
+    private static int size(int rows, int columns, int[] colIdx) {
+        if (colIdx != null) return colIdx.length;
+        if ((long) rows*columns > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("matrix is too large to store densely");
+        return rows*columns;
+    }
+
+    /**
+     * Quantize a connection matrix.  Sparse and procedural matrices keep
+     * their sparsity pattern; others are stored densely.
+     * @param W the matrix
+     * @param format the format of the weights
+     * @return the quantized matrix
+     * @throws IllegalArgumentException if a dense matrix has 2^31 - 8 or
+     *   more entries
+     */
+    public static QuantizedMatrix quantize(Connectivity.WeightMatrix W, Format format) {
+        if (W instanceof Connectivity.Procedural)
+            W = ((Connectivity.Procedural) W).toSparse();
+        if (W instanceof Connectivity.Sparse) {
+            Connectivity.Sparse S = (Connectivity.Sparse) W;
+            QuantizedMatrix Q = new QuantizedMatrix(S.rows, S.columns, format,
+                                                    S.rowPtr.clone(), S.colIdx.clone());
+            for (int i = 0; i < S.rows; i++)
+                Q.setRow(i, S.val, S.rowPtr[i]);
+            return Q;
+        }
+        return quantize(W.toDense(new DoubleMatrix()), format);
+    }
+
+    /**
+     * Quantize a dense matrix, storing it densely.
+     * @param W the matrix
+     * @param format the format of the weights
+     * @return the quantized matrix
+     * @throws IllegalArgumentException if the matrix has 2^31 - 8 or more
+     *   entries
+     */
+    public static QuantizedMatrix quantize(DoubleMatrix W, Format format) {
+        QuantizedMatrix Q = new QuantizedMatrix(W.rows, W.columns, format, null, null);
+        double[] row = new double[W.columns];
+        for (int i = 0; i < W.rows; i++) {
+            for (int j = 0; j < W.columns; j++)
+                row[j] = W.data[i + W.rows*j];
+            Q.setRow(i, row, 0);
+        }
+        return Q;
+    }
+
+    /** @return the format of the weights */
+    public Format format() {
+        return format;
+    }
+
+    /** @return whether the sparsity pattern is stored (CSR) */
+    public boolean isSparse() {
+        return rowPtr != null;
+    }
+
+    /** @return the number of bytes of the weights, scales and pattern */
+    public long bytes() {
+        long n = (long) length()*(format == Format.INT8 ? 1 : 2) + 8L*rows;
+        if (rowPtr != null) n += 4L*(rowPtr.length + colIdx.length);
+        return n;
+    }
+
+    public int rows()    { return rows; }
+    public int columns() { return columns; }
+
+    // the number of stored values
+    private int length() {
+        return format == Format.INT8 ? q8.length : q16.length;
+    }
+
+    // the first and last + 1 stored values of row i
+    private int start(int i) { return rowPtr == null ? i*columns : rowPtr[i]; }
+    private int end(int i)   { return rowPtr == null ? (i + 1)*columns : rowPtr[i+1]; }
+
+    /**********************************************************************
+     *  Quantization
+     **********************************************************************/
+    // quantize row i from w[off ..] (in the order of the stored values)
+    private void setRow(int i, double[] w, int off) {
+        int lo = start(i), n = end(i) - lo;
+        double a = 0.0;
+        for (int k = 0; k < n; k++)
+            a = Math.max(a, Math.abs(w[off + k]));
+        if (format == Format.INT8) {
+            scale[i] = a/127;
+            for (int k = 0; k < n; k++)
+                q8[lo + k] = a == 0.0 ? 0 : (byte) Math.rint(127*(w[off + k]/a));
+        } else {
+            scale[i] = a;
+            for (int k = 0; k < n; k++)
+                q16[lo + k] = a == 0.0 ? 0 : toHalf(w[off + k]/a);
+        }
+    }
+
+    // the stored value p of row i
+    private double value(int i, int p) {
+        return scale[i]*(format == Format.INT8 ? BYTES[q8[p] & 0xff] : HALVES[q16[p] & 0xffff]);
+    }
+
+    // the values of all bytes and halves: a load from these (mostly
+    // cached) tables is cheaper in the inner loops than a conversion
+    private static final double[] BYTES  = new double[1 << 8];
+    private static final double[] HALVES = new double[1 << 16];
+    static {
+        for (int b = 0; b < BYTES.length; b++)
+            BYTES[b] = (byte) b;
+        for (int h = 0; h < HALVES.length; h++)
+            HALVES[h] = fromHalf((short) h);
+    }
+
+    // nearest half-precision value (ties to even) to d, |d| <= 1
+    static short toHalf(double d) {
+        int sign = Double.doubleToRawLongBits(d) < 0 ? 0x8000 : 0;
+        double a = Math.abs(d);
+        int e = Math.max(Math.getExponent(a), -14);
+        int m = (int) Math.rint(Math.scalb(a, 10 - e));       // 0 .. 2048
+        if (m == 2048) {
+            m = 1024;
+            e++;
+        }
+        int bits = m < 1024 ? m : ((e + 15) << 10) | (m - 1024);  // subnormal or normal
+        return (short) (sign | bits);
+    }
+
+    // the value of a finite half-precision number: its exponent is
+    // rebiased by placing it in a float and multiplying by 2^(127-15)
+    // (the products use the table HALVES)
+    static float fromHalf(short h) {
+        return Float.intBitsToFloat(((h & 0x8000) << 16) | ((h & 0x7fff) << 13))*0x1.0p112f;
+    }
+
+    /**********************************************************************
+     *  Products
+     **********************************************************************/
+    public DoubleMatrix mmuli(DoubleMatrix v, DoubleMatrix out) {
+        if (v.rows != columns)
+            throw new IllegalArgumentException("Number of columns of matrix must equal number of rows of vector");
+        if (out.rows != rows || out.columns != v.columns)
+            out.resize(rows, v.columns);
+        if (v.columns == 1) {
+            for (int i = 0; i < rows; i++)
+                out.data[i] = dot(i, v.data);
+            return out;
+        }
+        // block of vectors: each row is decoded once for all k columns
+        double[] vd = v.data, od = out.data;
+        int k = v.columns;
+        double[] s = new double[k];
+        double[] w = new double[maxRowLength()];
+        for (int i = 0; i < rows; i++) {
+            int lo = start(i), n = end(i) - lo;
+            decodeRow(lo, n, w);
+            Arrays.fill(s, 0.0);
+            for (int m = 0; m < n; m++) {
+                int j = rowPtr == null ? m : colIdx[lo + m];
+                for (int c = 0; c < k; c++)
+                    s[c] += w[m]*vd[j + columns*c];
+            }
+            for (int c = 0; c < k; c++)
+                od[i + rows*c] = scale[i]*s[c];
+        }
+        return out;
+    }
+
+    public DoubleMatrix mmuliLowRank(DoubleMatrix v, DoubleMatrix U, DoubleMatrix z, DoubleMatrix out) {
+        if (v.rows != columns || U.rows != rows || U.columns != z.length)
+            throw new IllegalArgumentException("Matrix dimensions do not match");
+        if (out.rows != rows || out.columns != 1)
+            out.resize(rows, 1);
+        double[] ud = U.data, zd = z.data;
+        int m = z.length;
+        for (int i = 0; i < rows; i++) {
+            double s = dot(i, v.data);
+            for (int k = 0; k < m; k++)
+                s += ud[i + rows*k]*zd[k];
+            out.data[i] = s;
+        }
+        return out;
+    }
+
+    // the largest number of stored values in a row
+    private int maxRowLength() {
+        if (rowPtr == null) return columns;
+        int n = 0;
+        for (int i = 0; i < rows; i++)
+            n = Math.max(n, rowPtr[i+1] - rowPtr[i]);
+        return n;
+    }
+
+    // the n unscaled values from p into w
+    private void decodeRow(int p, int n, double[] w) {
+        if (Kernels.vectorized()) {
+            if (format == Format.INT8) Kernels.int8ToDouble(q8, p, n, w);
+            else                       Kernels.halfToDouble(q16, p, n, w);
+        } else if (format == Format.INT8)
+            for (int m = 0; m < n; m++) w[m] = BYTES[q8[p + m] & 0xff];
+        else
+            for (int m = 0; m < n; m++) w[m] = HALVES[q16[p + m] & 0xffff];
+    }
+
+    // row i times x: widened in SIMD registers when the kernels are
+    // vectorized; otherwise one loop per format and layout, so each is a
+    // plain stream over the stored values
+    private double dot(int i, double[] x) {
+        if (Kernels.vectorized())
+            return scale[i]*(format == Format.INT8
+                             ? Kernels.dotInt8(q8, colIdx, start(i), end(i), x, start(i))
+                             : Kernels.dotHalf(q16, colIdx, start(i), end(i), x, start(i)));
+        double s = 0.0;
+        if (rowPtr == null) {
+            int o = i*columns;
+            if (format == Format.INT8)
+                for (int j = 0; j < columns; j++)
+                    s += BYTES[q8[o + j] & 0xff]*x[j];
+            else
+                for (int j = 0; j < columns; j++)
+                    s += HALVES[q16[o + j] & 0xffff]*x[j];
+        } else {
+            int end = rowPtr[i+1];
+            if (format == Format.INT8)
+                for (int p = rowPtr[i]; p < end; p++)
+                    s += BYTES[q8[p] & 0xff]*x[colIdx[p]];
+            else
+                for (int p = rowPtr[i]; p < end; p++)
+                    s += HALVES[q16[p] & 0xffff]*x[colIdx[p]];
+        }
+        return scale[i]*s;
+    }
+
+    /**********************************************************************
+     *  Other operations
+     **********************************************************************/
+    public DoubleMatrix toDense(DoubleMatrix out) {
+        if (out.rows != rows || out.columns != columns)
+            out.resize(rows, columns);
+        out.fill(0.0);
+        for (int i = 0; i < rows; i++)
+            for (int p = start(i), end = end(i); p < end; p++)
+                out.put(i, rowPtr == null ? p - i*columns : colIdx[p], value(i, p));
+        return out;
+    }
+
+    public void scalei(double a) {
+        if (a < 0) {                       // keep the scales nonnegative
+            if (format == Format.INT8)
+                for (int p = 0; p < q8.length; p++) q8[p] = (byte) -q8[p];
+            else
+                for (int p = 0; p < q16.length; p++) q16[p] ^= (short) 0x8000;
+        }
+        for (int i = 0; i < rows; i++)
+            scale[i] *= Math.abs(a);
+    }
+
+    public QuantizedMatrix copy() {
+        return new QuantizedMatrix(rows, columns, format,
+                                   rowPtr == null ? null : rowPtr.clone(),
+                                   colIdx == null ? null : colIdx.clone(),
+                                   q8 == null ? null : q8.clone(),
+                                   q16 == null ? null : q16.clone(), scale.clone());
+    }
+
+    public int[] rowSupport(int i) {
+        if (rowPtr != null)
+            return Arrays.copyOfRange(colIdx, rowPtr[i], rowPtr[i+1]);
+        int n = 0;
+        for (int p = start(i); p < end(i); p++)
+            if (value(i, p) != 0.0) n++;
+        int[] cols = new int[n];
+        n = 0;
+        for (int p = start(i), o = start(i); p < end(i); p++)
+            if (value(i, p) != 0.0) cols[n++] = p - o;
+        return cols;
+    }
+
+    /**
+     * Add a*x to the weights of row i in the given columns, and requantize
+     * the row.
+     * @throws IllegalArgumentException if the matrix is sparse and an entry
+     *   is not stored
+     */
+    public void rowAxpy(int i, int[] cols, double a, double[] x) {
+        int lo = start(i), n = end(i) - lo;
+        double[] w = new double[n];
+        for (int k = 0; k < n; k++)
+            w[k] = value(i, lo + k);
+        if (rowPtr == null)
+            for (int m = 0; m < cols.length; m++)
+                w[cols[m]] += a*x[m];
+        else {
+            // merge the (increasing) columns with the row's pattern
+            int k = 0;
+            for (int m = 0; m < cols.length; m++) {
+                while (k < n && colIdx[lo + k] < cols[m]) k++;
+                if (k == n || colIdx[lo + k] != cols[m])
+                    throw new IllegalArgumentException("W(" + i + ", " + cols[m] + ") is not stored");
+                w[k] += a*x[m];
+            }
+        }
+        setRow(i, w, 0);
+    }
+
+    /** Writes the format, pattern, scales and packed weights. */
+    public void writeState(Checkpoint.Writer out) {
+        out.putInt(rows);
+        out.putInt(columns);
+        out.putInt(format.ordinal());
+        out.putBoolean(rowPtr != null);
+        if (rowPtr != null) {
+            out.putIntArray(rowPtr, rowPtr.length);
+            out.putIntArray(colIdx, colIdx.length);
+        }
+        out.putArray(scale, rows);
+        int[] packed = pack();
+        out.putIntArray(packed, packed.length);
+    }
+
+    /**
+     * Reads a matrix written by <tt>writeState</tt>, which must have the
+     * same size, format and pattern.
+     * @throws IllegalStateException if it does not
+     */
+    public void readState(Checkpoint.Reader in) {
+        if (in.getInt() != rows || in.getInt() != columns)
+            throw new IllegalStateException("stored matrix is a different size");
+        if (in.getInt() != format.ordinal() || in.getBoolean() != (rowPtr != null))
+            throw new IllegalStateException("stored matrix has a different format");
+        if (rowPtr != null && (!Arrays.equals(in.getIntArray(), rowPtr)
+                               || !Arrays.equals(in.getIntArray(), colIdx)))
+            throw new IllegalStateException("stored matrix has a different pattern");
+        in.getArray(scale);
+        unpack(in.getIntArray());
+    }
+
+    // the weights, four int8s or two fp16s to an int
+    private int[] pack() {
+        int per = format == Format.INT8 ? 4 : 2, bits = 32/per, n = length();
+        int[] packed = new int[(n + per - 1)/per];
+        for (int p = 0; p < n; p++) {
+            int q = format == Format.INT8 ? q8[p] & 0xff : q16[p] & 0xffff;
+            packed[p/per] |= q << (bits*(p % per));
+        }
+        return packed;
+    }
+
+    private void unpack(int[] packed) {
+        int per = format == Format.INT8 ? 4 : 2, bits = 32/per, n = length();
+        if (packed.length != (n + per - 1)/per)
+            throw new IllegalStateException("stored matrix has a different number of weights");
+        for (int p = 0; p < n; p++) {
+            int q = packed[p/per] >>> (bits*(p % per));
+            if (format == Format.INT8) q8[p] = (byte) q;
+            else q16[p] = (short) q;
+        }
+    }
+
+    /**********************************************************************
+     *  Unit testing
+     **********************************************************************/
+    public static void main(String[] args) {
+        StdOut.println("Testing half-precision conversion...");
+        for (double d : new double[] {0.0, 1.0, -1.0, 0.5, 1.0/3, -0.1, 1e-5, 6.0e-8, 2.9e-8})
+            StdOut.println(d + " -> " + fromHalf(toHalf(d)));
+        assert(fromHalf(toHalf(1.0)) == 1.0f && fromHalf(toHalf(-0.5)) == -0.5f);
+        assert(toHalf(1.0/3) == (short) 0x3555);             // 0.333251953125
+        assert(toHalf(1 + 0x1.0p-11) == (short) 0x3c00);     // a tie, to even
+        assert(toHalf(0x1.0p-24) == 1 && toHalf(0x1.0p-25) == 0);
+        for (int h = 0; h < 0x7c00; h++) {                    // all finite halves <= 1
+            float f = fromHalf((short) h);
+            if (f <= 1.0f) assert(toHalf(f) == h && toHalf(-f) == (short) (h | 0x8000));
+        }
+
+        int N = 500;
+        double p = 0.1, g = 1.5;
+        Connectivity.Sparse S = Connectivity.Sparse.random(N, p, g);
+        DoubleMatrix W = S.toDense(new DoubleMatrix());
+        for (Format f : Format.values()) {
+            StdOut.println("Testing " + f + " weights...");
+            QuantizedMatrix sq = quantize(S, f), dq = quantize(W, f);
+            DoubleMatrix Wq = sq.toDense(new DoubleMatrix());
+            assert(dq.toDense(new DoubleMatrix()).equals(Wq));
+            assert(sq.isSparse() && !dq.isSparse());
+            double worst = 0.0;
+            for (int i = 0; i < N; i++) {
+                double a = W.getRow(i).normmax();
+                double bound = f == Format.INT8 ? a/254 : a*0x1.0p-11;
+                double err = W.getRow(i).sub(Wq.getRow(i)).normmax();
+                assert(err <= bound*(1 + 1e-12));
+                worst = Math.max(worst, err/a);
+            }
+            StdOut.println("worst error / row max: " + worst + ", bytes: " + sq.bytes()
+                           + " sparse, " + dq.bytes() + " dense (CSR of doubles: " + 12L*S.nnz() + ")");
+
+            DoubleMatrix v = DoubleMatrix.randn(N, 3);
+            DoubleMatrix expected = Wq.mmul(v);
+            assert(sq.mmuli(v, new DoubleMatrix()).distance2(expected) < 1e-10);
+            assert(dq.mmuli(v, new DoubleMatrix()).distance2(expected) < 1e-10);
+            DoubleMatrix v0 = v.getColumn(0), U = DoubleMatrix.randn(N, 2), z = DoubleMatrix.randn(2);
+            expected = Wq.mmul(v0).add(U.mmul(z));
+            assert(sq.mmuliLowRank(v0, U, z, new DoubleMatrix(N)).distance2(expected) < 1e-10);
+            assert(dq.mmuliLowRank(v0, U, z, new DoubleMatrix(N)).distance2(expected) < 1e-10);
+            assert(sq.mmuli(v0, new DoubleMatrix(N)).distance2(dq.mmuli(v0, new DoubleMatrix(N))) < 1e-10);
+            assert(Arrays.equals(sq.rowSupport(3), S.rowSupport(3)));
+
+            QuantizedMatrix c = sq.copy();
+            c.scalei(-2.0);
+            assert(c.toDense(new DoubleMatrix()).equals(Wq.mul(-2.0)));
+            int[] cols = S.rowSupport(3);
+            double[] x = new double[cols.length];
+            Arrays.fill(x, 1.0);
+            c = sq.copy();
+            c.rowAxpy(3, cols, 0.01, x);
+            DoubleMatrix row = c.toDense(new DoubleMatrix()).getRow(3);
+            assert(row.sub(Wq.getRow(3)).sum() > 0.5*0.01*cols.length);
+            assert(c.toDense(new DoubleMatrix()).getRow(4).equals(Wq.getRow(4)));
+
+            Checkpoint.Writer out = new Checkpoint.Writer();
+            sq.writeState(out);
+            c.readState(new Checkpoint.Reader(out.flip()));
+            assert(c.toDense(new DoubleMatrix()).equals(Wq));
+        }
+
+        StdOut.println("Divergence of quantized from full-precision trajectories, N = 1000:");
+        StdOut.println("(relative distance |x - x_full|/|x_full|; a perturbation of 1e-12 for reference)");
+        N = 1000;
+        for (double gain : new double[] {1.2, 1.5}) {
+            S = Connectivity.Sparse.random(N, p, gain);
+            Reservoir full = new Reservoir(S, 0.01, 0.001);
+            Reservoir[] runs = {
+                new Reservoir(S, 0.01, 0.001),
+                new Reservoir(quantize(S, Format.FP16), 0.01, 0.001),
+                new Reservoir(quantize(S, Format.INT8), 0.01, 0.001)
+            };
+            DoubleMatrix x0 = full.x.dup();
+            runs[0].setX(x0.add(DoubleMatrix.randn(N).muli(1e-12/Math.sqrt(N)).muli(x0.norm2())));
+            for (Reservoir r : runs) if (r != runs[0]) r.setX(x0);
+            StdOut.printf("g = %.1f     t    1e-12 pert.        fp16         int8%n", gain);
+            int[] report = {10, 30, 100, 300, 1000, 2000, 4000};
+            double[] diverged = new double[runs.length];
+            for (int step = 1, m = 0; step <= report[report.length - 1]; step++) {
+                full.step();
+                for (int k = 0; k < runs.length; k++) {
+                    runs[k].step();
+                    if (diverged[k] == 0 && runs[k].x.distance2(full.x) > 0.5*full.x.norm2())
+                        diverged[k] = full.t();
+                }
+                if (step == report[m]) {
+                    StdOut.printf("         %5.2f", full.t());
+                    for (Reservoir r : runs)
+                        StdOut.printf("  %11.3e", r.x.distance2(full.x)/full.x.norm2());
+                    StdOut.println();
+                    m++;
+                }
+            }
+            StdOut.print("         time to a distance of 0.5:");
+            for (double t : diverged)
+                StdOut.print(t == 0 ? String.format("  %11s", "> " + Math.round(full.t())) : String.format("  %11.3f", t));
+            StdOut.println();
+        }
+
+        StdOut.println("Time per product (p = 0.1):");
+        StdOut.println("       N   layout        double          fp16          int8");
+        for (int n : new int[] {4000, 10000}) {
+            S = Connectivity.Sparse.random(n, p, g);
+            timeRow(n, "CSR", S, quantize(S, Format.FP16), quantize(S, Format.INT8));
+            if (n <= 4000) {
+                Connectivity.Dense D = new Connectivity.Dense(S.toDense(new DoubleMatrix()));
+                timeRow(n, "dense", D, quantize(D, Format.FP16), quantize(D, Format.INT8));
+            }
+        }
+    }
+
+    private static void timeRow(int n, String layout, Connectivity.WeightMatrix... Ws) {
+        StdOut.printf("%8d   %-6s", n, layout);
+        DoubleMatrix v = DoubleMatrix.randn(n), out = new DoubleMatrix(n);
+        for (Connectivity.WeightMatrix W : Ws) {
+            for (int i = 0; i < 20; i++) W.mmuli(v, out);
+            int reps = 50;
+            Stopwatch sw = new Stopwatch();
+            for (int i = 0; i < reps; i++) W.mmuli(v, out);
+            StdOut.printf("  %7.3f ms  ", 1000*sw.elapsedTime()/reps);
+        }
+        StdOut.println();
+    }
+}
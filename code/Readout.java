@@ -4,7 +4,8 @@ import org.jblas.MatrixFunctions;
 /**
  *  Implements a set of M readout/feedback units that interact with a 
  *  reservoir of size N rate-model neurons.  
- *  Unit responses are weighted sum (no nonlinearity).  
+ *  Unit responses are weighted sums, optionally passed through a 
+ *  <nn>Nonlinearity.Function</nn> (none by default).  
  *  Connection weights to the units are optionally sparse (parameter p_z)
  *  and drawn from a normal distribution; 
  *  they are represented by a 2D dense matrix (Colt library) 
@@ -12,12 +13,17 @@ import org.jblas.MatrixFunctions;
  *  Feedback weights are optionally sparse (parameter p) and drawn from a 
  *  uniform distribution; they are represented by a 2D dense matrix 
  *  and scaled by g (Sussillo & Abbott 2009, p. 556). 
+ *  The feedback wBack*readout has rank M; a <tt>Reservoir</tt> adds it 
+ *  in the same pass as its recurrent product (<nn>Streams.LowRankFeedback</nn>).  
  */
-public class Readout implements Streams.Feedback {
+public class Readout implements Streams.LowRankFeedback, Checkpoint.Checkpointable {
     protected int M;              // number of readout units
     protected int N;              // number of feedbacks (network units)
     protected DoubleMatrix wOut;  // connection matrix to the readouts
     protected DoubleMatrix wBack; // connection matrix back to the network
+    protected boolean wOutShared;  // wOut is shared with forks (copy on write)
+    protected Nonlinearity.Function phi;  // output nonlinearity (null: linear)
+    protected long version;        // advanced whenever the readout map changes
     
     /**
      * Initialize a feedback/readout set of M neurons that feed back on 
@@ -75,6 +81,30 @@ public class Readout implements Streams.Feedback {
         this(M, N, 1.0, 1.0, 1.0);  
     }
     
+    /**
+     * Initialize a readout that shares the weights of another one 
+     * (see <tt>fork</tt>).  
+     * @param other the readout to share weights with
+     */
+    protected Readout(Readout other) {
+        this.M     = other.M;
+        this.N     = other.N;
+        this.wOut  = other.wOut;
+        this.wBack = other.wBack;
+        this.phi   = other.phi;
+        wOutShared = other.wOutShared = true;
+    }
+    
+    /**
+     * Create a copy of this readout that shares its weight matrices.  
+     * The feedback weights are never modified in place; the readout 
+     * weights are copied only if one of the readouts later modifies them.
+     * @return the fork
+     */
+    public Readout fork() {
+        return new Readout(this);
+    }
+    
     public int size() {
         return M;
     }
@@ -88,9 +118,34 @@ public class Readout implements Streams.Feedback {
      **********************************************************************/
     public void setWOut(DoubleMatrix W) {
         W.assertSameSize(wOut);
+        version++;
+        if (wOutShared) {          // copy on write
+            wOut = W.dup();
+            wOutShared = false;
+            return;
+        }
         wOut.copy(W);
     }
     
+    // make wOut private to this readout before modifying it in place; 
+    // every in-place modification calls this, so it advances the version
+    protected void ensureOwnWOut() {
+        version++;
+        if (wOutShared) {
+            wOut = wOut.dup();
+            wOutShared = false;
+        }
+    }
+    
+    /**
+     * Get the weight version, which changes whenever the readout weights 
+     * or nonlinearity change (see <nn>StepContext</nn>).  
+     * @return the weight version
+     */
+    public long version() {
+        return version;
+    }
+    
     public DoubleMatrix getWOut(DoubleMatrix W) {
         W.copy(wOut);
         return W;
@@ -110,6 +165,8 @@ public class Readout implements Streams.Feedback {
      */
     public DoubleMatrix getReadout(DoubleMatrix r, double t, DoubleMatrix readout) {
         wOut.mmuli(r, readout);
+        if (phi != null) 
+            phi.apply(readout.data, readout.data, M);
         return readout;
     }
     
@@ -142,6 +199,29 @@ public class Readout implements Streams.Feedback {
         return feedback;
     }
     
+    /**
+     * Get the feedback coefficients, here the readout, so that the 
+     * feedback is wBack*z.  
+     * @param r the network state
+     * @param t the current time
+     * @param z the coefficients (M x 1)
+     * @returns z, for convenience only
+     */
+    public DoubleMatrix getFeedbackCoefficients(DoubleMatrix r, double t, DoubleMatrix z) {
+        return getReadout(r, t, z);
+    }
+    
+    /**
+     * @return the feedback weights wBack (not copied; read-only)
+     */
+    public DoubleMatrix getFeedbackWeights() {
+        return wBack;
+    }
+    
+    public int rank() {
+        return M;
+    }
+    
     /**
      * Get the readout as a double array, given the current state of 
      * the network. 
@@ -165,17 +245,52 @@ public class Readout implements Streams.Feedback {
      * @returns readout, for convenience only
      */
     public double[] getReadoutArray(Reservoir res) {
-        DoubleMatrix r = new DoubleMatrix(N);
-        res.getR(r);
-        return getReadoutArray(r, res.t());
+        return getReadoutArray(res.rates(), res.t());
     }
     
     /**********************************************************************
-     * Static nonlinearity  *** not used in this version...
+     * Checkpointing
      **********************************************************************/
-    // x -> tanh(x)
-    private void applyNonlin(DoubleMatrix x) {
-        MatrixFunctions.tanhi(x);
+    /**
+     * Write the readout and feedback weights.
+     * @param out the checkpoint writer
+     */
+    public void writeState(Checkpoint.Writer out) {
+        out.putMatrix(wOut);
+        out.putMatrix(wBack);
+    }
+    
+    /**
+     * Restore the readout and feedback weights.
+     * @param in the checkpoint reader
+     * @throws IllegalStateException if the stored weights are a different size
+     */
+    public void readState(Checkpoint.Reader in) {
+        ensureOwnWOut();
+        in.getMatrix(wOut);
+        wBack = new DoubleMatrix(wBack.rows, wBack.columns); // may be shared with forks
+        in.getMatrix(wBack);
+    }
+    
+    /**********************************************************************
+     * Static nonlinearity
+     **********************************************************************/
+    /**
+     * Set an output nonlinearity, readout = phi(wOut*r), or <tt>null</tt> 
+     * for linear units (the default).  The RLS and regression learning 
+     * rules assume linear units.  
+     * @param phi the nonlinearity
+     */
+    public void setNonlinearity(Nonlinearity.Function phi) {
+        this.phi = phi;
+        version++;
+    }
+    
+    /**
+     * @return the output nonlinearity, or <tt>null</tt> for linear units
+     */
+    public Nonlinearity.Function getNonlinearity() {
+        return phi;
     }
     
     /**********************************************************************
@@ -198,6 +313,58 @@ public class Readout implements Streams.Feedback {
         double t = 1.1;
         ro.getFeedback(res.getR(r), t, fb);
         
+        StdOut.println("Testing fork...");
+        Readout f = ro.fork();
+        assert(f.wOut == ro.wOut && f.wBack == ro.wBack); // weights shared
+        f.setWOut(DoubleMatrix.zeros(nFB, nRes));        // copy on write
+        assert(f.wOut != ro.wOut);
+        assert(!ro.wOut.equals(f.wOut));
+        
+        StdOut.println("Testing fused low-rank feedback against the separate path...");
+        Streams.InputStream wave = new Streams.SineWave(0.3);
+        Readout[] kinds = { new Readout(1, 200), new ReadoutClampedFB(wave, 200), 
+                            new ReadoutLearningRLS(wave, 200, 1.0) };
+        for (final Readout k : kinds) {
+            Reservoir fused = new Reservoir(200, 0.1, 1.5);
+            if (k instanceof ReadoutLearningRLS) fused.useSparseW();
+            Reservoir plain = fused.fork();
+            fused.setFeedback(k);
+            plain.setFeedback(new Streams.Feedback() {   // hides the low rank
+                public int fb_size() { return k.fb_size(); }
+                public DoubleMatrix getFeedback(DoubleMatrix r, double t, DoubleMatrix fb) {
+                    return k.getFeedback(r, t, fb);
+                }
+            });
+            fused.step(200);
+            plain.step(200);
+            StdOut.println("  " + k.getClass().getName() + ": max difference " 
+                           + fused.x.sub(plain.x).normmax());
+            assert(fused.x.sub(plain.x).normmax() < 1e-10);
+        }
+        
+        StdOut.println("Step time with feedback, N = 2000, p = 0.1 (sparse W):");
+        Connectivity.Sparse W = Connectivity.Sparse.random(2000, 0.1, 1.5);
+        for (int m : new int[] {1, 10}) {
+            final Readout k = new Readout(m, 2000);
+            Reservoir fused = new Reservoir(W, 0.01, 0.001);
+            Reservoir plain = fused.fork();
+            fused.setFeedback(k);
+            plain.setFeedback(new Streams.Feedback() {
+                public int fb_size() { return k.fb_size(); }
+                public DoubleMatrix getFeedback(DoubleMatrix r, double t, DoubleMatrix fb) {
+                    return k.getFeedback(r, t, fb);
+                }
+            });
+            plain.step(20);
+            Stopwatch sw = new Stopwatch();
+            plain.step(200);
+            double tPlain = sw.elapsedTime()/0.2;
+            fused.step(20);
+            sw = new Stopwatch();
+            fused.step(200);
+            double tFused = sw.elapsedTime()/0.2;
+            StdOut.printf("  M = %2d: separate %.3f ms/step, fused %.3f ms/step%n", m, tPlain, tFused);
+        }
     }
     
 }
\ No newline at end of file
@@ -36,6 +36,26 @@ public class ReadoutClampedFB extends Readout {
         this.target = target;
     }
     
+    /**
+     * Initialize a readout that shares the weights and target stream of 
+     * another one (see <tt>fork</tt>).  
+     */
+    protected ReadoutClampedFB(ReadoutClampedFB other) {
+        super(other);
+        this.target    = other.target;
+        this.isClamped = other.isClamped;
+    }
+    
+    /**
+     * Create a copy of this readout that shares its weights and its 
+     * target stream.  
+     * @return the fork
+     */
+    @Override
+    public ReadoutClampedFB fork() {
+        return new ReadoutClampedFB(this);
+    }
+    
     /**********************************************************************
      * set/get
      **********************************************************************/
@@ -126,4 +146,42 @@ public class ReadoutClampedFB extends Readout {
         return feedback;
     }
     
+    /**
+     * Get the feedback coefficients: the target readout when clamped, 
+     * else the readout.  
+     * @param r the network state
+     * @param t the current time
+     * @param z the coefficients (M x 1)
+     * @returns z, for convenience only
+     */
+    @Override
+    public DoubleMatrix getFeedbackCoefficients(DoubleMatrix r, double t, DoubleMatrix z) {
+        if (!isClamped) return super.getFeedbackCoefficients(r, t, z);
+        return getTargetReadout(t, z);
+    }
+    
+    /**********************************************************************
+     * Checkpointing
+     **********************************************************************/
+    /**
+     * Write the weights and the clamping state.
+     * The state of the target stream is checkpointed separately.
+     * @param out the checkpoint writer
+     */
+    @Override
+    public void writeState(Checkpoint.Writer out) {
+        super.writeState(out);
+        out.putBoolean(isClamped);
+    }
+    
+    /**
+     * Restore the weights and the clamping state.
+     * @param in the checkpoint reader
+     */
+    @Override
+    public void readState(Checkpoint.Reader in) {
+        super.readState(in);
+        isClamped = in.getBoolean();
+    }
+    
 }
\ No newline at end of file
@@ -1,5 +1,6 @@
 import org.jblas.DoubleMatrix;
 import org.jblas.MatrixFunctions;
+import org.jblas.SimpleBlas;
 
 /**
  *  Implements a set of M readout/feedback units that interact with a 
@@ -17,7 +18,22 @@ public class ReadoutLearningRLS extends Readout implements Streams.Feedback {
     
     protected double alpha;
     protected Streams.InputStream targetStream;
-    DoubleMatrix P;  // the correlation estimate
+    DoubleMatrix P;  // the correlation estimate, if stored in a jBlas matrix
+    protected Connectivity.DenseStorage pMat;  // P's storage backend
+    protected boolean pShared;  // P is shared with forks (copy on write)
+    protected boolean pOwned;   // pMat was copied by this readout (closed when replaced)
+    
+    // pre-allocated buffers for learn() and the error helpers
+    private DoubleMatrix readoutBuf, targetBuf, errorBuf;   // M x 1
+    private DoubleMatrix prBuf;                             // N x 1
+    
+    // block RLS: samples buffered since the last block update
+    private int blockSize = 0, nBlock = 0;
+    private DoubleMatrix rBlock, prBlock;                   // N x k
+    private DoubleMatrix tgBlock, eBlock;                   // M x k
+    private DoubleMatrix qtBlock;                           // k x N
+    private DoubleMatrix sBlock;                            // k x k
+    private double[] tBlock;
     
     /**
      * Initialize a feedback/readout set of M neurons that feed back on 
@@ -52,8 +68,93 @@ public class ReadoutLearningRLS extends Readout implements Streams.Feedback {
         setP(alpha);
     }
     
+    /**
+     * Initialize a readout that shares the weights, correlation estimate 
+     * and target stream of another one (see <tt>fork</tt>).  
+     */
+    protected ReadoutLearningRLS(ReadoutLearningRLS other) {
+        super(other);
+        this.alpha        = other.alpha;
+        this.targetStream = other.targetStream;
+        this.P            = other.P;
+        this.pMat         = other.pMat;
+        pShared = other.pShared = true;
+        allocBuffers();
+        setBlockSize(other.blockSize);
+    }
+    
+    /**
+     * Create a copy of this readout that shares its weights, its 
+     * correlation estimate P and its target stream (and its block size, 
+     * but not its buffered samples).  If a fork continues 
+     * learning, its wOut and P are copied on the first call to 
+     * <tt>learn</tt>; forks that only test the trained readout never copy.
+     * @return the fork
+     */
+    @Override
+    public ReadoutLearningRLS fork() {
+        return new ReadoutLearningRLS(this);
+    }
+    
     private void setP(double alpha) {
-        P = DoubleMatrix.eye(N).divi(alpha);
+        setPMatrix(new Connectivity.Dense(DoubleMatrix.eye(N).divi(alpha)), true);
+        allocBuffers();
+    }
+    
+    // install a storage backend for P; storage this readout made itself
+    // (owned) and shares with no fork is closed when replaced
+    void setPMatrix(Connectivity.DenseStorage m, boolean owned) {
+        if (pOwned && !pShared && pMat != m && pMat instanceof OffHeapMatrix)
+            ((OffHeapMatrix) pMat).close();
+        pMat = m;
+        P = (m instanceof Connectivity.Dense) ? ((Connectivity.Dense) m).W : null;
+        pShared = false;
+        pOwned  = owned;
+    }
+    
+    // copy P before modifying it if it is shared with forks
+    private void ensureOwnP() {
+        if (pShared)
+            setPMatrix(pMat.copy(), true);
+    }
+    
+    // take over the P of a fork that is no longer used
+    void takeP(ReadoutLearningRLS fork) {
+        if (fork.pMat != pMat)
+            setPMatrix(fork.pMat, fork.pOwned);
+    }
+    
+    /**
+     * Move the correlation estimate P into other storage, e.g. an 
+     * <nn>OffHeapMatrix</nn> for N too large for a jBlas matrix (see 
+     * <nn>Connectivity.DenseStorage</nn>).  The current P is copied into 
+     * it, and the RLS updates then work on it directly.  Forks share it 
+     * until they learn, when they copy it with <tt>copy</tt>; such copies
+     * are closed when replaced.  The storage itself is the caller's to
+     * close.
+     * @param store the N x N storage
+     * @throws IllegalArgumentException if the storage is the wrong size
+     */
+    public void setPStorage(Connectivity.DenseStorage store) {
+        if (store.rows() != N || store.columns() != N)
+            throw new IllegalArgumentException("P must be " + N + "x" + N);
+        for (int j = 0; j < N; j++) {
+            pMat.getColumn(j, prBuf.data);
+            store.putColumn(j, prBuf.data);
+        }
+        setPMatrix(store, false);
+    }
+    
+    /** @return the storage of P (shared; do not modify) */
+    public Connectivity.DenseStorage getPStorage() {
+        return pMat;
+    }
+    
+    private void allocBuffers() {
+        readoutBuf = new DoubleMatrix(M);
+        targetBuf  = new DoubleMatrix(M);
+        errorBuf   = new DoubleMatrix(M);
+        prBuf      = new DoubleMatrix(N);
     }
     
     /**********************************************************************
@@ -85,45 +186,395 @@ public class ReadoutLearningRLS extends Readout implements Streams.Feedback {
     }
     
     public double[] getErrorArray(DoubleMatrix r, double t) {
-        DoubleMatrix readout = new DoubleMatrix(M);
-        getReadout(r, t, readout);
-        
-        DoubleMatrix target = new DoubleMatrix(M);
-        targetStream.getInput(t, target);
-        
-        return target.subi(readout).muli(target).toArray();
+        getReadout(r, t, readoutBuf);
+        targetStream.getInput(t, targetBuf);
+        return targetBuf.subi(readoutBuf).muli(targetBuf).toArray();
     }
     
     public double[] getErrorArray(Reservoir res) {
-        DoubleMatrix readout = new DoubleMatrix(M);
-        DoubleMatrix r = new DoubleMatrix(N);
-        getReadout(res.getR(r), res.t(), readout);
-        
-        DoubleMatrix target = new DoubleMatrix(M);
-        targetStream.getInput(res.t(), target);
-        
-        return target.subi(readout).muli(target).toArray();
+        return getErrorArray(res.rates(), res.t());
     }
         
     /**********************************************************************
      * Learning
      **********************************************************************/
+    /**
+     * Perform one RLS (FORCE) update of the readout weights and of P.  
+     * <p>
+     * All M readouts see the same rates r, so they share P and its update: 
+     * with Pr = P*r and c = 1/(1 + r'*Pr), 
+     * <pre>
+     *     P    -= c * Pr*Pr'
+     *     wOut -= c * error*Pr'
+     * </pre>
+     * (P is symmetric, and the updated P times r is c*Pr).  The cost is one 
+     * matrix-vector product and one rank-1 update of the N x N matrix P, 
+     * plus one M x N rank-1 update of wOut, so for N much larger than M 
+     * it hardly depends on the number of readouts.  No memory is allocated.
+     * @param res the network
+     */
     public void learn(Reservoir res) {
-        DoubleMatrix r = new DoubleMatrix(N);
-        res.getR(r);
+        targetStream.getInput(res.t(), targetBuf);  
+        learn(res.rates(), res.t(), targetBuf);
+    }
+    
+    // one update from given rates and target (also used by AsyncLearningRLS)
+    void learn(DoubleMatrix r, double t, DoubleMatrix target) {
+        ensureOwnWOut();
+        ensureOwnP();
+        getReadout(r, t, readoutBuf);
+        errorBuf.copy(readoutBuf).subi(target);
+        update(r, errorBuf);
+    }
+    
+    /**
+     * Perform one RLS update using the rates and error of a step context, 
+     * which are shared with any recorders using the same context rather 
+     * than recomputed.  
+     * @param ctx the step context (for this readout and its target)
+     * @throws IllegalArgumentException if the context is for another readout
+     */
+    public void learn(StepContext ctx) {
+        if (ctx.getReadout() != this || ctx.getTargetStream() != targetStream)
+            throw new IllegalArgumentException("context is for a different readout or target");
+        DoubleMatrix r = ctx.rates();
+        DoubleMatrix error = ctx.error();
+        ensureOwnWOut();
+        ensureOwnP();
+        update(r, error);
+    }
+    
+    /**********************************************************************
+     * Block learning
+     **********************************************************************/
+    /**
+     * Set the block size k for block RLS learning (0, the default, for 
+     * none).  In block mode, <tt>addSample</tt> is called at every step; 
+     * each call buffers the rates and target, and every k samples the 
+     * buffered block is applied in one rank-k (Woodbury) update: with 
+     * R the N x k rates, E the M x k errors and S = I + R'*P*R, 
+     * <pre>
+     *     P    -= P*R * inv(S) * R'*P
+     *     wOut -= E * inv(S) * R'*P
+     * </pre>
+     * This is the result of k rank-1 updates in turn (each error taken with 
+     * the weights of the block's start, as the k rank-1 updates see them 
+     * through the preceding ones), but the O(N^2) work is the two N x N 
+     * by N x k matrix products P*R and P -= Q*Q', done by BLAS-3, plus a 
+     * Cholesky factorization of S.  So every step contributes to learning 
+     * while the weights change, as with a learning interval of k, once 
+     * per k steps.  Samples still buffered when the block size changes are 
+     * applied first.
+     * @param k the block size (0 to turn block learning off)
+     * @throws IllegalArgumentException if <tt>k</tt> is negative
+     */
+    public void setBlockSize(int k) {
+        if (k < 0)
+            throw new IllegalArgumentException("block size must be nonnegative");
+        learnBlock();
+        blockSize = k;
+        if (k == 0) {
+            rBlock = prBlock = tgBlock = eBlock = qtBlock = sBlock = null;
+            tBlock = null;
+            return;
+        }
+        rBlock  = new DoubleMatrix(N, k);
+        prBlock = new DoubleMatrix(N, k);
+        tgBlock = new DoubleMatrix(M, k);
+        eBlock  = new DoubleMatrix(M, k);
+        qtBlock = new DoubleMatrix(k, N);
+        sBlock  = new DoubleMatrix(k, k);
+        tBlock  = new double[k];
+    }
+    
+    /** @return the block size (0 if block learning is off) */
+    public int getBlockSize() {
+        return blockSize;
+    }
+    
+    /**
+     * Buffer the current rates and target of the network for block 
+     * learning, and apply the block update if the block is full.  
+     * @param res the network
+     * @return whether the weights were updated
+     * @throws IllegalStateException if block learning is off
+     */
+    public boolean addSample(Reservoir res) {
+        return addSample(res.rates(), res.t(), targetStream.getInput(res.t(), targetBuf));
+    }
+    
+    /**
+     * Buffer the rates and target of a step context (see 
+     * <tt>addSample(Reservoir)</tt>).
+     * @param ctx the step context (for this readout and its target)
+     * @return whether the weights were updated
+     * @throws IllegalArgumentException if the context is for another readout
+     * @throws IllegalStateException if block learning is off
+     */
+    public boolean addSample(StepContext ctx) {
+        if (ctx.getReadout() != this || ctx.getTargetStream() != targetStream)
+            throw new IllegalArgumentException("context is for a different readout or target");
+        return addSample(ctx.rates(), ctx.getReservoir().t(), ctx.target());
+    }
+    
+    private boolean addSample(DoubleMatrix r, double t, DoubleMatrix target) {
+        if (blockSize == 0)
+            throw new IllegalStateException("block learning is off (see setBlockSize)");
+        System.arraycopy(r.data, 0, rBlock.data, N*nBlock, N);
+        System.arraycopy(target.data, 0, tgBlock.data, M*nBlock, M);
+        tBlock[nBlock++] = t;
+        if (nBlock < blockSize) return false;
+        updateBlock();
+        nBlock = 0;
+        return true;
+    }
+    
+    /**
+     * Apply the samples buffered since the last block update now, even if 
+     * the block is not full (a partial block is applied by rank-1 updates).
+     * @return whether there were any
+     */
+    public boolean learnBlock() {
+        if (nBlock == 0) return false;
+        if (nBlock == blockSize)
+            updateBlock();
+        else {
+            DoubleMatrix r = new DoubleMatrix(N), target = new DoubleMatrix(M);
+            for (int j = 0; j < nBlock; j++) {
+                System.arraycopy(rBlock.data, N*j, r.data, 0, N);
+                System.arraycopy(tgBlock.data, M*j, target.data, 0, M);
+                learn(r, tBlock[j], target);
+            }
+        }
+        nBlock = 0;
+        return true;
+    }
+    
+    /** @return the number of samples buffered for the next block update */
+    public int pendingSamples() {
+        return nBlock;
+    }
+    
+    // the rank-k update for the full block
+    private void updateBlock() {
+        ensureOwnWOut();
+        ensureOwnP();
+        int k = blockSize;
+        double[] R = rBlock.data, PR = prBlock.data, S = sBlock.data, E = eBlock.data;
+        
+        // errors with the current weights: E = readout(R) - targets
+        for (int j = 0; j < k; j++) {
+            System.arraycopy(R, N*j, prBuf.data, 0, N);
+            getReadout(prBuf, tBlock[j], readoutBuf);
+            for (int i = 0; i < M; i++)
+                E[M*j + i] = readoutBuf.data[i] - tgBlock.data[M*j + i];
+        }
+        
+        // PR = P*R and S = I + R'*PR (symmetric; lower half used)
+        if (P != null) SimpleBlas.gemm(1.0, P, rBlock, 0.0, prBlock);
+        else           pMat.mmuli(rBlock, prBlock);
+        for (int j = 0; j < k; j++)
+            for (int i = j; i < k; i++) {
+                double sum = (i == j) ? 1.0 : 0.0;
+                for (int n = 0, a = N*i, b = N*j; n < N; n++)
+                    sum += R[a + n]*PR[b + n];
+                S[k*j + i] = sum;
+            }
         
-        DoubleMatrix readout = new DoubleMatrix(M);
-        getReadout(r, res.t(), readout);
+        // S = L*L' (in place, lower)
+        for (int j = 0; j < k; j++) {
+            double d = S[k*j + j];
+            for (int m = 0; m < j; m++)
+                d -= S[k*m + j]*S[k*m + j];
+            if (!(d > 0))
+                throw new IllegalStateException("block update is not positive definite");
+            d = Math.sqrt(d);
+            S[k*j + j] = d;
+            for (int i = j + 1; i < k; i++) {
+                double v = S[k*j + i];
+                for (int m = 0; m < j; m++)
+                    v -= S[k*m + i]*S[k*m + j];
+                S[k*j + i] = v/d;
+            }
+        }
         
-        DoubleMatrix target = new DoubleMatrix(M);
-        targetStream.getInput(res.t(), target);  
+        // Q = PR*inv(L'), E = E*inv(L'), then P -= Q*Q', wOut -= E*Q'
+        solveLowerTransposed(PR, N, S, k);
+        solveLowerTransposed(E, M, S, k);
+        double[] Qt = qtBlock.data;
+        for (int j = 0; j < k; j++)
+            for (int n = 0; n < N; n++)
+                Qt[j + k*n] = PR[N*j + n];
+        if (P != null)
+            SimpleBlas.gemm(-1.0, prBlock, qtBlock, 1.0, P);
+        else
+            for (int j = 0; j < k; j++) {                   // one pass per column of Q
+                System.arraycopy(PR, N*j, prBuf.data, 0, N);
+                pMat.ger(-1.0, prBuf.data, prBuf.data);
+            }
+        SimpleBlas.gemm(-1.0, eBlock, qtBlock, 1.0, wOut);
+    }
+    
+    // X = X*inv(L') in place, for X n x k and L k x k lower triangular
+    private static void solveLowerTransposed(double[] X, int n, double[] L, int k) {
+        for (int j = 0; j < k; j++) {
+            for (int m = 0; m < j; m++) {
+                double l = L[k*m + j];
+                for (int i = 0, a = n*j, b = n*m; i < n; i++)
+                    X[a + i] -= l*X[b + i];
+            }
+            double d = 1.0/L[k*j + j];
+            for (int i = 0, a = n*j; i < n; i++)
+                X[a + i] *= d;
+        }
+    }
+    
+    // the RLS update for rates r and error readout - target
+    // (by the SIMD kernels if available, otherwise by jBlas; other 
+    // storage of P does its own products)
+    private void update(DoubleMatrix r, DoubleMatrix error) {
+        boolean simd = Kernels.vectorized();
+        if (P == null)     pMat.mmuli(r, prBuf);
+        else if (simd)     Kernels.gemv(N, N, P.data, r.data, prBuf.data);
+        else               SimpleBlas.gemv(1.0, P, r, 0.0, prBuf);   // Pr = P*r
+        double c = 1.0/(1.0 + SimpleBlas.dot(r, prBuf));
+        if (P == null)     pMat.ger(-c, prBuf.data, prBuf.data);
+        else if (simd)     Kernels.syr(N, -c, prBuf.data, P.data);
+        else               SimpleBlas.ger(-c, prBuf, prBuf, P);     // P -= c*Pr*Pr'
+        SimpleBlas.ger(-c, error, prBuf, wOut);                    // wOut -= c*e*Pr'
+    }
+    
+    /**********************************************************************
+     * Checkpointing
+     **********************************************************************/
+    /**
+     * Write the weights, the learning rate and the correlation estimate P.
+     * The state of the target stream is checkpointed separately, and 
+     * samples buffered for block learning are not checkpointed.
+     * @param out the checkpoint writer
+     */
+    @Override
+    public void writeState(Checkpoint.Writer out) {
+        super.writeState(out);
+        out.putDouble(alpha);
+        pMat.writeState(out);      // as putMatrix(P), unless too large (see OffHeapMatrix)
+    }
+    
+    /**
+     * Restore the weights, the learning rate and the correlation estimate P.
+     * @param in the checkpoint reader
+     */
+    @Override
+    public void readState(Checkpoint.Reader in) {
+        super.readState(in);
+        alpha = in.getDouble();
+        ensureOwnP();
+        pMat.readState(in);
+    }
+    
+    /**********************************************************************
+     * Unit testing
+     **********************************************************************/
+    public static void main(String[] args) {
+        int N = 1000;
+        
+        StdOut.println("Testing update against the matrix form...");
+        Reservoir res = new Reservoir(N, 0.1, 1.5);
+        ReadoutLearningRLS ro = new ReadoutLearningRLS(sines(3), N, 1.0);
+        res.setFeedback(ro);
+        for (int i = 0; i < 20; i++) {
+            res.step();
+            ro.learn(res);
+        }
+        res.step();
+        DoubleMatrix P0 = ro.P.dup(), w0 = ro.wOut.dup();
+        DoubleMatrix r = res.getR(new DoubleMatrix(N));
+        DoubleMatrix error = w0.mmul(r).subi(ro.targetStream.getInput(res.t(), new DoubleMatrix(3)));
+        DoubleMatrix norm = r.transpose().mmul(P0).mmul(r).addi(1.0);
+        P0.subi( P0.mmul(r).mmul(r.transpose()).mmul(P0).divi(norm) );
+        w0.subi( error.mmul(r.transpose().mmul(P0)) );
+        ro.learn(res);
+        StdOut.println("difference in P: " + P0.sub(ro.P).normmax()
+                       + ", in wOut: " + w0.sub(ro.wOut).normmax());
+        assert(P0.sub(ro.P).normmax() < 1e-10 && w0.sub(ro.wOut).normmax() < 1e-10);
         
-        DoubleMatrix error = readout.sub(target);
+        StdOut.println("Testing a rank-10 block update against 10 rank-1 updates...");
+        res = new Reservoir(N, 0.1, 1.5);
+        ReadoutLearningRLS seq = new ReadoutLearningRLS(sines(3), N, 1.0);
+        ReadoutLearningRLS blk = seq.fork();
+        blk.setBlockSize(10);
+        DoubleMatrix tg = new DoubleMatrix(3);
+        for (int i = 0; i < 25; i++) {          // two full blocks and a partial one
+            res.step();
+            seq.learn(res.rates(), res.t(), seq.targetStream.getInput(res.t(), tg));
+            assert(blk.addSample(res) == (i % 10 == 9));
+        }
+        assert(blk.pendingSamples() == 5 && blk.learnBlock() && blk.pendingSamples() == 0);
+        StdOut.println("difference in P: " + seq.P.sub(blk.P).normmax()
+                       + ", in wOut: " + seq.wOut.sub(blk.wOut).normmax());
+        assert(seq.P.sub(blk.P).normmax() < 1e-10 && seq.wOut.sub(blk.wOut).normmax() < 1e-10);
         
-        DoubleMatrix norm = r.transpose().mmul(P).mmul(r).addi(1.0);
-        P.subi( P.mmul(r).mmul(r.transpose()).mmul(P).divi(norm) );
+        StdOut.println("Time per sample, rank-1 vs block updates, N = " + N + ":");
+        res.step();
+        for (int k : new int[] {1, 5, 10, 20}) {
+            ro = new ReadoutLearningRLS(sines(1), N, 1.0);
+            if (k > 1) ro.setBlockSize(k);
+            int nSamples = 200;
+            Stopwatch sw = new Stopwatch();
+            for (int i = 0; i < nSamples; i++) {
+                if (k == 1) ro.learn(res);
+                else        ro.addSample(res);
+            }
+            StdOut.printf("k = %2d: %.3f ms%n", k, 1000*sw.elapsedTime()/nSamples);
+        }
         
-        wOut.subi( error.mmul(r.transpose().mmul(P)) );
+        StdOut.println("FORCE learning, one update every 10 steps, N = 500:");
+        Streams.InputStream wave = new Streams.TriangleWave(0.5);
+        Reservoir start = new Reservoir(500, 0.1, 1.5);
+        start.step(200);
+        for (boolean block : new boolean[] {false, true}) {
+            Reservoir net = start.fork();
+            ReadoutLearningRLS force = new ReadoutLearningRLS(wave, 500, 1.0);
+            net.setFeedback(force);
+            if (block) force.setBlockSize(10);
+            for (int i = 0; i < 3000; i++) {
+                net.step();
+                if (block)            force.addSample(net);
+                else if (i % 10 == 0) force.learn(net);
+            }
+            double err = 0.0;
+            for (int i = 0; i < 1000; i++) {
+                net.step();
+                double e = force.getReadoutArray(net)[0] - force.getTargetReadoutArray(net.t())[0];
+                err += e*e;
+            }
+            StdOut.printf("  %-22s test rms error %.4f%n",
+                          block ? "rank-10 block updates:" : "every 10th step:", Math.sqrt(err/1000));
+        }
+        
+        StdOut.println("Time per learn() call vs number of readouts, N = " + N + ":");
+        for (int M : new int[] {1, 5, 10, 20, 50}) {
+            res = new Reservoir(N, 0.1, 1.5);
+            ro = new ReadoutLearningRLS(sines(M), N, 1.0);
+            res.setFeedback(ro);
+            res.step();
+            for (int i = 0; i < 20; i++) ro.learn(res);   // warm up
+            int nLearn = 200;
+            Stopwatch sw = new Stopwatch();
+            for (int i = 0; i < nLearn; i++) ro.learn(res);
+            StdOut.printf("M = %2d: %.3f ms%n", M, 1000*sw.elapsedTime()/nLearn);
+        }
     }
     
-}
\ No newline at end of file
+    // M sine waves of different periods
+    private static Streams.InputStream sines(final int M) {
+        return new Streams.InputStream() {
+            public int size() { return M; }
+            public DoubleMatrix getInput(double t, DoubleMatrix input) {
+                for (int i = 0; i < M; i++)
+                    input.put(i, Math.sin(2*Math.PI*t/(0.2 + 0.05*i)));
+                return input;
+            }
+        };
+    }
+}
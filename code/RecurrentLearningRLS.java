@@ -0,0 +1,314 @@
+/*************************************************************************
+ *  Compilation:  javac RecurrentLearningRLS.java
+ *  Author:  Phillip B. Schafer
+ *
+ *  RLS training of the recurrent weights of a Reservoir.
+ *
+ *  Dependencies:
+ *   JBlas library
+ *   StdOut, Stopwatch (Algs-4)
+ *************************************************************************/
+import org.jblas.DoubleMatrix;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ *  Trains a subset of the rows of a network's connection matrix W by
+ *  recursive least squares, so that the trained neurons follow target
+ *  rates (Laje and Buonomano 2013, "innate training"; Sussillo and
+ *  Abbott 2009, "FORCE" with learning inside the network).
+ *  <p>
+ *  Row i is trained only on its presynaptic inputs pre(i), the stored
+ *  entries of the row when training starts, and has its own correlation
+ *  estimate P_i of size |pre(i)| x |pre(i)|.  With r_i the rates of those
+ *  inputs, k = P_i*r_i and c = 1/(1 + r_i'*k), one update is
+ *  <pre>
+ *     P_i         -= c * k*k'
+ *     W(i, pre(i)) -= c * e_i * k'
+ *  </pre>
+ *  where e_i is the rate of neuron i minus its target.  Memory is
+ *  sum |pre(i)|^2, about nRows*(pN)^2 doubles for a sparse network.
+ *  <p>
+ *  Rows are independent, so they are updated in parallel on a
+ *  <tt>ForkJoinPool</tt>.  W is modified in place through the network's
+ *  <nn>Connectivity.WeightMatrix</nn>, dense or sparse; if W is shared
+ *  with forks or snapshots it is copied first.  A <nn>SpikingReservoir</nn>
+ *  cannot be trained this way, since it keeps quantities derived from W
+ *  that in-place updates would leave stale.
+ */
+public class RecurrentLearningRLS {
+    private static final int GRAIN = 4;   // rows per task
+
+    private final Reservoir res;
+    private final Streams.InputStream target;
+    private final int[] rows;       // trained rows
+    private final int[][] pre;      // presynaptic inputs of each row
+    private final double[][] P;     // correlation estimates (row-major)
+    private final double[][] rBuf;  // gathered presynaptic rates, per row
+    private final double[][] kBuf;  // P_i*r_i, per row
+    private final DoubleMatrix targetBuf;
+    private final ForkJoinPool pool;
+    private boolean parallel = true;
+
+    // state of the current update, read by the row tasks
+    private Connectivity.WeightMatrix wMat;
+    private double[] r;
+
+    /**
+     * Train the given rows of W toward a target.
+     * @param res the network
+     * @param rows the rows (neurons) to train
+     * @param target the target rates, one per trained row
+     * @param alpha the learning rate (P_i starts as I/alpha)
+     * @throws IllegalArgumentException if the target has the wrong size,
+     *   a row index is out of range, the network is a
+     *   <nn>SpikingReservoir</nn>, or its W cannot be modified
+     *   (<nn>Connectivity.Procedural</nn>)
+     */
+    public RecurrentLearningRLS(Reservoir res, int[] rows, Streams.InputStream target, double alpha) {
+        if (res instanceof SpikingReservoir)
+            throw new IllegalArgumentException("cannot train the recurrent weights of a spiking network");
+        if (target.size() != rows.length)
+            throw new IllegalArgumentException("target must have one value per trained row");
+        this.res    = res;
+        this.target = target;
+        this.rows   = rows.clone();
+        int n = rows.length;
+        pre  = new int[n][];
+        P    = new double[n][];
+        rBuf = new double[n][];
+        kBuf = new double[n][];
+        Connectivity.WeightMatrix w = res.getConnectivity();
+        if (w instanceof Connectivity.Procedural)
+            throw new IllegalArgumentException("procedural weights cannot be trained");
+        for (int q = 0; q < n; q++) {
+            if (rows[q] < 0 || rows[q] >= res.size())
+                throw new IllegalArgumentException("no row " + rows[q]);
+            pre[q] = w.rowSupport(rows[q]);
+            int m = pre[q].length;
+            P[q] = new double[m*m];
+            for (int j = 0; j < m; j++)
+                P[q][j*m + j] = 1.0/alpha;
+            rBuf[q] = new double[m];
+            kBuf[q] = new double[m];
+        }
+        targetBuf = new DoubleMatrix(n);
+        pool = ForkJoinPool.commonPool();
+    }
+
+    /**
+     * Train all rows of W toward a target.
+     * @param res the network
+     * @param target the target rates of all N neurons
+     * @param alpha the learning rate
+     */
+    public RecurrentLearningRLS(Reservoir res, Streams.InputStream target, double alpha) {
+        this(res, allRows(res.size()), target, alpha);
+    }
+
+    private static int[] allRows(int N) {
+        int[] rows = new int[N];
+        for (int i = 0; i < N; i++) rows[i] = i;
+        return rows;
+    }
+
+    /**
+     * Turn parallel row updates on or off (default on).
+     * @param on whether to update rows in parallel
+     */
+    public void setParallel(boolean on) {
+        parallel = on;
+    }
+
+    /** @return the number of trained rows */
+    public int size() {
+        return rows.length;
+    }
+
+    /**
+     * Get the current errors, rate minus target, of the trained neurons.
+     * @param out the errors (overwritten)
+     * @return out, for convenience only
+     */
+    public double[] getError(double[] out) {
+        double[] rates = res.rates().data;
+        target.getInput(res.t(), targetBuf);
+        for (int q = 0; q < rows.length; q++)
+            out[q] = rates[rows[q]] - targetBuf.data[q];
+        return out;
+    }
+
+    /**
+     * Perform one RLS update of the trained rows, using the current state
+     * of the network and the target at the current time.
+     */
+    public void learn() {
+        res.ensureOwnW();
+        wMat = res.getConnectivity();
+        r = res.rates().data;
+        target.getInput(res.t(), targetBuf);
+        if (parallel && rows.length > GRAIN)
+            pool.invoke(new RowTask(0, rows.length));
+        else
+            updateRows(0, rows.length);
+        r = null;
+    }
+
+    private class RowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int lo, hi;
+        RowTask(int lo, int hi) { this.lo = lo; this.hi = hi; }
+        protected void compute() {
+            if (hi - lo <= GRAIN) {
+                updateRows(lo, hi);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new RowTask(lo, mid), new RowTask(mid, hi));
+        }
+    }
+
+    private void updateRows(int lo, int hi) {
+        for (int q = lo; q < hi; q++)
+            updateRow(q);
+    }
+
+    private void updateRow(int q) {
+        int[] cols = pre[q];
+        int m = cols.length;
+        double[] p = P[q], rp = rBuf[q], k = kBuf[q];
+        for (int j = 0; j < m; j++)
+            rp[j] = r[cols[j]];
+
+        // k = P*r (P symmetric), c = 1/(1 + r'k)
+        double rk = 0.0;
+        for (int a = 0; a < m; a++) {
+            double sum = 0.0;
+            int off = a*m;
+            for (int b = 0; b < m; b++)
+                sum += p[off + b]*rp[b];
+            k[a] = sum;
+            rk += rp[a]*sum;
+        }
+        double c = 1.0/(1.0 + rk);
+
+        // P -= c*k*k'
+        for (int a = 0; a < m; a++) {
+            double ck = c*k[a];
+            int off = a*m;
+            for (int b = 0; b < m; b++)
+                p[off + b] -= ck*k[b];
+        }
+
+        // W(i, pre(i)) -= c*e*k'
+        int i = rows[q];
+        double e = r[i] - targetBuf.data[q];
+        wMat.rowAxpy(i, cols, -c*e, k);
+    }
+
+    /**********************************************************************
+     *  Unit testing
+     **********************************************************************/
+    public static void main(String[] args) {
+        final int N = 300, nT = 600;
+        double p = 0.2, g = 1.5;
+
+        // record an innate trajectory from a fixed initial state
+        Reservoir res = new Reservoir(N, p, g);
+        res.useSparseW();
+        DoubleMatrix x0 = res.x.dup();
+        Reservoir.Snapshot start = res.snapshot();
+        final double[][] innate = new double[nT][];
+        for (int t = 0; t < nT; t++) {
+            res.step();
+            innate[t] = res.getRArray();
+        }
+
+        // target stream replaying the innate rates, indexed by step
+        final int[] step = new int[1];
+        Streams.InputStream target = new Streams.InputStream() {
+            public int size() { return N; }
+            public DoubleMatrix getInput(double t, DoubleMatrix input) {
+                System.arraycopy(innate[step[0]], 0, input.data, 0, N);
+                return input;
+            }
+        };
+
+        StdOut.println("Training all rows of W toward the innate trajectory...");
+        Reservoir net = new Reservoir(start);
+        RecurrentLearningRLS learner = new RecurrentLearningRLS(net, target, 1.0);
+        Stopwatch sw = new Stopwatch();
+        int nLearn = 0;
+        for (int trial = 0; trial < 10; trial++) {
+            DoubleMatrix perturbed = x0.add(DoubleMatrix.randn(N).muli(0.05));
+            net.setX(perturbed);
+            for (step[0] = 0; step[0] < nT; step[0]++) {
+                net.step();
+                if (step[0] % 2 == 0) {
+                    learner.learn();
+                    nLearn++;
+                }
+            }
+        }
+        StdOut.printf("%d updates in %.2f s (%.2f ms each)%n",
+                      nLearn, sw.elapsedTime(), 1000*sw.elapsedTime()/nLearn);
+
+        StdOut.println("Testing from a perturbed initial state (rms error vs innate):");
+        DoubleMatrix perturbation = DoubleMatrix.randn(N).muli(0.05);
+        Reservoir trained = net.fork();
+        Reservoir untrained = new Reservoir(start);
+        trained.setX(x0.add(perturbation));
+        untrained.setX(x0.add(perturbation));
+        double[] err = new double[2];
+        for (int t = 0; t < nT; t++) {
+            trained.step();
+            untrained.step();
+            double[] a = trained.getRArray(), b = untrained.getRArray();
+            for (int i = 0; i < N; i++) {
+                err[0] += (a[i] - innate[t][i])*(a[i] - innate[t][i]);
+                err[1] += (b[i] - innate[t][i])*(b[i] - innate[t][i]);
+            }
+        }
+        double rmsTrained = Math.sqrt(err[0]/(nT*N)), rmsUntrained = Math.sqrt(err[1]/(nT*N));
+        StdOut.printf("trained: %.4f, untrained: %.4f%n", rmsTrained, rmsUntrained);
+        assert(rmsTrained < rmsUntrained);
+
+        StdOut.println("Testing dense and sparse W, sequential and parallel, give the same update...");
+        Reservoir sparse = new Reservoir(start);        // start is sparse
+        Reservoir dense  = new Reservoir(start);
+        dense.setConnectivity(new Connectivity.Dense(sparse.getW(new DoubleMatrix())));
+        int[] some = {0, 5, 17, 42, 99, 150, 151, 152, 153, 299};
+        Streams.InputStream zeros = new Streams.InputStream() {
+            public int size() { return 10; }
+            public DoubleMatrix getInput(double t, DoubleMatrix input) { return input.fill(0.0); }
+        };
+        RecurrentLearningRLS ld = new RecurrentLearningRLS(dense, some, zeros, 1.0);
+        RecurrentLearningRLS ls = new RecurrentLearningRLS(sparse, some, zeros, 1.0);
+        ld.setParallel(false);
+        for (int t = 0; t < 20; t++) {
+            dense.step();
+            sparse.step();
+            ld.learn();
+            ls.learn();
+        }
+        DoubleMatrix wd = dense.getW(new DoubleMatrix());
+        DoubleMatrix ws = sparse.getW(new DoubleMatrix());
+        StdOut.println("max difference: " + wd.sub(ws).normmax());
+        assert(wd.sub(ws).normmax() < 1e-10);
+        assert(!wd.equals(new Reservoir(start).getW(new DoubleMatrix())));
+
+        StdOut.println("Testing that a spiking network is refused...");
+        try {
+            new RecurrentLearningRLS(new SpikingReservoir(100, 0.1, 1.0), some, zeros, 1.0);
+            assert(false);
+        } catch (IllegalArgumentException e) { }
+
+        StdOut.println("Testing that procedural weights are refused...");
+        try {
+            new RecurrentLearningRLS(new Reservoir(new Connectivity.Procedural(N, p, g, 1L), 0.01, 0.001),
+                                     some, zeros, 1.0);
+            assert(false);
+        } catch (IllegalArgumentException e) { }
+    }
+}
@@ -10,6 +10,7 @@
  * 
  *  Dependencies: 
  *   JBlas library
+ *   Kernels
  *   StdRandom, Stopwatch (Algs-4)
  *************************************************************************/
 import org.jblas.DoubleMatrix;
@@ -20,14 +21,21 @@ import org.jblas.MatrixFunctions;
  *  Connection weights are sparse and drawn from a normal distribution; 
  *  they are represented by a 2D matrix (JBlas library) and scaled
  *  by g/sqrt(N*p) (Sussillo & Abbott 2009, p. 556).
+ *  The matrix can be switched to sparse (CSR) storage, optionally with
+ *  neurons renumbered for locality or cut into cache blocks, to quantized
+ *  (int8, fp16) storage, or to any
+ *  other <nn>Connectivity.WeightMatrix</nn> backend; with the matrix-free
+ *  <nn>Connectivity.Procedural</nn> (passed to the constructor) the memory
+ *  of a network is O(N).
  *  Activity is represented as a 1D matrix of firing rates.
  *  <p>
  *  Dynamics are those of a leaky integrator.  
  *  Feedback into the network is optionally provided by a 
  *  <nn>Streams.Feedback</nn> object.  
- *  Input is optionally provided by a <nn>Streams.Input</nn> object.  
+ *  Input is optionally provided by a <nn>Streams.Input</nn> object, 
+ *  and/or by an <nn>InputLayer</nn> projecting a low-dimensional input.  
  */
-public class Reservoir {
+public class Reservoir implements Checkpoint.Checkpointable {
     protected int    N;          // number of neurons
     protected double dt;         // integration step size
     protected double t;          // the current time
@@ -35,13 +43,20 @@ public class Reservoir {
     
     protected DoubleMatrix x;    // subthreshold states of the neurons
     protected DoubleMatrix r;    // firing rates of the neurons
-    protected DoubleMatrix W;    // connection matrix
+    protected DoubleMatrix W;    // connection matrix (dense backend, else null)
+    protected Connectivity.WeightMatrix wMat; // connection matrix backend
     protected boolean rIsSet;    // for caching - current r was computed?
+    protected boolean wShared;   // W is shared with other networks (copy on write)
+    protected long version;      // advanced whenever x, r or t change
+    protected Nonlinearity.Function phi = Nonlinearity.TANH; // r = phi(x)
     
     protected NetworkEq dynEq;   // nested dynamical equation class
     protected VectorODESolver.Integrator integrator;
     protected Streams.InputStream input;
+    protected InputLayer inputLayer;
     protected Streams.Feedback feedback;
+    protected Streams.LowRankFeedback lowRank; // feedback, if of low rank
+    protected DoubleMatrix fbCoef;             // its coefficients (e.g. readout)
     
     /**
      * Initialize a network of N neurons with integration step size dt 
@@ -88,6 +103,7 @@ public class Reservoir {
                     W.put(i, j, 0.0);
             }
         }
+        wMat = new Connectivity.Dense(W);
     }   
     
     /**
@@ -109,7 +125,82 @@ public class Reservoir {
     public Reservoir(int N, double p, double g) {
         this(N, p, g, 0.01, 0.001);
     }
-    
+
+    /**
+     * Initialize a network on an existing connection matrix, with small,
+     * random initial activity.  The matrix is shared, NOT copied, so that
+     * many networks (e.g. in a parameter sweep) can run on the same weights.
+     * The shared matrix should be treated as read-only.
+     * @param W the (square) connection matrix
+     * @param tau the time constant of the neurons
+     * @param dt the integration time step
+     * @throws IllegalArgumentException if <tt>W</tt> is not square
+     * @throws IllegalArgumentException if <tt>dt</tt> is infinite or NaN
+     * @throws IllegalArgumentException if <tt>tau</tt> is nonpositive, infinite, or NaN
+     */
+    public Reservoir(DoubleMatrix W, double tau, double dt) {
+        this(new Connectivity.Dense(W), tau, dt);
+    }
+
+    /**
+     * Initialize a network on an existing connection matrix in any storage 
+     * backend, with small, random initial activity.  The matrix is shared, 
+     * NOT copied, and should be treated as read-only.
+     * @param W the (square) connection matrix
+     * @param tau the time constant of the neurons
+     * @param dt the integration time step
+     * @throws IllegalArgumentException if <tt>W</tt> is not square
+     * @throws IllegalArgumentException if <tt>dt</tt> is infinite or NaN
+     * @throws IllegalArgumentException if <tt>tau</tt> is nonpositive, infinite, or NaN
+     */
+    public Reservoir(Connectivity.WeightMatrix W, double tau, double dt) {
+        if (W.rows() != W.columns() || W.rows() <= 0)
+            throw new IllegalArgumentException("W must be a nonempty square matrix");
+        if (Double.isInfinite(tau) || Double.isNaN(tau) || tau <=0)
+            throw new IllegalArgumentException("tau must be a positive finite number");
+        if (Double.isInfinite(dt) || Double.isNaN(dt))
+            throw new IllegalArgumentException("dt must be a finite number");
+
+        this.N   = W.rows();
+        this.dt  = dt;
+        this.tau = tau;
+        this.t   = 0.0;
+        setWeights(W);
+        wShared  = true;
+        integrator = new VectorODESolver.RKIntegrator(N);
+        dynEq      = new NetworkEq(N);
+
+        x = DoubleMatrix.randn(N).muli(0.1);
+        r = new DoubleMatrix(N);
+        rIsSet = false;
+    }
+
+    /**
+     * Initialize a network from a snapshot.  The connection matrix is 
+     * shared with the snapshot; only the O(N) state is copied.  
+     * Input and feedback streams are not part of a snapshot and are off.
+     * @param snap the snapshot
+     * @throws IllegalArgumentException if the snapshot is of another kind
+     *   of network (e.g. a <nn>SpikingReservoir</nn>)
+     */
+    public Reservoir(Snapshot snap) {
+        if (!snap.network().isInstance(this))
+            throw new IllegalArgumentException("snapshot of a " + snap.network().getName());
+        this.N   = snap.x.length;
+        this.dt  = snap.dt;
+        this.tau = snap.tau;
+        this.t   = snap.t;
+        this.phi = snap.phi;
+        setWeights(snap.W);
+        wShared  = true;
+        integrator = new VectorODESolver.RKIntegrator(N);
+        dynEq      = new NetworkEq(N);
+
+        x = snap.x.dup();
+        r = new DoubleMatrix(N);
+        rIsSet = false;
+    }
+
     /**********************************************************************
      *  Set/Get
      **********************************************************************/
@@ -151,17 +242,156 @@ public class Reservoir {
      * @return the weight matrix (for convenience)
      */
     public DoubleMatrix getW(DoubleMatrix Wout) {
-        Wout.copy(W);
-        return Wout;
+        return wMat.toDense(Wout);
     }
     
     /** 
-     * Set the weight matrix
+     * Set the weight matrix.  With a non-dense backend, the new matrix is 
+     * stored in sparse format.
      * @param the weight matrix
      */
     public void setW(DoubleMatrix Win) {
-        W.assertSameSize(Win);
-        W.copy(Win);
+        if (Win.rows != N || Win.columns != N)
+            throw new IllegalArgumentException("W must be N x N");
+        if (W == null)
+            setWeights(Connectivity.Sparse.fromDense(Win));
+        else if (wShared)        // copy on write
+            setWeights(new Connectivity.Dense(Win.dup()));
+        else {
+            W.copy(Win);
+            weightsChanged();
+        }
+        wShared = false;
+    }
+    
+    /**
+     * Set the activation function r = phi(x) (tanh by default).
+     * @param phi the activation function
+     */
+    public void setNonlinearity(Nonlinearity.Function phi) {
+        this.phi = phi;
+        rIsSet = false;
+        version++;
+    }
+    
+    /**
+     * Get the activation function.
+     * @return the activation function
+     */
+    public Nonlinearity.Function getNonlinearity() {
+        return phi;
+    }
+    
+    /**
+     * Get the connection matrix backend used by the dynamics.  
+     * It is shared, not copied, and should be treated as read-only.
+     * @return the connection matrix
+     */
+    public Connectivity.WeightMatrix getConnectivity() {
+        return wMat;
+    }
+    
+    /**
+     * Replace the connection matrix backend.  The matrix is shared, NOT
+     * copied, and is treated as read-only (copied on write).
+     * @param Wnew the new (N x N) connection matrix
+     * @throws IllegalArgumentException if <tt>Wnew</tt> is not N x N
+     */
+    public void setConnectivity(Connectivity.WeightMatrix Wnew) {
+        if (Wnew.rows() != N || Wnew.columns() != N)
+            throw new IllegalArgumentException("W must be N x N");
+        setWeights(Wnew);
+        wShared = true;
+    }
+    
+    /**
+     * Multiply the connection matrix by a constant, in place 
+     * (see <tt>WeightSpectrum.rescale</tt> to set the spectral radius).
+     * @param a the factor
+     */
+    public void scaleW(double a) {
+        ensureOwnW();
+        wMat.scalei(a);
+        weightsChanged();
+    }
+    
+    /**
+     * Switch to sparse (CSR) storage of the connection matrix, keeping 
+     * its nonzero entries.  Products then cost O(pN^2) instead of O(N^2).
+     */
+    public void useSparseW() {
+        if (W != null) {
+            setWeights(Connectivity.Sparse.fromDense(W));
+            wShared = false;
+        }
+    }
+    
+    /**
+     * Renumber the neurons inside the connection matrix for locality
+     * (reverse Cuthill-McKee), keeping CSR storage (see
+     * <nn>Connectivity.Permuted</nn>).  The renumbering is invisible outside
+     * the matrix: rates, states, readouts and recorders keep the original
+     * neuron order.  It pays for networks with local structure under an
+     * arbitrary labeling, too large for x to stay in cache.
+     */
+    public void reorderW() {
+        setWeights(Connectivity.Permuted.reorder(Connectivity.toSparse(wMat)));
+        wShared = false;
+    }
+    
+    /**
+     * Switch to cache-blocked sparse storage of the connection matrix,
+     * optionally renumbering the neurons as in <tt>reorderW</tt> (see
+     * <nn>Connectivity.Blocked</nn>).  Blocking helps only when rows have
+     * several nonzeros per block; otherwise plain CSR (<tt>useSparseW</tt>,
+     * <tt>reorderW</tt>) is faster.
+     * @param width the number of columns per block, at most 2^16 (e.g.
+     *   <tt>Connectivity.Blocked.DEFAULT_WIDTH</tt>)
+     * @param reorder whether to renumber the neurons
+     * @throws IllegalArgumentException if <tt>width</tt> is not in [1, 2^16]
+     */
+    public void useBlockedW(int width, boolean reorder) {
+        Connectivity.Sparse S = Connectivity.toSparse(wMat);
+        setWeights(reorder ? Connectivity.Permuted.reorder(S, width) : Connectivity.Blocked.of(S, width));
+        wShared = false;
+    }
+    
+    /**
+     * Switch to quantized (int8 or fp16) storage of the connection matrix,
+     * with a scale factor per row (see <nn>QuantizedMatrix</nn>).  A sparse
+     * matrix keeps its pattern.  The weights are rounded once, so the
+     * dynamics change slightly.
+     * @param format the format of the weights
+     */
+    public void quantizeW(QuantizedMatrix.Format format) {
+        setWeights(QuantizedMatrix.quantize(wMat, format));
+        wShared = false;
+    }
+    
+    // set the backend; W aliases the dense matrix when there is one
+    private void setWeights(Connectivity.WeightMatrix m) {
+        wMat = m;
+        W = (m instanceof Connectivity.Dense) ? ((Connectivity.Dense) m).W : null;
+        weightsChanged();
+    }
+    
+    /**
+     * Called after every change of the connection matrix made by this
+     * class: a new backend or matrix, rescaling, or restoring from a
+     * checkpoint.  Subclasses that keep quantities derived from W update
+     * them here.  Changes made through the backend itself (e.g.
+     * <tt>rowAxpy</tt>) do not call it.  May be called from the
+     * constructor, before a subclass is initialized.
+     */
+    protected void weightsChanged() {
+    }
+    
+    // make W private to this network before modifying it in place
+    protected void ensureOwnW() {
+        if (wShared) {
+            setWeights(wMat.copy());
+            wShared = false;
+        }
     }
     
     /** 
@@ -172,6 +402,16 @@ public class Reservoir {
         this.x.assertSameSize(x);
         this.x.copy(x);
         rIsSet = false;
+        version++;
+    }
+    
+    /** 
+     * Get the state version, which changes whenever the state x, the 
+     * rates r or the time change (see <nn>StepContext</nn>).  
+     * @return the state version
+     */
+    public long version() {
+        return version;
     }
     
     /**********************************************************************
@@ -205,8 +445,19 @@ public class Reservoir {
         return r.toArray();
     }
     
+    /** 
+     * Return the state r itself, not a copy, for recorders that read a 
+     * few entries per step.  The vector is overwritten as the network is 
+     * stepped and must not be modified.  
+     * @returns the state r
+     */
+    DoubleMatrix rates() {
+        setR();
+        return r;
+    }
+    
     // cache the value of r if necessary
-    private void setR() {
+    protected void setR() {
         if (!rIsSet) {
             applyNonlin(x, r); 
             rIsSet = true; 
@@ -234,19 +485,42 @@ public class Reservoir {
     }
     
     /** 
-     * Set the (optional) input stream for the network.  
-     * An input of <tt>null</tt> turns off the input stream.  
-     * @param in the input stream
+     * Set the (optional) input layer for the network, in addition to any 
+     * input stream.  Its input costs nothing while it is zero.  
+     * An input of <tt>null</tt> turns off the input layer.  
+     * @param in the input layer
+     * @throws IllegalArgumentException if the layer is the wrong size
+     */
+    public void setInputLayer(InputLayer in) {
+        if (in != null && in.size() != N)
+            throw new IllegalArgumentException("size of input layer must = N");
+        inputLayer = in;
+    }
+    
+    /** 
+     * Set the (optional) feedback stream for the network.  
+     * Low-rank feedback (<nn>Streams.LowRankFeedback</nn>, e.g. any 
+     * <nn>Readout</nn>) is added in the same pass as the recurrent product, 
+     * at a cost of O(NM) per stage.  
+     * An input of <tt>null</tt> turns off the feedback stream.  
+     * @param fb the feedback stream
      * @throws IllegalArgumentException if stream is the wrong size
      */
     public void setFeedback(Streams.Feedback fb) {
         if (fb == null) {
             dynEq.feedbackOn = false;
+            lowRank = null;
             return;
         }
         if (fb.fb_size() != N)
             throw new IllegalArgumentException("size of feedback stream must = N");
         feedback = fb;
+        lowRank  = null;
+        if (fb instanceof Streams.LowRankFeedback) {
+            lowRank = (Streams.LowRankFeedback) fb;
+            if (fbCoef == null || fbCoef.length != lowRank.rank())
+                fbCoef = new DoubleMatrix(lowRank.rank());
+        }
         dynEq.feedbackOn = true;
     }
     
@@ -260,6 +534,7 @@ public class Reservoir {
         integrator.Step(x, t, dynEq, dt);  // x += dx
         rIsSet = false;
         t += dt;
+        version++;
     }   
     
     /** 
@@ -271,17 +546,114 @@ public class Reservoir {
             step();
     }
     
+    /**********************************************************************
+     *  Snapshots and forks
+     **********************************************************************/
+    /**
+     * Create an independent copy of the network that shares the connection
+     * matrix.  Only the O(N) state (x, r, t) is copied, so many trials can
+     * be launched from a trained network cheaply.  The matrix is copied
+     * only if one of the networks later modifies it (<tt>setW</tt>).  
+     * The fork uses the same input and feedback streams; give it its own 
+     * (e.g. <tt>Readout.fork()</tt>) if they carry state that must not be 
+     * shared.
+     * @return the fork
+     */
+    public Reservoir fork() {
+        Reservoir f = new Reservoir(snapshot());
+        f.r.copy(r);
+        f.rIsSet = rIsSet;
+        f.setInput(dynEq.inputOn ? input : null);
+        f.setInputLayer(inputLayer);
+        f.setFeedback(dynEq.feedbackOn ? feedback : null);
+        return f;
+    }
+    
+    /**
+     * Take a snapshot of the current state.  The snapshot shares the
+     * connection matrix and holds a copy of x, so it is unaffected by
+     * further stepping of this network.
+     * @return the snapshot
+     */
+    public Snapshot snapshot() {
+        wShared = true;
+        return new Snapshot(wMat, phi, x.dup(), t, tau, dt);
+    }
+    
+    /**
+     * Immutable state of a network from which any number of networks can
+     * be started (<tt>new Reservoir(snapshot)</tt>).
+     */
+    public static class Snapshot {
+        private final Connectivity.WeightMatrix W;   // shared, never modified
+        private final Nonlinearity.Function phi;
+        private final DoubleMatrix x;
+        private final double t, tau, dt;
+        private Snapshot(Connectivity.WeightMatrix W, Nonlinearity.Function phi, DoubleMatrix x,
+                         double t, double tau, double dt) {
+            this.W = W; this.phi = phi; this.x = x; this.t = t; this.tau = tau; this.dt = dt;
+        }
+        /** A copy of a snapshot, for subclasses that add state. */
+        protected Snapshot(Snapshot s) {
+            this(s.W, s.phi, s.x, s.t, s.tau, s.dt);
+        }
+        /** @return the kind of network this snapshot starts */
+        protected Class<? extends Reservoir> network() { return Reservoir.class; }
+        public int size()  { return x.length; }
+        public double t()  { return t; }
+    }
+    
+    /**********************************************************************
+     *  Checkpointing
+     **********************************************************************/
+    /**
+     * Write the time, step size, time constant, state and weights.
+     * @param out the checkpoint writer
+     */
+    public void writeState(Checkpoint.Writer out) {
+        out.putDouble(t);
+        out.putDouble(dt);
+        out.putDouble(tau);
+        out.putMatrix(x);
+        out.putString(wMat.getClass().getName());
+        wMat.writeState(out);
+    }
+    
+    /**
+     * Restore the time, step size, time constant, state and weights.
+     * @param in the checkpoint reader
+     * @throws IllegalStateException if the stored network is a different size
+     */
+    public void readState(Checkpoint.Reader in) {
+        t   = in.getDouble();
+        dt  = in.getDouble();
+        tau = in.getDouble();
+        in.getMatrix(x);
+        String backend = in.getString();
+        if (!backend.equals(wMat.getClass().getName()))
+            throw new IllegalStateException("stored W uses backend " + backend);
+        ensureOwnW();
+        wMat.readState(in);
+        weightsChanged();
+        rIsSet = false;
+        version++;
+    }
+    
     /**********************************************************************
      *  Dynamical equation for network:
-     *  x'(x,t) = (-x + W*tanh(x) + input(t) + feedback(x,t))/tau
+     *  x'(x,t) = (-x + W*phi(x) + input(t) + feedback(x,t))/tau
      **********************************************************************/
-    private class NetworkEq implements VectorODESolver.DynamicalEquation {
-        private boolean inputOn    = false;
-        private boolean feedbackOn = false;
+    class NetworkEq implements VectorODESolver.DynamicalEquation {
+        boolean inputOn    = false;
+        boolean feedbackOn = false;
         private DoubleMatrix rr;   // pre-allocate for speed
+        private DoubleMatrix in, fb;
+        private DoubleMatrix u;    // input layer's M-vector, per network
         private int N;
         public NetworkEq(int N) {
             rr = new DoubleMatrix(N);
+            in = new DoubleMatrix(N);
+            fb = new DoubleMatrix(N);
             this.N = N;
         }
         public int N() {
@@ -292,21 +664,28 @@ public class Reservoir {
             rr.assertSameSize(xx);
             rr.assertSameSize(deriv);
             applyNonlin(xx, rr);                        // get firing rates
-            W.mmuli(rr, deriv);                         // get recurrent input
+            if (feedbackOn && lowRank != null) {        // recurrent input + feedback
+                lowRank.getFeedbackCoefficients(rr, tt, fbCoef);
+                wMat.mmuliLowRank(rr, lowRank.getFeedbackWeights(), fbCoef, deriv);
+            } else
+                wMat.mmuli(rr, deriv);                  // get recurrent input
             if (inputOn) {                              // add external input
                 assert (input != null) : "input was not defined";
-                DoubleMatrix ro = new DoubleMatrix(N);
-                input.getInput(tt, ro);
-                deriv.addi(ro);    
+                input.getInput(tt, in);
+                Kernels.axpy(N, 1.0, in.data, deriv.data);
+            }
+            if (inputLayer != null) {                   // add projected input
+                if (u == null || u.length != inputLayer.nInputs())
+                    u = new DoubleMatrix(inputLayer.nInputs());
+                inputLayer.addTo(tt, deriv.data, u);
             }
-            if (feedbackOn){                            // add feedback
+            if (feedbackOn && lowRank == null) {        // add feedback
                 assert (feedback != null) : "feedback was not defined";
-                DoubleMatrix fb = new DoubleMatrix(N);
                 feedback.getFeedback(rr, tt, fb);
-                deriv.addi(fb); 
+                Kernels.axpy(N, 1.0, fb.data, deriv.data);
             }
-            deriv.subi(x);                               // add leak term
-            return deriv.divi(tau);                      
+            Kernels.axpby(N, -1.0/tau, xx.data, 1.0/tau, deriv.data);  // leak, 1/tau
+            return deriv;
         }
     };
     
@@ -315,7 +694,7 @@ public class Reservoir {
      **********************************************************************/
     // input x, output r
     private void applyNonlin(DoubleMatrix x, DoubleMatrix r) {
-        r.copy(MatrixFunctions.tanh(x));
+        phi.apply(x.data, r.data, N);
     }
     
     /********************************************************************** 
@@ -367,7 +746,7 @@ public class Reservoir {
         StdOut.println("******************** Testing readout methods *********************");
         res = new Reservoir(3, 0.5);
         res.setR();                   // private setR method
-        assert(res.r.equals(MatrixFunctions.tanh(res.x))); // test nonlinearity
+        assert(res.r.sub(MatrixFunctions.tanh(res.x)).normmax() <= 4*Math.ulp(1.0)); // test nonlinearity (to 4 ulp)
         
         StdOut.println(res.r);
         StdOut.println(res);          // toString() method
@@ -381,6 +760,55 @@ public class Reservoir {
         testR = new DoubleMatrix();   // check that internal r is protected
         assert(!testR.equals(res.r));
         
+        StdOut.println("******************** Testing fork *********************");
+        res = new Reservoir(3, 0.5);
+        res.step();
+        Reservoir fork = res.fork();
+        assert(fork.W == res.W);       // weights shared
+        assert(fork.x != res.x);       // state copied
+        assert(fork.x.equals(res.x));
+        assert(fork.t() == res.t());
+        fork.step();
+        assert(!fork.x.equals(res.x)); // fork evolves independently
+        testW = new DoubleMatrix(new double[][] {{1,0,1},{0,1,0},{1,0,1}});
+        fork.setW(testW);              // copy on write
+        assert(fork.W != res.W);
+        assert(!res.W.equals(testW));
+        
+        StdOut.println("******************** Testing sparse backend *********************");
+        res = new Reservoir(50, 0.2);
+        Reservoir sparse = res.fork();
+        sparse.useSparseW();
+        assert(sparse.W == null);
+        assert(sparse.getW(new DoubleMatrix()).equals(res.W));
+        res.step(10);
+        sparse.step(10);
+        assert(res.x.distance2(sparse.x) < 1e-10); // same trajectory
+        
+        StdOut.println("******************** Testing reordered and blocked backends *****");
+        Reservoir reordered = res.fork(), blocked = res.fork();
+        reordered.reorderW();
+        blocked.useBlockedW(16, true);
+        assert(reordered.getW(new DoubleMatrix()).equals(res.W));
+        assert(blocked.getW(new DoubleMatrix()).equals(res.W));
+        res.step(10);
+        reordered.step(10);
+        blocked.step(10);
+        assert(res.x.distance2(reordered.x) < 1e-10);
+        assert(res.x.distance2(blocked.x) < 1e-10);
+        assert(Math.abs(res.getRArray()[7] - blocked.getRArray()[7]) < 1e-10); // original order
+        
+        StdOut.println("******************** Testing quantized backend ******************");
+        Reservoir quant = res.fork();
+        quant.quantizeW(QuantizedMatrix.Format.FP16);
+        assert(quant.W == null);
+        assert(quant.getW(new DoubleMatrix()).distance2(res.W) < 1e-3*res.W.norm2());
+        sparse.quantizeW(QuantizedMatrix.Format.INT8);
+        assert(((QuantizedMatrix) sparse.getConnectivity()).isSparse());
+        res.step(10);
+        quant.step(10);
+        assert(res.x.distance2(quant.x) < 1e-3*res.x.norm2()); // nearly the same
+        
         StdOut.println("******************** Testing stepping methods *********************");
         
         res = new Reservoir(3, 0.5);
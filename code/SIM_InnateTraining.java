@@ -0,0 +1,88 @@
+/*************************************************************************
+ *  Compilation:  javac SIM_InnateTraining.java
+ *  Author:  Phillip B. Schafer
+ *
+ *  Client code for training the recurrent weights of a chaotic network
+ *  toward its own innate trajectories (Laje & Buonomano 2013).
+ *
+ *  Dependencies:
+ *************************************************************************/
+import org.jblas.DoubleMatrix;
+/**
+ *  Client code for innate training.
+ *  Records the innate trajectories of a chaotic <tt>Reservoir</tt> from
+ *  several initial states (<tt>InnateTrajectory</tt>), trains all rows of
+ *  W to reproduce them from perturbed initial states
+ *  (<tt>RecurrentLearningRLS</tt>), and plots a trained trial.
+ */
+public class SIM_InnateTraining {
+
+    public static void main(String[] args) {
+
+        int N       = 500;    // number of neurons
+        int nTrials = 2;      // number of innate trajectories
+        int nSteps  = 1000;   // steps per trajectory
+        int nEpochs = 10;     // training passes over all trials
+        int learnInt = 2;     // # of integration time steps between updates
+        double noise = 0.05;  // size of initial-state perturbations
+
+        Reservoir reservoir = new Reservoir(N, 0.1, 1.5);
+        int[] all = new int[N];
+        for (int i = 0; i < N; i++) all[i] = i;
+
+        // Capture innate trajectories --------------------------------------
+        Stopwatch sw = new Stopwatch();
+        InnateTrajectory innate
+            = InnateTrajectory.inMemory(all, nSteps, nTrials, reservoir.dt());
+        DoubleMatrix[] x0 = new DoubleMatrix[nTrials];
+        for (int k = 0; k < nTrials; k++) {
+            x0[k] = DoubleMatrix.randn(N).muli(0.5);
+            reservoir.setX(x0[k]);
+            for (int iStep = 0; iStep < nSteps; iStep++) {
+                reservoir.step();
+                innate.record(reservoir, k, iStep);
+            }
+        }
+        StdOut.println("Simulation time:");
+        StdOut.println(sw.elapsedTime());
+
+        // Innate training ---------------------------------------------------
+        InnateTrajectory.Replay target = innate.replay();
+        RecurrentLearningRLS learner
+            = new RecurrentLearningRLS(reservoir, all, target, 1.0);
+        for (int epoch = 0; epoch < nEpochs; epoch++) {
+            for (int k = 0; k < nTrials; k++) {
+                reservoir.setX(x0[k].add(DoubleMatrix.randn(N).muli(noise)));
+                target.start(k, reservoir.t() + reservoir.dt());
+                for (int iStep = 0; iStep < nSteps; iStep++) {
+                    reservoir.step();
+                    if (iStep % learnInt == 0)
+                        learner.learn();
+                }
+            }
+        }
+        StdOut.println("Simulation time:");
+        StdOut.println(sw.elapsedTime());
+
+        // Testing -----------------------------------------------------------
+        int nTrack = 5;
+        StateRecorder resData = new StateRecorder(reservoir, 1, nSteps);
+        resData.addNeurons(nTrack);
+        StateRecorder tgData  = new StateRecorder(reservoir, 1, nSteps);
+        tgData.addTargets(target, 0, 1, 2, 3, 4);
+        reservoir.setX(x0[0].add(DoubleMatrix.randn(N).muli(noise)));
+        target.start(0, reservoir.t() + reservoir.dt());
+        for (int iStep = 0; iStep < nSteps; iStep++) {
+            reservoir.step();
+            resData.record();
+            tgData.record();
+        }
+        StdOut.println("Simulation time:");
+        StdOut.println(sw.elapsedTime());
+
+        // Plot
+        resData.plot(0, nTrack, "Selected neurons after training (perturbed start)");
+        tgData.plot(0, nTrack, "Innate trajectories of the same neurons");
+    }
+
+}
@@ -31,50 +31,47 @@ public class SIM_LearningRLS {
         reservoir.setFeedback(readout);
         
         // Track the first nTrack neurons, the readout, and the targetWave for plotting
+        // (all recorders share one computation of the readout and target per step)
+        StepContext ctx = new StepContext(reservoir, readout);
         int nTrack   = 5;                       // number of neurons to plot
-        int nReadout = readout.size();          // number of readouts to plot
-        String title = "Time series of selected reservoir neurons";
-        TimeSeriesPlotter2 resData              // time series for reservoir
-            = new TimeSeriesPlotter2(nTrack, title, reservoir.dt());
-        title = "Time series of readout neurons (pre-training)";
-        TimeSeriesPlotter2 roDataPre            // time series for readout
-            = new TimeSeriesPlotter2(nReadout, title, reservoir.dt()); 
-        title = "Time series of readout neurons (post-training)";
-        TimeSeriesPlotter2 roDataPost           // time series for readout
-            = new TimeSeriesPlotter2(nReadout, title, reservoir.dt()); 
-        title = "Target readout";
-        TimeSeriesPlotter2 tgData               // time series for readout
-            = new TimeSeriesPlotter2(nReadout, title, reservoir.dt()); 
-        title = "Error";
-        TimeSeriesPlotter2 errData              // time series for readout
-            = new TimeSeriesPlotter2(nReadout, title, reservoir.dt()); 
+        int nSteps   = 3500;                    // total number of time steps
+        StateRecorder resData    = new StateRecorder(ctx, 1, nSteps);   // reservoir
+        StateRecorder roDataPre  = new StateRecorder(ctx, 1, 2000);     // readout
+        StateRecorder roDataPost = new StateRecorder(ctx, 1, nSteps);   // readout
+        StateRecorder tgData     = new StateRecorder(ctx, 1, nSteps);   // target
+        StateRecorder errData    = new StateRecorder(ctx, 1, 3000);     // error
+        resData.addNeurons(nTrack);
+        roDataPre.addReadouts(readout);
+        roDataPost.addReadouts(readout);
+        tgData.addTargets(targetWave);
+        errData.addErrors(readout, targetWave);
         
         // Acclimation ------------------------------------------------------
         int nT = 500;    // number of simulation time steps for this segment
         Stopwatch sw = new Stopwatch();
         for (int iStep = 0; iStep < nT; iStep++) {
             reservoir.step();
-            resData.addTimePoint(reservoir.getRArray());
-            roDataPost.addTimePoint(readout.getReadoutArray(reservoir));
-            tgData.addTimePoint(readout.getTargetReadoutArray(reservoir.t()));
+            resData.record();
+            roDataPost.record();
+            tgData.record();
         }
         StdOut.println("Simulation time:");
         StdOut.println(sw.elapsedTime());
         
         // RLS learning -----------------------------------------------------
         int learnInt = 10; // # ofintegration time steps between learning updates
+        readout.setBlockSize(learnInt);   // one rank-learnInt update from all steps
         
         nT = 2000;  
         for (int iStep = 0; iStep < nT; iStep++) {
             StdOut.println(iStep);
             reservoir.step();
-            resData.addTimePoint(reservoir.getRArray());
-            tgData.addTimePoint(readout.getTargetReadoutArray(reservoir.t()));
-            roDataPre.addTimePoint(readout.getReadoutArray(reservoir));
-            errData.addTimePoint(readout.getErrorArray(reservoir));
-            if (iStep % learnInt == 0)
-                readout.learn(reservoir);
-            roDataPost.addTimePoint(readout.getReadoutArray(reservoir));
+            resData.record();
+            tgData.record();
+            roDataPre.record();
+            errData.record();
+            readout.addSample(ctx);
+            roDataPost.record();
         }
         StdOut.println("Simulation time:");
         StdOut.println(sw.elapsedTime());
@@ -83,20 +80,21 @@ public class SIM_LearningRLS {
         nT = 1000;  
         for (int iStep = 0; iStep < nT; iStep++) {
             reservoir.step();
-            resData.addTimePoint(reservoir.getRArray());
-            roDataPost.addTimePoint(readout.getReadoutArray(reservoir));
-            tgData.addTimePoint(readout.getTargetReadoutArray(reservoir.t()));
-            errData.addTimePoint(readout.getErrorArray(reservoir));
+            resData.record();
+            roDataPost.record();
+            tgData.record();
+            errData.record();
         }
         StdOut.println("Simulation time:");
         StdOut.println(sw.elapsedTime());
         
         // Plot
-        resData.plot();
-        roDataPost.plot();
-        roDataPre.plot();
-        tgData.plot();
-        errData.plot();
+        int nReadout = readout.size();          // number of readouts to plot
+        resData.plot(0, nTrack, "Time series of selected reservoir neurons");
+        roDataPost.plot(0, nReadout, "Time series of readout neurons (post-training)");
+        roDataPre.plot(0, nReadout, "Time series of readout neurons (pre-training)");
+        tgData.plot(0, nReadout, "Target readout");
+        errData.plot(0, nReadout, "Error");
     }
     
 }
\ No newline at end of file
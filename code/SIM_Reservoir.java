@@ -24,21 +24,22 @@ public class SIM_Reservoir {
         // Track only the first nTrack neurons for plotting
         int nTrack   = 5;                       // number of neurons to plot
         String title = "Time series of selected reservoir neurons (no feedback)";
-        TimeSeriesPlotter2 resData               // time series for reservoir
-            = new TimeSeriesPlotter2(nTrack, title, reservoir.dt());   
+        int nT = 1000;    // number of simulation time steps
+        StateRecorder resData                    // time series for reservoir
+            = new StateRecorder(reservoir, 1, nT);
+        resData.addNeurons(nTrack);
         
         // Simulate and store data
-        int nT = 1000;    // number of simulation time steps
         Stopwatch sw = new Stopwatch();
         for (int iStep = 0; iStep < nT; iStep++) {
             reservoir.step();
-            resData.addTimePoint(reservoir.getRArray());
+            resData.record();
         }
         StdOut.println("Simulation time:");
         StdOut.println(sw.elapsedTime());
         
         // Plot
-        resData.plot();
+        resData.plot(0, nTrack, title);
     }
     
 }
\ No newline at end of file
@@ -0,0 +1,478 @@
+/*************************************************************************
+ *  Compilation:  javac SpikingReservoir.java
+ *  Author:  Phillip B. Schafer
+ *
+ *  Implements a sparsely connected reservoir of N leaky integrate-and-fire
+ *  neurons, simulated event by event.
+ *
+ *  Dependencies:
+ *   JBlas library
+ *   StdOut, StdRandom, Stopwatch (Algs-4)
+ *************************************************************************/
+import org.jblas.DoubleMatrix;
+import org.jblas.SimpleBlas;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ *  A reservoir of N leaky integrate-and-fire (LIF) neurons with the same
+ *  connectivity as a <nn>Reservoir</nn>.  The membrane potentials are the
+ *  state x; the rates r are the spike trains filtered by an exponential
+ *  synapse with time constant tau_s, normalized so that r is in spikes per
+ *  unit time (Nicola and Clopath 2017).  Because r is exposed through the
+ *  usual <nn>Reservoir</nn> methods, <nn>Readout</nn>,
+ *  <nn>ReadoutClampedFB</nn>, <nn>ReadoutLearningRLS</nn> and any
+ *  <nn>Streams.Feedback</nn> work unchanged.
+ *  <p>
+ *  Dynamics, with threshold 1 and reset 0:
+ *  <pre>
+ *     tau_m v_i' = -v_i + bias + (W*r)_i + input_i(t) + feedback_i(r, t)
+ *     tau_s r_j' = -r_j + sum_k delta(t - t_j^k)
+ *  </pre>
+ *  After a spike a neuron is held at reset for a refractory period.
+ *  The recurrent current W*r obeys the same filter equation as r, so it is
+ *  kept as a state and updated only by spikes: when neuron j spikes, the
+ *  stored entries of column j of W (its outgoing synapses, kept in CSR
+ *  form as rows of the transpose) are added to the current.  A step costs
+ *  O(N) for the membrane and filter updates plus O(spikes * pN) for
+ *  propagation, rather than the O(pN^2) product of a rate network.
+ *  <p>
+ *  The recurrent current is rebuilt from W whenever the weights are
+ *  replaced, rescaled, converted to another backend or restored (see
+ *  <tt>Reservoir.weightsChanged</tt>); modifying W in place through the
+ *  backend is not supported (<nn>RecurrentLearningRLS</nn> refuses spiking
+ *  networks).
+ */
+public class SpikingReservoir extends Reservoir {
+    private static final double V_TH = 1.0, V_RESET = 0.0;
+    private static final double W_UNIT = 0.01;   // current per unit rate, g = 1
+
+    private final double tauS;     // synaptic time constant
+    private final double tRef;     // refractory period
+    private final double bias;     // constant input current
+    private Connectivity.Sparse out; // transpose of W: row j = synapses from j
+    private DoubleMatrix iRec;     // recurrent current W*r
+    private int[] refractory;      // remaining refractory steps, per neuron
+    private int[] spiked;          // neurons that spiked in the last step
+    private int nSpiked;
+    private long nSpikes;          // total number of spikes
+    private final DoubleMatrix inBuf, fbBuf;
+    private final double[] layerBuf;   // input layer current, zero unless dirty
+    private DoubleMatrix layerIn;      // input layer's M-vector
+    private boolean layerDirty;
+
+    /**
+     * Initialize a network of N LIF neurons with random sparse weights
+     * (<tt>Connectivity.Sparse.random(N, p, g)</tt> times 0.01, so that
+     * recurrent currents are of order one at rates of tens of spikes per
+     * second), membrane time constant 10 ms, synaptic time constant 20 ms,
+     * refractory period 2 ms, bias 1.05 and step 0.05 ms (times in
+     * seconds).  The network then fires asynchronously at about 40
+     * spikes/s for g = 1.
+     * @param N the number of neurons
+     * @param p the probability of a pairwise connection (sparsity parameter)
+     * @param g weighting factor for connectivity
+     */
+    public SpikingReservoir(int N, double p, double g) {
+        this(scaled(Connectivity.Sparse.random(N, p, g)), 0.01, 0.02, 0.002, 1.05, 5e-5);
+    }
+
+    /**
+     * Initialize a network on an existing connection matrix (shared, NOT
+     * copied), with membrane potentials uniform between reset and threshold
+     * and no recent spikes.
+     * @param W the (square) connection matrix; W(i, j) is the current into
+     *   i per unit rate of j
+     * @param tauM the membrane time constant
+     * @param tauS the synaptic time constant
+     * @param tRef the refractory period
+     * @param bias the constant input current (threshold is 1)
+     * @param dt the integration time step
+     * @throws IllegalArgumentException if a time constant or <tt>dt</tt>
+     *   is nonpositive, or <tt>tRef</tt> is negative
+     */
+    public SpikingReservoir(Connectivity.WeightMatrix W, double tauM, double tauS,
+                            double tRef, double bias, double dt) {
+        super(W, tauM, dt);
+        if (!(tauS > 0) || Double.isInfinite(tauS))
+            throw new IllegalArgumentException("tauS must be a positive finite number");
+        if (!(dt > 0))
+            throw new IllegalArgumentException("dt must be positive");
+        if (!(tRef >= 0))
+            throw new IllegalArgumentException("tRef must be nonnegative");
+        this.tauS = tauS;
+        this.tRef = tRef;
+        this.bias = bias;
+        for (int i = 0; i < N; i++)
+            x.data[i] = StdRandom.uniform(V_RESET, V_TH);
+        r.fill(0.0);
+        rIsSet     = true;           // r is a state, never derived from x
+        iRec       = new DoubleMatrix(N);
+        refractory = new int[N];
+        spiked     = new int[N];
+        inBuf      = new DoubleMatrix(N);
+        fbBuf      = new DoubleMatrix(N);
+        layerBuf   = new double[N];
+        rebuild();
+        wMat.mmuli(r, iRec);
+    }
+
+    private static Connectivity.Sparse scaled(Connectivity.Sparse W) {
+        W.scalei(W_UNIT);
+        return W;
+    }
+
+    /**
+     * Initialize a network from a snapshot.  The connection matrix is
+     * shared with the snapshot; the O(N) state is copied.  Input and
+     * feedback streams are not part of a snapshot and are off.
+     * @param snap the snapshot
+     */
+    public SpikingReservoir(Snapshot snap) {
+        super(snap);
+        tauS = snap.tauS;
+        tRef = snap.tRef;
+        bias = snap.bias;
+        r.copy(snap.r);
+        rIsSet     = true;
+        out        = snap.out;
+        iRec       = snap.iRec.dup();
+        refractory = snap.refractory.clone();
+        spiked     = new int[N];
+        inBuf      = new DoubleMatrix(N);
+        fbBuf      = new DoubleMatrix(N);
+        layerBuf   = new double[N];
+    }
+
+    // copy for fork(): shares W and its transpose
+    private SpikingReservoir(SpikingReservoir s) {
+        super(s.wMat, s.tau, s.dt);
+        tauS = s.tauS;
+        tRef = s.tRef;
+        bias = s.bias;
+        t    = s.t;
+        x.copy(s.x);
+        r.copy(s.r);
+        rIsSet     = true;
+        out        = s.out;
+        iRec       = s.iRec.dup();
+        refractory = s.refractory.clone();
+        spiked     = s.spiked.clone();
+        nSpiked    = s.nSpiked;
+        inBuf      = new DoubleMatrix(N);
+        fbBuf      = new DoubleMatrix(N);
+        layerBuf   = new double[N];
+    }
+
+    // re-derive the transpose of W
+    private void rebuild() {
+        out = Connectivity.toSparse(wMat).transpose();
+    }
+
+    // new weights: rebuild, and recompute the recurrent current from r
+    // (not during construction, which does both itself)
+    protected void weightsChanged() {
+        if (iRec == null) return;
+        rebuild();
+        wMat.mmuli(r, iRec);
+    }
+
+    /**********************************************************************
+     *  Set/Get
+     **********************************************************************/
+    /** @return the synaptic time constant */
+    public double tauS() {
+        return tauS;
+    }
+
+    /** @return the total number of spikes so far */
+    public long nSpikes() {
+        return nSpikes;
+    }
+
+    /**
+     * Get the neurons that spiked in the last step.
+     * @param out the neuron indices (at least N long)
+     * @return the number of neurons that spiked
+     */
+    public int getSpikes(int[] out) {
+        System.arraycopy(spiked, 0, out, 0, nSpiked);
+        return nSpiked;
+    }
+
+    /**
+     * LIF neurons have no rate nonlinearity: the function is kept (and
+     * returned by <tt>getNonlinearity</tt>) but does not affect the
+     * dynamics.
+     * @param phi the activation function
+     */
+    public void setNonlinearity(Nonlinearity.Function phi) {
+        super.setNonlinearity(phi);
+        rIsSet = true;               // r is a state, not phi(x)
+    }
+
+    // r is maintained by the dynamics
+    protected void setR() {
+    }
+
+    /**********************************************************************
+     *  Stepping the network
+     **********************************************************************/
+    /**
+     * Perform one time-step: integrate the membrane potentials (forward
+     * Euler), decay the filters exactly, and propagate the new spikes.
+     */
+    public void step() {
+        double[] v = x.data, rr = r.data, cur = iRec.data;
+        double[] in = null, fb = null;
+        if (dynEq.inputOn)    in = input.getInput(t, inBuf).data;
+        if (dynEq.feedbackOn && lowRank != null) {
+            lowRank.getFeedbackCoefficients(r, t, fbCoef);
+            fb = SimpleBlas.gemv(1.0, lowRank.getFeedbackWeights(), fbCoef, 0.0, fbBuf).data;
+        } else if (dynEq.feedbackOn)
+            fb = feedback.getFeedback(r, t, fbBuf).data;
+        double[] ext = null;
+        if (inputLayer != null) {
+            if (layerDirty) {
+                Arrays.fill(layerBuf, 0.0);
+                layerDirty = false;
+            }
+            if (layerIn == null || layerIn.length != inputLayer.nInputs())
+                layerIn = new DoubleMatrix(inputLayer.nInputs());
+            if (inputLayer.addTo(t, layerBuf, layerIn)) {
+                ext = layerBuf;
+                layerDirty = true;
+            }
+        }
+        double a = dt/tau;
+        int refSteps = (int) Math.round(tRef/dt);
+
+        // membrane potentials and spikes
+        nSpiked = 0;
+        for (int i = 0; i < N; i++) {
+            if (refractory[i] > 0) {
+                refractory[i]--;
+                continue;
+            }
+            double drive = bias + cur[i];
+            if (in != null) drive += in[i];
+            if (fb != null) drive += fb[i];
+            if (ext != null) drive += ext[i];
+            v[i] += a*(drive - v[i]);
+            if (v[i] >= V_TH) {
+                v[i] = V_RESET;
+                refractory[i] = refSteps;
+                spiked[nSpiked++] = i;
+            }
+        }
+
+        // filters decay, then jump by 1/tau_s per spike
+        double decay = Math.exp(-dt/tauS), jump = 1.0/tauS;
+        for (int i = 0; i < N; i++) {
+            rr[i]  *= decay;
+            cur[i] *= decay;
+        }
+        int[] ptr = out.rowPtr, idx = out.colIdx;
+        double[] val = out.val;
+        for (int s = 0; s < nSpiked; s++) {
+            int j = spiked[s];
+            rr[j] += jump;
+            for (int p = ptr[j]; p < ptr[j+1]; p++)
+                cur[idx[p]] += jump*val[p];
+        }
+        nSpikes += nSpiked;
+        t += dt;
+        version++;
+    }
+
+    /**********************************************************************
+     *  Forks and checkpointing
+     **********************************************************************/
+    /**
+     * Create an independent copy of the network (membrane potentials,
+     * filters and refractory state) that shares the connection matrix.
+     * @return the fork
+     */
+    public SpikingReservoir fork() {
+        SpikingReservoir f = new SpikingReservoir(this);
+        wShared = true;
+        f.setInput(dynEq.inputOn ? input : null);
+        f.setInputLayer(inputLayer);
+        f.setFeedback(dynEq.feedbackOn ? feedback : null);
+        return f;
+    }
+
+    /**
+     * Take a snapshot of the current state: membrane potentials, filters,
+     * recurrent current and refractory state.  The snapshot shares the
+     * connection matrix (and its transpose).
+     * @return the snapshot
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(super.snapshot(), this);
+    }
+
+    /**
+     * Immutable state of a spiking network from which any number of
+     * networks can be started (<tt>new SpikingReservoir(snapshot)</tt>).
+     */
+    public static class Snapshot extends Reservoir.Snapshot {
+        private final Connectivity.Sparse out;   // shared, never modified
+        private final DoubleMatrix r, iRec;
+        private final int[] refractory;
+        private final double tauS, tRef, bias;
+        private Snapshot(Reservoir.Snapshot base, SpikingReservoir s) {
+            super(base);
+            out        = s.out;
+            r          = s.r.dup();
+            iRec       = s.iRec.dup();
+            refractory = s.refractory.clone();
+            tauS = s.tauS; tRef = s.tRef; bias = s.bias;
+        }
+        protected Class<? extends Reservoir> network() { return SpikingReservoir.class; }
+    }
+
+    public void writeState(Checkpoint.Writer o) {
+        super.writeState(o);
+        o.putMatrix(r);
+        o.putMatrix(iRec);
+        o.putIntArray(refractory, N);
+    }
+
+    public void readState(Checkpoint.Reader in) {
+        super.readState(in);
+        in.getMatrix(r);
+        in.getMatrix(iRec);
+        int[] ref = in.getIntArray();
+        System.arraycopy(ref, 0, refractory, 0, N);
+        rIsSet  = true;
+        nSpiked = 0;
+    }
+
+    /**********************************************************************
+     *  Unit testing
+     **********************************************************************/
+    public static void main(String[] args) {
+        int N = 2000;
+        double p = 0.1;
+        Connectivity.Sparse W = Connectivity.Sparse.random(N, p, 1.0);
+        W.scalei(0.01);
+        SpikingReservoir res = new SpikingReservoir(W, 0.01, 0.02, 0.002, 1.05, 5e-5);
+
+        StdOut.println("Testing that the event-driven current equals W*r...");
+        res.step(4000);
+        DoubleMatrix wr = W.mmuli(res.getR(new DoubleMatrix(N)), new DoubleMatrix(N));
+        StdOut.println("max difference: " + wr.sub(res.iRec).normmax()
+                       + " (|W*r| max " + wr.normmax() + ")");
+        assert(wr.sub(res.iRec).normmax() < 1e-9*Math.max(1.0, wr.normmax()));
+        double meanRate = res.nSpikes()/(N*res.t());
+        StdOut.printf("mean rate %.1f spikes/s, mean filtered rate %.1f%n",
+                      meanRate, res.getR(new DoubleMatrix(N)).sum()/N);
+        assert(meanRate > 0);
+
+        StdOut.println("Testing fork and checkpoint reproduce the trajectory...");
+        SpikingReservoir f = res.fork();
+        SpikingReservoir restored = new SpikingReservoir(W, 0.01, 0.02, 0.002, 1.05, 5e-5);
+        try {
+            File file = File.createTempFile("spiking", ".ckpt");
+            file.deleteOnExit();
+            Checkpoint.save(file, res);
+            Checkpoint.restore(file, restored);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        res.step(500);
+        f.step(500);
+        restored.step(500);
+        assert(f.x.equals(res.x) && f.r.equals(res.r));
+        assert(restored.x.equals(res.x) && restored.r.equals(res.r));
+        Snapshot snap = res.snapshot();
+        res.step(500);
+        SpikingReservoir started = new SpikingReservoir(snap);
+        started.setNonlinearity(new Nonlinearity.ReLU());
+        started.step(500);
+        f.step(500);
+        assert(started.x.equals(res.x) && started.r.equals(res.r) && f.x.equals(res.x));
+        try {
+            new Reservoir(snap);
+            assert(false);
+        } catch (IllegalArgumentException e) { }
+
+        StdOut.println("Testing that new weights reach spike propagation...");
+        SpikingReservoir same = res.fork(), quant = res.fork();
+        quant.quantizeW(QuantizedMatrix.Format.INT8);
+        same.step(2000);
+        quant.step(2000);
+        assert(!quant.x.equals(same.x));
+        DoubleMatrix wq = quant.getConnectivity().mmuli(quant.r, new DoubleMatrix(N));
+        assert(wq.sub(quant.iRec).normmax() < 1e-9*Math.max(1.0, wq.normmax()));
+        SpikingReservoir reordered = res.fork(), blocked = res.fork();
+        reordered.reorderW();
+        blocked.useBlockedW(64, true);
+        blocked.scaleW(0.5);
+        for (SpikingReservoir s : new SpikingReservoir[] {reordered, blocked}) {
+            DoubleMatrix Wt = s.getW(new DoubleMatrix()).transpose();
+            assert(s.out.toDense(new DoubleMatrix()).equals(Wt));
+            s.step(2000);
+            DoubleMatrix ws = s.getConnectivity().mmuli(s.r, new DoubleMatrix(N));
+            assert(ws.sub(s.iRec).normmax() < 1e-9*Math.max(1.0, ws.normmax()));
+        }
+        assert(reordered.x.distance2(same.x) < 1e-6*same.x.norm2()); // same W, same spikes
+        assert(!blocked.x.equals(same.x));
+
+        StdOut.println("Testing FORCE learning of a sine wave through ReadoutLearningRLS...");
+        final double freq = 5.0;
+        Streams.InputStream sine = new Streams.InputStream() {
+            public int size() { return 1; }
+            public DoubleMatrix getInput(double t, DoubleMatrix input) {
+                input.put(0, Math.sin(2*Math.PI*freq*t));
+                return input;
+            }
+        };
+        int n = 1000;
+        Connectivity.Sparse Wf = Connectivity.Sparse.random(n, p, 1.0);
+        Wf.scalei(0.01);
+        SpikingReservoir net = new SpikingReservoir(Wf, 0.01, 0.02, 0.002, 1.05, 5e-5);
+        ReadoutLearningRLS readout = new ReadoutLearningRLS(sine, n, 1.0, 1.0, 1.0, 1.0);
+        readout.setWOut(new DoubleMatrix(1, n));
+        net.setFeedback(readout);
+        net.step(2000);
+        for (int i = 0; i < 80000; i++) {      // 4 s, learning every 1 ms
+            net.step();
+            if (i % 20 == 0) readout.learn(net);
+        }
+        double err = 0.0, norm = 0.0;
+        for (int i = 0; i < 20000; i++) {      // 1 s, no learning
+            net.step();
+            double z = readout.getTargetReadoutArray(net.t())[0];
+            double e = readout.getReadoutArray(net)[0] - z;
+            err  += e*e;
+            norm += z*z;
+        }
+        StdOut.printf("relative rms test error: %.3f%n", Math.sqrt(err/norm));
+        assert(Math.sqrt(err/norm) < 0.3);
+
+        StdOut.println("Step time against a rate network on the same (sparse) W:");
+        for (int m : new int[] {2000, 8000}) {
+            Connectivity.Sparse Wn = Connectivity.Sparse.random(m, p, 1.0);
+            Wn.scalei(0.01);
+            SpikingReservoir s = new SpikingReservoir(Wn, 0.01, 0.02, 0.002, 1.05, 5e-5);
+            Reservoir rate = new Reservoir(Wn, 0.01, 0.001);
+            s.step(2000);
+            long spikes0 = s.nSpikes();
+            Stopwatch sw = new Stopwatch();
+            s.step(2000);
+            double tS = sw.elapsedTime()/2000;
+            double perStep = (s.nSpikes() - spikes0)/2000.0;
+            rate.step(5);
+            sw = new Stopwatch();
+            rate.step(20);
+            double tR = sw.elapsedTime()/20;
+            StdOut.printf("  N = %d: spiking %.3f ms/step (%.1f spikes, %.0f synapses/step),"
+                          + " rate %.3f ms/step (%d synapses x 4 stages)%n",
+                          m, 1000*tS, perStep, perStep*p*m, 1000*tR, Wn.nnz());
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*************************************************************************
+ *  Compilation:  javac StateRecorder.java
+ *  Author:  Phillip B. Schafer
+ *
+ *  Records selected quantities of a simulation at every step.
+ *
+ *  Dependencies:
+ *   JBlas library
+ *   jFreeChart library (plotting only)
+ *   StdOut, Stopwatch (Algs-4)
+ *************************************************************************/
+import org.jblas.DoubleMatrix;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ *  Records a chosen set of quantities from a running network: the rates
+ *  of selected neurons, selected readout units, target values and
+ *  readout errors.  Each registered quantity is a column; <tt>record</tt>
+ *  appends one time point every <tt>stride</tt> calls.
+ *  <p>
+ *  Unlike <tt>getRArray()</tt> and <tt>getReadoutArray()</tt>, recording
+ *  does not allocate.  Neuron rates are read directly from the network's
+ *  internal rate vector; readouts and targets are computed into buffers
+ *  allocated once, at registration.  Values are stored in one primitive
+ *  array per column, sized from the planned number of steps.  A recorder 
+ *  built on a <nn>StepContext</nn> shares the context's readout and target.
+ */
+public class StateRecorder {
+    private static final int NEURON = 0, READOUT = 1, TARGET = 2, ERROR = 3;
+
+    // a group of columns taken from one source
+    private static class Group {
+        final int kind;
+        final int[] idx;
+        final Readout readout;
+        final Streams.InputStream target;
+        final DoubleMatrix roBuf, tgBuf;
+        Group(int kind, int[] idx, Readout readout, Streams.InputStream target) {
+            this.kind    = kind;
+            this.idx     = idx.clone();
+            this.readout = readout;
+            this.target  = target;
+            roBuf = readout == null ? null : new DoubleMatrix(readout.size());
+            tgBuf = target  == null ? null : new DoubleMatrix(target.size());
+        }
+    }
+
+    private final Reservoir res;
+    private final StepContext ctx;   // shared per-step values, or null
+    private final int stride;
+    private final ArrayList<Group> groups = new ArrayList<Group>();
+    private int nColumns = 0;
+    private double[][] data = new double[0][];   // one array per column
+    private int capacity;
+    private int nT = 0;           // number of recorded time points
+    private long nCalls = 0;      // number of calls to record()
+
+    /**
+     * @param res the network to record from
+     * @param stride record every stride-th call to <tt>record</tt>
+     * @param nSteps the planned number of calls (used to size the storage)
+     * @throws IllegalArgumentException if <tt>stride</tt> is less than one
+     */
+    public StateRecorder(Reservoir res, int stride, int nSteps) {
+        this(res, null, stride, nSteps);
+    }
+
+    /**
+     * Record from a step context: the readout and target of the context 
+     * are taken from it rather than recomputed, so they are shared with 
+     * other recorders, error metrics and learners using the context.
+     * @param ctx the step context
+     * @param stride record every stride-th call to <tt>record</tt>
+     * @param nSteps the planned number of calls (used to size the storage)
+     * @throws IllegalArgumentException if <tt>stride</tt> is less than one
+     */
+    public StateRecorder(StepContext ctx, int stride, int nSteps) {
+        this(ctx.getReservoir(), ctx, stride, nSteps);
+    }
+
+    private StateRecorder(Reservoir res, StepContext ctx, int stride, int nSteps) {
+        if (stride < 1)
+            throw new IllegalArgumentException("stride must be at least 1");
+        this.res      = res;
+        this.ctx      = ctx;
+        this.stride   = stride;
+        this.capacity = Math.max(16, nSteps/stride + 1);
+    }
+
+    /**********************************************************************
+     *  Registration
+     **********************************************************************/
+    /**
+     * Record the rates of some neurons.
+     * @param neurons the neuron indices
+     * @return the column of the first neuron
+     */
+    public int addNeurons(int... neurons) {
+        for (int i : neurons)
+            if (i < 0 || i >= res.size())
+                throw new IllegalArgumentException("no neuron " + i);
+        return add(new Group(NEURON, neurons, null, null));
+    }
+
+    /**
+     * Record the first n neurons.
+     * @param n the number of neurons
+     * @return the column of the first neuron
+     */
+    public int addNeurons(int n) {
+        int[] idx = new int[n];
+        for (int i = 0; i < n; i++) idx[i] = i;
+        return addNeurons(idx);
+    }
+
+    /**
+     * Record readout units.
+     * @param readout the readout
+     * @param units the unit indices (all units if none are given)
+     * @return the column of the first unit
+     */
+    public int addReadouts(Readout readout, int... units) {
+        return add(new Group(READOUT, checkUnits(units, readout.size()), readout, null));
+    }
+
+    /**
+     * Record target values.
+     * @param target the target stream
+     * @param units the component indices (all components if none are given)
+     * @return the column of the first component
+     */
+    public int addTargets(Streams.InputStream target, int... units) {
+        return add(new Group(TARGET, checkUnits(units, target.size()), null, target));
+    }
+
+    /**
+     * Record readout errors, readout - target.
+     * @param readout the readout
+     * @param target the target stream (same size as the readout)
+     * @param units the unit indices (all units if none are given)
+     * @return the column of the first unit
+     */
+    public int addErrors(Readout readout, Streams.InputStream target, int... units) {
+        if (target.size() != readout.size())
+            throw new IllegalArgumentException("target and readout have different sizes");
+        return add(new Group(ERROR, checkUnits(units, readout.size()), readout, target));
+    }
+
+    private static int[] checkUnits(int[] units, int size) {
+        if (units.length == 0) {
+            units = new int[size];
+            for (int i = 0; i < size; i++) units[i] = i;
+        }
+        for (int i : units)
+            if (i < 0 || i >= size)
+                throw new IllegalArgumentException("no unit " + i);
+        return units;
+    }
+
+    private int add(Group g) {
+        if (nT > 0)
+            throw new IllegalStateException("cannot add columns after recording has started");
+        int first = nColumns;
+        groups.add(g);
+        nColumns += g.idx.length;
+        data = Arrays.copyOf(data, nColumns);
+        for (int c = first; c < nColumns; c++)
+            data[c] = new double[capacity];
+        return first;
+    }
+
+    /**********************************************************************
+     *  Recording
+     **********************************************************************/
+    /**
+     * Record the registered quantities if this is a stride-th call.
+     */
+    public void record() {
+        if (nCalls++ % stride != 0) return;
+        if (nT == capacity) {
+            capacity *= 2;
+            for (int c = 0; c < nColumns; c++)
+                data[c] = Arrays.copyOf(data[c], capacity);
+        }
+        double t = res.t();
+        DoubleMatrix r = res.rates();
+        int c = 0;
+        for (int k = 0; k < groups.size(); k++) {
+            Group g = groups.get(k);
+            DoubleMatrix ro = g.roBuf, tg = g.tgBuf;
+            if (g.readout != null) {
+                if (ctx != null && g.readout == ctx.getReadout()) ro = ctx.readout();
+                else g.readout.getReadout(r, t, ro);
+            }
+            if (g.target != null) {
+                if (ctx != null && g.target == ctx.getTargetStream()) tg = ctx.target();
+                else g.target.getInput(t, tg);
+            }
+            int[] idx = g.idx;
+            switch (g.kind) {
+            case NEURON:
+                for (int i = 0; i < idx.length; i++)
+                    data[c++][nT] = r.data[idx[i]];
+                break;
+            case READOUT:
+                for (int i = 0; i < idx.length; i++)
+                    data[c++][nT] = ro.data[idx[i]];
+                break;
+            case TARGET:
+                for (int i = 0; i < idx.length; i++)
+                    data[c++][nT] = tg.data[idx[i]];
+                break;
+            default:
+                for (int i = 0; i < idx.length; i++)
+                    data[c++][nT] = ro.data[idx[i]] - tg.data[idx[i]];
+            }
+        }
+        nT++;
+    }
+
+    /**********************************************************************
+     *  Results
+     **********************************************************************/
+    /** @return the number of recorded time points */
+    public int nT() {
+        return nT;
+    }
+
+    /** @return the number of recorded quantities */
+    public int nColumns() {
+        return nColumns;
+    }
+
+    /** @return the time between recorded points */
+    public double dt() {
+        return stride*res.dt();
+    }
+
+    /**
+     * Get one recorded value.
+     * @param t the time point
+     * @param column the column
+     * @return the value
+     */
+    public double get(int t, int column) {
+        if (t < 0 || t >= nT)
+            throw new IndexOutOfBoundsException();
+        return data[column][t];
+    }
+
+    /**
+     * Get one recorded column.
+     * @param column the column
+     * @return a copy of the nT recorded values
+     */
+    public double[] getColumn(int column) {
+        return Arrays.copyOf(data[column], nT);
+    }
+
+    /**
+     * Plot a range of columns.
+     * @param first the first column
+     * @param n the number of columns
+     * @param title the plot title
+     */
+    public void plot(int first, int n, String title) {
+        Plotting.PlotTimeSeries(Arrays.copyOfRange(data, first, first + n), nT, dt(), title);
+    }
+
+    /**********************************************************************
+     *  Unit testing
+     **********************************************************************/
+    public static void main(String[] args) {
+        int N = 500, nT = 2000;
+        Streams.InputStream wave = new Streams.TriangleWave(0.5);
+        Reservoir res = new Reservoir(N, 0.1, 1.5);
+        ReadoutLearningRLS readout = new ReadoutLearningRLS(wave, N, 1.0);
+        res.setFeedback(readout);
+
+        StdOut.println("Testing recorded values against getRArray/getReadoutArray...");
+        StateRecorder rec = new StateRecorder(res, 2, nT);
+        int cN = rec.addNeurons(3, 7, 11);
+        int cR = rec.addReadouts(readout);
+        int cT = rec.addTargets(wave);
+        int cE = rec.addErrors(readout, wave);
+        ArrayList<double[]> check = new ArrayList<double[]>();
+        for (int i = 0; i < nT; i++) {
+            res.step();
+            rec.record();
+            if (i % 2 == 0) {
+                double[] r  = res.getRArray();
+                double ro = readout.getReadoutArray(res)[0];
+                double tg = readout.getTargetReadoutArray(res.t())[0];
+                check.add(new double[] {r[3], r[7], r[11], ro, tg, ro - tg});
+            }
+        }
+        assert(rec.nT() == check.size() && rec.nColumns() == 6);
+        for (int t = 0; t < rec.nT(); t++) {
+            double[] v = check.get(t);
+            assert(rec.get(t, cN) == v[0] && rec.get(t, cN + 2) == v[2]);
+            assert(rec.get(t, cR) == v[3] && rec.get(t, cT) == v[4]);
+            assert(Math.abs(rec.get(t, cE) - v[5]) < 1e-12);
+        }
+        StdOut.println("recorded " + rec.nT() + " points x " + rec.nColumns() + " columns");
+
+        StdOut.println("Testing recording cost (excluding simulation), 5 of N = " + N + " neurons:");
+        int nRec = 200000;
+        Stopwatch sw = new Stopwatch();
+        TimeSeriesPlotter2 old = new TimeSeriesPlotter2(5, "", res.dt());
+        for (int i = 0; i < nRec; i++)          // rates are cached: copying only
+            old.addTimePoint(res.getRArray());
+        double tOld = sw.elapsedTime();
+        sw = new Stopwatch();
+        StateRecorder sel = new StateRecorder(res, 1, nRec);
+        sel.addNeurons(5);
+        for (int i = 0; i < nRec; i++)
+            sel.record();
+        double tNew = sw.elapsedTime();
+        StdOut.printf("getRArray + TimeSeriesPlotter2: %.3f s, StateRecorder: %.3f s%n", tOld, tNew);
+    }
+}
@@ -0,0 +1,215 @@
+/*************************************************************************
+ *  Compilation:  javac StepContext.java
+ *  Author:  Phillip B. Schafer
+ *
+ *  Per-step memoization of rates, readouts, targets and errors.
+ *
+ *  Dependencies:
+ *   JBlas library
+ *   StdOut, Stopwatch (Algs-4)
+ *************************************************************************/
+import org.jblas.DoubleMatrix;
+
+/**
+ *  Computes the quantities that recorders, error metrics and learners all
+ *  ask for at each step (the rates r, the readout, the target and the
+ *  error readout - target) at most once per step, into buffers allocated
+ *  once.
+ *  <p>
+ *  Each quantity is tagged with the version counters it was computed
+ *  from: <tt>Reservoir.version()</tt>, which advances on <tt>step</tt>,
+ *  <tt>setX</tt> and other state changes, and <tt>Readout.version()</tt>,
+ *  which advances whenever the readout weights change (e.g. on
+ *  <tt>learn</tt>).  A quantity is recomputed only when one of its
+ *  versions has moved, so a readout taken after a learning update is
+ *  fresh while one taken before it is shared.  Targets are recomputed once
+ *  per state version.
+ *  <p>
+ *  The returned vectors are the context's own buffers: they must not be
+ *  modified, and are overwritten when the quantity is next recomputed.
+ */
+public class StepContext {
+    private final Reservoir res;
+    private final Readout readout;
+    private final Streams.InputStream target;
+    private final DoubleMatrix roBuf, tgBuf, errBuf;
+    private long roState = -1, roWeights = -1;      // versions of the buffers
+    private long tgState = -1;
+    private long errState = -1, errWeights = -1;
+    long nReadouts, nTargets;                       // evaluation counts
+
+    /**
+     * @param res the network
+     * @param readout the readout (may be <tt>null</tt>)
+     * @param target the target of the readout (may be <tt>null</tt>)
+     * @throws IllegalArgumentException if the target and readout have
+     *   different sizes
+     */
+    public StepContext(Reservoir res, Readout readout, Streams.InputStream target) {
+        if (readout != null && target != null && readout.size() != target.size())
+            throw new IllegalArgumentException("target and readout have different sizes");
+        this.res     = res;
+        this.readout = readout;
+        this.target  = target;
+        roBuf  = readout == null ? null : new DoubleMatrix(readout.size());
+        tgBuf  = target  == null ? null : new DoubleMatrix(target.size());
+        errBuf = readout == null ? null : new DoubleMatrix(readout.size());
+    }
+
+    /**
+     * A context for a learning readout and its own target.
+     * @param res the network
+     * @param readout the readout
+     */
+    public StepContext(Reservoir res, ReadoutLearningRLS readout) {
+        this(res, readout, readout.targetStream);
+    }
+
+    /** @return the network */
+    public Reservoir getReservoir() {
+        return res;
+    }
+
+    /** @return the readout */
+    public Readout getReadout() {
+        return readout;
+    }
+
+    /** @return the target stream */
+    public Streams.InputStream getTargetStream() {
+        return target;
+    }
+
+    /**********************************************************************
+     *  Memoized quantities
+     **********************************************************************/
+    /**
+     * @return the rates r of the network (its own vector; read-only)
+     */
+    public DoubleMatrix rates() {
+        return res.rates();
+    }
+
+    /**
+     * @return the readout at the current state and weights (read-only)
+     */
+    public DoubleMatrix readout() {
+        long s = res.version(), w = readout.version();
+        if (s != roState || w != roWeights) {
+            readout.getReadout(res.rates(), res.t(), roBuf);
+            roState   = s;
+            roWeights = w;
+            nReadouts++;
+        }
+        return roBuf;
+    }
+
+    /**
+     * @return the target at the current time (read-only)
+     */
+    public DoubleMatrix target() {
+        long s = res.version();
+        if (s != tgState) {
+            target.getInput(res.t(), tgBuf);
+            tgState = s;
+            nTargets++;
+        }
+        return tgBuf;
+    }
+
+    /**
+     * @return the error, readout - target (read-only)
+     */
+    public DoubleMatrix error() {
+        long s = res.version(), w = readout.version();
+        if (s != errState || w != errWeights) {
+            errBuf.copy(readout()).subi(target());
+            errState   = s;
+            errWeights = w;
+        }
+        return errBuf;
+    }
+
+    /**
+     * @return the mean squared error over the readout units
+     */
+    public double meanSquaredError() {
+        DoubleMatrix e = error();
+        return e.dot(e)/e.length;
+    }
+
+    /**********************************************************************
+     *  Unit testing
+     **********************************************************************/
+    public static void main(String[] args) {
+        int N = 1000, nT = 2000, learnInt = 10;
+        Streams.InputStream wave = new Streams.TriangleWave(0.5);
+
+        StdOut.println("Testing memoized values and evaluation counts...");
+        Reservoir res = new Reservoir(N, 0.1, 1.5);
+        ReadoutLearningRLS ro = new ReadoutLearningRLS(wave, N, 1.0);
+        res.setFeedback(ro);
+        Reservoir copy = res.fork();
+        ReadoutLearningRLS roCopy = ro.fork();
+        copy.setFeedback(roCopy);
+        StepContext ctx = new StepContext(res, ro);
+        StateRecorder pre  = new StateRecorder(ctx, 1, nT);
+        StateRecorder post = new StateRecorder(ctx, 1, nT);
+        pre.addNeurons(5);
+        pre.addTargets(wave);
+        pre.addReadouts(ro);
+        pre.addErrors(ro, wave);
+        post.addReadouts(ro);
+        for (int i = 0; i < nT; i++) {
+            res.step();
+            copy.step();
+            pre.record();
+            assert(ctx.error().get(0) == roCopy.getReadoutArray(copy)[0]
+                                       - roCopy.getTargetReadoutArray(copy.t())[0]);
+            if (i % learnInt == 0) {
+                ro.learn(ctx);
+                roCopy.learn(copy);
+            }
+            post.record();
+            assert(post.get(i, 0) == roCopy.getReadoutArray(copy)[0]);
+        }
+        StdOut.println("readouts computed: " + ctx.nReadouts + ", targets: " + ctx.nTargets
+                       + " (" + nT + " steps, " + nT/learnInt + " updates)");
+        assert(ctx.nReadouts == nT + nT/learnInt && ctx.nTargets == nT);
+        assert(ro.wOut.equals(roCopy.wOut));
+
+        StdOut.println("Time per step of the SIM_LearningRLS loop (excluding the step):");
+        TimeSeriesPlotter2[] old = new TimeSeriesPlotter2[5];
+        for (int k = 0; k < 5; k++)
+            old[k] = new TimeSeriesPlotter2(k == 0 ? 5 : 1, "", res.dt());
+        res.step();
+        Stopwatch sw = new Stopwatch();
+        for (int i = 0; i < nT; i++) {
+            res.setX(res.x);                    // a new state, as after a step
+            old[0].addTimePoint(res.getRArray());
+            old[1].addTimePoint(ro.getTargetReadoutArray(res.t()));
+            old[2].addTimePoint(ro.getReadoutArray(res));
+            old[3].addTimePoint(ro.getErrorArray(res));
+            if (i % learnInt == 0) ro.learn(res);
+            old[4].addTimePoint(ro.getReadoutArray(res));
+        }
+        double tOld = sw.elapsedTime();
+        pre  = new StateRecorder(ctx, 1, nT);
+        post = new StateRecorder(ctx, 1, nT);
+        pre.addNeurons(5);
+        pre.addTargets(wave);
+        pre.addReadouts(ro);
+        pre.addErrors(ro, wave);
+        post.addReadouts(ro);
+        sw = new Stopwatch();
+        for (int i = 0; i < nT; i++) {
+            res.setX(res.x);
+            pre.record();
+            if (i % learnInt == 0) ro.learn(ctx);
+            post.record();
+        }
+        double tNew = sw.elapsedTime();
+        StdOut.printf("separate calls: %.3f ms, step context: %.3f ms%n",
+                      1000*tOld/nT, 1000*tNew/nT);
+    }
+}
@@ -0,0 +1,419 @@
+/*************************************************************************
+ *  Compilation:  javac StreamingPCA.java
+ *  Author:  Phillip B. Schafer
+ *
+ *  Incremental PCA of reservoir trajectories.
+ *
+ *  Dependencies:
+ *   JBlas library
+ *   Parallel Colt (unit testing only)
+ *   StdOut, Stopwatch (Algs-4)
+ *************************************************************************/
+import org.jblas.DoubleMatrix;
+
+import java.util.Arrays;
+
+import cern.colt.matrix.tdouble.impl.*;     // Parallel Colt
+import cern.colt.matrix.tdouble.algo.decomposition.*;
+
+/**
+ *  Records the principal components of N-dimensional activity as it is
+ *  generated, without storing the trajectory.
+ *  <p>
+ *  States are collected into mini-batches of size b (b = 1 updates on
+ *  every step).  Each batch is merged into a rank-k subspace by an
+ *  incremental SVD with mean correction (Brand 2002; Ross et al. 2008):
+ *  the thin SVD of [U*diag(s), B - mean_B, c] is computed by a QR
+ *  factorization followed by a one-sided Jacobi SVD of the small
+ *  (k+b+1) x (k+b+1) factor, and truncated back to rank k.  Memory is
+ *  O(N(k+b)).
+ *  <p>
+ *  The low-dimensional trajectory is recorded by projecting each state
+ *  onto the subspace current at the time it is recorded.  The subspace
+ *  settles after an initial transient; use <tt>project</tt> with the final
+ *  components for an exact projection of particular states.
+ */
+public class StreamingPCA {
+    private final int N;          // dimension of the data
+    private final int k;          // number of components kept
+    private final int b;          // batch size
+
+    private DoubleMatrix U;       // components (N x k)
+    private double[] s;           // singular values (k)
+    private int rank = 0;         // number of valid components so far
+    private DoubleMatrix mean;    // running mean (N)
+    private long n = 0;           // number of samples merged
+    private double totalSS = 0;   // total sum of squared deviations
+
+    private final DoubleMatrix batch;  // pending samples (N x b)
+    private int nBatch = 0;
+    private final DoubleMatrix rBuf;   // state of the network
+
+    private double[] proj = new double[1024];  // recorded trajectory (k per sample)
+    private int nProj = 0;
+    private boolean recordTrajectory = true;
+
+    /**
+     * @param N the dimension of the data (e.g. network size)
+     * @param k the number of principal components to track
+     * @param batchSize the number of samples per update (1 = every sample)
+     * @throws IllegalArgumentException if <tt>k</tt> is not in [1, N] or
+     *   <tt>batchSize</tt> is less than one
+     */
+    public StreamingPCA(int N, int k, int batchSize) {
+        if (k < 1 || k > N)
+            throw new IllegalArgumentException("k must be in [1, N]");
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batch size must be at least 1");
+        this.N = N;
+        this.k = k;
+        this.b = batchSize;
+        U     = new DoubleMatrix(N, k);
+        s     = new double[k];
+        mean  = new DoubleMatrix(N);
+        batch = new DoubleMatrix(N, b);
+        rBuf  = new DoubleMatrix(N);
+    }
+
+    /**
+     * Turn recording of the projected trajectory on or off (default on).
+     * @param on whether to record
+     */
+    public void setRecordTrajectory(boolean on) {
+        recordTrajectory = on;
+    }
+
+    /**********************************************************************
+     *  Recording
+     **********************************************************************/
+    /**
+     * Record the current firing rates of a network.
+     * @param res the network
+     */
+    public void record(Reservoir res) {
+        record(res.getR(rBuf));
+    }
+
+    /**
+     * Record one sample.
+     * @param x the sample (N x 1)
+     * @throws IllegalArgumentException if <tt>x</tt> has the wrong size
+     */
+    public void record(DoubleMatrix x) {
+        if (x.length != N)
+            throw new IllegalArgumentException("sample has the wrong dimension");
+        System.arraycopy(x.data, 0, batch.data, nBatch*N, N);
+        nBatch++;
+        if (nBatch == b) update();
+        if (recordTrajectory) {
+            if (nProj + k > proj.length)
+                proj = Arrays.copyOf(proj, 2*proj.length + k);
+            projectInto(x.data, proj, nProj);
+            nProj += k;
+        }
+    }
+
+    /**
+     * Merge any pending samples (a partial batch) into the subspace.
+     */
+    public void flush() {
+        if (nBatch > 0) update();
+    }
+
+    /**********************************************************************
+     *  Results
+     **********************************************************************/
+    /** @return the number of samples recorded */
+    public long nSamples() {
+        return n + nBatch;
+    }
+
+    /**
+     * Get the principal components (pending samples are merged first).
+     * @param out the N x k matrix of components, as columns, in order of
+     *   decreasing variance (overwritten)
+     * @return out, for convenience only
+     */
+    public DoubleMatrix components(DoubleMatrix out) {
+        flush();
+        return out.copy(U);
+    }
+
+    /**
+     * Get the mean of the samples.
+     * @param out the N x 1 mean (overwritten)
+     * @return out, for convenience only
+     */
+    public DoubleMatrix mean(DoubleMatrix out) {
+        flush();
+        return out.copy(mean);
+    }
+
+    /**
+     * Get the variance along each principal component.
+     * @return the k variances, decreasing
+     */
+    public double[] explainedVariance() {
+        flush();
+        double[] var = new double[k];
+        for (int i = 0; i < rank; i++)
+            var[i] = s[i]*s[i]/Math.max(1, n - 1);
+        return var;
+    }
+
+    /**
+     * Get the fraction of the total variance along each principal component.
+     * @return the k fractions
+     */
+    public double[] explainedVarianceRatio() {
+        flush();
+        double[] ratio = new double[k];
+        for (int i = 0; i < rank; i++)
+            ratio[i] = totalSS > 0 ? s[i]*s[i]/totalSS : 0.0;
+        return ratio;
+    }
+
+    /**
+     * Get the recorded low-dimensional trajectory.
+     * @return an nT x k array of projections
+     */
+    public double[][] trajectory() {
+        int nT = nProj/k;
+        double[][] traj = new double[nT][k];
+        for (int t = 0; t < nT; t++)
+            System.arraycopy(proj, t*k, traj[t], 0, k);
+        return traj;
+    }
+
+    /**
+     * Project a state onto the current principal components.
+     * @param x the state (N x 1)
+     * @param out the k coordinates (overwritten)
+     * @return out, for convenience only
+     */
+    public double[] project(DoubleMatrix x, double[] out) {
+        projectInto(x.data, out, 0);
+        return out;
+    }
+
+    private void projectInto(double[] x, double[] out, int off) {
+        double[] u = U.data, m = mean.data;
+        for (int c = 0; c < k; c++) {
+            double sum = 0.0;
+            int oc = c*N;
+            for (int i = 0; i < N; i++)
+                sum += u[oc + i]*(x[i] - m[i]);
+            out[off + c] = sum;
+        }
+    }
+
+    /**********************************************************************
+     *  Incremental SVD
+     **********************************************************************/
+    // merge the pending batch into (U, s, mean)
+    private void update() {
+        int nb = nBatch;
+        double[] B = batch.data, mu = mean.data;
+
+        // batch mean, and its offset from the running mean
+        double[] muB = new double[N];
+        for (int j = 0; j < nb; j++)
+            for (int i = 0; i < N; i++)
+                muB[i] += B[j*N + i];
+        for (int i = 0; i < N; i++)
+            muB[i] /= nb;
+        double corr = Math.sqrt((double) n*nb/(n + nb));
+
+        // A = [U*diag(s), B - muB, corr*(muB - mu)]
+        int m = rank + nb + 1;
+        double[] A = new double[N*m];
+        for (int c = 0; c < rank; c++)
+            for (int i = 0; i < N; i++)
+                A[c*N + i] = U.data[c*N + i]*s[c];
+        double ssB = 0.0;
+        for (int j = 0; j < nb; j++)
+            for (int i = 0; i < N; i++) {
+                double d = B[j*N + i] - muB[i];
+                A[(rank + j)*N + i] = d;
+                ssB += d*d;
+            }
+        double ssMean = 0.0;
+        for (int i = 0; i < N; i++) {
+            double d = muB[i] - mu[i];
+            A[(m - 1)*N + i] = corr*d;
+            ssMean += d*d;
+        }
+
+        // thin QR of A (modified Gram-Schmidt): A = Q*R, Q overwrites A
+        double[] R = new double[m*m];   // column-major m x m
+        for (int c = 0; c < m; c++) {
+            int oc = c*N;
+            for (int j = 0; j < c; j++) {
+                int oj = j*N;
+                double dot = 0.0;
+                for (int i = 0; i < N; i++)
+                    dot += A[oj + i]*A[oc + i];
+                R[j + c*m] = dot;
+                for (int i = 0; i < N; i++)
+                    A[oc + i] -= dot*A[oj + i];
+            }
+            double norm = 0.0;
+            for (int i = 0; i < N; i++)
+                norm += A[oc + i]*A[oc + i];
+            norm = Math.sqrt(norm);
+            R[c + c*m] = norm;
+            if (norm > 0)
+                for (int i = 0; i < N; i++)
+                    A[oc + i] /= norm;
+        }
+
+        // SVD of R: R*V = U_R*S by one-sided Jacobi on the columns of R
+        double[] sig = jacobiSVD(R, m);
+
+        // keep the k largest: U = Q*U_R(:, top k), where U_R(:,c) = (R*V)(:,c)/sig
+        Integer[] order = new Integer[m];
+        for (int c = 0; c < m; c++) order[c] = c;
+        final double[] fs = sig;
+        Arrays.sort(order, new java.util.Comparator<Integer>() {
+            public int compare(Integer a, Integer c) { return Double.compare(fs[c], fs[a]); }
+        });
+        int newRank = 0;
+        while (newRank < Math.min(k, m) && sig[order[newRank]] > 1e-12) newRank++;
+        U.fill(0.0);
+        for (int c = 0; c < newRank; c++) {
+            int src = order[c];
+            double inv = 1.0/sig[src];
+            int oc = c*N;
+            for (int j = 0; j < m; j++) {
+                double w = R[j + src*m]*inv;
+                if (w == 0.0) continue;
+                int oj = j*N;
+                for (int i = 0; i < N; i++)
+                    U.data[oc + i] += w*A[oj + i];
+            }
+            s[c] = sig[src];
+        }
+        for (int c = newRank; c < k; c++) s[c] = 0.0;
+        rank = newRank;
+
+        // running mean and total sum of squares
+        totalSS += ssB + corr*corr*ssMean;
+        for (int i = 0; i < N; i++)
+            mu[i] = (n*mu[i] + nb*muB[i])/(n + nb);
+        n += nb;
+        nBatch = 0;
+    }
+
+    // one-sided Jacobi: orthogonalize the columns of M (m x m, column-major)
+    // in place by plane rotations; returns the column norms (singular values)
+    private static double[] jacobiSVD(double[] M, int m) {
+        for (int sweep = 0; sweep < 60; sweep++) {
+            double off = 0.0;
+            for (int p = 0; p < m - 1; p++) {
+                for (int q = p + 1; q < m; q++) {
+                    double alpha = 0, beta = 0, gamma = 0;
+                    for (int i = 0; i < m; i++) {
+                        double mp = M[i + p*m], mq = M[i + q*m];
+                        alpha += mp*mp;
+                        beta  += mq*mq;
+                        gamma += mp*mq;
+                    }
+                    if (gamma == 0.0) continue;
+                    off = Math.max(off, Math.abs(gamma)/Math.sqrt(alpha*beta));
+                    double zeta = (beta - alpha)/(2*gamma);
+                    double t = Math.signum(zeta)/(Math.abs(zeta) + Math.sqrt(1 + zeta*zeta));
+                    if (zeta == 0.0) t = 1.0;
+                    double c = 1/Math.sqrt(1 + t*t), sn = c*t;
+                    for (int i = 0; i < m; i++) {
+                        double mp = M[i + p*m], mq = M[i + q*m];
+                        M[i + p*m] = c*mp - sn*mq;
+                        M[i + q*m] = sn*mp + c*mq;
+                    }
+                }
+            }
+            if (off < 1e-15) break;
+        }
+        double[] sig = new double[m];
+        for (int c = 0; c < m; c++) {
+            double norm = 0.0;
+            for (int i = 0; i < m; i++)
+                norm += M[i + c*m]*M[i + c*m];
+            sig[c] = Math.sqrt(norm);
+        }
+        return sig;
+    }
+
+    /**********************************************************************
+     *  Unit testing
+     **********************************************************************/
+    public static void main(String[] args) {
+        int N = 200, k = 5, nT = 2000;
+
+        StdOut.println("Testing exactness on rank-3 data...");
+        DoubleMatrix basis = DoubleMatrix.randn(N, 3);
+        DoubleMatrix offset = DoubleMatrix.randn(N);
+        StreamingPCA low = new StreamingPCA(N, k, 7);
+        double[] coef = {3.0, 2.0, 1.0};
+        double ss = 0.0;
+        for (int t = 0; t < 500; t++) {
+            DoubleMatrix z = DoubleMatrix.randn(3);
+            for (int c = 0; c < 3; c++) z.data[c] *= coef[c];
+            low.record(basis.mmul(z).addi(offset));
+        }
+        double[] lowRatio = low.explainedVarianceRatio();
+        for (double f : lowRatio) ss += f;
+        StdOut.println("total explained by " + k + " components: " + ss
+                       + ", rank found: " + low.rank);
+        assert(Math.abs(ss - 1.0) < 1e-9 && low.rank == 3);
+
+        StdOut.println("Testing against batch PCA of a reservoir trajectory...");
+        Reservoir res = new Reservoir(N, 0.1, 1.5);
+        res.step(300);
+        StreamingPCA pca = new StreamingPCA(N, k, 10);
+        TimeSeries all = new TimeSeries(N);
+        for (int t = 0; t < nT; t++) {
+            res.step();
+            pca.record(res);
+            all.addTimePoint(res.getRArray());
+        }
+
+        // batch PCA: eigendecomposition of the covariance
+        DoubleMatrix X = all.toMatrix();                     // nT x N
+        DoubleMatrix mu = new DoubleMatrix(1, N);
+        for (int t = 0; t < nT; t++)
+            for (int i = 0; i < N; i++)
+                mu.data[i] += X.get(t, i)/nT;
+        for (int t = 0; t < nT; t++)
+            for (int i = 0; i < N; i++)
+                X.put(t, i, X.get(t, i) - mu.data[i]);
+        DoubleMatrix C = X.transpose().mmul(X).divi(nT - 1);
+        DenseDoubleEigenvalueDecomposition eig
+            = new DenseDoubleEigenvalueDecomposition(new DenseDoubleMatrix2D(C.toArray2()));
+        double[] ev = eig.getRealEigenvalues().toArray();   // ascending
+        double[][] V = eig.getV().toArray();
+
+        double[] var = pca.explainedVariance();
+        double[] ratio = pca.explainedVarianceRatio();
+        DoubleMatrix comps = pca.components(new DoubleMatrix());
+        StdOut.println(" pc   streaming    batch     ratio   |cos angle|");
+        for (int c = 0; c < k; c++) {
+            double dot = 0.0;
+            for (int i = 0; i < N; i++)
+                dot += comps.get(i, c)*V[i][N - 1 - c];
+            StdOut.printf("%3d  %9.5f  %9.5f  %7.4f  %9.6f%n",
+                          c, var[c], ev[N - 1 - c], ratio[c], Math.abs(dot));
+            assert(Math.abs(var[c] - ev[N - 1 - c]) < 0.05*ev[N - 1]);
+        }
+        StdOut.println("trajectory: " + pca.trajectory().length + " x " + k);
+
+        StdOut.println("Testing run time (N = 2000, k = 10, b = 20, 2000 samples)...");
+        res = new Reservoir(Connectivity.Sparse.random(2000, 0.1, 1.5), 0.01, 0.001);
+        pca = new StreamingPCA(2000, 10, 20);
+        Stopwatch sw = new Stopwatch();
+        for (int t = 0; t < 2000; t++) {
+            res.step();
+            pca.record(res);
+        }
+        StdOut.println("time (incl. simulation): " + sw.elapsedTime());
+    }
+}
@@ -13,6 +13,19 @@ public class Streams {
         DoubleMatrix getFeedback(DoubleMatrix r, double t, DoubleMatrix feedback);
     }
     
+    /** 
+     * Feedback of rank M: feedback = U*z(r, t), with a fixed N x M matrix U 
+     * and M coefficients z (e.g. the readout).  A <tt>Reservoir</tt> adds 
+     * U*z in the same pass as its recurrent product.  
+     */
+    public interface LowRankFeedback extends Feedback {
+        int rank();     // M
+        /** @return z, the M coefficients, written to z */
+        DoubleMatrix getFeedbackCoefficients(DoubleMatrix r, double t, DoubleMatrix z);
+        /** @return U, the N x M feedback matrix (not copied; read-only) */
+        DoubleMatrix getFeedbackWeights();
+    }
+    
     /** Sine wave input stream with range [-1, 1] and period T.  */ 
     public static class SineWave implements InputStream {
         double T;
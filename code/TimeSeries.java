@@ -1,7 +1,7 @@
 import java.util.ArrayList;
 import org.jblas.DoubleMatrix;
 
-public class TimeSeries {
+public class TimeSeries implements Checkpoint.Checkpointable {
     
     // Arraylist of arrays of time points.  That is, each time point is an 
     // array, and this is an arraylist of time points.  
@@ -60,6 +60,31 @@ public class TimeSeries {
             array[i] = timeSeries.get(i);
         return new DoubleMatrix(array);
     }
+    
+    /**
+     * Write all stored time points.
+     */
+    public void writeState(Checkpoint.Writer out) {
+        out.putInt(nSeries);
+        out.putInt(nT);
+        for (double[] x : timeSeries)
+            out.putArray(x, nSeries);
+    }
+    
+    /**
+     * Replace the stored time points with those of a checkpoint.
+     * @throws IllegalStateException if the stored series has a different 
+     * number of series
+     */
+    public void readState(Checkpoint.Reader in) {
+        if (in.getInt() != nSeries)
+            throw new IllegalStateException("stored time series has a different number of series");
+        int n = in.getInt();
+        timeSeries = new ArrayList<double[]>(n);
+        for (int i = 0; i < n; i++) 
+            timeSeries.add(in.getArray());
+        nT = n;
+    }
 
     
 }
\ No newline at end of file
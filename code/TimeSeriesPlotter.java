@@ -1,23 +1,34 @@
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.io.File;
+import java.io.IOException;
 
 public class TimeSeriesPlotter {
     
-    // Array of arrays of time points.  That is, each time series is an array, 
-    // and this is an array of time series.  
-    private ArrayList<ArrayList<Double>> timeSeries;
+    // Array of arrays of time points.  That is, each time series is a
+    // primitive array (grown by doubling), and this is an array of time
+    // series.  Only the first nT entries of each are used.
+    private double[][] timeSeries;
+    private int nT = 0;     // number of time points
     
     private int nSeries;    // number of time series
     private double dt;      // time step
     private String title;   // plot title
     
     public TimeSeriesPlotter(int nSeries, String title, double dt) {
+        this(nSeries, title, dt, 1024);
+    }
+
+    /**
+     * Create a plotter with room for a planned number of time points, so
+     * that recording never reallocates.
+     * @param capacity the number of time points to reserve
+     */
+    public TimeSeriesPlotter(int nSeries, String title, double dt, int capacity) {
         this.nSeries = nSeries;
         this.title   = title;
         this.dt      = dt;
-        
-        timeSeries = new ArrayList<ArrayList<Double>>(nSeries);
-        for (int i = 0; i < nSeries; i++) 
-            timeSeries.add(new ArrayList<Double>());
+        timeSeries = new double[nSeries][Math.max(1, capacity)];
     }
     
     /* 
@@ -28,11 +39,111 @@ public class TimeSeriesPlotter {
     public void addTimePoint(double[] x) {
         if (x.length < nSeries) 
             throw new IllegalArgumentException("not enough inputs");
+        if (nSeries > 0 && nT == timeSeries[0].length)
+            for (int i = 0; i < nSeries; i++)
+                timeSeries[i] = Arrays.copyOf(timeSeries[i], 2*nT);
         for (int i = 0; i < nSeries; i++) 
-            timeSeries.get(i).add(x[i]);
+            timeSeries[i][nT] = x[i];
+        nT++;
+    }
+
+    public int nT() {
+        return nT;
+    }
+
+    /**
+     * Get one series.
+     * @return a copy of the first nT entries of series i
+     */
+    public double[] getSeries(int i) {
+        return Arrays.copyOf(timeSeries[i], nT);
     }
     
     public void plot() {
-        Plotting.PlotTimeSeries(timeSeries, dt, title);
+        Plotting.PlotTimeSeries(timeSeries, nT, dt, title);
+    }
+
+    /**
+     * Plot to a PNG or SVG file (by extension), without a display.
+     * @throws IOException if the file cannot be written
+     */
+    public void save(File file) throws IOException {
+        double[][] series = new double[nSeries][];
+        for (int i = 0; i < nSeries; i++)
+            series[i] = getSeries(i);
+        if (file.getName().toLowerCase().endsWith(".svg"))
+            PlottingHeadless.saveSVG(series, dt, title, file, PlottingHeadless.WIDTH,
+                                     PlottingHeadless.HEIGHT, Downsample.Method.LTTB);
+        else
+            PlottingHeadless.savePNG(series, dt, title, file, PlottingHeadless.WIDTH,
+                                     PlottingHeadless.HEIGHT, Downsample.Method.LTTB);
+    }
+
+    /**********************************************************************
+     *  Unit testing: memory and recording throughput against the boxed
+     *  ArrayList<ArrayList<Double>> storage this class used to have.
+     **********************************************************************/
+    public static void main(String[] args) {
+        int nSeries = 5, nT = 2000000;
+        double[] x = new double[nSeries];
+
+        for (int rep = 0; rep < 2; rep++) {   // second repetition is warm
+            StdOut.println("Recording " + nSeries + " series x " + nT + " points:");
+
+            // old path: boxed Doubles in growable lists
+            long m0 = usedMemory();
+            Stopwatch sw = new Stopwatch();
+            ArrayList<ArrayList<Double>> boxed = new ArrayList<ArrayList<Double>>(nSeries);
+            for (int i = 0; i < nSeries; i++)
+                boxed.add(new ArrayList<Double>());
+            for (int t = 0; t < nT; t++) {
+                for (int i = 0; i < nSeries; i++) x[i] = Math.sin(0.001*t*(i + 1));
+                for (int i = 0; i < nSeries; i++)
+                    boxed.get(i).add(x[i]);
+            }
+            double tBoxed = sw.elapsedTime();
+            long mBoxed = usedMemory() - m0;
+
+            // new path, growing from the default capacity
+            m0 = usedMemory();
+            sw = new Stopwatch();
+            TimeSeriesPlotter grown = new TimeSeriesPlotter(nSeries, "", 0.001);
+            for (int t = 0; t < nT; t++) {
+                for (int i = 0; i < nSeries; i++) x[i] = Math.sin(0.001*t*(i + 1));
+                grown.addTimePoint(x);
+            }
+            double tGrown = sw.elapsedTime();
+            long mGrown = usedMemory() - m0;
+
+            // new path, pre-sized from the planned number of steps
+            m0 = usedMemory();
+            sw = new Stopwatch();
+            TimeSeriesPlotter sized = new TimeSeriesPlotter(nSeries, "", 0.001, nT);
+            for (int t = 0; t < nT; t++) {
+                for (int i = 0; i < nSeries; i++) x[i] = Math.sin(0.001*t*(i + 1));
+                sized.addTimePoint(x);
+            }
+            double tSized = sw.elapsedTime();
+            long mSized = usedMemory() - m0;
+
+            StdOut.printf("  boxed ArrayList:  %6.3f s  %7.1f MB  (%.1f bytes/value)%n",
+                          tBoxed, mBoxed/1e6, (double) mBoxed/(nSeries*(double) nT));
+            StdOut.printf("  primitive, grown: %6.3f s  %7.1f MB  (%.1f bytes/value)%n",
+                          tGrown, mGrown/1e6, (double) mGrown/(nSeries*(double) nT));
+            StdOut.printf("  primitive, sized: %6.3f s  %7.1f MB  (%.1f bytes/value)%n",
+                          tSized, mSized/1e6, (double) mSized/(nSeries*(double) nT));
+
+            for (int i = 0; i < nSeries; i++)
+                assert(boxed.get(i).get(nT - 1) == sized.getSeries(i)[nT - 1]);
+            assert(Arrays.equals(grown.getSeries(2), sized.getSeries(2)));
+            boxed = null; grown = null; sized = null;
+        }
+    }
+
+    // heap in use after a full collection
+    private static long usedMemory() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return rt.totalMemory() - rt.freeMemory();
     }
 }
\ No newline at end of file
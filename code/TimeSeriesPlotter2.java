@@ -1,3 +1,6 @@
+import java.io.File;
+import java.io.IOException;
+
 public class TimeSeriesPlotter2 extends TimeSeries {
     
     private double dt;      // time step
@@ -12,4 +15,12 @@ public class TimeSeriesPlotter2 extends TimeSeries {
     public void plot() {
         Plotting2.PlotTimeSeries(timeSeries, dt, title);
     }
+    
+    /**
+     * Plot to a PNG or SVG file (by extension), without a display.  
+     * @throws IOException if the file cannot be written
+     */
+    public void save(File file) throws IOException {
+        PlottingHeadless.save(this, dt, title, file);
+    }
 }
\ No newline at end of file
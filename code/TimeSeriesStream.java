@@ -1,6 +1,6 @@
 import org.jblas.DoubleMatrix;
 
-public class TimeSeriesStream implements Streams.InputStream {
+public class TimeSeriesStream implements Streams.InputStream, Checkpoint.Checkpointable {
     
     private TimeSeries timeSeries;
     private double dt;
@@ -46,4 +46,22 @@ public class TimeSeriesStream implements Streams.InputStream {
         return input;
     }
     
+    /**
+     * Write the stream position and the underlying time series.
+     */
+    public void writeState(Checkpoint.Writer out) {
+        out.putDouble(t);
+        out.putInt(currentFrame);
+        timeSeries.writeState(out);
+    }
+    
+    /**
+     * Restore the stream position and the underlying time series.
+     */
+    public void readState(Checkpoint.Reader in) {
+        t = in.getDouble();
+        currentFrame = in.getInt();
+        timeSeries.readState(in);
+    }
+    
 }
\ No newline at end of file
@@ -0,0 +1,320 @@
+/*************************************************************************
+ *  Compilation:  javac --add-modules jdk.incubator.vector VectorKernels.java
+ *  Execution:    java --add-modules jdk.incubator.vector ...
+ *  Author:  Phillip B. Schafer
+ *
+ *  SIMD implementation of Kernels on the Vector API.
+ *
+ *  Dependencies:
+ *   jdk.incubator.vector (JDK 16 and later)
+ *************************************************************************/
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ *  The <nn>Kernels</nn> on the incubating Vector API, at the preferred
+ *  vector width of the machine (e.g. 8 doubles with AVX-512).  Loaded by
+ *  <nn>Kernels</nn> when the <tt>jdk.incubator.vector</tt> module is
+ *  present; not used directly.
+ *  <p>
+ *  Element-wise kernels use separate multiplies and adds, in the order of
+ *  the scalar loops, so their results are identical to the scalar
+ *  kernels'.  <tt>tanh</tt> is computed as -p/(p + 2) with
+ *  p = expm1(-2|x|), expm1 by range reduction and a degree-13 Taylor
+ *  polynomial, within 4 ulp of <tt>Math.tanh</tt>.  (The Vector API's own
+ *  TANH is not used: its compiled and interpreted forms round differently,
+ *  so the same network could step differently before and after the JIT
+ *  compiles it.)  <tt>gemv</tt> keeps a panel of rows
+ *  of y in registers across all the columns of A; <tt>spmv</tt> gathers x
+ *  at the column indices of each row and reduces the lanes at the row's
+ *  end, and <tt>spmvLowRank</tt> adds the row's m low-rank terms to that
+ *  sum before storing it.  The quantized kernels load eight int8 or fp16
+ *  weights at a time and widen them to doubles in registers (an fp16 is
+ *  rebiased through a float, as <tt>QuantizedMatrix.fromHalf</tt>).
+ *  <p>
+ *  Some JVMs miscompile the gathers with 512-bit vectors (AVX-512).  C2
+ *  in JDK 17.0.9 can encode the index register of <tt>vgatherdpd</tt>
+ *  wrongly when it is one of xmm16-31, and then gathers through a stale
+ *  register.  <tt>Connectivity.main</tt> crashes the JVM that way in
+ *  <tt>Permuted.mmuli</tt>; 17.0.16 and 21.0.1 run it correctly.  On
+ *  such a machine the constructor refuses any JVM before 21 other than
+ *  17.0.16 or later, so <nn>Kernels</nn> falls back to the scalar
+ *  kernels.  Starting the JVM with <tt>-XX:UseAVX=2</tt> (no registers
+ *  above xmm15) avoids the problem instead.
+ */
+final class VectorKernels implements Kernels.Impl {
+    private static final VectorSpecies<Double> S = DoubleVector.SPECIES_PREFERRED;
+    private static final int L = S.length();
+
+    /**
+     * @throws UnsupportedOperationException if vectors hold 8 doubles and
+     *   the JVM is not one known to compile the gathers correctly
+     */
+    VectorKernels() {
+        Runtime.Version v = Runtime.version();
+        boolean fixed = v.feature() >= 21 || (v.feature() == 17 && v.update() >= 16);
+        if (L == 8 && !fixed)
+            throw new UnsupportedOperationException("512-bit gathers are miscompiled by JDK " + v);
+    }
+
+    public void tanh(double[] x, double[] r, int n) {
+        int i = 0;
+        for (int end = S.loopBound(n); i < end; i += L) {
+            DoubleVector v = DoubleVector.fromArray(S, x, i);
+            DoubleVector p = expm1(v.abs().min(22.0).mul(-2.0));  // in (-1, 0]
+            DoubleVector t = p.div(p.add(2.0));                  // -tanh|x|
+            LongVector sign = v.reinterpretAsLongs().and(SIGN);
+            t.reinterpretAsLongs().and(~SIGN).or(sign).reinterpretAsDoubles().intoArray(r, i);
+        }
+        for (; i < n; i++)
+            r[i] = tanh(x[i]);
+    }
+
+    // expm1(y) for -44 <= y <= 0: y = k*ln2 + s, |s| <= ln2/2, and
+    // expm1(y) = 2^k*expm1(s) + 2^k - 1, with expm1(s) by its Taylor series
+    private static DoubleVector expm1(DoubleVector y) {
+        DoubleVector k = y.mul(INV_LN2).add(ROUND).sub(ROUND);
+        DoubleVector s = y.sub(k.mul(LN2_HI)).sub(k.mul(LN2_LO));
+        DoubleVector e = DoubleVector.broadcast(S, EXPM1[EXPM1.length - 1]);
+        for (int m = EXPM1.length - 2; m >= 0; m--)
+            e = e.mul(s).add(EXPM1[m]);
+        e = e.mul(s);
+        DoubleVector scale = ((LongVector) k.add(1023.0).convert(VectorOperators.D2L, 0))
+            .lanewise(VectorOperators.LSHL, 52).reinterpretAsDoubles();
+        return scale.mul(e).add(scale.sub(1.0));
+    }
+
+    // the same, one element at a time (bitwise identical to the lanes)
+    private static double tanh(double x) {
+        double y = Math.min(Math.abs(x), 22.0)*-2.0;
+        double k = y*INV_LN2 + ROUND - ROUND;
+        double s = y - k*LN2_HI - k*LN2_LO;
+        double e = EXPM1[EXPM1.length - 1];
+        for (int m = EXPM1.length - 2; m >= 0; m--)
+            e = e*s + EXPM1[m];
+        e = e*s;
+        double scale = Double.longBitsToDouble((long) (k + 1023.0) << 52);
+        double p = scale*e + (scale - 1.0);
+        double t = p/(p + 2.0);
+        return Double.longBitsToDouble((Double.doubleToRawLongBits(t) & ~SIGN)
+                                       | (Double.doubleToRawLongBits(x) & SIGN));
+    }
+
+    private static final long SIGN = 0x8000000000000000L;
+    private static final double INV_LN2 = 1.44269504088896338700e+00;
+    private static final double LN2_HI  = 6.93147180369123816490e-01;  // exact times k
+    private static final double LN2_LO  = 1.90821492927058770002e-10;
+    private static final double ROUND   = 6755399441055744.0;           // 1.5*2^52
+    private static final double[] EXPM1 = new double[13];              // 1/(m+1)!
+    static {
+        double f = 1.0;
+        for (int m = 0; m < EXPM1.length; m++) {
+            f *= m + 1;
+            EXPM1[m] = 1.0/f;
+        }
+    }
+
+    public void tanhApprox(double[] x, double[] r, int n) {
+        int i = 0;
+        for (int end = S.loopBound(n); i < end; i += L) {
+            DoubleVector v  = DoubleVector.fromArray(S, x, i);
+            DoubleVector v2 = v.mul(v);
+            DoubleVector num = v2.add(378).mul(v2).add(17325).mul(v2).add(135135).mul(v);
+            DoubleVector den = v2.mul(28).add(3150).mul(v2).add(62370).mul(v2).add(135135);
+            DoubleVector y = num.div(den);
+            VectorMask<Double> hi = v.compare(VectorOperators.GE, Kernels.CLAMP);
+            VectorMask<Double> lo = v.compare(VectorOperators.LE, -Kernels.CLAMP);
+            y.blend(1.0, hi).blend(-1.0, lo).intoArray(r, i);
+        }
+        for (; i < n; i++)
+            r[i] = Kernels.rationalTanh(x[i]);
+    }
+
+    public void axpy(int n, double a, double[] x, double[] y) {
+        int i = 0;
+        for (int end = S.loopBound(n); i < end; i += L)
+            DoubleVector.fromArray(S, y, i).add(DoubleVector.fromArray(S, x, i).mul(a)).intoArray(y, i);
+        for (; i < n; i++)
+            y[i] += a*x[i];
+    }
+
+    public void axpby(int n, double a, double[] x, double b, double[] y) {
+        int i = 0;
+        for (int end = S.loopBound(n); i < end; i += L)
+            DoubleVector.fromArray(S, x, i).mul(a)
+                .add(DoubleVector.fromArray(S, y, i).mul(b)).intoArray(y, i);
+        for (; i < n; i++)
+            y[i] = a*x[i] + b*y[i];
+    }
+
+    public void waxpy(int n, double a, double[] x, double[] y, double[] w) {
+        int i = 0;
+        for (int end = S.loopBound(n); i < end; i += L)
+            DoubleVector.fromArray(S, x, i).mul(a)
+                .add(DoubleVector.fromArray(S, y, i)).intoArray(w, i);
+        for (; i < n; i++)
+            w[i] = a*x[i] + y[i];
+    }
+
+    public void gemv(int rows, int cols, double[] A, double[] x, double[] y) {
+        int i = 0;
+        for (int end = rows - 4*L; i <= end; i += 4*L) {  // panels of 4 vectors
+            DoubleVector s0 = DoubleVector.zero(S), s1 = s0, s2 = s0, s3 = s0;
+            for (int j = 0, o = i; j < cols; j++, o += rows) {
+                double b = x[j];
+                s0 = s0.add(DoubleVector.fromArray(S, A, o).mul(b));
+                s1 = s1.add(DoubleVector.fromArray(S, A, o + L).mul(b));
+                s2 = s2.add(DoubleVector.fromArray(S, A, o + 2*L).mul(b));
+                s3 = s3.add(DoubleVector.fromArray(S, A, o + 3*L).mul(b));
+            }
+            s0.intoArray(y, i);
+            s1.intoArray(y, i + L);
+            s2.intoArray(y, i + 2*L);
+            s3.intoArray(y, i + 3*L);
+        }
+        for (int end = rows - L; i <= end; i += L) {
+            DoubleVector s0 = DoubleVector.zero(S);
+            for (int j = 0, o = i; j < cols; j++, o += rows)
+                s0 = s0.add(DoubleVector.fromArray(S, A, o).mul(x[j]));
+            s0.intoArray(y, i);
+        }
+        for (; i < rows; i++) {
+            double s = 0.0;
+            for (int j = 0, o = i; j < cols; j++, o += rows)
+                s += A[o]*x[j];
+            y[i] = s;
+        }
+    }
+
+    public void spmv(int rows, int[] rowPtr, int[] colIdx, double[] val, double[] x, double[] y) {
+        for (int i = 0; i < rows; i++) {
+            int p = rowPtr[i], end = rowPtr[i+1];
+            double s = 0.0;
+            if (end - p >= L) {
+                DoubleVector acc = DoubleVector.zero(S);
+                for (; p <= end - L; p += L)
+                    acc = acc.add(DoubleVector.fromArray(S, val, p)
+                                  .mul(DoubleVector.fromArray(S, x, 0, colIdx, p)));
+                s = acc.reduceLanes(VectorOperators.ADD);
+            }
+            for (; p < end; p++)
+                s += val[p]*x[colIdx[p]];
+            y[i] = s;
+        }
+    }
+
+    public void spmvLowRank(int rows, int[] rowPtr, int[] colIdx, double[] val, double[] x,
+                            double[] U, int m, double[] z, double[] y) {
+        for (int i = 0; i < rows; i++) {
+            int p = rowPtr[i], end = rowPtr[i+1];
+            double s = 0.0;
+            if (end - p >= L) {
+                DoubleVector acc = DoubleVector.zero(S);
+                for (; p <= end - L; p += L)
+                    acc = acc.add(DoubleVector.fromArray(S, val, p)
+                                  .mul(DoubleVector.fromArray(S, x, 0, colIdx, p)));
+                s = acc.reduceLanes(VectorOperators.ADD);
+            }
+            for (; p < end; p++)
+                s += val[p]*x[colIdx[p]];
+            for (int k = 0; k < m; k++)
+                s += U[i + rows*k]*z[k];
+            y[i] = s;
+        }
+    }
+
+    // eight weights at a time, widened into 8/L double vectors
+    private static final VectorSpecies<Byte>    B8  = ByteVector.SPECIES_64;
+    private static final VectorSpecies<Short>   H8  = ShortVector.SPECIES_128;
+    private static final VectorSpecies<Integer> I8  = IntVector.SPECIES_256;
+    private static final int PARTS = 8/L;
+
+    public double dotInt8(byte[] q, int[] colIdx, int lo, int hi, double[] x, int o) {
+        DoubleVector acc = DoubleVector.zero(S);
+        int p = lo;
+        for (; p <= hi - 8; p += 8) {
+            ByteVector b = ByteVector.fromArray(B8, q, p);
+            for (int k = 0; k < PARTS; k++)
+                acc = acc.add(((DoubleVector) b.convertShape(VectorOperators.B2D, S, k))
+                              .mul(load(x, colIdx, p + k*L, o)));
+        }
+        double s = acc.reduceLanes(VectorOperators.ADD);
+        for (; p < hi; p++)
+            s += q[p]*x[colIdx == null ? p - o : colIdx[p]];
+        return s;
+    }
+
+    public double dotHalf(short[] q, int[] colIdx, int lo, int hi, double[] x, int o) {
+        DoubleVector acc = DoubleVector.zero(S);
+        int p = lo;
+        for (; p <= hi - 8; p += 8) {
+            FloatVector h = halves(q, p);
+            for (int k = 0; k < PARTS; k++)
+                acc = acc.add(((DoubleVector) h.convertShape(VectorOperators.F2D, S, k))
+                              .mul(load(x, colIdx, p + k*L, o)));
+        }
+        double s = acc.reduceLanes(VectorOperators.ADD);
+        for (; p < hi; p++)
+            s += QuantizedMatrix.fromHalf(q[p])*x[colIdx == null ? p - o : colIdx[p]];
+        return s;
+    }
+
+    public void int8ToDouble(byte[] q, int p, int n, double[] w) {
+        int k = 0;
+        for (; k <= n - 8; k += 8) {
+            ByteVector b = ByteVector.fromArray(B8, q, p + k);
+            for (int m = 0; m < PARTS; m++)
+                ((DoubleVector) b.convertShape(VectorOperators.B2D, S, m)).intoArray(w, k + m*L);
+        }
+        for (; k < n; k++)
+            w[k] = q[p + k];
+    }
+
+    public void halfToDouble(short[] q, int p, int n, double[] w) {
+        int k = 0;
+        for (; k <= n - 8; k += 8) {
+            FloatVector h = halves(q, p + k);
+            for (int m = 0; m < PARTS; m++)
+                ((DoubleVector) h.convertShape(VectorOperators.F2D, S, m)).intoArray(w, k + m*L);
+        }
+        for (; k < n; k++)
+            w[k] = QuantizedMatrix.fromHalf(q[p + k]);
+    }
+
+    // x at the columns of weights p .. p + L - 1 (gathered), or x[p - o ..]
+    private static DoubleVector load(double[] x, int[] colIdx, int p, int o) {
+        return colIdx == null ? DoubleVector.fromArray(S, x, p - o)
+                              : DoubleVector.fromArray(S, x, 0, colIdx, p);
+    }
+
+    // the eight halves at q[p] as floats: sign and exponent-mantissa moved
+    // to their float positions, then rebiased by 2^(127-15)
+    private static FloatVector halves(short[] q, int p) {
+        IntVector h = (IntVector) ShortVector.fromArray(H8, q, p)
+                                             .convertShape(VectorOperators.S2I, I8, 0);
+        return h.and(0x8000).lanewise(VectorOperators.LSHL, 16)
+                .or(h.and(0x7fff).lanewise(VectorOperators.LSHL, 13))
+                .reinterpretAsFloats().mul(0x1.0p112f);
+    }
+
+    public void syr(int n, double alpha, double[] x, double[] A) {
+        for (int j = 0; j < n; j++) {
+            double b = alpha*x[j];
+            int o = n*j, i = 0;
+            for (int end = S.loopBound(n); i < end; i += L)
+                DoubleVector.fromArray(S, A, o + i)
+                    .add(DoubleVector.fromArray(S, x, i).mul(b)).intoArray(A, o + i);
+            for (; i < n; i++)
+                A[o + i] += x[i]*b;
+        }
+    }
+
+    public String toString() { return "Vector API, " + L + " x double"; }
+}
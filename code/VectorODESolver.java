@@ -7,6 +7,7 @@
  * 
  *  Dependencies: 
  *   JBlas library
+ *   Kernels
  *************************************************************************/
 import org.jblas.DoubleMatrix;
 import org.jblas.MatrixFunctions;
@@ -91,7 +92,7 @@ public class VectorODESolver {
             if (x.rows != N || x.columns != 1) 
                 throw new IllegalArgumentException("Dimension of system state does not match integrator");
             dynEq.timeDeriv(x, t, deriv);      // get deriv (overwrite)
-            x.addi(deriv.muli(dt));            // x += deriv*dt
+            Kernels.axpy(N, dt, deriv.data, x.data);   // x += deriv*dt
         }
     }
     
@@ -120,22 +121,23 @@ public class VectorODESolver {
                 throw new IllegalArgumentException("Dimension of dynamical equation does not match integrator");
             if (x.rows != N || x.columns != 1) 
                 throw new IllegalArgumentException("Dimension of system state does not match integrator");
+            double[] kd = k.data, xd = x.data, ed = x_est.data, dd = deriv.data;
             dynEq.timeDeriv(x, t, k);              // k := k1
             deriv.copy(k);                         // deriv := k1
             
-            x.addi(k.muli(0.5*dt), x_est);         // x_est := x + 0.5*k1*dt
+            Kernels.waxpy(N, 0.5*dt, kd, xd, ed);  // x_est := x + 0.5*k1*dt
             dynEq.timeDeriv(x_est, t + 0.5*dt, k); // k := k2
-            deriv.addi(k).addi(k);                 // deriv += 2*k2
+            Kernels.axpy(N, 2.0, kd, dd);          // deriv += 2*k2
             
-            x.addi(k.muli(0.5*dt), x_est);         // x_est := x + 0.5*k1*dt
+            Kernels.waxpy(N, 0.5*dt, kd, xd, ed);  // x_est := x + 0.5*k2*dt
             dynEq.timeDeriv(x_est, t + 0.5*dt, k); // k := k3
-            deriv.addi(k).addi(k);                 // deriv += 2*k3
+            Kernels.axpy(N, 2.0, kd, dd);          // deriv += 2*k3
             
-            x.addi(k.muli(dt), x_est);             // x_est := x + k3*dt
+            Kernels.waxpy(N, dt, kd, xd, ed);      // x_est := x + k3*dt
             dynEq.timeDeriv(x_est, t + dt, k);     // k := k4
-            deriv.addi(k);                         // deriv += k4
+            Kernels.axpy(N, 1.0, kd, dd);          // deriv += k4
             
-            x.addi(deriv.muli(dt/6.0));
+            Kernels.axpy(N, dt/6.0, dd, xd);
         }
     }
 }
\ No newline at end of file
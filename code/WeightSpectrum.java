@@ -0,0 +1,215 @@
+/*************************************************************************
+ *  Compilation:  javac WeightSpectrum.java
+ *  Author:  Phillip B. Schafer
+ *
+ *  Leading eigenvalues and spectral radius of a connection matrix.
+ *
+ *  Dependencies:
+ *   JBlas library
+ *   ARPACK (ParallelColt/lib/arpack-combo.jar, netlib-java.jar)
+ *   Parallel Colt (unit testing only)
+ *   StdOut, Stopwatch (Algs-4)
+ *************************************************************************/
+import org.jblas.DoubleMatrix;
+import org.netlib.arpack.ARPACK;
+import org.netlib.util.doubleW;
+import org.netlib.util.intW;
+
+import cern.colt.matrix.tdouble.impl.*;     // Parallel Colt
+import cern.colt.matrix.tdouble.algo.decomposition.*;
+
+/**
+ *  Leading eigenvalues of a (nonsymmetric) connection matrix by the
+ *  implicitly restarted Arnoldi method (ARPACK <tt>dnaupd</tt>/<tt>dneupd</tt>).
+ *  The matrix is only accessed through products with vectors, via its
+ *  <nn>Connectivity.WeightMatrix</nn>, so the cost is a few hundred
+ *  matvecs and O(N*ncv) memory; dense and sparse matrices of N = 20k are
+ *  practical.
+ *  <p>
+ *  <tt>Reservoir</tt> scales W by g/sqrt(N*p) so that, by the circular law,
+ *  the spectral radius is about g.  After <tt>setW</tt> or learning that no
+ *  longer holds; <tt>rescale</tt> sets the actual spectral radius exactly.
+ */
+public class WeightSpectrum {
+
+    private static final double TOL      = 1e-10;
+    private static final int    MAX_ITER = 3000;
+
+    /**
+     * The eigenvalues of largest magnitude, sorted by decreasing magnitude.
+     */
+    public static class Eigenvalues {
+        public final double[] re;
+        public final double[] im;
+        Eigenvalues(double[] re, double[] im) {
+            this.re = re;
+            this.im = im;
+        }
+        /** @return the number of eigenvalues */
+        public int size() {
+            return re.length;
+        }
+        /** @return the magnitude of the i-th eigenvalue */
+        public double abs(int i) {
+            return Math.hypot(re[i], im[i]);
+        }
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < re.length; i++)
+                sb.append(String.format("%.6f %+.6fi%n", re[i], im[i]));
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Compute the nev eigenvalues of largest magnitude.
+     * @param W the (square) matrix
+     * @param nev the number of eigenvalues
+     * @return the eigenvalues, sorted by decreasing magnitude
+     * @throws IllegalArgumentException if <tt>W</tt> is not square or
+     *   <tt>nev</tt> is not in [1, N-2]
+     * @throws IllegalStateException if ARPACK fails or does not converge
+     */
+    public static Eigenvalues leading(Connectivity.WeightMatrix W, int nev) {
+        int n = W.rows();
+        if (W.columns() != n)
+            throw new IllegalArgumentException("W must be square");
+        if (nev < 1 || nev > n - 2)
+            throw new IllegalArgumentException("nev must be in [1, N-2]");
+        int ncv = Math.min(n, Math.max(2*nev + 1, 20));
+
+        ARPACK arpack = ARPACK.getInstance();
+        intW    ido   = new intW(0);
+        intW    info  = new intW(0);
+        doubleW tol   = new doubleW(TOL);
+        double[] resid = new double[n];
+        double[] v     = new double[n*ncv];
+        int[] iparam   = new int[11];
+        int[] ipntr    = new int[14];
+        double[] workd = new double[3*n];
+        int lworkl     = 3*ncv*ncv + 6*ncv;
+        double[] workl = new double[lworkl];
+        iparam[0] = 1;          // exact shifts
+        iparam[2] = MAX_ITER;
+        iparam[6] = 1;          // mode 1: A*x = lambda*x
+
+        // reverse communication: ARPACK asks for y = W*x until done
+        DoubleMatrix x = new DoubleMatrix(n);
+        DoubleMatrix y = new DoubleMatrix(n);
+        while (true) {
+            arpack.dnaupd(ido, "I", n, "LM", nev, tol, resid, ncv, v, n,
+                          iparam, ipntr, workd, workl, lworkl, info);
+            if (ido.val != -1 && ido.val != 1) break;
+            System.arraycopy(workd, ipntr[0] - 1, x.data, 0, n);
+            W.mmuli(x, y);
+            System.arraycopy(y.data, 0, workd, ipntr[1] - 1, n);
+        }
+        if (info.val < 0)
+            throw new IllegalStateException("ARPACK dnaupd failed, info = " + info.val);
+        if (info.val == 1)
+            throw new IllegalStateException("ARPACK did not converge in " + MAX_ITER + " iterations");
+
+        double[] dr = new double[nev + 1];
+        double[] di = new double[nev + 1];
+        double[] z  = new double[n*(nev + 1)];
+        double[] workev = new double[3*ncv];
+        boolean[] select = new boolean[ncv];
+        intW nconv = new intW(nev);
+        arpack.dneupd(false, "A", select, dr, di, z, n, 0.0, 0.0, workev,
+                      "I", n, "LM", nconv, tol.val, resid, ncv, v, n,
+                      iparam, ipntr, workd, workl, lworkl, info);
+        if (info.val != 0)
+            throw new IllegalStateException("ARPACK dneupd failed, info = " + info.val);
+
+        // ARPACK may return nev+1 values (complex pairs); keep nev largest
+        int nFound = Math.min(iparam[4], nev + 1);
+        Integer[] order = new Integer[nFound];
+        for (int i = 0; i < nFound; i++) order[i] = i;
+        final double[] fr = dr, fi = di;
+        java.util.Arrays.sort(order, new java.util.Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(Math.hypot(fr[b], fi[b]), Math.hypot(fr[a], fi[a]));
+            }
+        });
+        int m = Math.min(nev, nFound);
+        double[] re = new double[m];
+        double[] im = new double[m];
+        for (int i = 0; i < m; i++) {
+            re[i] = dr[order[i]];
+            im[i] = di[order[i]];
+        }
+        return new Eigenvalues(re, im);
+    }
+
+    /**
+     * Compute the spectral radius (largest eigenvalue magnitude).
+     * @param W the (square) matrix
+     * @return the spectral radius
+     */
+    public static double spectralRadius(Connectivity.WeightMatrix W) {
+        return leading(W, Math.min(4, W.rows() - 2)).abs(0);
+    }
+
+    /**
+     * Compute the spectral radius of a network's connection matrix.
+     * @param res the network
+     * @return the spectral radius
+     */
+    public static double spectralRadius(Reservoir res) {
+        return spectralRadius(res.getConnectivity());
+    }
+
+    /**
+     * Scale a network's connection matrix, in place, to a given spectral
+     * radius.
+     * @param res the network
+     * @param rho the target spectral radius
+     * @return the spectral radius before rescaling
+     * @throws IllegalArgumentException if <tt>rho</tt> is negative or not finite
+     * @throws IllegalStateException if the current spectral radius is zero
+     */
+    public static double rescale(Reservoir res, double rho) {
+        if (!(rho >= 0) || Double.isInfinite(rho))
+            throw new IllegalArgumentException("rho must be a nonnegative finite number");
+        double current = spectralRadius(res);
+        if (current == 0.0)
+            throw new IllegalStateException("W has spectral radius 0 and cannot be rescaled");
+        res.scaleW(rho/current);
+        return current;
+    }
+
+    /**********************************************************************
+     *  Unit testing
+     **********************************************************************/
+    public static void main(String[] args) {
+        StdOut.println("Testing against a dense eigendecomposition...");
+        int N = 300;
+        Reservoir res = new Reservoir(N, 0.1, 1.5);
+        DoubleMatrix W = res.getW(new DoubleMatrix());
+        DenseDoubleEigenvalueDecomposition eig
+            = new DenseDoubleEigenvalueDecomposition(new DenseDoubleMatrix2D(W.toArray2()));
+        double[] re = eig.getRealEigenvalues().toArray();
+        double[] im = eig.getImagEigenvalues().toArray();
+        double rhoDense = 0.0;
+        for (int i = 0; i < N; i++)
+            rhoDense = Math.max(rhoDense, Math.hypot(re[i], im[i]));
+        Eigenvalues lead = leading(res.getConnectivity(), 6);
+        StdOut.println("leading eigenvalues:");
+        StdOut.print(lead);
+        StdOut.println("spectral radius: ARPACK " + lead.abs(0) + ", dense " + rhoDense
+                       + ", circular law " + 1.5);
+        assert(Math.abs(lead.abs(0) - rhoDense) < 1e-8);
+
+        StdOut.println("Testing rescaling (sparse backend)...");
+        res.useSparseW();
+        rescale(res, 0.9);
+        double rho = spectralRadius(res);
+        StdOut.println("spectral radius after rescaling to 0.9: " + rho);
+        assert(Math.abs(rho - 0.9) < 1e-8);
+
+        StdOut.println("Testing run time for N = 5000, p = 0.1 (sparse)...");
+        Reservoir big = new Reservoir(Connectivity.Sparse.random(5000, 0.1, 1.5), 0.01, 0.001);
+        Stopwatch sw = new Stopwatch();
+        StdOut.println("spectral radius: " + spectralRadius(big) + ", time: " + sw.elapsedTime());
+    }
+}